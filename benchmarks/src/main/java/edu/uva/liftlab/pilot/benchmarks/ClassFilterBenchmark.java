@@ -0,0 +1,157 @@
+package edu.uva.liftlab.pilot.benchmarks;
+
+import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import org.openjdk.jmh.annotations.*;
+import soot.G;
+import soot.SootClass;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the class filter decisions over a synthetic 50k-class scene, as queried by the passes
+ * (processClasses, redirectAllClassesStates, BaggagePropagation, getShouldInstrumentedMethodForCtxTree).
+ *
+ * linearScan reproduces the previous String.contains scan over every pattern of every list;
+ * the other benchmarks go through ClassFilterHelper with its compiled matchers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClassFilterBenchmark {
+
+    private static final String[] ROOTS = {"org.apache.solr", "org.apache.lucene", "org.apache.zookeeper"};
+    private static final String[] PACKAGES = {"analysis", "api", "client", "cloud", "core", "handler", "handler.admin",
+            "index", "request", "response", "schema", "search", "security", "servlet", "update", "util", "store", "codecs"};
+
+    // The class lists of experiments/solr17515/conf/solr.properties
+    private static final String CONFIG =
+            "blacklist_pilotfunc_classes=org.apache.solr.analysis,org.apache.solr.api,org.apache.solr.client,"
+                    + "org.apache.solr.parser,org.apache.solr.filestore,org.apache.solr.logging,org.apache.solr.highlight,"
+                    + "org.apache.solr.internal,org.apache.solr.legacy,org.apache.solr.pkg,org.apache.solr.query,"
+                    + "org.apache.solr.request,org.apache.solr.response,org.apache.solr.rest,org.apache.solr.schema,"
+                    + "org.apache.solr.security,org.apache.solr.servlet,org.apache.solr.spelling,org.apache.solr.uninverting,"
+                    + "org.apache.solr.store,org.apache.solr.packagemanager,org.apache.solr.core.ConfigSetService,"
+                    + "org.apache.solr.core.SolrConfig,org.apache.solr.update.TransactionLog,org.apache.solr.handler.admin,"
+                    + "org.apache.solr.util\n"
+                    + "whitelist_pilotfunc_classes=org.apache.solr.util.RefCounted\n"
+                    + "blacklist_state_classes=org.apache.lucene.codecs,org.apache.lucene.store\n"
+                    + "whitelist_state_classes=org.apache.lucene.store.Directory\n"
+                    + "ctxTreeBlacklist_classes=org.apache.solr.util,org.apache.lucene\n"
+                    + "trace_classes=org.apache.solr.cloud.RecoveryStrategy,org.apache.solr.handler.IndexFetcher\n"
+                    + "isolate_classes=org.apache.solr.handler.IndexFetcher\n"
+                    + "io_classes=org.apache.solr.handler.IndexFetcher,org.apache.solr.core.DirectoryFactory\n";
+
+    private static final int CLASS_COUNT = 50_000;
+
+    private List<SootClass> classes;
+    private Path configFile;
+    private ClassFilterHelper warmFilter;
+    private Map<String, Set<String>> rawLists;
+
+    @Setup
+    public void setup() throws IOException {
+        G.reset();
+        configFile = Files.createTempFile("pilot-filter", ".properties");
+        Files.write(configFile, CONFIG.getBytes(StandardCharsets.UTF_8));
+
+        Random random = new Random(42);
+        classes = new ArrayList<>(CLASS_COUNT);
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            String root = ROOTS[random.nextInt(ROOTS.length)];
+            String pkg = PACKAGES[random.nextInt(PACKAGES.length)];
+            classes.add(new SootClass(root + "." + pkg + ".Generated" + i));
+        }
+
+        warmFilter = new ClassFilterHelper(configFile.toString());
+        queryAll(warmFilter);
+
+        rawLists = new HashMap<>();
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(configFile)) {
+            props.load(reader);
+        }
+        for (String key : props.stringPropertyNames()) {
+            rawLists.put(key, new HashSet<>(Arrays.asList(props.getProperty(key).split(","))));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(configFile);
+    }
+
+    @Benchmark
+    public int linearScan() {
+        int matches = 0;
+        for (SootClass sc : classes) {
+            String name = sc.getName();
+            matches += contains(name, "blacklist_pilotfunc_classes") ? 1 : 0;
+            matches += contains(name, "whitelist_pilotfunc_classes") ? 1 : 0;
+            matches += contains(name, "blacklist_state_classes") ? 1 : 0;
+            matches += contains(name, "whitelist_state_classes") ? 1 : 0;
+            matches += contains(name, "ctxTreeBlacklist_classes") ? 1 : 0;
+            matches += equalsAny(name, "trace_classes") ? 1 : 0;
+            matches += equalsAny(name, "isolate_classes") ? 1 : 0;
+            matches += equalsAny(name, "io_classes") ? 1 : 0;
+            matches += contains(name, "io_classes") ? 1 : 0;
+        }
+        return matches;
+    }
+
+    /**
+     * Matcher compilation plus the first computation of every decision vector
+     * (the config file itself is parsed once per engine run)
+     */
+    @Benchmark
+    public int compiledMatcherFirstPass() {
+        return queryAll(new ClassFilterHelper(configFile.toString()));
+    }
+
+    @Benchmark
+    public int memoizedDecisions() {
+        return queryAll(warmFilter);
+    }
+
+    private int queryAll(ClassFilterHelper filter) {
+        int matches = 0;
+        for (SootClass sc : classes) {
+            matches += filter.isBlackListPilotFuncClass(sc) ? 1 : 0;
+            matches += filter.isWhiteListPilotFuncClass(sc) ? 1 : 0;
+            matches += filter.isStateBlackListClass(sc) ? 1 : 0;
+            matches += filter.isStateWhiteListClass(sc) ? 1 : 0;
+            matches += filter.isContextTrackingBlackListClass(sc) ? 1 : 0;
+            matches += filter.isTraceClass(sc) ? 1 : 0;
+            matches += filter.isIsolateClass(sc) ? 1 : 0;
+            matches += filter.isIoClass(sc) ? 1 : 0;
+            matches += filter.isContainsIoClass(sc) ? 1 : 0;
+        }
+        return matches;
+    }
+
+    private boolean contains(String className, String list) {
+        for (String pattern : rawLists.getOrDefault(list, Collections.emptySet())) {
+            if (!pattern.isEmpty() && className.contains(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean equalsAny(String className, String list) {
+        for (String pattern : rawLists.getOrDefault(list, Collections.emptySet())) {
+            if (!pattern.isEmpty() && className.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,306 @@
+package edu.uva.liftlab.pilot.benchmarks;
+
+import edu.uva.liftlab.pilot.RCMain;
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import soot.G;
+import soot.PackManager;
+import soot.Scene;
+import soot.SootClass;
+import soot.Transform;
+import soot.options.Options;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * InstrumentedFixtures - The fixture classes before and after a run of the engine, each loaded with
+ * the runtime library in its own class loader.
+ *
+ * The runtime library is not part of this repository: -Dpilot.runtime is its jar (by default the one
+ * built by clone_build.sh runtimelib) and -Dpilot.lib the directory of the jars it needs, the
+ * OpenTelemetry jars of the engine by default. The jar of the runtime module of this repository,
+ * -Dpilot.runtime.ext, is added when it is built.
+ */
+public class InstrumentedFixtures {
+
+    private static final String FIXTURE_PACKAGE = "edu.uva.liftlab.pilot.benchmarks.fixtures";
+
+    // Classes of the fixtures package, nested classes included
+    private static final List<String> FIXTURES = Arrays.asList("Ledger", "SegmentIndex", "Dispatcher",
+            "Dispatcher$Counter", "Dispatcher$CallerRunsExecutor", "Replicator", "SegmentReader");
+
+    // Classes of the generated code that are not basic classes of RCMain
+    private static final List<String> TRACING_CLASSES = Arrays.asList("io.opentelemetry.api.GlobalOpenTelemetry",
+            "io.opentelemetry.api.OpenTelemetry", "io.opentelemetry.api.trace.Span",
+            "io.opentelemetry.api.trace.SpanBuilder", "io.opentelemetry.api.trace.SpanContext",
+            "io.opentelemetry.api.trace.Tracer", "io.opentelemetry.context.Context",
+            "io.opentelemetry.context.Scope", "org.pilot.trace.SpanBudget");
+
+    private final ClassLoader runtimeLoader;
+    private final ClassLoader originalLoader;
+    private final ClassLoader instrumentedLoader;
+
+    private InstrumentedFixtures(ClassLoader runtimeLoader, Path originalDir, Path instrumentedDir,
+                                 List<Path> libraries) throws MalformedURLException {
+        this.runtimeLoader = runtimeLoader;
+        this.originalLoader = new URLClassLoader(toUrls(originalDir, libraries), runtimeLoader);
+        this.instrumentedLoader = new URLClassLoader(toUrls(instrumentedDir, libraries), runtimeLoader);
+    }
+
+    /**
+     * Instrument the fixtures with the given engine options turned on
+     * @param options comma separated options of the configuration file, e.g. switchpoint_guard,lazy_copy,
+     *                or with a value, e.g. huge_method_limit=4000
+     */
+    public static InstrumentedFixtures instrument(String options) throws Exception {
+        return instrument(options, FIXTURES, null, null);
+    }
+
+    /**
+     * Instrument the fixtures along with the classes of a package of a library jar, e.g. the store of
+     * Lucene. Both class loaders take the rest of the library from the jar.
+     * @param fixtures classes of the fixtures package, nested classes included
+     */
+    public static InstrumentedFixtures instrument(String options, List<String> fixtures, Path library,
+                                                  String libraryPackage) throws Exception {
+        List<Path> runtimeClassPath = getRuntimeClassPath();
+        Path workDir = Files.createTempDirectory("pilot-fixtures");
+        Path originalDir = workDir.resolve("original");
+        Path instrumentedDir = workDir.resolve("instrumented");
+        for (String fixture : fixtures) {
+            String classFile = (FIXTURE_PACKAGE + "." + fixture).replace('.', '/') + ".class";
+            Path target = originalDir.resolve(classFile);
+            Files.createDirectories(target.getParent());
+            try (InputStream in = InstrumentedFixtures.class.getClassLoader().getResourceAsStream(classFile)) {
+                Files.copy(in, target);
+            }
+        }
+        List<Path> libraries = new ArrayList<>();
+        if (library != null) {
+            if (!Files.exists(library)) {
+                throw new IllegalStateException("Library not found at " + library);
+            }
+            copyPackage(library, libraryPackage, originalDir);
+            libraries.add(library);
+        }
+        Path config = workDir.resolve("pilot.properties");
+        List<String> lines = new ArrayList<>();
+        for (String option : options.split(",")) {
+            if (option.contains("=")) {
+                lines.add(option.trim());
+            } else if (!option.trim().isEmpty()) {
+                lines.add(option.trim() + "=true");
+            }
+        }
+        Files.write(config, lines, StandardCharsets.UTF_8);
+
+        runEngine(originalDir, instrumentedDir, config, runtimeClassPath, libraries);
+
+        List<URL> urls = new ArrayList<>();
+        for (Path path : runtimeClassPath) {
+            urls.add(path.toUri().toURL());
+        }
+        ClassLoader runtimeLoader = new URLClassLoader(urls.toArray(new URL[0]), null);
+        fixInterfaceStaticCalls(instrumentedDir, new URLClassLoader(toUrls(null, libraries), runtimeLoader));
+        return new InstrumentedFixtures(runtimeLoader, originalDir, instrumentedDir, libraries);
+    }
+
+    private static URL[] toUrls(Path classDir, List<Path> libraries) throws MalformedURLException {
+        List<URL> urls = new ArrayList<>();
+        if (classDir != null) {
+            urls.add(classDir.toUri().toURL());
+        }
+        for (Path library : libraries) {
+            urls.add(library.toUri().toURL());
+        }
+        return urls.toArray(new URL[0]);
+    }
+
+    /**
+     * Copy the classes of the package of the jar, not those of its subpackages, to the directory
+     */
+    private static void copyPackage(Path jar, String packageName, Path targetDir) throws IOException {
+        String prefix = packageName.replace('.', '/') + "/";
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            for (JarEntry entry : Collections.list(jarFile.entries())) {
+                String name = entry.getName();
+                if (!name.startsWith(prefix) || !name.endsWith(".class") || name.indexOf('/', prefix.length()) >= 0) {
+                    continue;
+                }
+                Path target = targetDir.resolve(name);
+                Files.createDirectories(target.getParent());
+                try (InputStream in = jarFile.getInputStream(entry)) {
+                    Files.copy(in, target);
+                }
+            }
+        }
+    }
+
+    private static List<Path> getRuntimeClassPath() throws IOException {
+        Path runtime = Paths.get(System.getProperty("pilot.runtime",
+                System.getProperty("user.home") + "/PilotExecution/Pilot/target/Pilot-1.0-SNAPSHOT.jar"));
+        if (!Files.exists(runtime)) {
+            throw new IllegalStateException("PILOT runtime library not found at " + runtime
+                    + ", build it with ./clone_build.sh runtimelib or set -Dpilot.runtime");
+        }
+        List<Path> classPath = new ArrayList<>();
+        classPath.add(runtime);
+        Path runtimeExt = Paths.get(System.getProperty("pilot.runtime.ext",
+                "../runtime/target/RecoveryChecker-runtime-1.0-SNAPSHOT.jar"));
+        if (Files.exists(runtimeExt)) {
+            classPath.add(runtimeExt);
+        }
+        Path lib = Paths.get(System.getProperty("pilot.lib", "../lib"));
+        if (Files.isDirectory(lib)) {
+            try (Stream<Path> jars = Files.list(lib)) {
+                classPath.addAll(jars.filter(jar -> jar.toString().endsWith(".jar")).sorted()
+                        .collect(Collectors.toList()));
+            }
+        }
+        return classPath;
+    }
+
+    /**
+     * Run the engine over the fixtures the way RCMain does, with .class output
+     */
+    private static void runEngine(Path originalDir, Path instrumentedDir, Path config,
+                                  List<Path> runtimeClassPath, List<Path> libraries) {
+        G.reset();
+        Options.v().set_allow_phantom_refs(true);
+        Options.v().set_prepend_classpath(true);
+        // the copied library classes come before the jar they were copied from
+        List<Path> classPath = new ArrayList<>(runtimeClassPath);
+        classPath.add(originalDir);
+        classPath.addAll(libraries);
+        Options.v().set_soot_classpath(classPath.stream().map(Path::toString)
+                .collect(Collectors.joining(File.pathSeparator)));
+        Options.v().set_java_version(8);
+        Options.v().set_output_format(Options.output_format_class);
+        Options.v().set_output_dir(instrumentedDir.toString());
+        Options.v().set_process_dir(Collections.singletonList(originalDir.toString()));
+        Options.v().set_whole_program(true);
+        RCMain.addBasicClasses();
+        for (String tracingClass : TRACING_CLASSES) {
+            Scene.v().addBasicClass(tracingClass, SootClass.SIGNATURES);
+        }
+        PilotTransformer pilotTransformer = new PilotTransformer(config.toString());
+        PackManager.v().getPack("wjtp").add(new Transform("wjtp.pilot", pilotTransformer));
+        Scene.v().loadNecessaryClasses();
+        pilotTransformer.registerPilotEntryPoints();
+        PackManager.v().runPacks();
+        PackManager.v().writeOutput();
+        // Release the scene, so that it does not weigh on the measurements
+        G.reset();
+    }
+
+    /**
+     * Soot 4.4.1 writes calls of static interface methods (Span.current(), Context.current()) as calls
+     * of class methods, which the JVM rejects with an IncompatibleClassChangeError. Fix the owner kind
+     * of these calls in the written classes.
+     */
+    private static void fixInterfaceStaticCalls(Path instrumentedDir, ClassLoader classLoader) throws IOException {
+        List<Path> classFiles;
+        try (Stream<Path> files = Files.walk(instrumentedDir)) {
+            classFiles = files.filter(file -> file.toString().endsWith(".class")).collect(Collectors.toList());
+        }
+        for (Path classFile : classFiles) {
+            ClassWriter writer = new ClassWriter(0);
+            new ClassReader(Files.readAllBytes(classFile)).accept(new ClassVisitor(Opcodes.ASM9, writer) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                                 String[] exceptions) {
+                    return new MethodVisitor(Opcodes.ASM9, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+                        @Override
+                        public void visitMethodInsn(int opcode, String owner, String name, String descriptor,
+                                                    boolean isInterface) {
+                            if (opcode == Opcodes.INVOKESTATIC && !isInterface) {
+                                isInterface = isInterface(owner, classLoader);
+                            }
+                            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                        }
+                    };
+                }
+            }, 0);
+            Files.write(classFile, writer.toByteArray());
+        }
+    }
+
+    private static boolean isInterface(String owner, ClassLoader classLoader) {
+        String className = owner.replace('/', '.');
+        if (className.startsWith(FIXTURE_PACKAGE)) {
+            return false;
+        }
+        try {
+            return Class.forName(className, false, classLoader).isInterface();
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    public LongSupplier newOriginal(String fixture) throws ReflectiveOperationException {
+        return newFixture(originalLoader, fixture);
+    }
+
+    public LongSupplier newInstrumented(String fixture) throws ReflectiveOperationException {
+        return newFixture(instrumentedLoader, fixture);
+    }
+
+    private static LongSupplier newFixture(ClassLoader loader, String fixture) throws ReflectiveOperationException {
+        return (LongSupplier) loader.loadClass(FIXTURE_PACKAGE + "." + fixture).getConstructor().newInstance();
+    }
+
+    /**
+     * Set up OpenTelemetry as the instrumented system does in the static initializer of its init classes
+     */
+    public void initializeTracing() throws ReflectiveOperationException {
+        runtimeLoader.loadClass("org.pilot.trace.TraceRecorder").getMethod("initializeOpenTelemetry").invoke(null);
+    }
+
+    /**
+     * Make the current thread part of a pilot run, until the returned scope is closed. The run is
+     * announced to PilotGuard, as the instrumented calls to PilotUtil.start do with switchpoint_guard.
+     */
+    public AutoCloseable enterPilotRun() throws ReflectiveOperationException {
+        Object baggage = runtimeLoader.loadClass("org.pilot.PilotUtil").getMethod("createDryRunBaggage").invoke(null);
+        Class<?> contextClass = runtimeLoader.loadClass("io.opentelemetry.context.Context");
+        Object context = contextClass.getMethod("current").invoke(null);
+        context = contextClass.getMethod("with", runtimeLoader.loadClass("io.opentelemetry.context.ImplicitContextKeyed"))
+                .invoke(context, baggage);
+        AutoCloseable scope = (AutoCloseable) contextClass.getMethod("makeCurrent").invoke(context);
+        Class<?> guardClass;
+        try {
+            guardClass = runtimeLoader.loadClass("org.pilot.PilotGuard");
+        } catch (ClassNotFoundException e) {
+            return scope;
+        }
+        guardClass.getMethod("pilotRunStarted").invoke(null);
+        Method pilotRunEnded = guardClass.getMethod("pilotRunEnded");
+        return () -> {
+            scope.close();
+            pilotRunEnded.invoke(null);
+        };
+    }
+}
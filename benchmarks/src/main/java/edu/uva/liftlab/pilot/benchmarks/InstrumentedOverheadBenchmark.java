@@ -0,0 +1,86 @@
+package edu.uva.liftlab.pilot.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency of one call of a fixture, see the fixtures package, before and after instrumentation.
+ *
+ * original runs the class as compiled. noPilot runs the instrumented class outside of a pilot run:
+ * the diverge prologue, the redirected IO calls and the SharedStatePropagator read hooks.
+ * pilot runs the instrumented class in a pilot run: the pilot copy with its field barriers and
+ * State.shallowCopy, the executor context wrapping and the span creation.
+ *
+ * options turns engine options on, so that every optimization can be compared against the default
+ * instrumentation, e.g. the isDryRun() call against the switchpoint guard of the prologue:
+ * java -Dpilot.runtime=Pilot-1.0-SNAPSHOT.jar -jar target/benchmarks.jar InstrumentedOverheadBenchmark
+ *     -p options=,switchpoint_guard
+ *
+ * or the IO calls redirected to the shadow file system against the ones kept behind a pilot check,
+ * for which noPilot of the IO fixtures should match original:
+ * java -Dpilot.runtime=Pilot-1.0-SNAPSHOT.jar -jar target/benchmarks.jar InstrumentedOverheadBenchmark
+ *     -p fixture=SegmentIndex,SegmentReader -p options=,guarded_io
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstrumentedOverheadBenchmark {
+
+    @Param({"Ledger", "SegmentIndex", "Dispatcher", "Replicator", "SegmentReader"})
+    public String fixture;
+
+    @Param({"", "switchpoint_guard"})
+    public String options;
+
+    private InstrumentedFixtures fixtures;
+    private LongSupplier original;
+    private LongSupplier instrumented;
+    private LongSupplier pilotRun;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixtures = InstrumentedFixtures.instrument(options);
+        fixtures.initializeTracing();
+        original = fixtures.newOriginal(fixture);
+        instrumented = fixtures.newInstrumented(fixture);
+        pilotRun = fixtures.newInstrumented(fixture);
+    }
+
+    /**
+     * The pilot run of a benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class PilotRun {
+        private AutoCloseable scope;
+
+        @Setup(Level.Iteration)
+        public void enter(InstrumentedOverheadBenchmark benchmark) throws ReflectiveOperationException {
+            scope = benchmark.fixtures.enterPilotRun();
+        }
+
+        @TearDown(Level.Iteration)
+        public void exit() throws Exception {
+            scope.close();
+        }
+    }
+
+    @Benchmark
+    public long original() {
+        return original.getAsLong();
+    }
+
+    @Benchmark
+    public long noPilot() {
+        return instrumented.getAsLong();
+    }
+
+    @Benchmark
+    public long pilot(PilotRun run) {
+        return pilotRun.getAsLong();
+    }
+}
@@ -0,0 +1,72 @@
+package edu.uva.liftlab.pilot.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency of the read of a block of a Lucene segment file, with the classes of org.apache.lucene.store
+ * instrumented along with the fixture, see LuceneBlockReader.
+ *
+ * original runs the Lucene store as released, noPilot the instrumented one outside of a pilot run, for
+ * which guarded_io should match original: the FileChannel.open calls of MMapDirectory and
+ * NIOFSDirectory stay behind a pilot check instead of going to the shadow file system.
+ * java -Dpilot.runtime=Pilot-1.0-SNAPSHOT.jar -jar target/benchmarks.jar LuceneStoreBenchmark
+ *
+ * -Dlucene.core is the lucene-core jar, the one of the local Maven repository by default.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LuceneStoreBenchmark {
+
+    private static final String LUCENE_STORE_PACKAGE = "org.apache.lucene.store";
+
+    private static final List<String> FIXTURES = Arrays.asList("LuceneBlockReader", "MMapBlockReader",
+            "NIOFSBlockReader", "MMapSegmentOpen", "NIOFSSegmentOpen");
+
+    @Param({"MMapBlockReader", "NIOFSBlockReader", "MMapSegmentOpen", "NIOFSSegmentOpen"})
+    public String fixture;
+
+    @Param({"", "guarded_io", "guarded_io,switchpoint_guard"})
+    public String options;
+
+    private LongSupplier original;
+    private LongSupplier instrumented;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        InstrumentedFixtures fixtures = InstrumentedFixtures.instrument(options, FIXTURES, getLuceneCore(),
+                LUCENE_STORE_PACKAGE);
+        fixtures.initializeTracing();
+        original = fixtures.newOriginal(fixture);
+        instrumented = fixtures.newInstrumented(fixture);
+    }
+
+    static Path getLuceneCore() {
+        String path = System.getProperty("lucene.core");
+        if (path != null) {
+            return Paths.get(path);
+        }
+        return Paths.get(System.getProperty("user.home"), ".m2", "repository", "org", "apache", "lucene",
+                "lucene-core", "8.11.2", "lucene-core-8.11.2.jar");
+    }
+
+    @Benchmark
+    public long original() {
+        return original.getAsLong();
+    }
+
+    @Benchmark
+    public long noPilot() {
+        return instrumented.getAsLong();
+    }
+}
@@ -0,0 +1,83 @@
+package edu.uva.liftlab.pilot.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.pilot.collections.OverlayList;
+import org.pilot.collections.OverlayMap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the first read of a shadowed Map or List field by a pilot run, when the read barrier
+ * copies the collection (copy_methods, or State.shallowCopy) and when it installs an overlay
+ * (overlay_collections). The first read is the barrier plus one get.
+ *
+ * The overlays are the org.pilot.collections classes of the runtime module (../runtime), which read
+ * through to the original and keep the writes of the pilot run in a delta.
+ *
+ * Heap use per first read: run with -prof gc and compare gc.alloc.rate.norm, e.g.
+ * java -jar target/benchmarks.jar OverlayCollectionBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class OverlayCollectionBenchmark {
+
+    @Param({"10000", "1000000"})
+    public int size;
+
+    private HashMap<String, Integer> hashMap;
+    private ConcurrentHashMap<String, Integer> concurrentHashMap;
+    private ArrayList<Integer> arrayList;
+    private String probeKey;
+    private int probeIndex;
+
+    @Setup
+    public void setup() {
+        hashMap = new HashMap<>();
+        concurrentHashMap = new ConcurrentHashMap<>();
+        arrayList = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String key = "key" + i;
+            hashMap.put(key, i);
+            concurrentHashMap.put(key, i);
+            arrayList.add(i);
+        }
+        probeKey = "key" + (size / 2);
+        probeIndex = size / 2;
+    }
+
+    @Benchmark
+    public Integer copyHashMap() {
+        return new HashMap<>(hashMap).get(probeKey);
+    }
+
+    @Benchmark
+    public Integer overlayHashMap() {
+        return new OverlayMap<>(hashMap).get(probeKey);
+    }
+
+    @Benchmark
+    public Integer copyConcurrentHashMap() {
+        return new ConcurrentHashMap<>(concurrentHashMap).get(probeKey);
+    }
+
+    @Benchmark
+    public Integer overlayConcurrentHashMap() {
+        return new OverlayMap<>(concurrentHashMap).get(probeKey);
+    }
+
+    @Benchmark
+    public Integer copyArrayList() {
+        return new ArrayList<>(arrayList).get(probeIndex);
+    }
+
+    @Benchmark
+    public Integer overlayArrayList() {
+        return new OverlayList<>(arrayList).get(probeIndex);
+    }
+}
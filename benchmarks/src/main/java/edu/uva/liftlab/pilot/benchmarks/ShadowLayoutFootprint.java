@@ -0,0 +1,319 @@
+package edu.uva.liftlab.pilot.benchmarks;
+
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+import org.pilot.ShadowRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap footprint of the dry run state of instrumented objects, in the field layout (a $dryRun copy
+ * and an int $setByDryRun next to every field) and in the shadow_record layout (one $pilotShadow
+ * reference per object, see ShadowRecordLayout), over a Solr-like object graph: segment readers,
+ * filter cache entries and update log records.
+ *
+ * The classes below are written the way the engine lays out the instrumented classes, with the
+ * org.pilot.ShadowRecord of the runtime module. A touched object is one whose record a pilot run
+ * allocated and wrote a primitive slot of, as a pilot run that bumps a counter of it does.
+ *
+ * Not a JMH benchmark: java -cp target/benchmarks.jar edu.uva.liftlab.pilot.benchmarks.ShadowLayoutFootprint
+ * [touched percentage] prints the class layouts and the size of the graph in each layout, the
+ * shadow_record layout once untouched and once after a pilot run accessed the given percentage of
+ * the objects (1 by default).
+ */
+public class ShadowLayoutFootprint {
+
+    private static final int READERS = 16;
+    private static final int CACHE_ENTRIES_PER_READER = 20_000;
+    private static final int UPDATE_LOG_RECORDS = 100_000;
+
+    public static void main(String[] args) {
+        int touchedPercentage = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        System.out.println(VM.current().details());
+
+        for (Class<?> c : new Class<?>[]{
+                OriginalSegmentReader.class, FieldLayoutSegmentReader.class, RecordLayoutSegmentReader.class,
+                OriginalCacheEntry.class, FieldLayoutCacheEntry.class, RecordLayoutCacheEntry.class,
+                OriginalUpdateLogRecord.class, FieldLayoutUpdateLogRecord.class, RecordLayoutUpdateLogRecord.class,
+                ShadowRecord.class}) {
+            System.out.println(ClassLayout.parseClass(c).toPrintable());
+        }
+
+        // The keys, documents and field infos are shared, so that only the instrumented objects differ
+        List<Object> keys = new ArrayList<>();
+        for (int i = 0; i < CACHE_ENTRIES_PER_READER; i++) {
+            keys.add("filter:field_" + (i % 97) + ":" + i);
+        }
+        Object[] fieldInfos = new Object[32];
+        Object document = new Object();
+        Shared shared = new Shared(keys, fieldInfos, document);
+
+        long sharedSize = GraphLayout.parseInstance(shared).totalSize();
+        long original = GraphLayout.parseInstance(buildOriginal(shared)).totalSize() - sharedSize;
+        long fieldLayout = GraphLayout.parseInstance(buildFieldLayout(shared)).totalSize() - sharedSize;
+        long recordLayout = GraphLayout.parseInstance(buildRecordLayout(shared, 0)).totalSize() - sharedSize;
+        long recordLayoutTouched = GraphLayout.parseInstance(buildRecordLayout(shared, touchedPercentage)).totalSize()
+                - sharedSize;
+
+        int objects = READERS * (1 + CACHE_ENTRIES_PER_READER) + UPDATE_LOG_RECORDS;
+        System.out.printf("%d instrumented objects, %d bytes of shared keys and documents excluded%n", objects, sharedSize);
+        print("original classes", original, original);
+        print("field layout", fieldLayout, original);
+        print("shadow_record layout, untouched", recordLayout, original);
+        print("shadow_record layout, " + touchedPercentage + "% touched", recordLayoutTouched, original);
+    }
+
+    private static void print(String layout, long size, long original) {
+        System.out.printf("%-40s %,14d bytes  %+7.1f%%%n", layout, size, 100.0 * (size - original) / original);
+    }
+
+    private static class Shared {
+        final List<Object> keys;
+        final Object[] fieldInfos;
+        final Object document;
+
+        Shared(List<Object> keys, Object[] fieldInfos, Object document) {
+            this.keys = keys;
+            this.fieldInfos = fieldInfos;
+            this.document = document;
+        }
+    }
+
+    private static Object[] buildOriginal(Shared shared) {
+        Object[] readers = new Object[READERS];
+        for (int r = 0; r < READERS; r++) {
+            OriginalCacheEntry[] cache = new OriginalCacheEntry[CACHE_ENTRIES_PER_READER];
+            for (int i = 0; i < cache.length; i++) {
+                cache[i] = new OriginalCacheEntry(shared.keys.get(i), shared.document, i);
+            }
+            readers[r] = new OriginalSegmentReader("_" + r, shared.fieldInfos, cache);
+        }
+        OriginalUpdateLogRecord[] updateLog = new OriginalUpdateLogRecord[UPDATE_LOG_RECORDS];
+        for (int i = 0; i < updateLog.length; i++) {
+            updateLog[i] = new OriginalUpdateLogRecord(i, shared.keys.get(i % shared.keys.size()), shared.document);
+        }
+        return new Object[]{readers, updateLog, shared};
+    }
+
+    private static Object[] buildFieldLayout(Shared shared) {
+        Object[] readers = new Object[READERS];
+        for (int r = 0; r < READERS; r++) {
+            FieldLayoutCacheEntry[] cache = new FieldLayoutCacheEntry[CACHE_ENTRIES_PER_READER];
+            for (int i = 0; i < cache.length; i++) {
+                cache[i] = new FieldLayoutCacheEntry(shared.keys.get(i), shared.document, i);
+            }
+            readers[r] = new FieldLayoutSegmentReader("_" + r, shared.fieldInfos, cache);
+        }
+        FieldLayoutUpdateLogRecord[] updateLog = new FieldLayoutUpdateLogRecord[UPDATE_LOG_RECORDS];
+        for (int i = 0; i < updateLog.length; i++) {
+            updateLog[i] = new FieldLayoutUpdateLogRecord(i, shared.keys.get(i % shared.keys.size()), shared.document);
+        }
+        return new Object[]{readers, updateLog, shared};
+    }
+
+    /**
+     * @param touchedPercentage the percentage of the objects a pilot run accessed, which got a record
+     */
+    private static Object[] buildRecordLayout(Shared shared, int touchedPercentage) {
+        int stride = touchedPercentage <= 0 ? Integer.MAX_VALUE : Math.max(1, 100 / touchedPercentage);
+        Object[] readers = new Object[READERS];
+        for (int r = 0; r < READERS; r++) {
+            RecordLayoutCacheEntry[] cache = new RecordLayoutCacheEntry[CACHE_ENTRIES_PER_READER];
+            for (int i = 0; i < cache.length; i++) {
+                cache[i] = new RecordLayoutCacheEntry(shared.keys.get(i), shared.document, i);
+                if (i % stride == 0) {
+                    cache[i].$pilotShadow = ShadowRecord.allocate(RecordLayoutCacheEntry.SLOTS);
+                    cache[i].$pilotShadow.writeInt(3, cache[i].hits + 1, 1);
+                }
+            }
+            RecordLayoutSegmentReader reader = new RecordLayoutSegmentReader("_" + r, shared.fieldInfos, cache);
+            if (touchedPercentage > 0) {
+                reader.$pilotShadow = ShadowRecord.allocate(RecordLayoutSegmentReader.SLOTS);
+                reader.$pilotShadow.writeLong(5, reader.version + 1, 1);
+            }
+            readers[r] = reader;
+        }
+        RecordLayoutUpdateLogRecord[] updateLog = new RecordLayoutUpdateLogRecord[UPDATE_LOG_RECORDS];
+        for (int i = 0; i < updateLog.length; i++) {
+            updateLog[i] = new RecordLayoutUpdateLogRecord(i, shared.keys.get(i % shared.keys.size()), shared.document);
+            if (i % stride == 0) {
+                updateLog[i].$pilotShadow = ShadowRecord.allocate(RecordLayoutUpdateLogRecord.SLOTS);
+                updateLog[i].$pilotShadow.writeLong(0, updateLog[i].version + 1, 1);
+            }
+        }
+        return new Object[]{readers, updateLog, shared};
+    }
+
+    static class OriginalSegmentReader {
+        String segmentName;
+        Object[] fieldInfos;
+        Object[] cache;
+        int maxDoc;
+        int numDocs;
+        long version;
+        boolean closed;
+
+        OriginalSegmentReader(String segmentName, Object[] fieldInfos, Object[] cache) {
+            this.segmentName = segmentName;
+            this.fieldInfos = fieldInfos;
+            this.cache = cache;
+            this.maxDoc = cache.length;
+            this.numDocs = cache.length;
+        }
+    }
+
+    static class FieldLayoutSegmentReader {
+        String segmentName;
+        String segmentName$dryRun;
+        int segmentName$dryRun$setByDryRun;
+        Object[] fieldInfos;
+        Object[] fieldInfos$dryRun;
+        int fieldInfos$dryRun$setByDryRun;
+        Object[] cache;
+        Object[] cache$dryRun;
+        int cache$dryRun$setByDryRun;
+        int maxDoc;
+        int maxDoc$dryRun;
+        int maxDoc$dryRun$setByDryRun;
+        int numDocs;
+        int numDocs$dryRun;
+        int numDocs$dryRun$setByDryRun;
+        long version;
+        long version$dryRun;
+        int version$dryRun$setByDryRun;
+        boolean closed;
+        boolean closed$dryRun;
+        int closed$dryRun$setByDryRun;
+
+        FieldLayoutSegmentReader(String segmentName, Object[] fieldInfos, Object[] cache) {
+            this.segmentName = segmentName;
+            this.fieldInfos = fieldInfos;
+            this.cache = cache;
+            this.maxDoc = cache.length;
+            this.numDocs = cache.length;
+        }
+    }
+
+    static class RecordLayoutSegmentReader {
+        static final int SLOTS = 7;
+
+        String segmentName;
+        Object[] fieldInfos;
+        Object[] cache;
+        int maxDoc;
+        int numDocs;
+        long version;
+        boolean closed;
+        transient ShadowRecord $pilotShadow;
+
+        RecordLayoutSegmentReader(String segmentName, Object[] fieldInfos, Object[] cache) {
+            this.segmentName = segmentName;
+            this.fieldInfos = fieldInfos;
+            this.cache = cache;
+            this.maxDoc = cache.length;
+            this.numDocs = cache.length;
+        }
+    }
+
+    static class OriginalCacheEntry {
+        Object key;
+        Object value;
+        long lastAccessed;
+        int hits;
+
+        OriginalCacheEntry(Object key, Object value, long lastAccessed) {
+            this.key = key;
+            this.value = value;
+            this.lastAccessed = lastAccessed;
+        }
+    }
+
+    static class FieldLayoutCacheEntry {
+        Object key;
+        Object key$dryRun;
+        int key$dryRun$setByDryRun;
+        Object value;
+        Object value$dryRun;
+        int value$dryRun$setByDryRun;
+        long lastAccessed;
+        long lastAccessed$dryRun;
+        int lastAccessed$dryRun$setByDryRun;
+        int hits;
+        int hits$dryRun;
+        int hits$dryRun$setByDryRun;
+
+        FieldLayoutCacheEntry(Object key, Object value, long lastAccessed) {
+            this.key = key;
+            this.value = value;
+            this.lastAccessed = lastAccessed;
+        }
+    }
+
+    static class RecordLayoutCacheEntry {
+        static final int SLOTS = 4;
+
+        Object key;
+        Object value;
+        long lastAccessed;
+        int hits;
+        transient ShadowRecord $pilotShadow;
+
+        RecordLayoutCacheEntry(Object key, Object value, long lastAccessed) {
+            this.key = key;
+            this.value = value;
+            this.lastAccessed = lastAccessed;
+        }
+    }
+
+    static class OriginalUpdateLogRecord {
+        long version;
+        int operation;
+        Object id;
+        Object document;
+
+        OriginalUpdateLogRecord(long version, Object id, Object document) {
+            this.version = version;
+            this.id = id;
+            this.document = document;
+        }
+    }
+
+    static class FieldLayoutUpdateLogRecord {
+        long version;
+        long version$dryRun;
+        int version$dryRun$setByDryRun;
+        int operation;
+        int operation$dryRun;
+        int operation$dryRun$setByDryRun;
+        Object id;
+        Object id$dryRun;
+        int id$dryRun$setByDryRun;
+        Object document;
+        Object document$dryRun;
+        int document$dryRun$setByDryRun;
+
+        FieldLayoutUpdateLogRecord(long version, Object id, Object document) {
+            this.version = version;
+            this.id = id;
+            this.document = document;
+        }
+    }
+
+    static class RecordLayoutUpdateLogRecord {
+        static final int SLOTS = 4;
+
+        long version;
+        int operation;
+        Object id;
+        Object document;
+        transient ShadowRecord $pilotShadow;
+
+        RecordLayoutUpdateLogRecord(long version, Object id, Object document) {
+            this.version = version;
+            this.id = id;
+            this.document = document;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package edu.uva.liftlab.pilot.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.pilot.trace.NumericTraceRecorder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording one span relation of the context tree, as emitted at the span creation of a
+ * $instrumentation method, with the String recorder API and with numeric_trace_ids.
+ *
+ * StringRecorder stands for the recorder taking the hex ids of the SpanContext and the method
+ * name: one record object per call into a shared queue, drained by a background thread. The
+ * numeric recorder is NumericTraceRecorder of the runtime module, taking long ids (toId of the hex
+ * ids) and an engine-assigned method id: fixed-size records appended to a per-thread ring,
+ * published with an ordered write and drained by its own background thread into the ContextTree.
+ * A full ring drops the record instead of blocking the pilot run; the records dropped during the
+ * trial are printed at its end.
+ *
+ * Every DRAIN_INTERVAL spans, a recording thread also moves the pending records of its recorder
+ * into the tree, so that the time per span includes the drain even when the background threads get
+ * no CPU, and no record is dropped. The target is under 100 ns per span for numericRecorder; run
+ * with -t to change the number of recording threads and -prof gc to see the allocation per span.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class TraceRecorderBenchmark {
+
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+    private static final String METHOD_NAME = "org.apache.solr.cloud.RecoveryStrategy.doSyncOrReplicateRecovery$instrumentation";
+    private static final int METHOD_ID = METHOD_NAME.hashCode() & Integer.MAX_VALUE;
+    private static final int DRAIN_INTERVAL = 1024;
+
+    /**
+     * The span ids of a thread, hex strings as returned by SpanContext.getSpanId()
+     */
+    @State(Scope.Thread)
+    public static class Spans {
+        String parentSpanId;
+        String spanId;
+        int recorded;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            parentSpanId = String.format("%016x", ThreadLocalRandom.current().nextLong());
+            spanId = String.format("%016x", ThreadLocalRandom.current().nextLong());
+        }
+    }
+
+    @Benchmark
+    public void stringRecorder(StringRecorder stringRecorder, Spans spans) {
+        stringRecorder.recordSpanRelation(TRACE_ID, spans.parentSpanId, spans.spanId, METHOD_NAME);
+        if (++spans.recorded % DRAIN_INTERVAL == 0) {
+            stringRecorder.drain();
+        }
+    }
+
+    @Benchmark
+    public void numericRecorder(NumericRecorderDrops drops, Spans spans) {
+        NumericTraceRecorder.recordSpanRelationForPilotExecution(NumericTraceRecorder.toId(TRACE_ID),
+                NumericTraceRecorder.toId(spans.parentSpanId), NumericTraceRecorder.toId(spans.spanId), METHOD_ID);
+        if (++spans.recorded % DRAIN_INTERVAL == 0) {
+            NumericTraceRecorder.getContextTree();
+        }
+    }
+
+    /**
+     * Prints the records NumericTraceRecorder dropped during the trial
+     */
+    @State(Scope.Benchmark)
+    public static class NumericRecorderDrops {
+        private long droppedBefore;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            droppedBefore = NumericTraceRecorder.getDroppedCount();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            System.out.println("NumericTraceRecorder dropped "
+                    + (NumericTraceRecorder.getDroppedCount() - droppedBefore) + " records");
+        }
+    }
+
+    /**
+     * Only started for stringRecorder, so that its drainer does not take the CPU of numericRecorder
+     */
+    @State(Scope.Benchmark)
+    public static class StringRecorder {
+        private final ConcurrentLinkedQueue<String[]> records = new ConcurrentLinkedQueue<>();
+        private final Map<String, String> tree = new ConcurrentHashMap<>();
+        private volatile boolean running = true;
+        private Thread drainer;
+
+        void recordSpanRelation(String traceId, String parentSpanId, String spanId, String methodName) {
+            records.add(new String[]{traceId, parentSpanId, spanId, methodName});
+        }
+
+        void drain() {
+            String[] record;
+            while ((record = records.poll()) != null) {
+                // the tree keeps one parent per span, so that it stays small
+                tree.put(record[2], record[1]);
+            }
+        }
+
+        @Setup(Level.Trial)
+        public void start() {
+            drainer = new Thread(() -> {
+                while (running) {
+                    drain();
+                    Thread.yield();
+                }
+            });
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws InterruptedException {
+            running = false;
+            drainer.join();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package edu.uva.liftlab.pilot.benchmarks.fixtures;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Executor fixture: the task submitted by the pilot copy is wrapped with the context of the pilot
+ * run. The executor runs the task in the calling thread, so that only the wrapping is measured.
+ */
+public class Dispatcher implements LongSupplier {
+    private final ExecutorService executor = new CallerRunsExecutor();
+    private final Counter counter = new Counter();
+
+    @Override
+    public long getAsLong() {
+        executor.execute(counter);
+        return counter.count;
+    }
+
+    static class Counter implements Runnable {
+        long count;
+
+        @Override
+        public void run() {
+            count++;
+        }
+    }
+
+    static class CallerRunsExecutor extends AbstractExecutorService {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package edu.uva.liftlab.pilot.benchmarks.fixtures;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * State fixture: every call reads and writes fields, so the pilot copy goes through the field
+ * barriers and copies the map and the list with State.shallowCopy on their first read.
+ */
+public class Ledger implements LongSupplier {
+    private static final String[] ACCOUNTS = {"alpha", "beta", "gamma", "delta"};
+
+    private final Map<String, Long> balances = new HashMap<>();
+    private final List<String> history = new ArrayList<>();
+    private long transfers;
+
+    public Ledger() {
+        for (String account : ACCOUNTS) {
+            balances.put(account, 1000L);
+        }
+    }
+
+    @Override
+    public long getAsLong() {
+        String from = ACCOUNTS[(int) (transfers & 3)];
+        String to = ACCOUNTS[(int) ((transfers + 1) & 3)];
+        return transfer(from, to, 10);
+    }
+
+    long transfer(String from, String to, long amount) {
+        long balance = balances.get(from);
+        if (balance < amount) {
+            return transfers;
+        }
+        balances.put(from, balance - amount);
+        balances.put(to, balances.get(to) + amount);
+        if (history.size() == 64) {
+            history.clear();
+        }
+        history.add(from);
+        return ++transfers;
+    }
+}
@@ -0,0 +1,75 @@
+package edu.uva.liftlab.pilot.benchmarks.fixtures;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * IO fixture on the store of Lucene: the read of a 4 KB block of a segment file of an MMapDirectory
+ * or an NIOFSDirectory, with the classes of org.apache.lucene.store instrumented along with the
+ * fixture, see InstrumentedFixtures.instrument(String, List, Path, String).
+ *
+ * The segment is either opened once, as a searcher keeps its inputs open, or opened, read and
+ * closed by every call, as when a segment is opened, which goes through the redirected
+ * FileChannel.open of the directory.
+ */
+public abstract class LuceneBlockReader implements LongSupplier {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCKS = 256;
+    private static final String SEGMENT = "_0.cfs";
+
+    private final Directory directory;
+    private final IndexInput input;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private long position = 0;
+
+    protected LuceneBlockReader(boolean mmap, boolean reopen) {
+        try {
+            Path path = Files.createTempDirectory("pilot-lucene");
+            path.toFile().deleteOnExit();
+            path.resolve(SEGMENT).toFile().deleteOnExit();
+            directory = mmap ? new MMapDirectory(path) : new NIOFSDirectory(path);
+            try (IndexOutput output = directory.createOutput(SEGMENT, IOContext.DEFAULT)) {
+                for (int i = 0; i < BLOCKS; i++) {
+                    Arrays.fill(block, (byte) i);
+                    output.writeBytes(block, BLOCK_SIZE);
+                }
+            }
+            input = reopen ? null : directory.openInput(SEGMENT, IOContext.READ);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long getAsLong() {
+        try {
+            // every 7th block, so that the reads spread over the file
+            position = (position + 7L * BLOCK_SIZE) % ((long) BLOCKS * BLOCK_SIZE);
+            if (input != null) {
+                return read(input);
+            }
+            try (IndexInput reopened = directory.openInput(SEGMENT, IOContext.READ)) {
+                return read(reopened);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long read(IndexInput in) throws IOException {
+        in.seek(position);
+        in.readBytes(block, 0, BLOCK_SIZE);
+        return position + (block[BLOCK_SIZE - 1] & 0xFF);
+    }
+}
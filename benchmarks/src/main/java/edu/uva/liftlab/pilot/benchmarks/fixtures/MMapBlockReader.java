@@ -0,0 +1,11 @@
+package edu.uva.liftlab.pilot.benchmarks.fixtures;
+
+/**
+ * Lucene IO fixture: block reads of a segment kept open in an MMapDirectory
+ */
+public class MMapBlockReader extends LuceneBlockReader {
+
+    public MMapBlockReader() {
+        super(true, false);
+    }
+}
@@ -0,0 +1,11 @@
+package edu.uva.liftlab.pilot.benchmarks.fixtures;
+
+/**
+ * Lucene IO fixture: a segment of an MMapDirectory opened, read and closed by every call
+ */
+public class MMapSegmentOpen extends LuceneBlockReader {
+
+    public MMapSegmentOpen() {
+        super(true, true);
+    }
+}
@@ -0,0 +1,11 @@
+package edu.uva.liftlab.pilot.benchmarks.fixtures;
+
+/**
+ * Lucene IO fixture: a segment of an NIOFSDirectory opened, read and closed by every call
+ */
+public class NIOFSSegmentOpen extends LuceneBlockReader {
+
+    public NIOFSSegmentOpen() {
+        super(false, true);
+    }
+}
@@ -0,0 +1,25 @@
+package edu.uva.liftlab.pilot.benchmarks.fixtures;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Shared state fixture: running is a loop condition field, so SharedStatePropagator hooks its
+ * reads in the original method and its writes in the pilot copy.
+ */
+public class Replicator implements LongSupplier {
+    private boolean running = true;
+    private long applied;
+
+    @Override
+    public long getAsLong() {
+        int batch = 0;
+        while (running && batch < 8) {
+            applied++;
+            batch++;
+        }
+        if (applied % 1024 == 0) {
+            running = true;
+        }
+        return applied;
+    }
+}
@@ -0,0 +1,37 @@
+package edu.uva.liftlab.pilot.benchmarks.fixtures;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+
+/**
+ * IO fixture: the Files calls are redirected to ShadowFiles in the original method and in its
+ * pilot copy, so both paths pay for the redirection.
+ */
+public class SegmentIndex implements LongSupplier {
+    private final Path segment;
+
+    public SegmentIndex() {
+        try {
+            segment = Files.createTempFile("pilot-segment", ".log");
+            Files.write(segment, new byte[4096]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        segment.toFile().deleteOnExit();
+    }
+
+    @Override
+    public long getAsLong() {
+        try {
+            if (!Files.exists(segment)) {
+                return -1;
+            }
+            return Files.size(segment);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
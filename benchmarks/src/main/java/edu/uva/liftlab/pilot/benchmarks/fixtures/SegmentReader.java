@@ -0,0 +1,47 @@
+package edu.uva.liftlab.pilot.benchmarks.fixtures;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongSupplier;
+
+/**
+ * IO fixture: the read of a block of a segment file the way a Lucene NIOFSDirectory input does it,
+ * the length of the file, then FileChannel.open and a positional read. MMapDirectory opens its files
+ * with the same FileChannel.open, so both directories go through the redirected call sites.
+ */
+public class SegmentReader implements LongSupplier {
+    private static final int BLOCK_SIZE = 1024;
+
+    private final Path segment;
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+    private long position = 0;
+
+    public SegmentReader() {
+        try {
+            segment = Files.createTempFile("pilot-segment", ".cfs");
+            Files.write(segment, new byte[16 * BLOCK_SIZE]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        segment.toFile().deleteOnExit();
+    }
+
+    @Override
+    public long getAsLong() {
+        try {
+            long length = Files.size(segment);
+            position = (position + BLOCK_SIZE) % length;
+            block.clear();
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                return channel.read(block, position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+#!/bin/bash
+
+# Build the key-value store and instrument it with the engine.
+# The instrumented classes are written to experiments/kvstore/instrumented.
+
+KVSTORE_DIR=$(cd "$(dirname "${BASH_SOURCE-$0}")"; pwd)
+
+cd "$KVSTORE_DIR" || exit 1
+mvn -B -q package -DskipTests || {
+    echo "Error: Unable to build the key-value store"
+    exit 1
+}
+
+cd "$HOME/PilotExecution" || {
+    echo "Error: Unable to change to directory"
+    exit 1
+}
+
+if [ ! -f "./run_engine.sh" ]; then
+    echo "Error: run_engine.sh file does not exist in current directory"
+    exit 1
+fi
+
+echo "Executing: . ./run_engine.sh transform ./experiments/kvstore/conf/kvstore.properties"
+. ./run_engine.sh transform ./experiments/kvstore/conf/kvstore.properties
+
+EXIT_CODE=$?
+
+if [ $EXIT_CODE -eq 0 ]; then
+    echo "Command executed successfully"
+else
+    echo "Command execution failed, exit code: $EXIT_CODE"
+    exit $EXIT_CODE
+fi
+
+rm -rf "$KVSTORE_DIR/instrumented"
+cp -r "$HOME/PilotExecution/sootOutput" "$KVSTORE_DIR/instrumented"
+
+exit $EXIT_CODE
@@ -0,0 +1,69 @@
+#!/bin/bash
+
+# Throughput and latency of the key-value store in three configurations, on this machine:
+#   original      the classes as compiled
+#   instrumented  the instrumented classes, with no pilot run
+#   pilot         the instrumented classes, while pilot runs of the recovery execute concurrently
+#
+# Run ./instrument_kvstore.sh first. The pilot configuration needs the ZooKeeper instance of the
+# runtime library on localhost, see experiments/zookeeper_setup.
+#
+# Usage: ./run_benchmark.sh [threads] [seconds] [pilot interval ms]
+
+KVSTORE_DIR=$(cd "$(dirname "${BASH_SOURCE-$0}")"; pwd)
+PILOT_DIR=$(cd "$KVSTORE_DIR/../.."; pwd)
+
+THREADS=${1:-16}
+SECONDS_PER_RUN=${2:-30}
+PILOT_INTERVAL=${3:-500}
+PORT=${KVSTORE_PORT:-18080}
+RUNTIME_JAR=${PILOT_RUNTIME:-$HOME/PilotExecution/Pilot/target/Pilot-1.0-SNAPSHOT.jar}
+JAVA_OPTS=${JAVA_OPTS:--Xms1g -Xmx1g}
+
+if [ ! -f "$RUNTIME_JAR" ]; then
+    echo "Error: PILOT runtime library not found at $RUNTIME_JAR, build it with ./clone_build.sh runtimelib"
+    exit 1
+fi
+if [ ! -d "$KVSTORE_DIR/instrumented" ]; then
+    echo "Error: no instrumented classes, run ./instrument_kvstore.sh first"
+    exit 1
+fi
+
+LIB_CLASSPATH="$RUNTIME_JAR:$PILOT_DIR/lib/*"
+ORIGINAL_CLASSPATH="$KVSTORE_DIR/target/classes:$LIB_CLASSPATH"
+INSTRUMENTED_CLASSPATH="$KVSTORE_DIR/instrumented:$LIB_CLASSPATH"
+
+# run <name> <server classpath> <pilot interval ms>
+run() {
+    local name=$1
+    local classpath=$2
+    local interval=$3
+    local data_dir
+    data_dir=$(mktemp -d /tmp/kvstore-$name.XXXXXX)
+
+    java $JAVA_OPTS -cp "$classpath" edu.uva.liftlab.kvstore.KVServer "$PORT" "$data_dir" \
+        > "$KVSTORE_DIR/results/$name.server.log" 2>&1 &
+    local server_pid=$!
+    for _ in $(seq 1 60); do
+        grep -q "listening" "$KVSTORE_DIR/results/$name.server.log" && break
+        sleep 1
+    done
+
+    local result
+    result=$(java -cp "$KVSTORE_DIR/target/classes" edu.uva.liftlab.kvstore.LoadGenerator \
+        "$PORT" "$THREADS" "$SECONDS_PER_RUN" 10000 20 "$interval")
+    echo "$name $result" | tee -a "$KVSTORE_DIR/results/summary.txt"
+
+    kill "$server_pid"
+    wait "$server_pid" 2>/dev/null
+    rm -rf "$data_dir"
+}
+
+mkdir -p "$KVSTORE_DIR/results"
+rm -f "$KVSTORE_DIR/results/summary.txt"
+
+run original "$ORIGINAL_CLASSPATH" 0
+run instrumented "$INSTRUMENTED_CLASSPATH" 0
+run pilot "$INSTRUMENTED_CLASSPATH" "$PILOT_INTERVAL"
+
+echo "Summary written to $KVSTORE_DIR/results/summary.txt"
@@ -0,0 +1,136 @@
+package edu.uva.liftlab.kvstore;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.opentelemetry.context.Context;
+import org.pilot.PilotUtil;
+import org.pilot.STATUS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * KVServer - HTTP endpoint of the key-value store, bound to localhost.
+ *
+ * GET /kv/key reads a key, PUT /kv/key writes the request body to it.
+ * POST /admin/recover runs the recovery of the store; with ?pilot=true the recovery is a pilot run,
+ * started the way the SOLR-17515 patch starts one, and the response is the status of the pilot run.
+ *
+ * Usage: KVServer port data-dir [snapshot-interval] [handler-threads]
+ */
+public class KVServer {
+    private static final String KV_PATH = "/kv/";
+
+    private final KVStore store;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+
+    public KVServer(KVStore store, int port, int handlerThreads) throws IOException {
+        this.store = store;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        this.handlers = Executors.newFixedThreadPool(handlerThreads);
+        server.createContext(KV_PATH, this::handleKey);
+        server.createContext("/admin/recover", this::handleRecover);
+        server.setExecutor(handlers);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: KVServer <port> <data dir> [snapshot interval] [handler threads]");
+            System.exit(1);
+        }
+        int snapshotInterval = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int handlerThreads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        // Headers and body are written separately, without TCP_NODELAY every response waits for a delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        KVStore store = new KVStore(Paths.get(args[1]), snapshotInterval);
+        KVServer kvServer = new KVServer(store, Integer.parseInt(args[0]), handlerThreads);
+        Runtime.getRuntime().addShutdownHook(new Thread(kvServer::stop));
+        kvServer.start();
+        System.out.println("KVServer listening on 127.0.0.1:" + args[0] + " with " + store.size() + " keys");
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        handlers.shutdown();
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close the store: " + e);
+        }
+    }
+
+    private void handleKey(HttpExchange exchange) throws IOException {
+        String key = exchange.getRequestURI().getPath().substring(KV_PATH.length());
+        try {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                String value = store.get(key);
+                if (value == null) {
+                    respond(exchange, 404, "");
+                } else {
+                    respond(exchange, 200, value);
+                }
+            } else if ("PUT".equals(exchange.getRequestMethod())) {
+                store.put(key, readBody(exchange.getRequestBody()));
+                respond(exchange, 204, "");
+            } else {
+                respond(exchange, 405, "");
+            }
+        } catch (IOException | RuntimeException e) {
+            respond(exchange, 500, e.toString());
+        }
+    }
+
+    private void handleRecover(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.contains("pilot=true")) {
+            Context ctx = PilotUtil.start(() -> {
+                try {
+                    store.recover();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Pilot recovery failed", e);
+                }
+            });
+            STATUS status = PilotUtil.waitUntilPilotExecutionFinished(ctx);
+            respond(exchange, 200, String.valueOf(status));
+            return;
+        }
+        try {
+            respond(exchange, 200, "recovered " + store.recover() + " keys");
+        } catch (IOException | RuntimeException e) {
+            respond(exchange, 500, e.toString());
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,166 @@
+package edu.uva.liftlab.kvstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * KVStore - A key-value store with a write-ahead log and snapshots.
+ *
+ * Writes go to the in-memory table and are appended to the log with a FileChannel. Every
+ * snapshotInterval writes, the log is rotated and a snapshot of the table is written by the flusher
+ * thread, which then deletes the rotated log. Recovery rebuilds the table from the snapshot and
+ * replays the logs: this is the procedure that pilot runs try out.
+ */
+public class KVStore {
+    private static final String SNAPSHOT_FILE = "snapshot.tsv";
+    private static final String LOG_FILE = "wal.log";
+    private static final String ROTATED_LOG_FILE = "wal.log.1";
+
+    private final Path dataDir;
+    private final int snapshotInterval;
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor();
+
+    private Map<String, String> table = new HashMap<>();
+    private FileChannel log;
+    private int writesSinceSnapshot;
+    private Future<Integer> pendingSnapshot;
+    private long recoveries;
+
+    public KVStore(Path dataDir, int snapshotInterval) throws IOException {
+        this.dataDir = dataDir;
+        this.snapshotInterval = snapshotInterval;
+        Files.createDirectories(dataDir);
+        recover();
+    }
+
+    public synchronized String get(String key) {
+        return table.get(key);
+    }
+
+    public synchronized void put(String key, String value) throws IOException {
+        table.put(key, value);
+        log.write(ByteBuffer.wrap(encode(key, value).getBytes(StandardCharsets.UTF_8)));
+        if (++writesSinceSnapshot >= snapshotInterval) {
+            scheduleSnapshot();
+        }
+    }
+
+    public synchronized int size() {
+        return table.size();
+    }
+
+    public synchronized long getRecoveries() {
+        return recoveries;
+    }
+
+    /**
+     * Rebuild the table from the snapshot and the log
+     * @return the number of entries after recovery
+     */
+    public synchronized int recover() throws IOException {
+        waitForSnapshot();
+        Map<String, String> recovered = new HashMap<>();
+        Path snapshot = dataDir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            decode(new String(Files.readAllBytes(snapshot), StandardCharsets.UTF_8), recovered);
+        }
+        replay(dataDir.resolve(ROTATED_LOG_FILE), recovered);
+        replay(dataDir.resolve(LOG_FILE), recovered);
+        if (log != null) {
+            log.close();
+        }
+        log = openLog();
+        table = recovered;
+        writesSinceSnapshot = 0;
+        recoveries++;
+        return table.size();
+    }
+
+    private static void replay(Path logFile, Map<String, String> target) throws IOException {
+        if (!Files.exists(logFile)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read the whole log
+            }
+            decode(new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8), target);
+        }
+    }
+
+    private FileChannel openLog() throws IOException {
+        return FileChannel.open(dataDir.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private void scheduleSnapshot() throws IOException {
+        waitForSnapshot();
+        log.close();
+        Files.move(dataDir.resolve(LOG_FILE), dataDir.resolve(ROTATED_LOG_FILE), StandardCopyOption.REPLACE_EXISTING);
+        log = openLog();
+        final Map<String, String> copy = new HashMap<>(table);
+        pendingSnapshot = flusher.submit(() -> writeSnapshot(copy));
+        writesSinceSnapshot = 0;
+    }
+
+    private void waitForSnapshot() {
+        if (pendingSnapshot == null) {
+            return;
+        }
+        try {
+            pendingSnapshot.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Snapshot failed", e.getCause());
+        }
+        pendingSnapshot = null;
+    }
+
+    private int writeSnapshot(Map<String, String> copy) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> entry : copy.entrySet()) {
+            content.append(encode(entry.getKey(), entry.getValue()));
+        }
+        Path temp = dataDir.resolve(SNAPSHOT_FILE + ".tmp");
+        Files.write(temp, content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, dataDir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING);
+        // the snapshot holds every write of the rotated log
+        Files.deleteIfExists(dataDir.resolve(ROTATED_LOG_FILE));
+        return copy.size();
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            waitForSnapshot();
+            log.close();
+        }
+        flusher.shutdown();
+    }
+
+    private static String encode(String key, String value) {
+        return key + "\t" + value + "\n";
+    }
+
+    private static void decode(String content, Map<String, String> target) {
+        for (String line : content.split("\n")) {
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                target.put(line.substring(0, tab), line.substring(tab + 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package edu.uva.liftlab.kvstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LoadGenerator - Closed-loop load on a KVServer: every thread sends a request as soon as the
+ * previous one is answered, reads or writes of random keys.
+ *
+ * With a pilot interval, a background thread keeps POSTing /admin/recover?pilot=true, so that pilot
+ * runs execute concurrently with the load.
+ *
+ * Usage: LoadGenerator port threads seconds [keys] [write percent] [pilot interval ms]
+ * Prints one line: throughput in requests per second, p50 and p99 latency in microseconds.
+ */
+public class LoadGenerator {
+
+    private final String baseUrl;
+    private final int keys;
+    private final int writePercent;
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong pilotRuns = new AtomicLong();
+    private volatile boolean running = true;
+
+    public LoadGenerator(int port, int keys, int writePercent) {
+        this.baseUrl = "http://127.0.0.1:" + port;
+        this.keys = keys;
+        this.writePercent = writePercent;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: LoadGenerator <port> <threads> <seconds> [keys] [write percent] [pilot interval ms]");
+            System.exit(1);
+        }
+        int threads = Integer.parseInt(args[1]);
+        int seconds = Integer.parseInt(args[2]);
+        int keys = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+        int writePercent = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+        long pilotInterval = args.length > 5 ? Long.parseLong(args[5]) : 0;
+        new LoadGenerator(Integer.parseInt(args[0]), keys, writePercent).run(threads, seconds, pilotInterval);
+    }
+
+    public void run(int threads, int seconds, long pilotInterval) throws InterruptedException {
+        preload();
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Worker(i));
+        }
+        Thread pilot = null;
+        if (pilotInterval > 0) {
+            pilot = new Thread(() -> triggerPilotRuns(pilotInterval), "pilot-trigger");
+            pilot.start();
+        }
+        long start = System.nanoTime();
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (pilot != null) {
+            pilot.join();
+        }
+
+        int count = 0;
+        for (Worker worker : workers) {
+            count += worker.count;
+        }
+        long[] latencies = new long[count];
+        int offset = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+            offset += worker.count;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("throughput=%.0f req/s p50=%d us p99=%d us requests=%d errors=%d pilot_runs=%d%n",
+                count * 1e9 / elapsed, percentile(latencies, 0.50), percentile(latencies, 0.99), count,
+                errors.get(), pilotRuns.get());
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * quantile))];
+    }
+
+    private void preload() {
+        for (int i = 0; i < keys; i++) {
+            request("PUT", "/kv/key" + i, "value" + i);
+        }
+    }
+
+    private void triggerPilotRuns(long interval) {
+        while (running) {
+            if (request("POST", "/admin/recover?pilot=true", "") == 200) {
+                pilotRuns.incrementAndGet();
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the status code, or -1 if the request failed
+     */
+    private int request(String method, String path, String body) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            connection.setRequestMethod(method);
+            if (!body.isEmpty()) {
+                connection.setDoOutput(true);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int code = connection.getResponseCode();
+            InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                // drain the response so that the connection is kept alive
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) > 0) {
+                    // discard
+                }
+                in.close();
+            }
+            if (code >= 500) {
+                errors.incrementAndGet();
+            }
+            return code;
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            return -1;
+        }
+    }
+
+    private class Worker extends Thread {
+        private final Random random;
+        private long[] latencies = new long[1 << 16];
+        private int count;
+
+        Worker(int index) {
+            super("load-" + index);
+            this.random = new Random(index);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                String key = "/kv/key" + random.nextInt(keys);
+                long start = System.nanoTime();
+                if (random.nextInt(100) < writePercent) {
+                    request("PUT", key, "value" + random.nextInt());
+                } else {
+                    request("GET", key, "");
+                }
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = (System.nanoTime() - start) / 1000;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.pilot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * PilotEvents - The binary event log of the pilot runs, with the binary_event_log option of the engine.
+ *
+ * A log site of the generated code calls dryRunEvent(siteId) instead of PilotUtil.dryRunLog(String).
+ * The event (siteId, threadId, nanoTime) is written into a ring buffer of the thread, off heap and
+ * without allocating; once the ring is full the oldest events are overwritten. dump() writes the rings
+ * of all threads as records of a big endian int and two longs, which the PilotEventLogDecoder of the
+ * engine turns back into messages with the site table it wrote.
+ *
+ * The ring holds pilot.eventLog.capacity events (16384 by default). If the pilot.eventLog system
+ * property is set, the rings are dumped to that file when the JVM exits. A dump taken while threads
+ * are still logging may hold a torn record of each of them.
+ */
+public final class PilotEvents {
+
+    static final int RECORD_SIZE = 20;
+
+    private static final int CAPACITY = Integer.getInteger("pilot.eventLog.capacity", 1 << 14);
+
+    private static final List<Ring> rings = new CopyOnWriteArrayList<>();
+
+    private static final ThreadLocal<Ring> ring = ThreadLocal.withInitial(() -> {
+        Ring threadRing = new Ring(CAPACITY, Thread.currentThread().getId());
+        rings.add(threadRing);
+        return threadRing;
+    });
+
+    static {
+        String dumpFile = System.getProperty("pilot.eventLog");
+        if (dumpFile != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    dump(Paths.get(dumpFile));
+                } catch (IOException e) {
+                    System.err.println("Failed to dump the pilot event log to " + dumpFile + ": " + e);
+                }
+            }, "pilot-event-log-dump"));
+        }
+    }
+
+    private PilotEvents() {
+    }
+
+    public static void dryRunEvent(int siteId) {
+        ring.get().add(siteId, System.nanoTime());
+    }
+
+    /**
+     * Write the events of all threads to the file, each thread's oldest first
+     *
+     * @return the number of events written
+     */
+    public static long dump(Path file) throws IOException {
+        long events = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Ring threadRing : rings) {
+                events += threadRing.writeTo(channel);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Drop the events of all threads, e.g. before a new pilot run
+     */
+    public static void clear() {
+        for (Ring threadRing : rings) {
+            threadRing.clear();
+        }
+    }
+
+    /**
+     * The events of one thread, only written by that thread
+     */
+    static final class Ring {
+        private final ByteBuffer buffer;
+        private final int capacity;
+        private final long threadId;
+        private volatile long count;
+
+        Ring(int capacity, long threadId) {
+            this.buffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+            this.capacity = capacity;
+            this.threadId = threadId;
+        }
+
+        void add(int siteId, long nanoTime) {
+            long index = count;
+            int offset = (int) (index % capacity) * RECORD_SIZE;
+            buffer.putInt(offset, siteId);
+            buffer.putLong(offset + 4, threadId);
+            buffer.putLong(offset + 12, nanoTime);
+            count = index + 1;
+        }
+
+        long writeTo(FileChannel channel) throws IOException {
+            long written = count;
+            int events = (int) Math.min(written, capacity);
+            int oldest = (int) ((written - events) % capacity);
+            ByteBuffer view = buffer.duplicate();
+            // from the oldest event to the end of the ring, then from its start
+            view.limit(Math.min(oldest + events, capacity) * RECORD_SIZE).position(oldest * RECORD_SIZE);
+            writeFully(channel, view);
+            if (oldest + events > capacity) {
+                view.limit((oldest + events - capacity) * RECORD_SIZE).position(0);
+                writeFully(channel, view);
+            }
+            return events;
+        }
+
+        void clear() {
+            count = 0;
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer view) throws IOException {
+            while (view.hasRemaining()) {
+                channel.write(view);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.pilot;
+
+import java.lang.invoke.*;
+
+/**
+ * PilotGuard - The isDryRun() call site of the diverge prologues with switchpoint_guard.
+ *
+ * Every invokedynamic isDryRun()Z the engine emits links to one shared MutableCallSite. While no
+ * pilot run is announced, its target is a constant false that the JIT folds, so the prologue costs
+ * nothing. From pilotRunStarted() to the matching pilotRunEnded(), its target is
+ * PilotUtil.isDryRun(). The engine announces the pilot runs with calls around PilotUtil.start and
+ * PilotUtil.waitUntilPilotExecutionFinished. A run that is started and never waited for keeps the
+ * call site on PilotUtil.isDryRun(), which is slower but still tells pilot runs apart.
+ *
+ * PilotUtil is looked up reflectively, as it is part of the PILOT runtime library this jar goes next to.
+ */
+public final class PilotGuard {
+
+    private static final MethodType IS_DRY_RUN_TYPE = MethodType.methodType(boolean.class);
+    private static final MethodHandle IDLE = MethodHandles.constant(boolean.class, false);
+    private static final MutableCallSite CALL_SITE = new MutableCallSite(IDLE);
+
+    // guarded by PilotGuard.class
+    private static MethodHandle isDryRun;
+    private static int activeRuns;
+
+    private PilotGuard() {
+    }
+
+    /**
+     * The bootstrap method of the isDryRun()Z call sites
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type) {
+        if (!type.equals(IS_DRY_RUN_TYPE)) {
+            throw new IllegalArgumentException("PilotGuard only links isDryRun()Z call sites, not " + name + type);
+        }
+        return CALL_SITE;
+    }
+
+    /**
+     * Called before a pilot run starts
+     */
+    public static synchronized void pilotRunStarted() {
+        if (activeRuns++ == 0) {
+            setTarget(getIsDryRun());
+        }
+    }
+
+    /**
+     * Called once a pilot run finished
+     */
+    public static synchronized void pilotRunEnded() {
+        if (activeRuns > 0 && --activeRuns == 0) {
+            setTarget(IDLE);
+        }
+    }
+
+    public static synchronized boolean isPilotRunActive() {
+        return activeRuns > 0;
+    }
+
+    private static void setTarget(MethodHandle target) {
+        CALL_SITE.setTarget(target);
+        MutableCallSite.syncAll(new MutableCallSite[]{CALL_SITE});
+    }
+
+    private static MethodHandle getIsDryRun() {
+        if (isDryRun == null) {
+            try {
+                isDryRun = MethodHandles.publicLookup().findStatic(
+                        Class.forName("org.pilot.PilotUtil", true, PilotGuard.class.getClassLoader()),
+                        "isDryRun", IS_DRY_RUN_TYPE);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("PilotGuard needs org.pilot.PilotUtil.isDryRun() on the class path", e);
+            }
+        }
+        return isDryRun;
+    }
+}
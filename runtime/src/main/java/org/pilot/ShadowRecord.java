@@ -0,0 +1,174 @@
+package org.pilot;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * ShadowRecord - The dry run state of the fields of an object, or of the static fields of a class,
+ * in the shadow_record layout of the engine.
+ *
+ * A record has a slot per field, numbered by the engine. A slot holds the value a pilot run sees and
+ * the id of the pilot run that set it, like the $dryRun and $setByDryRun fields of the field layout.
+ * The first time a pilot run reads a slot, the slot takes the original value, or State.shallowCopy of
+ * it for references; a write sets the slot. The values are kept in a long[] for the primitive slots
+ * and an Object[] for the reference slots, each allocated by the first access to a slot of its kind.
+ *
+ * Like the fields of the field layout, a record is not synchronized. State is part of the PILOT
+ * runtime library and is looked up reflectively.
+ */
+public final class ShadowRecord {
+
+    private final int[] setBy;
+    private long[] bits;
+    private Object[] objects;
+
+    private ShadowRecord(int slots) {
+        this.setBy = new int[slots];
+    }
+
+    public static ShadowRecord allocate(int slots) {
+        return new ShadowRecord(slots);
+    }
+
+    public int getSlotCount() {
+        return setBy.length;
+    }
+
+    /**
+     * @return whether the slot holds a value set by the pilot run, or by a later one
+     */
+    public boolean isSet(int slot, int pilotId) {
+        return setBy[slot] >= pilotId;
+    }
+
+    private long readBits(int slot, long original, int pilotId) {
+        if (bits == null) {
+            bits = new long[setBy.length];
+        }
+        if (setBy[slot] < pilotId) {
+            bits[slot] = original;
+            setBy[slot] = pilotId;
+        }
+        return bits[slot];
+    }
+
+    private void writeBits(int slot, long value, int pilotId) {
+        if (bits == null) {
+            bits = new long[setBy.length];
+        }
+        bits[slot] = value;
+        setBy[slot] = pilotId;
+    }
+
+    public boolean readBoolean(int slot, boolean original, int pilotId) {
+        return readBits(slot, original ? 1 : 0, pilotId) != 0;
+    }
+
+    public void writeBoolean(int slot, boolean value, int pilotId) {
+        writeBits(slot, value ? 1 : 0, pilotId);
+    }
+
+    public byte readByte(int slot, byte original, int pilotId) {
+        return (byte) readBits(slot, original, pilotId);
+    }
+
+    public void writeByte(int slot, byte value, int pilotId) {
+        writeBits(slot, value, pilotId);
+    }
+
+    public char readChar(int slot, char original, int pilotId) {
+        return (char) readBits(slot, original, pilotId);
+    }
+
+    public void writeChar(int slot, char value, int pilotId) {
+        writeBits(slot, value, pilotId);
+    }
+
+    public short readShort(int slot, short original, int pilotId) {
+        return (short) readBits(slot, original, pilotId);
+    }
+
+    public void writeShort(int slot, short value, int pilotId) {
+        writeBits(slot, value, pilotId);
+    }
+
+    public int readInt(int slot, int original, int pilotId) {
+        return (int) readBits(slot, original, pilotId);
+    }
+
+    public void writeInt(int slot, int value, int pilotId) {
+        writeBits(slot, value, pilotId);
+    }
+
+    public long readLong(int slot, long original, int pilotId) {
+        return readBits(slot, original, pilotId);
+    }
+
+    public void writeLong(int slot, long value, int pilotId) {
+        writeBits(slot, value, pilotId);
+    }
+
+    public float readFloat(int slot, float original, int pilotId) {
+        return Float.intBitsToFloat((int) readBits(slot, Float.floatToRawIntBits(original), pilotId));
+    }
+
+    public void writeFloat(int slot, float value, int pilotId) {
+        writeBits(slot, Float.floatToRawIntBits(value), pilotId);
+    }
+
+    public double readDouble(int slot, double original, int pilotId) {
+        return Double.longBitsToDouble(readBits(slot, Double.doubleToRawLongBits(original), pilotId));
+    }
+
+    public void writeDouble(int slot, double value, int pilotId) {
+        writeBits(slot, Double.doubleToRawLongBits(value), pilotId);
+    }
+
+    public Object readObject(int slot, Object original, int pilotId) {
+        if (objects == null) {
+            objects = new Object[setBy.length];
+        }
+        if (setBy[slot] < pilotId) {
+            objects[slot] = StateHolder.shallowCopy(original, objects[slot]);
+            setBy[slot] = pilotId;
+        }
+        return objects[slot];
+    }
+
+    public void writeObject(int slot, Object value, int pilotId) {
+        if (objects == null) {
+            objects = new Object[setBy.length];
+        }
+        objects[slot] = value;
+        setBy[slot] = pilotId;
+    }
+
+    /**
+     * State.shallowCopy(Object original, Object dryRun, boolean isSet), looked up on first use
+     */
+    private static final class StateHolder {
+        private static final MethodHandle SHALLOW_COPY;
+
+        static {
+            try {
+                SHALLOW_COPY = MethodHandles.publicLookup().findStatic(
+                        Class.forName("org.pilot.State", true, ShadowRecord.class.getClassLoader()),
+                        "shallowCopy",
+                        MethodType.methodType(Object.class, Object.class, Object.class, boolean.class));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        static Object shallowCopy(Object original, Object dryRun) {
+            try {
+                return SHALLOW_COPY.invokeExact(original, dryRun, true);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+    }
+}
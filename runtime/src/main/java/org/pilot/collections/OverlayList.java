@@ -0,0 +1,80 @@
+package org.pilot.collections;
+
+import java.util.*;
+
+/**
+ * OverlayList - A List that reads through to an original list until the pilot run changes its size.
+ *
+ * Writes of an index are kept in written. The first add or removal copies the original with the
+ * written indices into a list of the overlay, which serves every later access. Until then the
+ * overlay sees the changes production makes to the original, including of its size. Not thread
+ * safe, like the ArrayList copy it replaces.
+ */
+public class OverlayList<E> extends AbstractList<E> implements RandomAccess {
+
+    private final List<E> original;
+    private final Map<Integer, E> written = new HashMap<>();
+    // the own copy once the size changed, null until then
+    private List<E> structural;
+
+    public OverlayList(List<E> original) {
+        this.original = original;
+    }
+
+    @Override
+    public E get(int index) {
+        if (structural != null) {
+            return structural.get(index);
+        }
+        E value = written.get(index);
+        return value != null || written.containsKey(index) ? value : original.get(index);
+    }
+
+    @Override
+    public E set(int index, E element) {
+        if (structural != null) {
+            return structural.set(index, element);
+        }
+        E previous = get(index);
+        written.put(index, element);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        materialize().add(index, element);
+        modCount++;
+    }
+
+    @Override
+    public E remove(int index) {
+        E previous = materialize().remove(index);
+        modCount++;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        structural = new ArrayList<>();
+        written.clear();
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        return structural != null ? structural.size() : original.size();
+    }
+
+    private List<E> materialize() {
+        if (structural == null) {
+            structural = new ArrayList<>(original);
+            for (Map.Entry<Integer, E> entry : written.entrySet()) {
+                if (entry.getKey() < structural.size()) {
+                    structural.set(entry.getKey(), entry.getValue());
+                }
+            }
+            written.clear();
+        }
+        return structural;
+    }
+}
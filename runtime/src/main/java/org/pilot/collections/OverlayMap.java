@@ -0,0 +1,176 @@
+package org.pilot.collections;
+
+import java.util.*;
+
+/**
+ * OverlayMap - A Map that reads through to an original map and keeps its own puts and removals.
+ *
+ * Keys put by the overlay are in written, keys it removed from the original are in removed, the two
+ * never share a key. Production can keep changing the original: the overlay sees those changes for
+ * the keys it did not write or remove. Not thread safe, like the HashMap copy it replaces.
+ */
+public class OverlayMap<K, V> extends AbstractMap<K, V> {
+
+    // the original, or an empty map once the overlay is cleared
+    private Map<K, V> base;
+    private final Map<K, V> written = new HashMap<>();
+    private final Set<Object> removed = new HashSet<>();
+    private Set<Entry<K, V>> entrySet;
+
+    public OverlayMap(Map<K, V> original) {
+        this.base = original;
+    }
+
+    @Override
+    public V get(Object key) {
+        if (written.containsKey(key)) {
+            return written.get(key);
+        }
+        return removed.contains(key) ? null : base.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return written.containsKey(key) || (!removed.contains(key) && base.containsKey(key));
+    }
+
+    @Override
+    public V put(K key, V value) {
+        V previous = get(key);
+        removed.remove(key);
+        written.put(key, value);
+        return previous;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (!containsKey(key)) {
+            return null;
+        }
+        V previous = get(key);
+        written.remove(key);
+        if (base.containsKey(key)) {
+            removed.add(key);
+        }
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        base = Collections.emptyMap();
+        written.clear();
+        removed.clear();
+    }
+
+    @Override
+    public int size() {
+        int size = base.size();
+        for (Object key : removed) {
+            if (base.containsKey(key)) {
+                size--;
+            }
+        }
+        for (K key : written.keySet()) {
+            if (!base.containsKey(key)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return OverlayMap.this.size();
+                }
+
+                @Override
+                public void clear() {
+                    OverlayMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * The entries of the original the overlay did not remove, with the values it wrote, then the
+     * written entries of keys the original does not have. Those are iterated from a snapshot, so
+     * that setValue and remove can change written meanwhile.
+     */
+    private class EntryIterator implements Iterator<Entry<K, V>> {
+        private final Iterator<Entry<K, V>> baseEntries = base.entrySet().iterator();
+        private Iterator<K> writtenKeys;
+        private Entry<K, V> next;
+        private Entry<K, V> last;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && baseEntries.hasNext()) {
+                Entry<K, V> entry = baseEntries.next();
+                K key = entry.getKey();
+                if (written.containsKey(key)) {
+                    next = new OverlayEntry(key, written.get(key));
+                } else if (!removed.contains(key)) {
+                    next = new OverlayEntry(key, entry.getValue());
+                }
+            }
+            if (next != null) {
+                return true;
+            }
+            if (writtenKeys == null) {
+                writtenKeys = new ArrayList<>(written.keySet()).iterator();
+            }
+            while (writtenKeys.hasNext()) {
+                K key = writtenKeys.next();
+                if (written.containsKey(key) && !base.containsKey(key)) {
+                    next = new OverlayEntry(key, written.get(key));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = null;
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            OverlayMap.this.remove(last.getKey());
+            last = null;
+        }
+    }
+
+    /**
+     * An entry whose setValue puts the value in the overlay
+     */
+    private class OverlayEntry extends SimpleEntry<K, V> {
+        OverlayEntry(K key, V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            super.setValue(value);
+            return put(getKey(), value);
+        }
+    }
+}
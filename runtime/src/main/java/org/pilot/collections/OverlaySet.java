@@ -0,0 +1,136 @@
+package org.pilot.collections;
+
+import java.util.*;
+
+/**
+ * OverlaySet - A Set that reads through to an original set and keeps its own additions and removals.
+ *
+ * Elements the overlay added that the original did not contain are in added, elements of the
+ * original it removed are in removed. Production can keep changing the original: the overlay sees
+ * those changes for the elements it did not add or remove. Not thread safe, like the HashSet copy it
+ * replaces.
+ */
+public class OverlaySet<E> extends AbstractSet<E> {
+
+    // the original, or an empty set once the overlay is cleared
+    private Set<E> base;
+    private final Set<E> added = new HashSet<>();
+    private final Set<Object> removed = new HashSet<>();
+
+    public OverlaySet(Set<E> original) {
+        this.base = original;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return added.contains(o) || (!removed.contains(o) && base.contains(o));
+    }
+
+    @Override
+    public boolean add(E e) {
+        if (contains(e)) {
+            return false;
+        }
+        if (!removed.remove(e)) {
+            added.add(e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o)) {
+            return false;
+        }
+        added.remove(o);
+        if (base.contains(o)) {
+            removed.add(o);
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        base = Collections.emptySet();
+        added.clear();
+        removed.clear();
+    }
+
+    @Override
+    public int size() {
+        int size = base.size();
+        for (Object o : removed) {
+            if (base.contains(o)) {
+                size--;
+            }
+        }
+        for (E e : added) {
+            if (!base.contains(e)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The elements of the original the overlay did not add or remove, then the added elements
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private final Iterator<E> baseElements = base.iterator();
+            private final Iterator<E> addedElements = added.iterator();
+            private E next;
+            private boolean hasNext;
+            private E last;
+            private boolean hasLast;
+            private boolean lastIsAdded;
+
+            @Override
+            public boolean hasNext() {
+                while (!hasNext && baseElements.hasNext()) {
+                    E element = baseElements.next();
+                    if (!added.contains(element) && !removed.contains(element)) {
+                        next = element;
+                        hasNext = true;
+                    }
+                }
+                return hasNext || addedElements.hasNext();
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (hasNext) {
+                    last = next;
+                    hasNext = false;
+                    lastIsAdded = false;
+                } else {
+                    last = addedElements.next();
+                    lastIsAdded = true;
+                }
+                hasLast = true;
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (!hasLast) {
+                    throw new IllegalStateException();
+                }
+                if (lastIsAdded) {
+                    // the added set is being iterated, remove through its iterator
+                    addedElements.remove();
+                    if (base.contains(last)) {
+                        removed.add(last);
+                    }
+                } else {
+                    removed.add(last);
+                }
+                hasLast = false;
+            }
+        };
+    }
+}
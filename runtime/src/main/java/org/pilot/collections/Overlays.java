@@ -0,0 +1,31 @@
+package org.pilot.collections;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Overlays - The factories that the read barrier of a field declared as a java.util.Map, List or Set
+ * calls with overlay_collections, instead of copying the collection of production.
+ *
+ * An overlay reads through to the original and keeps the writes and removals of the pilot run in a
+ * delta of its own, so the original is never written. Each factory returns a new overlay, or null
+ * for a null original.
+ */
+public final class Overlays {
+
+    private Overlays() {
+    }
+
+    public static <K, V> Map<K, V> map(Map<K, V> original) {
+        return original == null ? null : new OverlayMap<>(original);
+    }
+
+    public static <E> List<E> list(List<E> original) {
+        return original == null ? null : new OverlayList<>(original);
+    }
+
+    public static <E> Set<E> set(Set<E> original) {
+        return original == null ? null : new OverlaySet<>(original);
+    }
+}
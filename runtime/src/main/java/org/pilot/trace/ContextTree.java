@@ -0,0 +1,197 @@
+package org.pilot.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ContextTree - The spans of the pilot runs and the edges between them, as recorded by
+ * NumericTraceRecorder.
+ *
+ * A span is known by its id, with the trace it belongs to, its parent span and the id of its method.
+ * The edges of a span are the calls, task submissions and future callbacks recorded in it. The ids
+ * of methods, task classes and edge types are the ones of the name table the engine writes with
+ * numeric_trace_ids; 0 stands for an id that was not recorded.
+ */
+public final class ContextTree {
+
+    // held while records are moved in, and by the readers
+    final ReentrantLock lock = new ReentrantLock();
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    // open addressing on the span id, so that looking a span up does not box the id
+    private Span[] spans = new Span[INITIAL_CAPACITY];
+    private int spanCount;
+
+    ContextTree() {
+    }
+
+    public Span getSpan(long spanId) {
+        lock.lock();
+        try {
+            Span[] table = spans;
+            for (int i = indexOf(spanId, table.length); table[i] != null; i = (i + 1) & (table.length - 1)) {
+                if (table[i].spanId == spanId) {
+                    return table[i];
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSpanCount() {
+        lock.lock();
+        try {
+            return spanCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            spans = new Span[INITIAL_CAPACITY];
+            spanCount = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the span with the id, added if it is not in the tree yet
+     */
+    Span span(long traceId, long spanId) {
+        Span[] table = spans;
+        int i = indexOf(spanId, table.length);
+        for (; table[i] != null; i = (i + 1) & (table.length - 1)) {
+            if (table[i].spanId == spanId) {
+                return table[i];
+            }
+        }
+        Span span = new Span(traceId, spanId);
+        table[i] = span;
+        if (++spanCount * 2 > table.length) {
+            grow();
+        }
+        return span;
+    }
+
+    private void grow() {
+        Span[] table = new Span[spans.length * 2];
+        for (Span span : spans) {
+            if (span != null) {
+                int i = indexOf(span.spanId, table.length);
+                while (table[i] != null) {
+                    i = (i + 1) & (table.length - 1);
+                }
+                table[i] = span;
+            }
+        }
+        spans = table;
+    }
+
+    private static int indexOf(long spanId, int length) {
+        long hash = spanId * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (length - 1);
+    }
+
+    public static final class Span {
+        private final long traceId;
+        private final long spanId;
+        private long parentSpanId;
+        private int methodId;
+        private List<Edge> edges = Collections.emptyList();
+
+        Span(long traceId, long spanId) {
+            this.traceId = traceId;
+            this.spanId = spanId;
+        }
+
+        public long getTraceId() {
+            return traceId;
+        }
+
+        public long getSpanId() {
+            return spanId;
+        }
+
+        public long getParentSpanId() {
+            return parentSpanId;
+        }
+
+        public int getMethodId() {
+            return methodId;
+        }
+
+        public List<Edge> getEdges() {
+            return Collections.unmodifiableList(edges);
+        }
+
+        void setParent(long parentSpanId) {
+            this.parentSpanId = parentSpanId;
+        }
+
+        void setMethod(int methodId) {
+            this.methodId = methodId;
+        }
+
+        void addEdge(Edge edge) {
+            if (edges.isEmpty()) {
+                edges = new ArrayList<>(2);
+            }
+            edges.add(edge);
+        }
+    }
+
+    public static final class Edge {
+        public static final int CALL = 1;
+        public static final int ASYNC_SUBMISSION = 2;
+        public static final int FUTURE_CALLBACK = 3;
+
+        private final int kind;
+        private final long childSpanId;
+        private final int parentMethodId;
+        private final int targetId;
+        private final int edgeTypeId;
+
+        Edge(int kind, long childSpanId, int parentMethodId, int targetId, int edgeTypeId) {
+            this.kind = kind;
+            this.childSpanId = childSpanId;
+            this.parentMethodId = parentMethodId;
+            this.targetId = targetId;
+            this.edgeTypeId = edgeTypeId;
+        }
+
+        public int getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the span of the callee for a call, 0 otherwise
+         */
+        public long getChildSpanId() {
+            return childSpanId;
+        }
+
+        public int getParentMethodId() {
+            return parentMethodId;
+        }
+
+        /**
+         * @return the callee method of a call, the task class of a submission, the callback type of
+         * a future callback
+         */
+        public int getTargetId() {
+            return targetId;
+        }
+
+        public int getEdgeTypeId() {
+            return edgeTypeId;
+        }
+    }
+}
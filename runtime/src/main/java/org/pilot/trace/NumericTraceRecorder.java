@@ -0,0 +1,250 @@
+package org.pilot.trace;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * NumericTraceRecorder - The context tree recorder of the generated code with the numeric_trace_ids
+ * option of the engine.
+ *
+ * The record methods take the trace and span ids as longs, see toId(String), and the method, task
+ * class and edge type names as the int ids of the name table the engine writes. A call appends a
+ * fixed-size record to the ring of its thread, without locking or allocating once the ring exists,
+ * and publishes it with an ordered write. A daemon thread drains the rings into the ContextTree. A
+ * thread finding its ring full drains it itself if the tree is free, and otherwise drops the record
+ * rather than blocking the pilot run, see getDroppedCount().
+ *
+ * The ring holds pilot.traceRecorder.capacity records (4096 by default, rounded down to a power of two).
+ */
+public final class NumericTraceRecorder {
+
+    private static final int RECORD_SIZE = 5;
+
+    private static final int CAPACITY = Integer.highestOneBit(
+            Math.max(2, Integer.getInteger("pilot.traceRecorder.capacity", 1 << 12)));
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final int METHOD_ENTRY = 1;
+    private static final int SPAN_RELATION = 2;
+    private static final int RELATION = 3;
+    private static final int ASYNC_SUBMISSION = 4;
+    private static final int FUTURE_CALLBACK = 5;
+
+    // the value of the hex digits, the ids of the SpanContext are lower case
+    private static final byte[] HEX_DIGITS = new byte['g'];
+
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            HEX_DIGITS[c] = (byte) (c - '0');
+        }
+        for (char c = 'a'; c <= 'f'; c++) {
+            HEX_DIGITS[c] = (byte) (c - 'a' + 10);
+            HEX_DIGITS[Character.toUpperCase(c)] = (byte) (c - 'a' + 10);
+        }
+    }
+
+    private static final ContextTree TREE = new ContextTree();
+
+    private static final List<Ring> rings = new CopyOnWriteArrayList<>();
+
+    private static final ThreadLocal<Ring> ring = ThreadLocal.withInitial(NumericTraceRecorder::newRing);
+
+    private static Thread drainer;
+
+    private NumericTraceRecorder() {
+    }
+
+    /**
+     * @return the low 64 bits of a hex trace or span id, without allocating
+     */
+    public static long toId(String hexId) {
+        long id = 0;
+        int length = hexId.length();
+        for (int i = Math.max(0, length - 16); i < length; i++) {
+            char c = hexId.charAt(i);
+            id = (id << 4) | (c < HEX_DIGITS.length ? HEX_DIGITS[c] : 0);
+        }
+        return id;
+    }
+
+    public static void recordMethodEntry(long traceId, long spanId, int methodId) {
+        ring.get().add(METHOD_ENTRY, traceId, spanId, 0, methodId, 0, 0);
+    }
+
+    public static void recordSpanRelationForPilotExecution(long traceId, long parentSpanId, long spanId, int methodId) {
+        ring.get().add(SPAN_RELATION, traceId, parentSpanId, spanId, methodId, 0, 0);
+    }
+
+    public static void recordRelation(long traceId, long parentSpanId, long childSpanId,
+                                      int parentMethodId, int childMethodId, int edgeTypeId) {
+        ring.get().add(RELATION, traceId, parentSpanId, childSpanId, parentMethodId, childMethodId, edgeTypeId);
+    }
+
+    public static void recordAsyncSubmission(long traceId, long parentSpanId,
+                                             int parentMethodId, int taskClassId, int edgeTypeId) {
+        ring.get().add(ASYNC_SUBMISSION, traceId, parentSpanId, 0, parentMethodId, taskClassId, edgeTypeId);
+    }
+
+    public static void recordFutureCallback(long traceId, long parentSpanId,
+                                            int parentMethodId, int callbackTypeId, int edgeTypeId) {
+        ring.get().add(FUTURE_CALLBACK, traceId, parentSpanId, 0, parentMethodId, callbackTypeId, edgeTypeId);
+    }
+
+    /**
+     * @return the context tree, with every record published so far
+     */
+    public static ContextTree getContextTree() {
+        drain();
+        return TREE;
+    }
+
+    /**
+     * @return the number of records dropped because the ring of their thread was full
+     */
+    public static long getDroppedCount() {
+        long dropped = 0;
+        for (Ring threadRing : rings) {
+            dropped += threadRing.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    private static Ring newRing() {
+        Ring threadRing = new Ring();
+        rings.add(threadRing);
+        startDrainer();
+        return threadRing;
+    }
+
+    private static synchronized void startDrainer() {
+        if (drainer != null) {
+            return;
+        }
+        drainer = new Thread(() -> {
+            while (true) {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        }, "pilot-trace-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Move the published records of all rings into the tree
+     *
+     * @return the number of records moved
+     */
+    static int drain() {
+        int drained = 0;
+        TREE.lock.lock();
+        try {
+            for (Ring threadRing : rings) {
+                drained += threadRing.drainTo(TREE);
+            }
+        } finally {
+            TREE.lock.unlock();
+        }
+        return drained;
+    }
+
+    /**
+     * The records of one thread: only that thread writes them, and they are read holding the lock
+     * of the tree
+     */
+    static final class Ring {
+        private final long[] records = new long[CAPACITY * RECORD_SIZE];
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong published = new AtomicLong();
+        private long tail;
+        private volatile long dropped;
+
+        void add(int kind, long traceId, long spanId, long otherSpanId, int name0, int name1, int name2) {
+            long t = tail;
+            if (t - head.get() == CAPACITY && !drainFull()) {
+                dropped++;
+                return;
+            }
+            int offset = (int) (t & (CAPACITY - 1)) * RECORD_SIZE;
+            records[offset] = ((long) kind << 32) | (name0 & 0xFFFFFFFFL);
+            records[offset + 1] = traceId;
+            records[offset + 2] = spanId;
+            records[offset + 3] = otherSpanId;
+            records[offset + 4] = ((long) name1 << 32) | (name2 & 0xFFFFFFFFL);
+            tail = t + 1;
+            published.lazySet(t + 1);
+        }
+
+        /**
+         * @return whether the full ring could be drained without waiting for the tree
+         */
+        private boolean drainFull() {
+            if (!TREE.lock.tryLock()) {
+                return false;
+            }
+            try {
+                drainTo(TREE);
+                return true;
+            } finally {
+                TREE.lock.unlock();
+            }
+        }
+
+        long getDroppedCount() {
+            return dropped;
+        }
+
+        int drainTo(ContextTree tree) {
+            long h = head.get();
+            long p = published.get();
+            for (long i = h; i < p; i++) {
+                int offset = (int) (i & (CAPACITY - 1)) * RECORD_SIZE;
+                apply(tree, records[offset], records[offset + 1], records[offset + 2],
+                        records[offset + 3], records[offset + 4]);
+            }
+            if (p > h) {
+                head.lazySet(p);
+            }
+            return (int) (p - h);
+        }
+
+        private static void apply(ContextTree tree, long kindAndName0, long traceId, long spanId,
+                                  long otherSpanId, long names) {
+            int kind = (int) (kindAndName0 >>> 32);
+            int name0 = (int) kindAndName0;
+            int name1 = (int) (names >>> 32);
+            int name2 = (int) names;
+            switch (kind) {
+                case METHOD_ENTRY:
+                    tree.span(traceId, spanId).setMethod(name0);
+                    break;
+                case SPAN_RELATION: {
+                    ContextTree.Span child = tree.span(traceId, otherSpanId);
+                    child.setParent(spanId);
+                    child.setMethod(name0);
+                    break;
+                }
+                case RELATION:
+                    tree.span(traceId, spanId).addEdge(
+                            new ContextTree.Edge(ContextTree.Edge.CALL, otherSpanId, name0, name1, name2));
+                    tree.span(traceId, otherSpanId).setParent(spanId);
+                    break;
+                case ASYNC_SUBMISSION:
+                    tree.span(traceId, spanId).addEdge(
+                            new ContextTree.Edge(ContextTree.Edge.ASYNC_SUBMISSION, 0, name0, name1, name2));
+                    break;
+                case FUTURE_CALLBACK:
+                    tree.span(traceId, spanId).addEdge(
+                            new ContextTree.Edge(ContextTree.Edge.FUTURE_CALLBACK, 0, name0, name1, name2));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown trace record kind " + kind);
+            }
+        }
+    }
+}
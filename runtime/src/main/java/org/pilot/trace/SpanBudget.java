@@ -0,0 +1,81 @@
+package org.pilot.trace;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SpanBudget - The span budget of the context tracking spans, with the span_budget option of the engine.
+ *
+ * The generated code of a $instrumentation method reads exhausted, and only if it is false calls
+ * tryAcquire() to know whether the method gets a span. A method that got one calls release() when
+ * its span ends. The budget allows
+ * - maxSpans spans in all, after which exhausted is set until reset()
+ * - maxDepth nested spans per thread
+ * - one span every samplingInterval method entries of a thread
+ * configured with the pilot.spanBudget.maxSpans, pilot.spanBudget.maxDepth and
+ * pilot.spanBudget.samplingInterval system properties, or with configure().
+ */
+public final class SpanBudget {
+
+    public static volatile boolean exhausted = false;
+
+    private static volatile int maxSpans = Integer.getInteger("pilot.spanBudget.maxSpans", 10_000);
+    private static volatile int maxDepth = Integer.getInteger("pilot.spanBudget.maxDepth", 64);
+    private static volatile int samplingInterval = Integer.getInteger("pilot.spanBudget.samplingInterval", 1);
+
+    private static final AtomicInteger spans = new AtomicInteger();
+
+    // depth of the spans of the thread, and number of its method entries
+    private static final ThreadLocal<int[]> threadState = ThreadLocal.withInitial(() -> new int[2]);
+
+    private SpanBudget() {
+    }
+
+    public static boolean tryAcquire() {
+        int[] state = threadState.get();
+        if (state[0] >= maxDepth) {
+            return false;
+        }
+        int interval = samplingInterval;
+        if (interval > 1 && state[1]++ % interval != 0) {
+            return false;
+        }
+        if (spans.incrementAndGet() > maxSpans) {
+            exhausted = true;
+            return false;
+        }
+        state[0]++;
+        return true;
+    }
+
+    public static void release() {
+        int[] state = threadState.get();
+        if (state[0] > 0) {
+            state[0]--;
+        }
+    }
+
+    /**
+     * Set the budget, and start counting the spans again
+     */
+    public static synchronized void configure(int maxSpans, int maxDepth, int samplingInterval) {
+        SpanBudget.maxSpans = maxSpans;
+        SpanBudget.maxDepth = maxDepth;
+        SpanBudget.samplingInterval = Math.max(1, samplingInterval);
+        reset();
+    }
+
+    /**
+     * Start counting the spans again, e.g. for a new pilot run
+     */
+    public static synchronized void reset() {
+        spans.set(0);
+        exhausted = false;
+    }
+
+    /**
+     * @return the number of spans acquired since the last reset
+     */
+    public static int getSpanCount() {
+        return Math.min(spans.get(), maxSpans);
+    }
+}
@@ -0,0 +1,81 @@
+package org.pilot;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class PilotEventsTest {
+
+    @After
+    public void clearEvents() {
+        PilotEvents.clear();
+    }
+
+    @Test
+    public void dumpHoldsTheRecordsTheDecoderReads() throws IOException {
+        long before = System.nanoTime();
+        PilotEvents.dryRunEvent(3);
+        PilotEvents.dryRunEvent(-1);
+        Path dump = Files.createTempFile("pilot-events", ".bin");
+        try {
+            assertEquals(2, PilotEvents.dump(dump));
+            assertEquals(2 * PilotEvents.RECORD_SIZE, Files.size(dump));
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dump)))) {
+                assertEquals(3, in.readInt());
+                assertEquals(Thread.currentThread().getId(), in.readLong());
+                long first = in.readLong();
+                assertTrue(first >= before);
+                assertEquals(-1, in.readInt());
+                assertEquals(Thread.currentThread().getId(), in.readLong());
+                assertTrue(in.readLong() >= first);
+            }
+        } finally {
+            Files.delete(dump);
+        }
+    }
+
+    @Test
+    public void fullRingKeepsTheNewestEventsOldestFirst() throws IOException {
+        PilotEvents.Ring ring = new PilotEvents.Ring(4, 9);
+        for (int i = 0; i < 6; i++) {
+            ring.add(i, 100 + i);
+        }
+        Path dump = Files.createTempFile("pilot-events", ".bin");
+        try {
+            try (FileChannel channel = FileChannel.open(dump, StandardOpenOption.WRITE)) {
+                assertEquals(4, ring.writeTo(channel));
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dump)))) {
+                for (int i = 2; i < 6; i++) {
+                    assertEquals(i, in.readInt());
+                    assertEquals(9, in.readLong());
+                    assertEquals(100 + i, in.readLong());
+                }
+                assertEquals(-1, in.read());
+            }
+        } finally {
+            Files.delete(dump);
+        }
+    }
+
+    @Test
+    public void clearDropsTheEvents() throws IOException {
+        PilotEvents.dryRunEvent(1);
+        PilotEvents.clear();
+        Path dump = Files.createTempFile("pilot-events", ".bin");
+        try {
+            assertEquals(0, PilotEvents.dump(dump));
+        } finally {
+            Files.delete(dump);
+        }
+    }
+}
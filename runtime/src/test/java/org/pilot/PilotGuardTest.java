@@ -0,0 +1,79 @@
+package org.pilot;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import static org.junit.Assert.*;
+
+public class PilotGuardTest {
+
+    @After
+    public void endPilotRuns() {
+        while (PilotGuard.isPilotRunActive()) {
+            PilotGuard.pilotRunEnded();
+        }
+        PilotUtil.dryRun = false;
+    }
+
+    /**
+     * The shape of the call sites the engine emits, see SootUtils.makeIsDryRunExpr
+     */
+    @Test
+    public void bootstrapMatchesTheCallSitesOfTheEngine() throws Throwable {
+        Method bootstrap = PilotGuard.class.getMethod("bootstrap",
+                MethodHandles.Lookup.class, String.class, MethodType.class);
+        assertTrue(Modifier.isStatic(bootstrap.getModifiers()));
+        assertEquals(CallSite.class, bootstrap.getReturnType());
+
+        CallSite callSite = PilotGuard.bootstrap(MethodHandles.lookup(), "isDryRun",
+                MethodType.methodType(boolean.class));
+        assertEquals(MethodType.methodType(boolean.class), callSite.type());
+        assertFalse((boolean) callSite.dynamicInvoker().invokeExact());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bootstrapRejectsOtherTypes() {
+        PilotGuard.bootstrap(MethodHandles.lookup(), "isDryRun", MethodType.methodType(int.class));
+    }
+
+    @Test
+    public void callSiteAsksPilotUtilOnlyDuringPilotRuns() throws Throwable {
+        MethodHandle isDryRun = PilotGuard.bootstrap(MethodHandles.lookup(), "isDryRun",
+                MethodType.methodType(boolean.class)).dynamicInvoker();
+        PilotUtil.dryRun = true;
+        assertFalse((boolean) isDryRun.invokeExact());
+
+        PilotGuard.pilotRunStarted();
+        assertTrue((boolean) isDryRun.invokeExact());
+        PilotUtil.dryRun = false;
+        assertFalse((boolean) isDryRun.invokeExact());
+
+        PilotUtil.dryRun = true;
+        PilotGuard.pilotRunEnded();
+        assertFalse((boolean) isDryRun.invokeExact());
+    }
+
+    @Test
+    public void overlappingPilotRunsKeepTheCallSiteOnPilotUtil() throws Throwable {
+        MethodHandle isDryRun = PilotGuard.bootstrap(MethodHandles.lookup(), "isDryRun",
+                MethodType.methodType(boolean.class)).dynamicInvoker();
+        PilotUtil.dryRun = true;
+        PilotGuard.pilotRunStarted();
+        PilotGuard.pilotRunStarted();
+        PilotGuard.pilotRunEnded();
+        assertTrue((boolean) isDryRun.invokeExact());
+        PilotGuard.pilotRunEnded();
+        assertFalse((boolean) isDryRun.invokeExact());
+        // an unmatched end leaves the count at zero
+        PilotGuard.pilotRunEnded();
+        PilotGuard.pilotRunStarted();
+        assertTrue((boolean) isDryRun.invokeExact());
+    }
+}
@@ -0,0 +1,13 @@
+package org.pilot;
+
+/**
+ * Stands for PilotUtil of the PILOT runtime library in the tests of PilotGuard
+ */
+public class PilotUtil {
+
+    static boolean dryRun;
+
+    public static boolean isDryRun() {
+        return dryRun;
+    }
+}
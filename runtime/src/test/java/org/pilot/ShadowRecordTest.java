@@ -0,0 +1,61 @@
+package org.pilot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ShadowRecordTest {
+
+    @Test
+    public void firstReadOfAPilotRunTakesTheOriginal() {
+        ShadowRecord record = ShadowRecord.allocate(2);
+        assertFalse(record.isSet(0, 1));
+        assertEquals(7, record.readInt(0, 7, 1));
+        assertTrue(record.isSet(0, 1));
+        // the slot keeps the value of the pilot run, not the original
+        assertEquals(7, record.readInt(0, 8, 1));
+        // a later pilot run starts from the original again
+        assertEquals(8, record.readInt(0, 8, 2));
+    }
+
+    @Test
+    public void writeSetsTheSlotForThePilotRun() {
+        ShadowRecord record = ShadowRecord.allocate(3);
+        record.writeLong(0, Long.MAX_VALUE, 1);
+        record.writeDouble(1, -0.5, 1);
+        record.writeBoolean(2, true, 1);
+        assertEquals(Long.MAX_VALUE, record.readLong(0, 0, 1));
+        assertEquals(-0.5, record.readDouble(1, 1.0, 1), 0);
+        assertTrue(record.readBoolean(2, false, 1));
+        assertFalse(record.readBoolean(2, false, 2));
+    }
+
+    @Test
+    public void primitiveSlotsKeepTheirType() {
+        ShadowRecord record = ShadowRecord.allocate(5);
+        assertEquals((byte) -3, record.readByte(0, (byte) -3, 1));
+        assertEquals('\uffff', record.readChar(1, '\uffff', 1));
+        assertEquals((short) -300, record.readShort(2, (short) -300, 1));
+        assertEquals(Float.NaN, record.readFloat(3, Float.NaN, 1), 0);
+        assertEquals(Integer.MIN_VALUE, record.readInt(4, Integer.MIN_VALUE, 1));
+    }
+
+    @Test
+    public void referenceSlotsHoldAShallowCopy() {
+        ShadowRecord record = ShadowRecord.allocate(1);
+        List<String> original = new ArrayList<>(Arrays.asList("a", "b"));
+        @SuppressWarnings("unchecked")
+        List<String> copy = (List<String>) record.readObject(0, original, 1);
+        assertNotSame(original, copy);
+        copy.add("c");
+        assertSame(copy, record.readObject(0, original, 1));
+        assertEquals(Arrays.asList("a", "b"), original);
+
+        record.writeObject(0, null, 2);
+        assertNull(record.readObject(0, original, 2));
+    }
+}
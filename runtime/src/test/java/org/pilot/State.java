@@ -0,0 +1,20 @@
+package org.pilot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stands for State of the PILOT runtime library in the tests of ShadowRecord
+ */
+public class State {
+
+    public static Object shallowCopy(Object original, Object dryRun, boolean isSet) {
+        if (!isSet) {
+            return dryRun;
+        }
+        if (original instanceof List) {
+            return new ArrayList<>((List<?>) original);
+        }
+        return original;
+    }
+}
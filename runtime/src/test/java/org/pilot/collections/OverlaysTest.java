@@ -0,0 +1,121 @@
+package org.pilot.collections;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class OverlaysTest {
+
+    @Test
+    public void mapReadsThroughAndKeepsItsWrites() {
+        Map<String, Integer> original = new HashMap<>();
+        original.put("a", 1);
+        original.put("b", 2);
+        Map<String, Integer> overlay = Overlays.map(original);
+
+        assertEquals(Integer.valueOf(1), overlay.put("a", 10));
+        assertNull(overlay.put("c", 3));
+        assertEquals(Integer.valueOf(2), overlay.remove("b"));
+        assertNull(overlay.remove("missing"));
+
+        assertEquals(Integer.valueOf(10), overlay.get("a"));
+        assertFalse(overlay.containsKey("b"));
+        assertEquals(2, overlay.size());
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("a", 10);
+        expected.put("c", 3);
+        assertEquals(expected, overlay);
+        assertEquals(expected, new HashMap<>(overlay));
+
+        assertEquals(2, original.size());
+        assertEquals(Integer.valueOf(1), original.get("a"));
+        assertEquals(Integer.valueOf(2), original.get("b"));
+    }
+
+    @Test
+    public void mapSeesProductionChangesOfKeysItDidNotTouch() {
+        Map<String, Integer> original = new HashMap<>();
+        original.put("a", 1);
+        Map<String, Integer> overlay = Overlays.map(original);
+        overlay.put("a", 10);
+        original.put("a", 2);
+        original.put("d", 4);
+
+        assertEquals(Integer.valueOf(10), overlay.get("a"));
+        assertEquals(Integer.valueOf(4), overlay.get("d"));
+        assertEquals(2, overlay.size());
+    }
+
+    @Test
+    public void mapIteratorRemovesAndSetsThroughTheOverlay() {
+        Map<String, Integer> original = new TreeMap<>();
+        original.put("a", 1);
+        original.put("b", 2);
+        Map<String, Integer> overlay = Overlays.map(original);
+        overlay.put("c", 3);
+
+        for (Iterator<Map.Entry<String, Integer>> it = overlay.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Integer> entry = it.next();
+            if (entry.getKey().equals("a") || entry.getKey().equals("c")) {
+                it.remove();
+            } else {
+                entry.setValue(20);
+            }
+        }
+
+        assertEquals(Collections.singletonMap("b", 20), overlay);
+        assertEquals(Integer.valueOf(1), original.get("a"));
+        assertEquals(Integer.valueOf(2), original.get("b"));
+    }
+
+    @Test
+    public void mapClearHidesTheOriginal() {
+        Map<String, Integer> original = new HashMap<>(Collections.singletonMap("a", 1));
+        Map<String, Integer> overlay = Overlays.map(original);
+        overlay.clear();
+        overlay.put("b", 2);
+
+        assertEquals(Collections.singletonMap("b", 2), overlay);
+        assertEquals(Collections.singletonMap("a", 1), original);
+    }
+
+    @Test
+    public void listWritesIndicesThenCopiesOnSizeChange() {
+        List<Integer> original = new ArrayList<>(Arrays.asList(1, 2, 3));
+        List<Integer> overlay = Overlays.list(original);
+
+        assertEquals(Integer.valueOf(2), overlay.set(1, 20));
+        assertEquals(Arrays.asList(1, 20, 3), overlay);
+        overlay.add(4);
+        overlay.remove(0);
+
+        assertEquals(Arrays.asList(20, 3, 4), overlay);
+        assertEquals(Arrays.asList(1, 2, 3), original);
+    }
+
+    @Test
+    public void setKeepsItsAdditionsAndRemovals() {
+        Set<String> original = new HashSet<>(Arrays.asList("a", "b"));
+        Set<String> overlay = Overlays.set(original);
+
+        assertFalse(overlay.add("a"));
+        assertTrue(overlay.add("c"));
+        assertTrue(overlay.remove("a"));
+        assertFalse(overlay.remove("a"));
+        assertTrue(overlay.add("a"));
+        assertTrue(overlay.remove("b"));
+
+        assertEquals(new HashSet<>(Arrays.asList("a", "c")), overlay);
+        assertEquals(2, overlay.size());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), original);
+    }
+
+    @Test
+    public void nullStaysNull() {
+        assertNull(Overlays.map(null));
+        assertNull(Overlays.list(null));
+        assertNull(Overlays.set(null));
+    }
+}
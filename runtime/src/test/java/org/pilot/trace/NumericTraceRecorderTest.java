@@ -0,0 +1,119 @@
+package org.pilot.trace;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class NumericTraceRecorderTest {
+
+    @After
+    public void clearTree() {
+        NumericTraceRecorder.getContextTree().clear();
+    }
+
+    @Test
+    public void toIdKeepsTheLow64Bits() {
+        assertEquals(0xa3ce929d0e0e4736L, NumericTraceRecorder.toId("4bf92f3577b34da6a3ce929d0e0e4736"));
+        assertEquals(0x00f067aa0ba902b7L, NumericTraceRecorder.toId("00f067aa0ba902b7"));
+        assertEquals(0xABCDEFL, NumericTraceRecorder.toId("ABCDEF"));
+        assertEquals(0L, NumericTraceRecorder.toId(""));
+    }
+
+    @Test
+    public void recordsBuildTheContextTree() {
+        NumericTraceRecorder.recordMethodEntry(1, 10, 100);
+        NumericTraceRecorder.recordSpanRelationForPilotExecution(1, 10, 11, 101);
+        NumericTraceRecorder.recordRelation(1, 11, 12, 101, 102, 7);
+        NumericTraceRecorder.recordAsyncSubmission(1, 12, 102, 200, 8);
+        NumericTraceRecorder.recordFutureCallback(1, 12, 102, -1, 9);
+
+        ContextTree tree = NumericTraceRecorder.getContextTree();
+        assertEquals(100, tree.getSpan(10).getMethodId());
+        assertEquals(10, tree.getSpan(11).getParentSpanId());
+        assertEquals(101, tree.getSpan(11).getMethodId());
+        assertEquals(11, tree.getSpan(12).getParentSpanId());
+        assertEquals(1, tree.getSpan(12).getTraceId());
+
+        ContextTree.Edge call = tree.getSpan(11).getEdges().get(0);
+        assertEquals(ContextTree.Edge.CALL, call.getKind());
+        assertEquals(12, call.getChildSpanId());
+        assertEquals(102, call.getTargetId());
+        assertEquals(7, call.getEdgeTypeId());
+
+        ContextTree.Edge submission = tree.getSpan(12).getEdges().get(0);
+        assertEquals(ContextTree.Edge.ASYNC_SUBMISSION, submission.getKind());
+        assertEquals(200, submission.getTargetId());
+        ContextTree.Edge callback = tree.getSpan(12).getEdges().get(1);
+        assertEquals(ContextTree.Edge.FUTURE_CALLBACK, callback.getKind());
+        assertEquals(-1, callback.getTargetId());
+        assertEquals(9, callback.getEdgeTypeId());
+    }
+
+    @Test
+    public void recordsOfEveryThreadReachTheTree() throws InterruptedException {
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            long base = (t + 1) * 1_000_000L;
+            threads[t] = new Thread(() -> {
+                for (int i = 1; i <= 1000; i++) {
+                    NumericTraceRecorder.recordSpanRelationForPilotExecution(1, base, base + i, i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        ContextTree tree = NumericTraceRecorder.getContextTree();
+        assertEquals(4000, tree.getSpanCount());
+        assertEquals(3_000_000L, tree.getSpan(3_000_500L).getParentSpanId());
+        assertEquals(500, tree.getSpan(3_000_500L).getMethodId());
+    }
+
+    @Test
+    public void fullRingIsDrainedByItsThreadWhenTheTreeIsFree() {
+        // not known to the drainer, which only drains the rings of the recording threads
+        NumericTraceRecorder.Ring ring = new NumericTraceRecorder.Ring();
+        for (int i = 1; i <= (1 << 12) + 1; i++) {
+            ring.add(2, 1, 5, i, 9, 0, 0);
+        }
+        assertEquals(0, ring.getDroppedCount());
+        ContextTree tree = NumericTraceRecorder.getContextTree();
+        assertEquals(5, tree.getSpan(1 << 12).getParentSpanId());
+        // the last record is still in the ring
+        assertNull(tree.getSpan((1 << 12) + 1));
+    }
+
+    @Test
+    public void fullRingDropsTheRecordWhileTheTreeIsBusy() throws InterruptedException {
+        NumericTraceRecorder.Ring ring = new NumericTraceRecorder.Ring();
+        for (int i = 1; i <= 1 << 12; i++) {
+            ring.add(2, 1, 5, i, 9, 0, 0);
+        }
+        ContextTree tree = NumericTraceRecorder.getContextTree();
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch dropped = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            tree.lock.lock();
+            try {
+                locked.countDown();
+                dropped.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                tree.lock.unlock();
+            }
+        });
+        reader.start();
+        locked.await();
+        ring.add(2, 1, 5, -1, 9, 0, 0);
+        dropped.countDown();
+        reader.join();
+
+        assertEquals(1, ring.getDroppedCount());
+        assertEquals(1 << 12, ring.drainTo(new ContextTree()));
+    }
+}
@@ -0,0 +1,70 @@
+package org.pilot.trace;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpanBudgetTest {
+
+    @After
+    public void resetBudget() {
+        SpanBudget.configure(10_000, 64, 1);
+    }
+
+    @Test
+    public void exhaustedOnceMaxSpansAreTaken() {
+        SpanBudget.configure(3, 64, 1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(SpanBudget.tryAcquire());
+            SpanBudget.release();
+        }
+        assertFalse(SpanBudget.exhausted);
+        assertFalse(SpanBudget.tryAcquire());
+        assertTrue(SpanBudget.exhausted);
+        assertEquals(3, SpanBudget.getSpanCount());
+
+        SpanBudget.reset();
+        assertFalse(SpanBudget.exhausted);
+        assertTrue(SpanBudget.tryAcquire());
+        SpanBudget.release();
+    }
+
+    @Test
+    public void nestedSpansStopAtMaxDepth() {
+        SpanBudget.configure(100, 2, 1);
+        assertTrue(SpanBudget.tryAcquire());
+        assertTrue(SpanBudget.tryAcquire());
+        assertFalse(SpanBudget.tryAcquire());
+        assertFalse(SpanBudget.exhausted);
+        SpanBudget.release();
+        assertTrue(SpanBudget.tryAcquire());
+        SpanBudget.release();
+        SpanBudget.release();
+    }
+
+    @Test
+    public void depthIsPerThread() throws InterruptedException {
+        SpanBudget.configure(100, 1, 1);
+        assertTrue(SpanBudget.tryAcquire());
+        boolean[] acquired = new boolean[1];
+        Thread other = new Thread(() -> acquired[0] = SpanBudget.tryAcquire());
+        other.start();
+        other.join();
+        assertTrue(acquired[0]);
+        SpanBudget.release();
+    }
+
+    @Test
+    public void samplingGivesOneSpanPerInterval() {
+        SpanBudget.configure(100, 64, 4);
+        int granted = 0;
+        for (int i = 0; i < 12; i++) {
+            if (SpanBudget.tryAcquire()) {
+                granted++;
+                SpanBudget.release();
+            }
+        }
+        assertEquals(3, granted);
+    }
+}
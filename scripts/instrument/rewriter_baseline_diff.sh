@@ -0,0 +1,57 @@
+#!/bin/bash
+
+# Instrument the same classes with a baseline engine and with the engine of this tree, both with
+# Jimple output, and compare the two outputs with RewriteBaselineDiff.
+# Usage: rewriter_baseline_diff.sh <baseline rev> <classes dir> <config file>
+# The baseline is built from a git worktree of <baseline rev>. Set SOOT_CLASSPATH to the runtime
+# library and the dependencies of the classes, as for bin/recoverychecker.sh; the jars of lib/
+# are added to it. Set MVN_ARGS to pass options to the builds, e.g. -o.
+# JAVA_HOME must be a Java 8 JDK, as the engine analyzes against its rt.jar.
+
+my_dir=$(cd "$(dirname "${BASH_SOURCE-$0}")"; pwd)
+root_dir=$(dirname $(dirname "${my_dir}"))
+
+if [ $# -ne 3 ]; then
+  echo "Usage: $0 <baseline rev> <classes dir> <config file>"
+  exit 1
+fi
+baseline_rev=$1
+classes_dir=$(cd "$2" && pwd) || exit 1
+config_file=$(cd "$(dirname "$3")" && pwd)/$(basename "$3")
+if [ ! -f "${config_file}" ]; then
+  echo "config file does not exist ${config_file}"
+  exit 1
+fi
+if [ -z "${JAVA_HOME}" -o ! -f "${JAVA_HOME}/jre/lib/rt.jar" ]; then
+  echo "JAVA_HOME must be set to a Java 8 JDK"
+  exit 1
+fi
+
+work_dir=$(mktemp -d)
+baseline_dir=${work_dir}/baseline
+trap 'git -C "${root_dir}" worktree remove --force "${baseline_dir}"; rm -rf "${work_dir}"' EXIT
+
+engine_jar=target/RecoveryChecker-1.0-SNAPSHOT-jar-with-dependencies.jar
+soot_classpath="${SOOT_CLASSPATH}:$(find "${root_dir}/lib" -name "*.jar" | tr '\n' ':')"
+
+function run_engine() {
+  "${JAVA_HOME}/bin/java" -cp "${root_dir}/conf:$1/${engine_jar}" edu.uva.liftlab.pilot.RCMain \
+    -x "${soot_classpath}" -i "${classes_dir}" -o "$2" -C "${config_file}" > "$2.log" 2>&1
+  if [ $? -ne 0 ]; then
+    echo "The engine of $1 failed, see $2.log"
+    exit 1
+  fi
+}
+
+echo "Building the baseline engine at ${baseline_rev}"
+git -C "${root_dir}" worktree add --detach "${baseline_dir}" "${baseline_rev}" || exit 1
+(cd "${baseline_dir}" && mvn -B -q ${MVN_ARGS} package -DskipTests) || exit 1
+echo "Building the engine"
+(cd "${root_dir}" && mvn -B -q ${MVN_ARGS} package -DskipTests) || exit 1
+
+echo "Instrumenting ${classes_dir}"
+run_engine "${baseline_dir}" "${work_dir}/baseline-out"
+run_engine "${root_dir}" "${work_dir}/actual-out"
+
+"${JAVA_HOME}/bin/java" -cp "${root_dir}/${engine_jar}" edu.uva.liftlab.pilot.rewriter.RewriteBaselineDiff \
+  "${work_dir}/baseline-out" "${work_dir}/actual-out"
@@ -30,5 +30,16 @@ mkdir -p ${out_dir}
 
 echo "Running RecoveryChecker on target directory: ${target_dir}"
 echo "run recovery_checker"
-run_recovery_checker -i ${target_dir} -e -C ${config_file}
+# Set PILOT_SHARDS (a number or "auto") to split the instrumentation over worker JVMs,
+# and PILOT_SHARD_HEAP to bound the heap of each worker
+shard_args=""
+if [ -n "${PILOT_SHARDS}" ]; then
+  shard_args="--shards ${PILOT_SHARDS} --shard_heap ${PILOT_SHARD_HEAP:-4g}"
+fi
+# Set PILOT_CACHE_DIR to reuse the classes that did not change since the previous transform
+cache_args=""
+if [ -n "${PILOT_CACHE_DIR}" ]; then
+  cache_args="--cache ${PILOT_CACHE_DIR}"
+fi
+run_recovery_checker -i ${target_dir} -e -C ${config_file} ${shard_args} ${cache_args}
 
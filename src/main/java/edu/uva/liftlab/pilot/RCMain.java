@@ -2,16 +2,26 @@ package edu.uva.liftlab.pilot;
 
 import edu.uva.liftlab.pilot.analysis.AnalysisManager;
 import edu.uva.liftlab.pilot.analysis.PhaseInfo;
+import edu.uva.liftlab.pilot.cache.InstrumentationCache;
+import edu.uva.liftlab.pilot.distributedtracing.utils.TraceRecording;
+import edu.uva.liftlab.pilot.generator.CopyMethodGenerator;
 import edu.uva.liftlab.pilot.option.OptionError;
 import edu.uva.liftlab.pilot.option.OptionParser;
 import edu.uva.liftlab.pilot.option.RCOptions;
+import edu.uva.liftlab.pilot.shard.ShardCoordinator;
+import edu.uva.liftlab.pilot.shard.ShardPlan;
 import edu.uva.liftlab.pilot.transformer.PilotTransformer;
+import edu.uva.liftlab.pilot.util.HugeMethodReport;
+import edu.uva.liftlab.pilot.util.InliningReport;
+import edu.uva.liftlab.pilot.util.PilotEventLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import soot.*;
 import soot.options.Options;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Paths;
 import java.util.*;
 
 import static soot.SootClass.SIGNATURES;
@@ -22,6 +32,8 @@ public class RCMain {
     // Arguments passed through the command line
     static public RCOptions options;
     private boolean initialized;
+    private PilotTransformer pilotTransformer;
+    private InstrumentationCache instrumentationCache;
 
     static public Date analyzeFinishTime=null;
 
@@ -68,6 +80,21 @@ public class RCMain {
             LOG.info("RecoveryChecker started on " + start);
             Timers.v().totalTimer.start();
             Scene.v().loadNecessaryClasses();
+            if (options.isShardWorker()) {
+                pilotTransformer.prepareShard(ShardPlan.load(Paths.get(options.getShardPlan())),
+                        options.getShardIndex());
+            } else {
+                pilotTransformer.registerPilotEntryPoints();
+                if (options.isShardPlanner()) {
+                    pilotTransformer.setShardPlanOutput(Paths.get(options.getShardPlan()), options.getShardCount());
+                } else if (options.getCacheDir() != null && !options.noOutput()) {
+                    instrumentationCache = InstrumentationCache.open(Paths.get(options.getCacheDir()),
+                            options.getInputList(), options.getConfigFilePath(), options.isOutputJar());
+                    if (instrumentationCache != null) {
+                        pilotTransformer.useInstrumentationCache(instrumentationCache);
+                    }
+                }
+            }
             Options.v().setPhaseOption("wjtp", "enabled:true");
             PackManager.v().runPacks();
 
@@ -75,6 +102,23 @@ public class RCMain {
             if (!Options.v().oaat()) {
                 PackManager.v().writeOutput();
             }
+            if (!options.noOutput()) {
+                PilotEventLog.writeSiteTable(Paths.get(SourceLocator.v().getOutputDir()));
+                TraceRecording.writeNameTable(Paths.get(SourceLocator.v().getOutputDir()));
+                if (pilotTransformer.filter.isInliningReport) {
+                    if (options.isOutputJar()) {
+                        LOG.warn("The inlining report needs class file output, skipped");
+                    } else {
+                        InliningReport.write(options.getInputList(), Paths.get(SourceLocator.v().getOutputDir()));
+                    }
+                }
+                if (pilotTransformer.filter.hugeMethodLimit > 0 && !options.isOutputJar()) {
+                    HugeMethodReport.write(Paths.get(SourceLocator.v().getOutputDir()), pilotTransformer.filter.hugeMethodLimit);
+                }
+            }
+            if (instrumentationCache != null) {
+                instrumentationCache.update(Paths.get(SourceLocator.v().getOutputDir()));
+            }
             Timers.v().totalTimer.end();
             // Print out time stats.
             if (Options.v().time())
@@ -97,6 +141,12 @@ public class RCMain {
             }
             LOG.info("PILOT has run for " + (runtime / 60000) + " min. "
                     + ((runtime % 60000) / 1000) + " sec. " + (runtime % 1000) + " ms.");
+            if (!options.noOutput() && options.getShardPlan() == null) {
+                ShardCoordinator.recordSingleProcessTime(options, runtime);
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to load shard plan: " + e);
+            return false;
         } catch (StackOverflowError e ) {
             LOG.error( "PILOT has run out of stack memory." );
             return false;
@@ -117,7 +167,7 @@ public class RCMain {
      * Register the analyses to run with Soot pack manager
      */
     private void registerAnalyses() {
-        PilotTransformer pilotTransformer = new PilotTransformer(options.getConfigFilePath());
+        pilotTransformer = new PilotTransformer(options.getConfigFilePath());
         AnalysisManager.getInstance().registerAnalysis(pilotTransformer, PilotTransformer.PHASE_INFO);
         AnalysisManager.getInstance().validateAllRegistered();
     }
@@ -134,7 +184,13 @@ public class RCMain {
                 Options.v().classes().add(cls); // all to Soot class to be loaded
             }
         }
+        addBasicClasses();
+    }
 
+    /**
+     * Add the classes the instrumentation refers to (JDK, runtime library) to Soot
+     */
+    public static void addBasicClasses() {
         // add basic classes
         Class<?>[] basicClasses = {PrintStream.class, System.class,
                 Thread.class,
@@ -177,11 +233,16 @@ public class RCMain {
 
 
         Scene.v().addBasicClass("org.pilot.PilotUtil",SIGNATURES);
+        Scene.v().addBasicClass("org.pilot.PilotGuard",SIGNATURES);
+        Scene.v().addBasicClass("org.pilot.PilotEvents",SIGNATURES);
         Scene.v().addBasicClass("org.pilot.filesystem.ShadowFiles",SIGNATURES);
         Scene.v().addBasicClass("org.pilot.concurrency.LockManager",SIGNATURES);
         Scene.v().addBasicClass("org.pilot.concurrency.ThreadManager",SIGNATURES);
         Scene.v().addBasicClass("org.pilot.State",SIGNATURES);
+        Scene.v().addBasicClass("org.pilot.ShadowRecord",SIGNATURES);
+        Scene.v().addBasicClass("org.pilot.collections.Overlays",SIGNATURES);
         Scene.v().addBasicClass("org.pilot.trace.TraceRecorder", SIGNATURES);
+        Scene.v().addBasicClass("org.pilot.trace.NumericTraceRecorder", SIGNATURES);
         Scene.v().addBasicClass("org.pilot.trace.PilotContextTracking", SIGNATURES);
         //add wrapper primitive type
         Scene.v().addBasicClass("java.lang.Integer", SIGNATURES);
@@ -194,6 +255,11 @@ public class RCMain {
         Scene.v().addBasicClass("java.lang.Long", SIGNATURES);
         Scene.v().addBasicClass("java.lang.String", SIGNATURES);
         Scene.v().addBasicClass("java.lang.Throwable", SIGNATURES);
+        Scene.v().addBasicClass("java.lang.Void", SIGNATURES);
+        //collections with a generated copy, see CopyMethodGenerator
+        for (String collectionClass : CopyMethodGenerator.getCollectionClasses()) {
+            Scene.v().addBasicClass(collectionClass, SIGNATURES);
+        }
         Scene.v().addBasicClass("org.apache.hbase.thirdparty.com.google.gson.JsonSerializer",SootClass.HIERARCHY);
 
 
@@ -226,7 +292,7 @@ public class RCMain {
         Options.v().set_java_version(8);
         //Options.v().set_output_format(Options.output_format_J);
 
-        if (options.noOutput()) {
+        if (options.noOutput() || options.isShardPlanner()) {
             Options.v().set_output_format(Options.output_format_none);
         } else {
             if (!options.genExecutable() && !options.isOutputJar()) {
@@ -279,6 +345,10 @@ public class RCMain {
         Options.v().setPhaseOption("cg.spark","cs-demand:true");
         Options.v().setPhaseOption("cg.spark","apponly:true");
         Options.v().setPhaseOption("cg.spark","geom-pta:true");
+        if (options.isShardWorker()) {
+            // The call graph dependent decisions are already part of the shard plan
+            Options.v().setPhaseOption("cg", "enabled:false");
+        }
 //        Options.v().set_exclude(Arrays.asList(
 //                "java.lang.invoke.*",
 //                "sun.invoke.*"
@@ -382,6 +452,12 @@ public class RCMain {
             System.exit(1);
         }
         System.out.println("Parsed options: " + options);
+        if (options.isShardCoordinator()) {
+            if (!new ShardCoordinator(options, args).run()) {
+                System.exit(1);
+            }
+            return;
+        }
         // Create PILOT now with the parsed options
         RCMain main = new RCMain(options);
         if (!main.initialize() || !main.run()) {
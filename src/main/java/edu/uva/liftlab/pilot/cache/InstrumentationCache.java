@@ -0,0 +1,391 @@
+package edu.uva.liftlab.pilot.cache;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import edu.uva.liftlab.pilot.RCMain;
+import edu.uva.liftlab.pilot.generator.PilotMethodGenerator;
+import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.util.SiteTable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static edu.uva.liftlab.pilot.util.Constants.PILOT_COMPANION_SUFFIX;
+
+/**
+ * Persistent cache of instrumented classes, so that classes that did not change since the
+ * previous run are copied to the output instead of being rewritten.
+ *
+ * The key of a class is the hash of:
+ * 1. Its input class file
+ * 2. The config file, since the class filters can select any class
+ * 3. The engine jar
+ * 4. The input class files of the application classes it references, and of their supertypes,
+ *    as their fields and methods decide how the class is redirected
+ * 5. The methods that get pilot copies, of the class and of the classes of 4, when reachability
+ *    pruning is enabled, as its calls are only redirected to the pilot copies that exist
+ * 6. The fields pilot runs can write, of the class and of the classes of 4, when the write set
+ *    analysis is enabled, as they decide which fields have dry run state
+ * 7. Which of the class and the classes of 4 are immutable, when the immutability inference is
+ *    enabled, as it decides which fields have dry run state and which values are copied
+ *
+ * Only class file output (-e with an input directory) is supported.
+ */
+public class InstrumentationCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InstrumentationCache.class);
+
+    private static final String MANIFEST_FILE = "manifest.json";
+    private static final String CLASSES_DIR = "classes";
+
+    private final Path cacheDir;
+    private final String globalKey;
+    // input class name -> hash of its class file
+    private final Map<String, String> classHashes = new HashMap<>();
+    // input class name -> application classes referenced by its class file
+    private final Map<String, Set<String>> classReferences = new HashMap<>();
+    // class name -> key, as of the previous run
+    private final Map<String, String> manifest;
+    // class name -> key, for this run
+    private final Map<String, String> keys = new HashMap<>();
+    private final Set<String> hits = new HashSet<>();
+
+    private InstrumentationCache(Path cacheDir, String globalKey, Map<String, String> manifest) {
+        this.cacheDir = cacheDir;
+        this.globalKey = globalKey;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Open the cache for the given inputs
+     * @return the cache, or null if the inputs or the output format are not supported
+     */
+    public static InstrumentationCache open(Path cacheDir, List<String> inputs, String configPath,
+                                            boolean outputJar) {
+        if (outputJar || inputs == null || inputs.isEmpty()) {
+            LOG.warn("Instrumentation cache only supports class file output from input directories, cache is disabled");
+            return null;
+        }
+        try {
+            MessageDigest digest = newDigest();
+            digest.update(hashFile(configPath == null ? null : Paths.get(configPath)).getBytes(StandardCharsets.UTF_8));
+            digest.update(getEngineVersion().getBytes(StandardCharsets.UTF_8));
+            InstrumentationCache cache = new InstrumentationCache(cacheDir, toHex(digest.digest()), loadManifest(cacheDir));
+            for (String input : inputs) {
+                cache.indexInput(Paths.get(input));
+            }
+            // only keep references to classes of the inputs
+            for (Set<String> references : cache.classReferences.values()) {
+                references.retainAll(cache.classHashes.keySet());
+            }
+            return cache;
+        } catch (IOException e) {
+            LOG.warn("Failed to open instrumentation cache {}, cache is disabled: {}", cacheDir, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Compute the keys of the application classes and find those whose instrumented version
+     * from the previous run can be reused.
+     * @param reachable the methods that get pilot copies, or null if every method does
+     * @param writtenFields the fields pilot runs can write, or null if every field has dry run state
+     * @param immutableClasses the classes whose instances cannot change, or null if none is known
+     * @return the classes to take from the cache
+     */
+    public List<SootClass> findHits(ClassFilterHelper filter, Set<SootMethod> reachable, Set<String> writtenFields,
+                                    Set<String> immutableClasses) {
+        Map<String, List<String>> writtenFieldsByClass = null;
+        if (writtenFields != null) {
+            writtenFieldsByClass = new HashMap<>();
+            for (String signature : new TreeSet<>(writtenFields)) {
+                // <declaring class: type name>
+                String className = signature.substring(1, signature.indexOf(':'));
+                writtenFieldsByClass.computeIfAbsent(className, k -> new ArrayList<>()).add(signature);
+            }
+        }
+        List<SootClass> hitClasses = new ArrayList<>();
+        for (SootClass sc : Scene.v().getApplicationClasses()) {
+            String key = computeKey(sc, reachable, writtenFieldsByClass, immutableClasses);
+            if (key == null) {
+                continue;
+            }
+            keys.put(sc.getName(), key);
+            if (!filter.shouldSkip(sc) && key.equals(manifest.get(sc.getName()))
+                    && Files.isRegularFile(getCachedClass(sc.getName()))) {
+                hits.add(sc.getName());
+                hitClasses.add(sc);
+            }
+        }
+        return hitClasses;
+    }
+
+    private String computeKey(SootClass sc, Set<SootMethod> reachable, Map<String, List<String>> writtenFieldsByClass,
+                              Set<String> immutableClasses) {
+        String classHash = classHashes.get(sc.getName());
+        if (classHash == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(globalKey).append(classHash);
+        Set<String> dependencies = new TreeSet<>();
+        for (String reference : classReferences.getOrDefault(sc.getName(), Collections.emptySet())) {
+            addWithSupertypes(reference, dependencies);
+        }
+        for (String dependency : dependencies) {
+            key.append(dependency).append(classHashes.get(dependency));
+        }
+        if (reachable != null) {
+            appendPilotMethods(sc, reachable, key);
+            // calls of a dependency are redirected to its pilot copies only where it has them
+            for (String dependency : dependencies) {
+                SootClass dependencyClass = Scene.v().getSootClassUnsafe(dependency, false);
+                if (dependencyClass != null) {
+                    key.append(dependency);
+                    appendPilotMethods(dependencyClass, reachable, key);
+                }
+            }
+        }
+        if (writtenFieldsByClass != null) {
+            writtenFieldsByClass.getOrDefault(sc.getName(), Collections.emptyList()).forEach(key::append);
+            appendUnwrittenFields(sc, key);
+            for (String dependency : dependencies) {
+                writtenFieldsByClass.getOrDefault(dependency, Collections.emptyList()).forEach(key::append);
+                SootClass dependencyClass = Scene.v().getSootClassUnsafe(dependency, false);
+                if (dependencyClass != null) {
+                    appendUnwrittenFields(dependencyClass, key);
+                }
+            }
+        }
+        if (immutableClasses != null) {
+            key.append(immutableClasses.contains(sc.getName()) ? "immutable" : "mutable");
+            for (String dependency : dependencies) {
+                key.append(immutableClasses.contains(dependency) ? "immutable" : "mutable");
+            }
+        }
+        MessageDigest digest = newDigest();
+        return toHex(digest.digest(key.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Append the subsignatures of the methods of the class that get pilot copies
+     */
+    private static void appendPilotMethods(SootClass sc, Set<SootMethod> reachable, StringBuilder key) {
+        List<String> pilotMethods = new ArrayList<>();
+        for (SootMethod method : sc.getMethods()) {
+            if (reachable.contains(method)) {
+                pilotMethods.add(method.getSubSignature());
+            }
+        }
+        Collections.sort(pilotMethods);
+        pilotMethods.forEach(key::append);
+    }
+
+    /**
+     * Append the fields of the class left without dry run state, which also depends on the subclasses
+     * of their types, see PilotMethodGenerator.isMutableInPlace
+     */
+    private static void appendUnwrittenFields(SootClass sc, StringBuilder key) {
+        for (SootField field : sc.getFields()) {
+            if (PilotMethodGenerator.isUnwrittenField(field)) {
+                key.append("unwritten ").append(field.getSignature());
+            }
+        }
+    }
+
+    private void addWithSupertypes(String className, Set<String> result) {
+        if (!classHashes.containsKey(className) || !result.add(className)) {
+            return;
+        }
+        SootClass sc = Scene.v().getSootClassUnsafe(className, false);
+        if (sc == null) {
+            return;
+        }
+        if (sc.hasSuperclass()) {
+            addWithSupertypes(sc.getSuperclass().getName(), result);
+        }
+        for (SootClass anInterface : sc.getInterfaces()) {
+            addWithSupertypes(anInterface.getName(), result);
+        }
+    }
+
+    /**
+     * Store the freshly instrumented classes of this run and copy the cached ones to the output
+     */
+    public void update(Path outputDir) {
+        int stored = 0;
+        try {
+            for (Map.Entry<String, String> entry : keys.entrySet()) {
+                String className = entry.getKey();
+                if (hits.contains(className)) {
+                    restoreClass(className, outputDir);
+                    restoreClass(className + PILOT_COMPANION_SUFFIX, outputDir);
+                } else if (storeClass(className, outputDir)) {
+                    // the companion class of pilot copies goes with its class, or is stale
+                    if (!storeClass(className + PILOT_COMPANION_SUFFIX, outputDir)) {
+                        Files.deleteIfExists(getCachedClass(className + PILOT_COMPANION_SUFFIX));
+                    }
+                    stored++;
+                }
+            }
+            updateSiteTables(outputDir);
+            saveManifest();
+        } catch (IOException e) {
+            LOG.error("Failed to update instrumentation cache {}: {}", cacheDir, e.toString());
+        }
+        LOG.info("Instrumentation cache updated: {} classes stored", stored);
+    }
+
+    private void restoreClass(String className, Path outputDir) throws IOException {
+        Path cached = getCachedClass(className);
+        if (Files.isRegularFile(cached)) {
+            Path output = outputDir.resolve(getClassFile(className));
+            Files.createDirectories(output.getParent());
+            Files.copy(cached, output, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return whether the class was written by this run and is now in the cache
+     */
+    private boolean storeClass(String className, Path outputDir) throws IOException {
+        Path output = outputDir.resolve(getClassFile(className));
+        if (!Files.isRegularFile(output)) {
+            return false;
+        }
+        Path cached = getCachedClass(className);
+        Files.createDirectories(cached.getParent());
+        Files.copy(output, cached, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * The sites of the cached classes are not registered again, keep the site tables in the cache
+     * and add them to the ones of the output
+     */
+    private void updateSiteTables(Path outputDir) throws IOException {
+        for (String file : SiteTable.FILES) {
+            Path output = outputDir.resolve(file);
+            Path cached = cacheDir.resolve(file);
+            if (!Files.isRegularFile(output) && !Files.isRegularFile(cached)) {
+                continue;
+            }
+            SiteTable.merge(output, cached);
+            SiteTable.merge(cached, output);
+        }
+    }
+
+    public void report() {
+        int total = keys.size();
+        int hitCount = hits.size();
+        int missCount = total - hitCount;
+        LOG.info("Instrumentation cache: {} classes, {} hits ({}%), {} misses ({}%)",
+                total, hitCount, percent(hitCount, total), missCount, percent(missCount, total));
+    }
+
+    private static String percent(int count, int total) {
+        return String.format("%.1f", total == 0 ? 0.0 : 100.0 * count / total);
+    }
+
+    private void indexInput(Path input) throws IOException {
+        List<Path> classFiles = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(input)) {
+            stream.filter(p -> p.toString().endsWith(".class")).forEach(classFiles::add);
+        }
+        for (Path classFile : classFiles) {
+            indexClass(Files.readAllBytes(classFile));
+        }
+    }
+
+    private void indexClass(byte[] bytes) {
+        ClassReader reader = new ClassReader(bytes);
+        String className = reader.getClassName().replace('/', '.');
+        Set<String> references = new HashSet<>();
+        reader.accept(new ClassRemapper(new ClassVisitor(Opcodes.ASM9) {}, new Remapper() {
+            @Override
+            public String map(String internalName) {
+                references.add(internalName.replace('/', '.'));
+                return internalName;
+            }
+        }), ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        references.remove(className);
+        classHashes.put(className, toHex(newDigest().digest(bytes)));
+        classReferences.put(className, references);
+    }
+
+    private Path getCachedClass(String className) {
+        return cacheDir.resolve(CLASSES_DIR).resolve(getClassFile(className));
+    }
+
+    private static String getClassFile(String className) {
+        return className.replace('.', File.separatorChar) + ".class";
+    }
+
+    private static Map<String, String> loadManifest(Path cacheDir) throws IOException {
+        Path manifestFile = cacheDir.resolve(MANIFEST_FILE);
+        if (!Files.isRegularFile(manifestFile)) {
+            return new HashMap<>();
+        }
+        try (Reader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+            Map<String, String> manifest = new Gson().fromJson(reader, new TypeToken<Map<String, String>>() {}.getType());
+            return manifest == null ? new HashMap<>() : manifest;
+        }
+    }
+
+    private void saveManifest() throws IOException {
+        Files.createDirectories(cacheDir);
+        try (Writer writer = Files.newBufferedWriter(cacheDir.resolve(MANIFEST_FILE), StandardCharsets.UTF_8)) {
+            new Gson().toJson(new TreeMap<>(keys), writer);
+        }
+    }
+
+    /**
+     * The hash of the engine jar, so that a new engine build invalidates the cache
+     */
+    private static String getEngineVersion() throws IOException {
+        Path engine = Paths.get(RCMain.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+        if (Files.isRegularFile(engine)) {
+            return hashFile(engine);
+        }
+        LOG.warn("Engine is not running from a jar, engine changes will not invalidate the instrumentation cache");
+        return "dev";
+    }
+
+    private static String hashFile(Path file) throws IOException {
+        if (file == null || !Files.isRegularFile(file)) {
+            return "none";
+        }
+        return toHex(newDigest().digest(Files.readAllBytes(file)));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -1,10 +1,15 @@
 package edu.uva.liftlab.pilot.distributedtracing;
 
 import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.rewriter.BodyPass;
+import edu.uva.liftlab.pilot.rewriter.BodyRewriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import soot.SootClass;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class BaggagePropagation {
     SootClass sootClass;
 
@@ -44,6 +49,18 @@ public class BaggagePropagation {
         this.threadTracer = new ThreadTracer(this.sootClass, classFilterHelper);
     }
 
+    public static boolean shouldPropagate(ClassFilterHelper filter, SootClass sc) {
+        boolean isPilotFuncBlackListClass = filter.isBlackListPilotFuncClass(sc) && !filter.isWhiteListPilotFuncClass(sc);
+        return !isPilotFuncBlackListClass || filter.isTraceClass(sc);
+    }
+
+    /**
+     * The passes that rewrite the $instrumentation methods, run by {@link BodyRewriter#rewriteAllClasses}
+     */
+    public List<BodyPass> getBodyPasses() {
+        return Arrays.asList(this.threadTracer, this.futurePropagator, this.executorPropagator);
+    }
+
     public void propagateContextExperiment(){
         this.futurePropagator.propagateContextExperiment();
         this.executorPropagator.propagateContextExperiment();
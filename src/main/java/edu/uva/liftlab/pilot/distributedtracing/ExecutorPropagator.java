@@ -1,6 +1,10 @@
 package edu.uva.liftlab.pilot.distributedtracing;
 
+import edu.uva.liftlab.pilot.distributedtracing.utils.TraceRecording;
 import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.rewriter.BodyPass;
+import edu.uva.liftlab.pilot.rewriter.BodyRewriter;
+import edu.uva.liftlab.pilot.rewriter.RewriteContext;
 import edu.uva.liftlab.pilot.transformer.PilotTransformer;
 import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
 import org.slf4j.Logger;
@@ -14,7 +18,7 @@ import static edu.uva.liftlab.pilot.distributedtracing.utils.TracingUtil.*;
 import static edu.uva.liftlab.pilot.util.Constants.*;
 import static edu.uva.liftlab.pilot.util.SootUtils.getDryRunTraceFieldName;
 
-public class ExecutorPropagator {
+public class ExecutorPropagator implements BodyPass {
     public static final List<String> executorServiceTypes = Arrays.asList(
             "java.util.concurrent.ExecutorService",
             "java.util.concurrent.ScheduledExecutorService",
@@ -114,18 +118,11 @@ public class ExecutorPropagator {
         Local parentSpanId = getSpanId(currentContext, lg, beforeUnits);
         Local traceId = getTraceId(currentContext, lg, beforeUnits);
 
-        Local parentMethodName = lg.generateLocal(RefType.v("java.lang.String"));
-        beforeUnits.add(Jimple.v().newAssignStmt(
-                parentMethodName,
-                StringConstant.v(parentMethod.getDeclaringClass().getName() + "." + parentMethod.getName())
-        ));
+        Local parentMethodName = TraceRecording.newName(
+                parentMethod.getDeclaringClass().getName() + "." + parentMethod.getName(), lg, beforeUnits);
 
         Value task = invoke.getArg(0);
-        Local taskClass = lg.generateLocal(RefType.v("java.lang.String"));
-        beforeUnits.add(Jimple.v().newAssignStmt(
-                taskClass,
-                StringConstant.v(task.getType().toString())
-        ));
+        Local taskClass = TraceRecording.newName(task.getType().toString(), lg, beforeUnits);
 
         units.insertBefore(beforeUnits, unit);
 
@@ -139,30 +136,12 @@ public class ExecutorPropagator {
                                        Local parentMethod, Local taskClass,
                                        String taskType, LocalGeneratorUtil lg,
                                        List<Unit> units) {
-        SootClass recorderClass = Scene.v().getSootClass("org.pilot.trace.TraceRecorder");
+        Local edgeType = TraceRecording.newName("ASYNC_SUBMIT_" + taskType.toUpperCase(), lg, units);
 
-        Local edgeType = lg.generateLocal(RefType.v("java.lang.String"));
-        units.add(Jimple.v().newAssignStmt(
-                edgeType,
-                StringConstant.v("ASYNC_SUBMIT_" + taskType.toUpperCase())
-        ));
-
-
-        units.add(Jimple.v().newInvokeStmt(
-                Jimple.v().newStaticInvokeExpr(
-                        recorderClass.getMethod("recordAsyncSubmission",
-                                Arrays.asList(
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String")
-                                ),
-                                VoidType.v()
-                        ).makeRef(),
-                        Arrays.asList(traceId, parentSpanId, parentMethod, taskClass, edgeType)
-                )
-        ));
+        units.add(TraceRecording.newRecordStmt("recordAsyncSubmission",
+                Arrays.asList(TraceRecording.toRecordedId(traceId, lg, units),
+                        TraceRecording.toRecordedId(parentSpanId, lg, units)),
+                Arrays.asList(parentMethod, taskClass, edgeType)));
     }
 
 
@@ -227,149 +206,114 @@ public class ExecutorPropagator {
     }
 
     public void propagateContextExperiment() {
+        BodyRewriter rewriter = new BodyRewriter(Collections.singletonList(this));
         for(SootMethod method : sootClass.getMethods()) {
-            this.wrapExecutorRunnableParameter(method);
-            this.wrapExecutorCallableParameter(method);
+            rewriter.rewrite(method);
         }
     }
 
+    /**
+     * Wrap the executor parameters in the methods of trace classes, the $instrumentation methods
+     * are rewritten by {@link BodyRewriter#rewriteAllClasses}
+     */
     public void propagateContext(){
+        BodyRewriter rewriter = new BodyRewriter(Collections.singletonList(this));
         for(SootMethod method : sootClass.getMethods()) {
             //LOG.info("Propagating baggage for method: {}", method.getName());
 //            if(!method.getName().endsWith(INSTRUMENTATION_SUFFIX) &&! filterHelper.isInWhiteList(method.getDeclaringClass())){
 //                continue;
 //            }
-            if(!method.getName().endsWith(INSTRUMENTATION_SUFFIX) && !filterHelper.isTraceClass(method.getDeclaringClass())){
+            if(method.getName().endsWith(INSTRUMENTATION_SUFFIX) || !filterHelper.isTraceClass(method.getDeclaringClass())){
                 continue;
             }
 
-            this.wrapExecutorRunnableParameter(method);
-            this.wrapExecutorCallableParameter(method);
+            rewriter.rewrite(method);
         }
     }
 
-    protected void wrapExecutorCallableParameter(SootMethod method){
-        if (!method.hasActiveBody()) {
-            return;
-        }
-
-        Body body = method.retrieveActiveBody();
-        UnitPatchingChain units = body.getUnits();
-        List<Unit> originalUnits = new ArrayList<>(units);
-        LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
+    @Override
+    public String getName() {
+        return "ExecutorPropagator";
+    }
 
-        for (Unit u : originalUnits) {
-            if (u instanceof AssignStmt) {
-                AssignStmt stmt = (AssignStmt) u;
-                Value rightOp = stmt.getRightOp();
-                if (rightOp instanceof InvokeExpr && shouldBeWrapped4Callable((InvokeExpr) rightOp)) {
-                    List<Unit> newUnits = new ArrayList<>();
-                    LOG.info("Wrapping executor parameter in assignment: {}", stmt);
-                    PilotTransformer.ctxCount++;
-                    Local wrappedCallableParameter = wrapCallable((InstanceInvokeExpr) rightOp, lg, body, newUnits);
-                    units.insertBefore(newUnits, u);
-                    Local baseLocal = lg.generateLocal(((InstanceInvokeExpr) rightOp).getBase().getType());
-                    units.insertBefore(Jimple.v().newAssignStmt(baseLocal, ((InstanceInvokeExpr) rightOp).getBase()), u);
-                    InstanceInvokeExpr newInvoke = getNewInvokeWithTracedParameter((InvokeExpr) rightOp, wrappedCallableParameter, baseLocal);
-                    stmt.setRightOp(newInvoke);
-
-                    Value leftOp = stmt.getLeftOp();
-                    if (isFutureType(leftOp.getType())) {
-                        List<Unit> trackFutureUnits = createTrackFutureCall(lg, (Local) leftOp);
-                        units.insertAfter(trackFutureUnits, u);
-                    }
-
-                    try {
-                        body.validate();
-                    } catch (Exception e) {
-                        LOG.error("Failed to validate body after wrapping executor parameter in assignment", e);
-                        throw e;
-                    }
+    @Override
+    public void visitInvoke(Stmt stmt, RewriteContext context) {
+        this.wrapExecutorRunnableParameter(stmt, context.getUnits(), context.getLocalGenerator(), context.getBody());
+        this.wrapExecutorCallableParameter(stmt, context.getUnits(), context.getLocalGenerator(), context.getBody());
+    }
 
-                }
-            }
-            else if (u instanceof InvokeStmt && shouldBeWrapped4Callable(((InvokeStmt) u).getInvokeExpr())){
-                LOG.info("Wrapping executor parameter in invoke statement: {}", u);
-                PilotTransformer.ctxCount++;
+    protected void wrapExecutorCallableParameter(Unit u, UnitPatchingChain units, LocalGeneratorUtil lg, Body body) {
+        if (u instanceof AssignStmt) {
+            AssignStmt stmt = (AssignStmt) u;
+            Value rightOp = stmt.getRightOp();
+            if (rightOp instanceof InvokeExpr && shouldBeWrapped4Callable((InvokeExpr) rightOp)) {
                 List<Unit> newUnits = new ArrayList<>();
-                InstanceInvokeExpr instanceInvoke = (InstanceInvokeExpr) ((InvokeStmt) u).getInvokeExpr();
-                Local wrappedCallableParameter = wrapCallable(instanceInvoke, lg, body, newUnits);
+                LOG.info("Wrapping executor parameter in assignment: {}", stmt);
+                PilotTransformer.ctxCount++;
+                Local wrappedCallableParameter = wrapCallable((InstanceInvokeExpr) rightOp, lg, body, newUnits);
                 units.insertBefore(newUnits, u);
-                Local baseLocal = lg.generateLocal(instanceInvoke.getBase().getType());
-                units.insertBefore(Jimple.v().newAssignStmt(baseLocal, (instanceInvoke.getBase())), u);
-                InstanceInvokeExpr newInvoke = getNewInvokeWithTracedParameter(instanceInvoke, wrappedCallableParameter, baseLocal);
-                ((InvokeStmt) u).setInvokeExpr(newInvoke);
-                try {
-                    body.validate();
-                } catch (Exception e) {
-                    LOG.error("Failed to validate body after wrapping executor parameter in invokeStmt", e);
-                    throw e;
+                Local baseLocal = lg.generateLocal(((InstanceInvokeExpr) rightOp).getBase().getType());
+                units.insertBefore(Jimple.v().newAssignStmt(baseLocal, ((InstanceInvokeExpr) rightOp).getBase()), u);
+                InstanceInvokeExpr newInvoke = getNewInvokeWithTracedParameter((InvokeExpr) rightOp, wrappedCallableParameter, baseLocal);
+                stmt.setRightOp(newInvoke);
+
+                Value leftOp = stmt.getLeftOp();
+                if (isFutureType(leftOp.getType())) {
+                    List<Unit> trackFutureUnits = createTrackFutureCall(lg, (Local) leftOp);
+                    units.insertAfter(trackFutureUnits, u);
                 }
             }
         }
-    }
-
-
-    protected void wrapExecutorRunnableParameter(SootMethod method) {
-        if (!method.hasActiveBody()) {
-            return;
+        else if (u instanceof InvokeStmt && shouldBeWrapped4Callable(((InvokeStmt) u).getInvokeExpr())){
+            LOG.info("Wrapping executor parameter in invoke statement: {}", u);
+            PilotTransformer.ctxCount++;
+            List<Unit> newUnits = new ArrayList<>();
+            InstanceInvokeExpr instanceInvoke = (InstanceInvokeExpr) ((InvokeStmt) u).getInvokeExpr();
+            Local wrappedCallableParameter = wrapCallable(instanceInvoke, lg, body, newUnits);
+            units.insertBefore(newUnits, u);
+            Local baseLocal = lg.generateLocal(instanceInvoke.getBase().getType());
+            units.insertBefore(Jimple.v().newAssignStmt(baseLocal, (instanceInvoke.getBase())), u);
+            InstanceInvokeExpr newInvoke = getNewInvokeWithTracedParameter(instanceInvoke, wrappedCallableParameter, baseLocal);
+            ((InvokeStmt) u).setInvokeExpr(newInvoke);
         }
+    }
 
-        Body body = method.retrieveActiveBody();
-        UnitPatchingChain units = body.getUnits();
-        List<Unit> originalUnits = new ArrayList<>(units);
-        LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
-
-        for (Unit u : originalUnits) {
-            if (u instanceof AssignStmt) {
-                AssignStmt stmt = (AssignStmt) u;
-                Value rightOp = stmt.getRightOp();
-                if (rightOp instanceof InvokeExpr && shouldBeWrapped4Runnable((InvokeExpr) rightOp)) {
-                    List<Unit> newUnits = new ArrayList<>();
-                    PilotTransformer.ctxCount++;
-                    LOG.info("Wrapping executor parameter in assignment: {}", stmt);
-                    Local wrappedRunnableParameter = wrapRunnable((InstanceInvokeExpr) rightOp, lg, body, newUnits);
-                    units.insertBefore(newUnits, u);
-                    Local baseLocal = lg.generateLocal(((InstanceInvokeExpr) rightOp).getBase().getType());
-                    units.insertBefore(Jimple.v().newAssignStmt(baseLocal, ((InstanceInvokeExpr) rightOp).getBase()), u);
-                    InstanceInvokeExpr newInvoke = getNewInvokeWithTracedParameter((InvokeExpr) rightOp, wrappedRunnableParameter, baseLocal);
-                    stmt.setRightOp(newInvoke);
-
-                    Value leftOp = stmt.getLeftOp();
-                    if (isFutureType(leftOp.getType())) {
-                        List<Unit> trackFutureUnits = createTrackFutureCall(lg, (Local) leftOp);
-                        units.insertAfter(trackFutureUnits, u);
-                    }
-
-                    try {
-                        body.validate();
-                    } catch (Exception e) {
-                        LOG.error("Failed to validate body after wrapping executor parameter in assignment", e);
-                        throw e;
-                    }
 
-                }
-            }
-            else if (u instanceof InvokeStmt && shouldBeWrapped4Runnable(((InvokeStmt) u).getInvokeExpr())){
-                PilotTransformer.ctxCount++;
-                LOG.info("Wrapping executor parameter in invoke statement: {}", u);
+    protected void wrapExecutorRunnableParameter(Unit u, UnitPatchingChain units, LocalGeneratorUtil lg, Body body) {
+        if (u instanceof AssignStmt) {
+            AssignStmt stmt = (AssignStmt) u;
+            Value rightOp = stmt.getRightOp();
+            if (rightOp instanceof InvokeExpr && shouldBeWrapped4Runnable((InvokeExpr) rightOp)) {
                 List<Unit> newUnits = new ArrayList<>();
-                InstanceInvokeExpr instanceInvoke = (InstanceInvokeExpr) ((InvokeStmt) u).getInvokeExpr();
-                Local wrappedRunnableParameter = wrapRunnable(instanceInvoke, lg, body, newUnits);
+                PilotTransformer.ctxCount++;
+                LOG.info("Wrapping executor parameter in assignment: {}", stmt);
+                Local wrappedRunnableParameter = wrapRunnable((InstanceInvokeExpr) rightOp, lg, body, newUnits);
                 units.insertBefore(newUnits, u);
-                Local baseLocal = lg.generateLocal(instanceInvoke.getBase().getType());
-                units.insertBefore(Jimple.v().newAssignStmt(baseLocal, (instanceInvoke.getBase())), u);
-                InstanceInvokeExpr newInvoke = getNewInvokeWithTracedParameter(instanceInvoke, wrappedRunnableParameter, baseLocal);
-                ((InvokeStmt) u).setInvokeExpr(newInvoke);
-                
-                try {
-                    body.validate();
-                } catch (Exception e) {
-                    LOG.error("Failed to validate body after wrapping executor parameter in invokeStmt", e);
-                    throw e;
+                Local baseLocal = lg.generateLocal(((InstanceInvokeExpr) rightOp).getBase().getType());
+                units.insertBefore(Jimple.v().newAssignStmt(baseLocal, ((InstanceInvokeExpr) rightOp).getBase()), u);
+                InstanceInvokeExpr newInvoke = getNewInvokeWithTracedParameter((InvokeExpr) rightOp, wrappedRunnableParameter, baseLocal);
+                stmt.setRightOp(newInvoke);
+
+                Value leftOp = stmt.getLeftOp();
+                if (isFutureType(leftOp.getType())) {
+                    List<Unit> trackFutureUnits = createTrackFutureCall(lg, (Local) leftOp);
+                    units.insertAfter(trackFutureUnits, u);
                 }
             }
         }
+        else if (u instanceof InvokeStmt && shouldBeWrapped4Runnable(((InvokeStmt) u).getInvokeExpr())){
+            PilotTransformer.ctxCount++;
+            LOG.info("Wrapping executor parameter in invoke statement: {}", u);
+            List<Unit> newUnits = new ArrayList<>();
+            InstanceInvokeExpr instanceInvoke = (InstanceInvokeExpr) ((InvokeStmt) u).getInvokeExpr();
+            Local wrappedRunnableParameter = wrapRunnable(instanceInvoke, lg, body, newUnits);
+            units.insertBefore(newUnits, u);
+            Local baseLocal = lg.generateLocal(instanceInvoke.getBase().getType());
+            units.insertBefore(Jimple.v().newAssignStmt(baseLocal, (instanceInvoke.getBase())), u);
+            InstanceInvokeExpr newInvoke = getNewInvokeWithTracedParameter(instanceInvoke, wrappedRunnableParameter, baseLocal);
+            ((InvokeStmt) u).setInvokeExpr(newInvoke);
+            
+        }
     }
 
 
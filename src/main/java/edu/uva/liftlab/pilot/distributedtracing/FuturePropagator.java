@@ -1,6 +1,10 @@
 package edu.uva.liftlab.pilot.distributedtracing;
 
+import edu.uva.liftlab.pilot.distributedtracing.utils.TraceRecording;
 import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.rewriter.BodyPass;
+import edu.uva.liftlab.pilot.rewriter.BodyRewriter;
+import edu.uva.liftlab.pilot.rewriter.RewriteContext;
 import edu.uva.liftlab.pilot.transformer.PilotTransformer;
 import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
 import org.slf4j.Logger;
@@ -15,11 +19,12 @@ import static edu.uva.liftlab.pilot.distributedtracing.utils.TracingUtil.*;
 import static edu.uva.liftlab.pilot.util.Constants.INSTRUMENTATION_SUFFIX;
 import static edu.uva.liftlab.pilot.util.SootUtils.getDryRunTraceFieldName;
 
-public class FuturePropagator{
+public class FuturePropagator implements BodyPass {
     private static final Logger LOG = LoggerFactory.getLogger(FuturePropagator.class);
 
     public SootClass sootClass;
     public ClassFilterHelper classFilterHelper;
+    private final GoogleFuturePropagator googleFuturePropagator = new GoogleFuturePropagator();
     private static final Set<String> FUTURE_TYPES = new HashSet<>(Arrays.asList(
             "java.util.concurrent.FutureTask"
 //            "akka.dispatch.forkjoin.ForkJoinTask",
@@ -76,29 +81,39 @@ public class FuturePropagator{
 
 
 
+    /**
+     * Wrap the future callbacks in the methods of trace classes, the $instrumentation methods
+     * are rewritten by {@link BodyRewriter#rewriteAllClasses}
+     */
     public void propagateContext(){
+        BodyRewriter rewriter = new BodyRewriter(Collections.singletonList(this));
         for(SootMethod method : sootClass.getMethods()){
-            if((!method.getName().endsWith(INSTRUMENTATION_SUFFIX)) && (!this.classFilterHelper.isTraceClass(method.getDeclaringClass()))){
+            if((method.getName().endsWith(INSTRUMENTATION_SUFFIX)) || (!this.classFilterHelper.isTraceClass(method.getDeclaringClass()))){
                 continue;
             }
-            GoogleFuturePropagator googleFuturePropagator = new GoogleFuturePropagator();
-            googleFuturePropagator.wrapGoogleFuturesTransformAsyncWithAPI(method);
-            googleFuturePropagator.wrapGoogleFuturesCallBackWithAPI(method);
-            googleFuturePropagator.wrapListenableFutureTaskAddListenerWithAPI(method);
-
+            rewriter.rewrite(method);
         }
     }
 
     public void propagateContextExperiment(){
+        BodyRewriter rewriter = new BodyRewriter(Collections.singletonList(this));
         for(SootMethod method : sootClass.getMethods()){
-            GoogleFuturePropagator googleFuturePropagator = new GoogleFuturePropagator();
-            googleFuturePropagator.wrapGoogleFuturesTransformAsyncWithAPI(method);
-            googleFuturePropagator.wrapGoogleFuturesCallBackWithAPI(method);
-            googleFuturePropagator.wrapListenableFutureTaskAddListenerWithAPI(method);
-
+            rewriter.rewrite(method);
         }
     }
 
+    @Override
+    public String getName() {
+        return "FuturePropagator";
+    }
+
+    @Override
+    public void visitInvoke(Stmt stmt, RewriteContext context) {
+        googleFuturePropagator.wrapGoogleFuturesTransformAsyncWithAPI(stmt, context.getUnits(), context.getLocalGenerator(), context.getBody());
+        googleFuturePropagator.wrapGoogleFuturesCallBackWithAPI(stmt, context.getUnits(), context.getLocalGenerator(), context.getBody());
+        googleFuturePropagator.wrapListenableFutureTaskAddListenerWithAPI(stmt, context.getUnits(), context.getLocalGenerator(), context.getBody());
+    }
+
     public class GoogleFuturePropagator {
         protected void trackGoogleFuturesCallBack(SootMethod method) {
             if (!method.hasActiveBody()) {
@@ -171,11 +186,8 @@ public class FuturePropagator{
             Local parentSpanId = getSpanId(currentContext, lg, beforeUnits);
             Local traceId = getTraceId(currentContext, lg, beforeUnits);
 
-            Local parentMethodName = lg.generateLocal(RefType.v("java.lang.String"));
-            beforeUnits.add(Jimple.v().newAssignStmt(
-                    parentMethodName,
-                    StringConstant.v(parentMethod.getDeclaringClass().getName() + "." + parentMethod.getName())
-            ));
+            Local parentMethodName = TraceRecording.newName(
+                    parentMethod.getDeclaringClass().getName() + "." + parentMethod.getName(), lg, beforeUnits);
 
             Value callbackArg = null;
             for (Value arg : invoke.getArgs()) {
@@ -186,11 +198,7 @@ public class FuturePropagator{
                 }
             }
 
-            Local callbackType = lg.generateLocal(RefType.v("java.lang.String"));
-            beforeUnits.add(Jimple.v().newAssignStmt(
-                    callbackType,
-                    StringConstant.v(callbackArg != null ? callbackArg.getType().toString() : "Unknown")
-            ));
+            Local callbackType = TraceRecording.newName(callbackArg != null ? callbackArg.getType().toString() : "Unknown", lg, beforeUnits);
 
             units.insertBefore(beforeUnits, unit);
 
@@ -214,18 +222,11 @@ public class FuturePropagator{
             Local parentSpanId = getSpanId(currentContext, lg, beforeUnits);
             Local traceId = getTraceId(currentContext, lg, beforeUnits);
 
-            Local parentMethodName = lg.generateLocal(RefType.v("java.lang.String"));
-            beforeUnits.add(Jimple.v().newAssignStmt(
-                    parentMethodName,
-                    StringConstant.v(parentMethod.getDeclaringClass().getName() + "." + parentMethod.getName())
-            ));
+            Local parentMethodName = TraceRecording.newName(
+                    parentMethod.getDeclaringClass().getName() + "." + parentMethod.getName(), lg, beforeUnits);
 
             Value asyncFunctionArg = invoke.getArg(1);
-            Local asyncFunctionType = lg.generateLocal(RefType.v("java.lang.String"));
-            beforeUnits.add(Jimple.v().newAssignStmt(
-                    asyncFunctionType,
-                    StringConstant.v(asyncFunctionArg.getType().toString())
-            ));
+            Local asyncFunctionType = TraceRecording.newName(asyncFunctionArg.getType().toString(), lg, beforeUnits);
 
             units.insertBefore(beforeUnits, unit);
 
@@ -248,18 +249,11 @@ public class FuturePropagator{
             Local parentSpanId = getSpanId(currentContext, lg, beforeUnits);
             Local traceId = getTraceId(currentContext, lg, beforeUnits);
 
-            Local parentMethodName = lg.generateLocal(RefType.v("java.lang.String"));
-            beforeUnits.add(Jimple.v().newAssignStmt(
-                    parentMethodName,
-                    StringConstant.v(parentMethod.getDeclaringClass().getName() + "." + parentMethod.getName())
-            ));
+            Local parentMethodName = TraceRecording.newName(
+                    parentMethod.getDeclaringClass().getName() + "." + parentMethod.getName(), lg, beforeUnits);
 
             Value listenerArg = invoke.getArg(0);
-            Local listenerType = lg.generateLocal(RefType.v("java.lang.String"));
-            beforeUnits.add(Jimple.v().newAssignStmt(
-                    listenerType,
-                    StringConstant.v(listenerArg.getType().toString())
-            ));
+            Local listenerType = TraceRecording.newName(listenerArg.getType().toString(), lg, beforeUnits);
 
             units.insertBefore(beforeUnits, unit);
 
@@ -349,30 +343,13 @@ public class FuturePropagator{
                                           Local parentMethod, Local callbackType,
                                           String edgeType, LocalGeneratorUtil lg,
                                           List<Unit> units) {
-            SootClass recorderClass = Scene.v().getSootClass("org.pilot.trace.TraceRecorder");
-
-            Local edge = lg.generateLocal(RefType.v("java.lang.String"));
-            units.add(Jimple.v().newAssignStmt(
-                    edge,
-                    StringConstant.v(edgeType)
-            ));
+            Local edge = TraceRecording.newName(edgeType, lg, units);
 
             // TraceRecorder.recordFutureCallback(traceId, parentSpanId, parentMethod, callbackType, edgeType)
-            units.add(Jimple.v().newInvokeStmt(
-                    Jimple.v().newStaticInvokeExpr(
-                            recorderClass.getMethod("recordFutureCallback",
-                                    Arrays.asList(
-                                            RefType.v("java.lang.String"),
-                                            RefType.v("java.lang.String"),
-                                            RefType.v("java.lang.String"),
-                                            RefType.v("java.lang.String"),
-                                            RefType.v("java.lang.String")
-                                    ),
-                                    VoidType.v()
-                            ).makeRef(),
-                            Arrays.asList(traceId, parentSpanId, parentMethod, callbackType, edge)
-                    )
-            ));
+            units.add(TraceRecording.newRecordStmt("recordFutureCallback",
+                    Arrays.asList(TraceRecording.toRecordedId(traceId, lg, units),
+                            TraceRecording.toRecordedId(parentSpanId, lg, units)),
+                    Arrays.asList(parentMethod, callbackType, edge)));
         }
 
         private InvokeExpr getInvokeExpr(Unit unit) {
@@ -550,455 +527,422 @@ public class FuturePropagator{
             }
         }
 
-        protected void wrapGoogleFuturesCallBackWithAPI(SootMethod method) {
-            if (!method.hasActiveBody()) {
-                return;
-            }
-
-            Body body = method.retrieveActiveBody();
-            UnitPatchingChain units = body.getUnits();
-            List<Unit> originalUnits = new ArrayList<>(units);
-            LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
-
-            for (Unit u : originalUnits) {
-                if (u instanceof AssignStmt) {
-                    AssignStmt stmt = (AssignStmt) u;
-                    Value rightOp = stmt.getRightOp();
-                    if (rightOp instanceof InvokeExpr && shouldBeWrapped4Callback((InvokeExpr) rightOp)) {
-                        List<Unit> newUnits = new ArrayList<>();
-                        LOG.info("Wrapping executor parameter in assignment: {}", stmt);
-                        PilotTransformer.ctxCount++;
-
-                        InvokeExpr invoke = (InvokeExpr) rightOp;
-
-                        // Get Context class
-                        SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
-
-                        // Generate local for current context
-                        Local contextLocal = lg.generateLocal(RefType.v(contextClass));
-
-                        // Get Context.current()
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        contextLocal,
-                                        Jimple.v().newStaticInvokeExpr(
-                                                contextClass.getMethod("current",
-                                                        Collections.emptyList(),
-                                                        RefType.v("io.opentelemetry.context.Context")
-                                                ).makeRef()
-                                        )
-                                )
-                        );
+        protected void wrapGoogleFuturesCallBackWithAPI(Unit u, UnitPatchingChain units, LocalGeneratorUtil lg, Body body) {
+            if (u instanceof AssignStmt) {
+                AssignStmt stmt = (AssignStmt) u;
+                Value rightOp = stmt.getRightOp();
+                if (rightOp instanceof InvokeExpr && shouldBeWrapped4Callback((InvokeExpr) rightOp)) {
+                    List<Unit> newUnits = new ArrayList<>();
+                    LOG.info("Wrapping executor parameter in assignment: {}", stmt);
+                    PilotTransformer.ctxCount++;
+
+                    InvokeExpr invoke = (InvokeExpr) rightOp;
+
+                    // Get Context class
+                    SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
+
+                    // Generate local for current context
+                    Local contextLocal = lg.generateLocal(RefType.v(contextClass));
+
+                    // Get Context.current()
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    contextLocal,
+                                    Jimple.v().newStaticInvokeExpr(
+                                            contextClass.getMethod("current",
+                                                    Collections.emptyList(),
+                                                    RefType.v("io.opentelemetry.context.Context")
+                                            ).makeRef()
+                                    )
+                            )
+                    );
 
-                        // Store original executor
-                        Value executorArg = invoke.getArg(2); // executor is the third argument
-                        Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
-
-                        // Create wrapped executor using Context.wrap()
-                        Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        wrappedExecutor,
-                                        Jimple.v().newInterfaceInvokeExpr(
-                                                contextLocal,
-                                                contextClass.getMethod("wrap",
-                                                        Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
-                                                        RefType.v("java.util.concurrent.Executor")
-                                                ).makeRef(),
-                                                tempExecutor
-                                        )
-                                )
-                        );
+                    // Store original executor
+                    Value executorArg = invoke.getArg(2); // executor is the third argument
+                    Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
+
+                    // Create wrapped executor using Context.wrap()
+                    Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    wrappedExecutor,
+                                    Jimple.v().newInterfaceInvokeExpr(
+                                            contextLocal,
+                                            contextClass.getMethod("wrap",
+                                                    Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
+                                                    RefType.v("java.util.concurrent.Executor")
+                                            ).makeRef(),
+                                            tempExecutor
+                                    )
+                            )
+                    );
 
-                        units.insertBefore(newUnits, u);
+                    units.insertBefore(newUnits, u);
 
-                        // Create new invoke with wrapped executor
-                        List<Value> newArgs = new ArrayList<>(invoke.getArgs());
-                        newArgs.set(2, wrappedExecutor); // Replace executor argument
+                    // Create new invoke with wrapped executor
+                    List<Value> newArgs = new ArrayList<>(invoke.getArgs());
+                    newArgs.set(2, wrappedExecutor); // Replace executor argument
 
-                        StaticInvokeExpr newInvoke = Jimple.v().newStaticInvokeExpr(
-                                invoke.getMethod().makeRef(),
-                                newArgs
-                        );
-                        stmt.setRightOp(newInvoke);
-                    }
-                } else if (u instanceof InvokeStmt) {
-                    InvokeExpr invoke = ((InvokeStmt) u).getInvokeExpr();
-                    if (shouldBeWrapped4Callback(invoke)) {
-                        List<Unit> newUnits = new ArrayList<>();
-                        LOG.info("Wrapping executor parameter in invoke statement: {}", u);
-
-                        // Get Context class
-                        SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
-
-                        // Generate local for current context
-                        Local contextLocal = lg.generateLocal(RefType.v(contextClass));
-
-                        // Get Context.current()
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        contextLocal,
-                                        Jimple.v().newStaticInvokeExpr(
-                                                contextClass.getMethod("current",
-                                                        Collections.emptyList(),
-                                                        RefType.v("io.opentelemetry.context.Context")
-                                                ).makeRef()
-                                        )
-                                )
-                        );
+                    StaticInvokeExpr newInvoke = Jimple.v().newStaticInvokeExpr(
+                            invoke.getMethod().makeRef(),
+                            newArgs
+                    );
+                    stmt.setRightOp(newInvoke);
+                }
+            } else if (u instanceof InvokeStmt) {
+                InvokeExpr invoke = ((InvokeStmt) u).getInvokeExpr();
+                if (shouldBeWrapped4Callback(invoke)) {
+                    List<Unit> newUnits = new ArrayList<>();
+                    LOG.info("Wrapping executor parameter in invoke statement: {}", u);
+
+                    // Get Context class
+                    SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
+
+                    // Generate local for current context
+                    Local contextLocal = lg.generateLocal(RefType.v(contextClass));
+
+                    // Get Context.current()
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    contextLocal,
+                                    Jimple.v().newStaticInvokeExpr(
+                                            contextClass.getMethod("current",
+                                                    Collections.emptyList(),
+                                                    RefType.v("io.opentelemetry.context.Context")
+                                            ).makeRef()
+                                    )
+                            )
+                    );
 
-                        // Store original executor
-                        Value executorArg = invoke.getArg(2); // executor is the third argument
-                        Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
-
-                        // Create wrapped executor using Context.wrap()
-                        Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        wrappedExecutor,
-                                        Jimple.v().newInterfaceInvokeExpr(
-                                                contextLocal,
-                                                contextClass.getMethod("wrap",
-                                                        Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
-                                                        RefType.v("java.util.concurrent.Executor")
-                                                ).makeRef(),
-                                                tempExecutor
-                                        )
-                                )
-                        );
+                    // Store original executor
+                    Value executorArg = invoke.getArg(2); // executor is the third argument
+                    Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
+
+                    // Create wrapped executor using Context.wrap()
+                    Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    wrappedExecutor,
+                                    Jimple.v().newInterfaceInvokeExpr(
+                                            contextLocal,
+                                            contextClass.getMethod("wrap",
+                                                    Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
+                                                    RefType.v("java.util.concurrent.Executor")
+                                            ).makeRef(),
+                                            tempExecutor
+                                    )
+                            )
+                    );
 
-                        units.insertBefore(newUnits, u);
+                    units.insertBefore(newUnits, u);
 
-                        // Create new invoke with wrapped executor
-                        List<Value> newArgs = new ArrayList<>(invoke.getArgs());
-                        newArgs.set(2, wrappedExecutor); // Replace executor argument
+                    // Create new invoke with wrapped executor
+                    List<Value> newArgs = new ArrayList<>(invoke.getArgs());
+                    newArgs.set(2, wrappedExecutor); // Replace executor argument
 
-                        StaticInvokeExpr newInvoke = Jimple.v().newStaticInvokeExpr(
-                                invoke.getMethod().makeRef(),
-                                newArgs
-                        );
-                        ((InvokeStmt) u).setInvokeExpr(newInvoke);
-                    }
+                    StaticInvokeExpr newInvoke = Jimple.v().newStaticInvokeExpr(
+                            invoke.getMethod().makeRef(),
+                            newArgs
+                    );
+                    ((InvokeStmt) u).setInvokeExpr(newInvoke);
                 }
             }
         }
 
-        protected void wrapGoogleFuturesTransformAsyncWithAPI(SootMethod method) {
-            if (!method.hasActiveBody()) {
-                return;
-            }
-
-            Body body = method.retrieveActiveBody();
-            UnitPatchingChain units = body.getUnits();
-            List<Unit> originalUnits = new ArrayList<>(units);
-            LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
-
-            for (Unit u : originalUnits) {
-                if (u instanceof AssignStmt) {
-                    AssignStmt stmt = (AssignStmt) u;
-                    Value rightOp = stmt.getRightOp();
-                    if (rightOp instanceof InvokeExpr && shouldBeWrapped4TransformAsync((InvokeExpr) rightOp)) {
-                        List<Unit> newUnits = new ArrayList<>();
-                        LOG.info("Wrapping executor parameter in transform async assignment: {}", stmt);
-                        PilotTransformer.ctxCount++;
-
-                        InvokeExpr invoke = (InvokeExpr) rightOp;
-
-                        // Get Context class
-                        SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
-
-                        // Generate local for current context
-                        Local contextLocal = lg.generateLocal(RefType.v(contextClass));
-
-                        // Get Context.current()
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        contextLocal,
-                                        Jimple.v().newStaticInvokeExpr(
-                                                contextClass.getMethod("current",
-                                                        Collections.emptyList(),
-                                                        RefType.v("io.opentelemetry.context.Context")
-                                                ).makeRef()
-                                        )
-                                )
-                        );
+        protected void wrapGoogleFuturesTransformAsyncWithAPI(Unit u, UnitPatchingChain units, LocalGeneratorUtil lg, Body body) {
+            if (u instanceof AssignStmt) {
+                AssignStmt stmt = (AssignStmt) u;
+                Value rightOp = stmt.getRightOp();
+                if (rightOp instanceof InvokeExpr && shouldBeWrapped4TransformAsync((InvokeExpr) rightOp)) {
+                    List<Unit> newUnits = new ArrayList<>();
+                    LOG.info("Wrapping executor parameter in transform async assignment: {}", stmt);
+                    PilotTransformer.ctxCount++;
+
+                    InvokeExpr invoke = (InvokeExpr) rightOp;
+
+                    // Get Context class
+                    SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
+
+                    // Generate local for current context
+                    Local contextLocal = lg.generateLocal(RefType.v(contextClass));
+
+                    // Get Context.current()
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    contextLocal,
+                                    Jimple.v().newStaticInvokeExpr(
+                                            contextClass.getMethod("current",
+                                                    Collections.emptyList(),
+                                                    RefType.v("io.opentelemetry.context.Context")
+                                            ).makeRef()
+                                    )
+                            )
+                    );
 
-                        // Store original executor
-                        Value executorArg = invoke.getArg(2); // executor is the third argument
-                        Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
-
-                        // Create wrapped executor using Context.wrap()
-                        Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        wrappedExecutor,
-                                        Jimple.v().newInterfaceInvokeExpr(
-                                                contextLocal,
-                                                contextClass.getMethod("wrap",
-                                                        Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
-                                                        RefType.v("java.util.concurrent.Executor")
-                                                ).makeRef(),
-                                                tempExecutor
-                                        )
-                                )
-                        );
+                    // Store original executor
+                    Value executorArg = invoke.getArg(2); // executor is the third argument
+                    Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
+
+                    // Create wrapped executor using Context.wrap()
+                    Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    wrappedExecutor,
+                                    Jimple.v().newInterfaceInvokeExpr(
+                                            contextLocal,
+                                            contextClass.getMethod("wrap",
+                                                    Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
+                                                    RefType.v("java.util.concurrent.Executor")
+                                            ).makeRef(),
+                                            tempExecutor
+                                    )
+                            )
+                    );
 
-                        units.insertBefore(newUnits, u);
+                    units.insertBefore(newUnits, u);
 
-                        // Create new invoke with wrapped executor
-                        List<Value> newArgs = new ArrayList<>(invoke.getArgs());
-                        newArgs.set(2, wrappedExecutor); // Replace executor argument
+                    // Create new invoke with wrapped executor
+                    List<Value> newArgs = new ArrayList<>(invoke.getArgs());
+                    newArgs.set(2, wrappedExecutor); // Replace executor argument
 
-                        StaticInvokeExpr newInvoke = Jimple.v().newStaticInvokeExpr(
-                                invoke.getMethod().makeRef(),
-                                newArgs
-                        );
-                        stmt.setRightOp(newInvoke);
-                    }
-                } else if (u instanceof InvokeStmt) {
-                    InvokeExpr invoke = ((InvokeStmt) u).getInvokeExpr();
-                    if (shouldBeWrapped4TransformAsync(invoke)) {
-                        List<Unit> newUnits = new ArrayList<>();
-                        LOG.info("Wrapping executor parameter in transform async invoke statement: {}", u);
-                        PilotTransformer.ctxCount++;
-
-                        // Get Context class
-                        SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
-
-                        // Generate local for current context
-                        Local contextLocal = lg.generateLocal(RefType.v(contextClass));
-
-                        // Get Context.current()
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        contextLocal,
-                                        Jimple.v().newStaticInvokeExpr(
-                                                contextClass.getMethod("current",
-                                                        Collections.emptyList(),
-                                                        RefType.v("io.opentelemetry.context.Context")
-                                                ).makeRef()
-                                        )
-                                )
-                        );
+                    StaticInvokeExpr newInvoke = Jimple.v().newStaticInvokeExpr(
+                            invoke.getMethod().makeRef(),
+                            newArgs
+                    );
+                    stmt.setRightOp(newInvoke);
+                }
+            } else if (u instanceof InvokeStmt) {
+                InvokeExpr invoke = ((InvokeStmt) u).getInvokeExpr();
+                if (shouldBeWrapped4TransformAsync(invoke)) {
+                    List<Unit> newUnits = new ArrayList<>();
+                    LOG.info("Wrapping executor parameter in transform async invoke statement: {}", u);
+                    PilotTransformer.ctxCount++;
+
+                    // Get Context class
+                    SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
+
+                    // Generate local for current context
+                    Local contextLocal = lg.generateLocal(RefType.v(contextClass));
+
+                    // Get Context.current()
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    contextLocal,
+                                    Jimple.v().newStaticInvokeExpr(
+                                            contextClass.getMethod("current",
+                                                    Collections.emptyList(),
+                                                    RefType.v("io.opentelemetry.context.Context")
+                                            ).makeRef()
+                                    )
+                            )
+                    );
 
-                        // Store original executor
-                        Value executorArg = invoke.getArg(2); // executor is the third argument
-                        Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
-
-                        // Create wrapped executor using Context.wrap()
-                        Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        wrappedExecutor,
-                                        Jimple.v().newInterfaceInvokeExpr(
-                                                contextLocal,
-                                                contextClass.getMethod("wrap",
-                                                        Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
-                                                        RefType.v("java.util.concurrent.Executor")
-                                                ).makeRef(),
-                                                tempExecutor
-                                        )
-                                )
-                        );
+                    // Store original executor
+                    Value executorArg = invoke.getArg(2); // executor is the third argument
+                    Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
+
+                    // Create wrapped executor using Context.wrap()
+                    Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    wrappedExecutor,
+                                    Jimple.v().newInterfaceInvokeExpr(
+                                            contextLocal,
+                                            contextClass.getMethod("wrap",
+                                                    Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
+                                                    RefType.v("java.util.concurrent.Executor")
+                                            ).makeRef(),
+                                            tempExecutor
+                                    )
+                            )
+                    );
 
-                        units.insertBefore(newUnits, u);
+                    units.insertBefore(newUnits, u);
 
-                        // Create new invoke with wrapped executor
-                        List<Value> newArgs = new ArrayList<>(invoke.getArgs());
-                        newArgs.set(2, wrappedExecutor); // Replace executor argument
+                    // Create new invoke with wrapped executor
+                    List<Value> newArgs = new ArrayList<>(invoke.getArgs());
+                    newArgs.set(2, wrappedExecutor); // Replace executor argument
 
-                        StaticInvokeExpr newInvoke = Jimple.v().newStaticInvokeExpr(
-                                invoke.getMethod().makeRef(),
-                                newArgs
-                        );
-                        ((InvokeStmt) u).setInvokeExpr(newInvoke);
-                    }
+                    StaticInvokeExpr newInvoke = Jimple.v().newStaticInvokeExpr(
+                            invoke.getMethod().makeRef(),
+                            newArgs
+                    );
+                    ((InvokeStmt) u).setInvokeExpr(newInvoke);
                 }
             }
         }
 
-        protected void wrapListenableFutureTaskAddListenerWithAPI(SootMethod method) {
-            if (!method.hasActiveBody()) {
-                return;
-            }
-
-            Body body = method.retrieveActiveBody();
-            UnitPatchingChain units = body.getUnits();
-            List<Unit> originalUnits = new ArrayList<>(units);
-            LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
-
-            for (Unit u : originalUnits) {
-                if (u instanceof AssignStmt) {
-                    AssignStmt stmt = (AssignStmt) u;
-                    Value rightOp = stmt.getRightOp();
-                    if (rightOp instanceof InvokeExpr && shouldBeWrapped4AddListener((InvokeExpr) rightOp)) {
-                        List<Unit> newUnits = new ArrayList<>();
-                        LOG.info("Wrapping executor parameter in addListener assignment: {}", stmt);
-                        PilotTransformer.ctxCount++;
-
-                        InvokeExpr invoke = (InvokeExpr) rightOp;
-
-                        // Get Context class
-                        SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
-
-                        // Generate local for current context
-                        Local contextLocal = lg.generateLocal(RefType.v(contextClass));
-
-                        // Get Context.current()
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        contextLocal,
-                                        Jimple.v().newStaticInvokeExpr(
-                                                contextClass.getMethod("current",
-                                                        Collections.emptyList(),
-                                                        RefType.v("io.opentelemetry.context.Context")
-                                                ).makeRef()
-                                        )
-                                )
-                        );
+        protected void wrapListenableFutureTaskAddListenerWithAPI(Unit u, UnitPatchingChain units, LocalGeneratorUtil lg, Body body) {
+            if (u instanceof AssignStmt) {
+                AssignStmt stmt = (AssignStmt) u;
+                Value rightOp = stmt.getRightOp();
+                if (rightOp instanceof InvokeExpr && shouldBeWrapped4AddListener((InvokeExpr) rightOp)) {
+                    List<Unit> newUnits = new ArrayList<>();
+                    LOG.info("Wrapping executor parameter in addListener assignment: {}", stmt);
+                    PilotTransformer.ctxCount++;
+
+                    InvokeExpr invoke = (InvokeExpr) rightOp;
+
+                    // Get Context class
+                    SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
+
+                    // Generate local for current context
+                    Local contextLocal = lg.generateLocal(RefType.v(contextClass));
+
+                    // Get Context.current()
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    contextLocal,
+                                    Jimple.v().newStaticInvokeExpr(
+                                            contextClass.getMethod("current",
+                                                    Collections.emptyList(),
+                                                    RefType.v("io.opentelemetry.context.Context")
+                                            ).makeRef()
+                                    )
+                            )
+                    );
 
-                        // Store original executor
-                        Value executorArg = invoke.getArg(1); // executor is the second argument in addListener
-                        Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
-
-                        // Create wrapped executor using Context.wrap()
-                        Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        wrappedExecutor,
-                                        Jimple.v().newInterfaceInvokeExpr(
-                                                contextLocal,
-                                                contextClass.getMethod("wrap",
-                                                        Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
-                                                        RefType.v("java.util.concurrent.Executor")
-                                                ).makeRef(),
-                                                tempExecutor
-                                        )
-                                )
-                        );
+                    // Store original executor
+                    Value executorArg = invoke.getArg(1); // executor is the second argument in addListener
+                    Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
+
+                    // Create wrapped executor using Context.wrap()
+                    Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    wrappedExecutor,
+                                    Jimple.v().newInterfaceInvokeExpr(
+                                            contextLocal,
+                                            contextClass.getMethod("wrap",
+                                                    Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
+                                                    RefType.v("java.util.concurrent.Executor")
+                                            ).makeRef(),
+                                            tempExecutor
+                                    )
+                            )
+                    );
 
-                        // Store base in a local
-                        Local baseLocal = null;
-                        if (invoke instanceof VirtualInvokeExpr || invoke instanceof InterfaceInvokeExpr) {
-                            Value base = ((InstanceInvokeExpr) invoke).getBase();
-                            baseLocal = lg.generateLocal(base.getType());
-                            newUnits.add(Jimple.v().newAssignStmt(baseLocal, base));
-                        }
+                    // Store base in a local
+                    Local baseLocal = null;
+                    if (invoke instanceof VirtualInvokeExpr || invoke instanceof InterfaceInvokeExpr) {
+                        Value base = ((InstanceInvokeExpr) invoke).getBase();
+                        baseLocal = lg.generateLocal(base.getType());
+                        newUnits.add(Jimple.v().newAssignStmt(baseLocal, base));
+                    }
 
-                        units.insertBefore(newUnits, u);
+                    units.insertBefore(newUnits, u);
 
-                        // Create new invoke with wrapped executor
-                        List<Value> newArgs = new ArrayList<>(invoke.getArgs());
-                        newArgs.set(1, wrappedExecutor); // Replace executor argument
-
-                        // Create appropriate invoke expression based on the original type
-                        InvokeExpr newInvoke;
-                        if (invoke instanceof VirtualInvokeExpr) {
-                            newInvoke = Jimple.v().newVirtualInvokeExpr(
-                                    baseLocal,
-                                    invoke.getMethod().makeRef(),
-                                    newArgs
-                            );
-                        } else if (invoke instanceof InterfaceInvokeExpr) {
-                            newInvoke = Jimple.v().newInterfaceInvokeExpr(
-                                    baseLocal,
-                                    invoke.getMethod().makeRef(),
-                                    newArgs
-                            );
-                        } else {
-                            // Shouldn't happen for addListener, but handle just in case
-                            continue;
-                        }
+                    // Create new invoke with wrapped executor
+                    List<Value> newArgs = new ArrayList<>(invoke.getArgs());
+                    newArgs.set(1, wrappedExecutor); // Replace executor argument
 
-                        stmt.setRightOp(newInvoke);
-                    }
-                } else if (u instanceof InvokeStmt) {
-                    InvokeExpr invoke = ((InvokeStmt) u).getInvokeExpr();
-                    if (shouldBeWrapped4AddListener(invoke)) {
-                        List<Unit> newUnits = new ArrayList<>();
-                        LOG.info("Wrapping executor parameter in addListener invoke statement: {}", u);
-                        PilotTransformer.ctxCount++;
-
-                        // Get Context class
-                        SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
-
-                        // Generate local for current context
-                        Local contextLocal = lg.generateLocal(RefType.v(contextClass));
-
-                        // Get Context.current()
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        contextLocal,
-                                        Jimple.v().newStaticInvokeExpr(
-                                                contextClass.getMethod("current",
-                                                        Collections.emptyList(),
-                                                        RefType.v("io.opentelemetry.context.Context")
-                                                ).makeRef()
-                                        )
-                                )
+                    // Create appropriate invoke expression based on the original type
+                    InvokeExpr newInvoke;
+                    if (invoke instanceof VirtualInvokeExpr) {
+                        newInvoke = Jimple.v().newVirtualInvokeExpr(
+                                baseLocal,
+                                invoke.getMethod().makeRef(),
+                                newArgs
                         );
-
-                        // Store original executor
-                        Value executorArg = invoke.getArg(1); // executor is the second argument in addListener
-                        Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
-
-                        // Create wrapped executor using Context.wrap()
-                        Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
-                        newUnits.add(
-                                Jimple.v().newAssignStmt(
-                                        wrappedExecutor,
-                                        Jimple.v().newInterfaceInvokeExpr(
-                                                contextLocal,
-                                                contextClass.getMethod("wrap",
-                                                        Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
-                                                        RefType.v("java.util.concurrent.Executor")
-                                                ).makeRef(),
-                                                tempExecutor
-                                        )
-                                )
+                    } else if (invoke instanceof InterfaceInvokeExpr) {
+                        newInvoke = Jimple.v().newInterfaceInvokeExpr(
+                                baseLocal,
+                                invoke.getMethod().makeRef(),
+                                newArgs
                         );
+                    } else {
+                        // Shouldn't happen for addListener, but handle just in case
+                        return;
+                    }
 
-                        // Store base in a local
-                        Local baseLocal = null;
-                        if (invoke instanceof VirtualInvokeExpr || invoke instanceof InterfaceInvokeExpr) {
-                            Value base = ((InstanceInvokeExpr) invoke).getBase();
-                            baseLocal = lg.generateLocal(base.getType());
-                            newUnits.add(Jimple.v().newAssignStmt(baseLocal, base));
-                        }
+                    stmt.setRightOp(newInvoke);
+                }
+            } else if (u instanceof InvokeStmt) {
+                InvokeExpr invoke = ((InvokeStmt) u).getInvokeExpr();
+                if (shouldBeWrapped4AddListener(invoke)) {
+                    List<Unit> newUnits = new ArrayList<>();
+                    LOG.info("Wrapping executor parameter in addListener invoke statement: {}", u);
+                    PilotTransformer.ctxCount++;
+
+                    // Get Context class
+                    SootClass contextClass = Scene.v().getSootClass("io.opentelemetry.context.Context");
+
+                    // Generate local for current context
+                    Local contextLocal = lg.generateLocal(RefType.v(contextClass));
+
+                    // Get Context.current()
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    contextLocal,
+                                    Jimple.v().newStaticInvokeExpr(
+                                            contextClass.getMethod("current",
+                                                    Collections.emptyList(),
+                                                    RefType.v("io.opentelemetry.context.Context")
+                                            ).makeRef()
+                                    )
+                            )
+                    );
 
-                        units.insertBefore(newUnits, u);
+                    // Store original executor
+                    Value executorArg = invoke.getArg(1); // executor is the second argument in addListener
+                    Local tempExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(Jimple.v().newAssignStmt(tempExecutor, executorArg));
+
+                    // Create wrapped executor using Context.wrap()
+                    Local wrappedExecutor = lg.generateLocal(RefType.v("java.util.concurrent.Executor"));
+                    newUnits.add(
+                            Jimple.v().newAssignStmt(
+                                    wrappedExecutor,
+                                    Jimple.v().newInterfaceInvokeExpr(
+                                            contextLocal,
+                                            contextClass.getMethod("wrap",
+                                                    Collections.singletonList(RefType.v("java.util.concurrent.Executor")),
+                                                    RefType.v("java.util.concurrent.Executor")
+                                            ).makeRef(),
+                                            tempExecutor
+                                    )
+                            )
+                    );
 
-                        // Create new invoke with wrapped executor
-                        List<Value> newArgs = new ArrayList<>(invoke.getArgs());
-                        newArgs.set(1, wrappedExecutor); // Replace executor argument
-
-                        // Create appropriate invoke expression based on the original type
-                        InvokeExpr newInvoke;
-                        if (invoke instanceof VirtualInvokeExpr) {
-                            newInvoke = Jimple.v().newVirtualInvokeExpr(
-                                    baseLocal,
-                                    invoke.getMethod().makeRef(),
-                                    newArgs
-                            );
-                        } else if (invoke instanceof InterfaceInvokeExpr) {
-                            newInvoke = Jimple.v().newInterfaceInvokeExpr(
-                                    baseLocal,
-                                    invoke.getMethod().makeRef(),
-                                    newArgs
-                            );
-                        } else {
-                            // Shouldn't happen for addListener, but handle just in case
-                            continue;
-                        }
+                    // Store base in a local
+                    Local baseLocal = null;
+                    if (invoke instanceof VirtualInvokeExpr || invoke instanceof InterfaceInvokeExpr) {
+                        Value base = ((InstanceInvokeExpr) invoke).getBase();
+                        baseLocal = lg.generateLocal(base.getType());
+                        newUnits.add(Jimple.v().newAssignStmt(baseLocal, base));
+                    }
 
-                        ((InvokeStmt) u).setInvokeExpr(newInvoke);
+                    units.insertBefore(newUnits, u);
+
+                    // Create new invoke with wrapped executor
+                    List<Value> newArgs = new ArrayList<>(invoke.getArgs());
+                    newArgs.set(1, wrappedExecutor); // Replace executor argument
+
+                    // Create appropriate invoke expression based on the original type
+                    InvokeExpr newInvoke;
+                    if (invoke instanceof VirtualInvokeExpr) {
+                        newInvoke = Jimple.v().newVirtualInvokeExpr(
+                                baseLocal,
+                                invoke.getMethod().makeRef(),
+                                newArgs
+                        );
+                    } else if (invoke instanceof InterfaceInvokeExpr) {
+                        newInvoke = Jimple.v().newInterfaceInvokeExpr(
+                                baseLocal,
+                                invoke.getMethod().makeRef(),
+                                newArgs
+                        );
+                    } else {
+                        // Shouldn't happen for addListener, but handle just in case
+                        return;
                     }
+
+                    ((InvokeStmt) u).setInvokeExpr(newInvoke);
                 }
             }
         }
@@ -1,6 +1,8 @@
 package edu.uva.liftlab.pilot.distributedtracing;
 
 import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.rewriter.BodyPass;
+import edu.uva.liftlab.pilot.rewriter.RewriteContext;
 import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
 import edu.uva.liftlab.pilot.util.SootUtils;
 import org.slf4j.Logger;
@@ -8,15 +10,13 @@ import org.slf4j.LoggerFactory;
 import soot.*;
 import soot.jimple.*;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 
 import static edu.uva.liftlab.pilot.util.Constants.CONTEXT_TYPE;
-import static edu.uva.liftlab.pilot.util.Constants.INSTRUMENTATION_SUFFIX;
 import static edu.uva.liftlab.pilot.util.SootUtils.classShouldBeInstrumented;
 
-public class ThreadTracer {
+public class ThreadTracer implements BodyPass {
 
     public ClassFilterHelper filter;
 
@@ -51,59 +51,53 @@ public class ThreadTracer {
 
     public void instrument() {
         instrumentClass();
-        replaceThreadStartCalls(this.sootClass);
     }
 
-    private void replaceThreadStartCalls(SootClass sootClass) {
-        for (SootMethod method : sootClass.getMethods()) {
-            if (!method.hasActiveBody()) continue;
-            if (!method.getName().endsWith(INSTRUMENTATION_SUFFIX)) continue;
-
-            LOG.info("Replacing thread.start() calls in {}", method.getSignature());
-
-            Body body = method.retrieveActiveBody();
-            PatchingChain<Unit> units = body.getUnits();
-
-            for (Unit unit : new ArrayList<>(units)) {
-                if (!(unit instanceof InvokeStmt)) continue;
-
-                InvokeExpr invokeExpr = ((InvokeStmt) unit).getInvokeExpr();
-                SootMethodRef methodRef = invokeExpr.getMethodRef();
-
-                // Match: <any Thread subclass>.start()
-                if (methodRef.getName().equals("start")
-                        && methodRef.getParameterTypes().isEmpty()
-                        && isThreadOrSubclass(methodRef.getDeclaringClass())) {
-
-                    // Get the receiver (the thread instance)
-                    Local threadLocal;
-                    if (invokeExpr instanceof VirtualInvokeExpr) {
-                        threadLocal = (Local) ((VirtualInvokeExpr) invokeExpr).getBase();
-                    } else if (invokeExpr instanceof SpecialInvokeExpr) {
-                        threadLocal = (Local) ((SpecialInvokeExpr) invokeExpr).getBase();
-                    } else {
-                        continue;
-                    }
-
-                    // Build PilotUtil.startThread(thread)
-                    SootMethodRef startThreadRef = Scene.v().makeMethodRef(
-                            Scene.v().loadClassAndSupport("org.pilot.PilotUtil"),
-                            "startThread",
-                            Collections.singletonList(RefType.v("java.lang.Thread")),
-                            VoidType.v(),
-                            true // static
-                    );
-
-                    InvokeStmt replacement = Jimple.v().newInvokeStmt(
-                            Jimple.v().newStaticInvokeExpr(startThreadRef, threadLocal)
-                    );
-
-                    units.swapWith(unit, replacement);
-                    LOG.info("Replaced thread.start() with PilotUtil.startThread() in {}", method.getSignature());
-                }
+    @Override
+    public String getName() {
+        return "ThreadTracer";
+    }
+
+    /**
+     * Replace thread.start() calls in $instrumentation methods with PilotUtil.startThread(thread)
+     */
+    @Override
+    public void visitInvoke(Stmt stmt, RewriteContext context) {
+        if (!(stmt instanceof InvokeStmt)) return;
+
+        InvokeExpr invokeExpr = stmt.getInvokeExpr();
+        SootMethodRef methodRef = invokeExpr.getMethodRef();
+
+        // Match: <any Thread subclass>.start()
+        if (methodRef.getName().equals("start")
+                && methodRef.getParameterTypes().isEmpty()
+                && isThreadOrSubclass(methodRef.getDeclaringClass())) {
+
+            // Get the receiver (the thread instance)
+            Local threadLocal;
+            if (invokeExpr instanceof VirtualInvokeExpr) {
+                threadLocal = (Local) ((VirtualInvokeExpr) invokeExpr).getBase();
+            } else if (invokeExpr instanceof SpecialInvokeExpr) {
+                threadLocal = (Local) ((SpecialInvokeExpr) invokeExpr).getBase();
+            } else {
+                return;
             }
 
-            body.validate();
+            // Build PilotUtil.startThread(thread)
+            SootMethodRef startThreadRef = Scene.v().makeMethodRef(
+                    Scene.v().loadClassAndSupport("org.pilot.PilotUtil"),
+                    "startThread",
+                    Collections.singletonList(RefType.v("java.lang.Thread")),
+                    VoidType.v(),
+                    true // static
+            );
+
+            InvokeStmt replacement = Jimple.v().newInvokeStmt(
+                    Jimple.v().newStaticInvokeExpr(startThreadRef, threadLocal)
+            );
+
+            context.replace(replacement);
+            LOG.info("Replaced thread.start() with PilotUtil.startThread() in {}", context.getMethod().getSignature());
         }
     }
 
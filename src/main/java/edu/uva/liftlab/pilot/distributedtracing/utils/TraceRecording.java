@@ -0,0 +1,113 @@
+package edu.uva.liftlab.pilot.distributedtracing.utils;
+
+import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
+import edu.uva.liftlab.pilot.util.SiteTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.*;
+import soot.jimple.IntConstant;
+import soot.jimple.Jimple;
+import soot.jimple.StringConstant;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * TraceRecording - The calls of the generated code to org.pilot.trace.TraceRecorder that build the
+ * context tree.
+ *
+ * Every record method takes trace and span ids, then names (methods, task classes, edge types).
+ * By default the ids are the hex strings of the SpanContext and the names are strings. With
+ * numeric_trace_ids enabled, the ids are longs, converted by TraceRecorder.toId(String) from the
+ * hex strings without allocating, and the names are int ids assigned by the engine and written to
+ * a name table next to the output, see {@link SiteTable}. The numeric calls go to
+ * org.pilot.trace.NumericTraceRecorder of the runtime module, which appends fixed-size records to
+ * per-thread rings that a background thread drains into the tree.
+ */
+public class TraceRecording {
+    private static final Logger LOG = LoggerFactory.getLogger(TraceRecording.class);
+
+    public static final String TRACE_RECORDER_CLASS = "org.pilot.trace.TraceRecorder";
+
+    public static final String NUMERIC_TRACE_RECORDER_CLASS = "org.pilot.trace.NumericTraceRecorder";
+
+    public static final String NAME_TABLE_FILE = "pilot-trace-names.tsv";
+
+    private static boolean numericIds = false;
+
+    private static final SiteTable NAMES = new SiteTable(NAME_TABLE_FILE);
+
+    public static void setNumericIds(boolean isNumericIds) {
+        numericIds = isNumericIds;
+    }
+
+    public static boolean isNumericIds() {
+        return numericIds;
+    }
+
+    /**
+     * @return a local holding the name, or its id with numeric ids
+     */
+    public static Local newName(String name, LocalGeneratorUtil lg, List<Unit> units) {
+        if (!numericIds) {
+            Local local = lg.generateLocal(RefType.v("java.lang.String"));
+            units.add(Jimple.v().newAssignStmt(local, StringConstant.v(name)));
+            return local;
+        }
+        Local local = lg.generateLocal(IntType.v());
+        units.add(Jimple.v().newAssignStmt(local, IntConstant.v(NAMES.register(name))));
+        return local;
+    }
+
+    /**
+     * @return a local holding the hex trace or span id, or its numeric id with numeric ids
+     */
+    public static Local toRecordedId(Local hexId, LocalGeneratorUtil lg, List<Unit> units) {
+        if (!numericIds) {
+            return hexId;
+        }
+        Local id = lg.generateLocal(LongType.v());
+        units.add(Jimple.v().newAssignStmt(id, Jimple.v().newStaticInvokeExpr(Scene.v().makeMethodRef(
+                Scene.v().getSootClass(NUMERIC_TRACE_RECORDER_CLASS), "toId",
+                Collections.singletonList(RefType.v("java.lang.String")), LongType.v(), true), hexId)));
+        return id;
+    }
+
+    /**
+     * @return the call of the record method with the ids and the names, which must come from
+     * {@link #toRecordedId} and {@link #newName}
+     */
+    public static Unit newRecordStmt(String method, List<Local> ids, List<Local> names) {
+        List<Type> parameterTypes = new ArrayList<>();
+        for (Local ignored : ids) {
+            parameterTypes.add(numericIds ? LongType.v() : RefType.v("java.lang.String"));
+        }
+        for (Local ignored : names) {
+            parameterTypes.add(numericIds ? IntType.v() : RefType.v("java.lang.String"));
+        }
+        List<Value> args = new ArrayList<>(ids);
+        args.addAll(names);
+        return Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(Scene.v().makeMethodRef(
+                Scene.v().getSootClass(numericIds ? NUMERIC_TRACE_RECORDER_CLASS : TRACE_RECORDER_CLASS),
+                method, parameterTypes, VoidType.v(), true), args));
+    }
+
+    /**
+     * Write the names registered by this run to the name table of the output directory, keeping the
+     * names already in it
+     */
+    public static void writeNameTable(Path outputDir) {
+        if (!numericIds) {
+            return;
+        }
+        try {
+            Path table = NAMES.write(outputDir);
+            LOG.info("Numeric trace ids: {} names, name table written to {}", NAMES.size(), table);
+        } catch (IOException e) {
+            LOG.error("Failed to write trace name table to {}: {}", outputDir, e.toString());
+        }
+    }
+}
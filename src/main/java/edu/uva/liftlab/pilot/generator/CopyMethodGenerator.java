@@ -0,0 +1,312 @@
+package edu.uva.liftlab.pilot.generator;
+
+import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
+import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.*;
+import soot.jimple.*;
+
+import java.util.*;
+
+import static edu.uva.liftlab.pilot.util.Constants.*;
+
+/**
+ * CopyMethodGenerator - Generates the copy methods that the read barrier of a reference field calls
+ * instead of the reflective State.shallowCopy.
+ *
+ * A class C gets:
+ * 1. A copy constructor C(C original, Void marker), which calls the copy constructor of its
+ *    superclass and then copies the instance fields C declares, one by one
+ * 2. An instance method Object $pilotCopy(), which returns new C(this, null) when this is exactly a
+ *    C, and State.shallowCopy of this otherwise (a subclass without copy methods of its own)
+ *
+ * Only application classes whose superclasses all have copy methods, up to java.lang.Object, get
+ * them, as the fields of a library superclass can only be copied reflectively. Interfaces and enums
+ * get none.
+ *
+ * Fields declared with a JDK collection type are copied with the presizing copy constructor of the
+ * exact collection class of the value (new ArrayList(original), new HashMap(original), ...); the
+ * elements are shared, as with a shallow copy. Other values go through State.shallowCopy.
+ */
+public class CopyMethodGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(CopyMethodGenerator.class);
+
+    private static final String VOID_CLASS = "java.lang.Void";
+
+    // JDK collection class -> (parameter type of its copy constructor, the types it can be stored as)
+    private static final Map<String, CollectionCopy> COLLECTION_COPIES = new LinkedHashMap<>();
+
+    static {
+        addCollectionCopy("java.util.ArrayList", "java.util.Collection",
+                "java.util.AbstractList", "java.util.List", "java.util.AbstractCollection", "java.util.Collection");
+        addCollectionCopy("java.util.HashMap", "java.util.Map",
+                "java.util.AbstractMap", "java.util.Map");
+        addCollectionCopy("java.util.HashSet", "java.util.Collection",
+                "java.util.AbstractSet", "java.util.Set", "java.util.AbstractCollection", "java.util.Collection");
+        addCollectionCopy("java.util.concurrent.ConcurrentHashMap", "java.util.Map",
+                "java.util.concurrent.ConcurrentMap", "java.util.AbstractMap", "java.util.Map");
+        addCollectionCopy("java.util.LinkedList", "java.util.Collection",
+                "java.util.AbstractSequentialList", "java.util.AbstractList", "java.util.List", "java.util.Deque",
+                "java.util.Queue", "java.util.AbstractCollection", "java.util.Collection");
+        addCollectionCopy("java.util.LinkedHashSet", "java.util.Collection",
+                "java.util.HashSet", "java.util.AbstractSet", "java.util.Set", "java.util.AbstractCollection",
+                "java.util.Collection");
+        addCollectionCopy("java.util.ArrayDeque", "java.util.Collection",
+                "java.util.Deque", "java.util.Queue", "java.util.AbstractCollection", "java.util.Collection");
+        addCollectionCopy("java.util.TreeMap", "java.util.SortedMap",
+                "java.util.NavigableMap", "java.util.SortedMap", "java.util.AbstractMap", "java.util.Map");
+        addCollectionCopy("java.util.TreeSet", "java.util.SortedSet",
+                "java.util.NavigableSet", "java.util.SortedSet", "java.util.AbstractSet", "java.util.Set",
+                "java.util.AbstractCollection", "java.util.Collection");
+        addCollectionCopy("java.util.concurrent.CopyOnWriteArrayList", "java.util.Collection",
+                "java.util.List", "java.util.Collection");
+        // LinkedHashMap is left out: its copy constructor drops the access order of LRU maps
+    }
+
+    // Names of the classes with copy methods, null if the barriers call State.shallowCopy
+    private static Set<String> copyableClasses = null;
+
+    private final ClassFilterHelper filter;
+
+    public CopyMethodGenerator(ClassFilterHelper filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Decide which classes get copy methods. Must be called with the same classes in every run
+     * that shares instrumented classes (shards, cache hits), before any copy method is generated.
+     */
+    public void computeCopyableClasses(Collection<SootClass> classes) {
+        Set<SootClass> candidates = new HashSet<>(classes);
+        Map<SootClass, Boolean> decisions = new HashMap<>();
+        copyableClasses = new HashSet<>();
+        for (SootClass sc : classes) {
+            if (isCopyable(sc, candidates, decisions)) {
+                copyableClasses.add(sc.getName());
+            }
+        }
+        LOG.info("{} classes get copy methods", copyableClasses.size());
+    }
+
+    private boolean isCopyable(SootClass sc, Set<SootClass> candidates, Map<SootClass, Boolean> decisions) {
+        Boolean decision = decisions.get(sc);
+        if (decision != null) {
+            return decision;
+        }
+        decisions.put(sc, false);
+        boolean copyable = candidates.contains(sc) && !filter.shouldSkip(sc) && !sc.isInterface() && !sc.isEnum()
+                && !sc.isPhantom() && sc.hasSuperclass()
+                && !sc.declaresMethod(SootMethod.constructorName, getCopyConstructorParameterTypes(sc))
+                && !sc.declaresMethod(COPY_METHOD_NAME, Collections.emptyList())
+                && (sc.getSuperclass().getName().equals("java.lang.Object")
+                    || isCopyable(sc.getSuperclass(), candidates, decisions));
+        decisions.put(sc, copyable);
+        return copyable;
+    }
+
+    public static boolean hasCopyMethods(SootClass sc) {
+        return copyableClasses != null && copyableClasses.contains(sc.getName());
+    }
+
+    /**
+     * @return whether the values of a field of the type have a copy that does not go through reflection
+     */
+    public static boolean hasSpecializedCopy(Type type) {
+        if (copyableClasses == null || !(type instanceof RefType)) {
+            return false;
+        }
+        String className = ((RefType) type).getClassName();
+        return copyableClasses.contains(className) || !getCollectionCopies(className).isEmpty();
+    }
+
+    /**
+     * Add the copy constructor and $pilotCopy with their bodies
+     */
+    public void addCopyMethods(SootClass sc) {
+        if (!hasCopyMethods(sc)) {
+            return;
+        }
+        SootMethod constructor = declareCopyMethod(sc, SootMethod.constructorName, getCopyConstructorParameterTypes(sc),
+                VoidType.v());
+        constructor.setActiveBody(buildCopyConstructorBody(sc, constructor));
+        SootMethod copyMethod = declareCopyMethod(sc, COPY_METHOD_NAME, Collections.emptyList(),
+                RefType.v("java.lang.Object"));
+        copyMethod.setActiveBody(buildCopyMethodBody(sc, copyMethod, constructor));
+        PilotTransformer.copyMethodClassCount++;
+    }
+
+    /**
+     * Declare the copy methods of a class whose bodies are generated elsewhere (e.g. by another shard)
+     */
+    public void declareCopyMethods(SootClass sc) {
+        if (!hasCopyMethods(sc)) {
+            return;
+        }
+        declareCopyMethod(sc, SootMethod.constructorName, getCopyConstructorParameterTypes(sc), VoidType.v());
+        declareCopyMethod(sc, COPY_METHOD_NAME, Collections.emptyList(), RefType.v("java.lang.Object"));
+    }
+
+    private static SootMethod declareCopyMethod(SootClass sc, String name, List<Type> parameterTypes, Type returnType) {
+        SootMethod method = new SootMethod(name, parameterTypes, returnType, Modifier.PUBLIC);
+        sc.addMethod(method);
+        return method;
+    }
+
+    private static List<Type> getCopyConstructorParameterTypes(SootClass sc) {
+        return Arrays.asList(sc.getType(), RefType.v(VOID_CLASS));
+    }
+
+    private Body buildCopyConstructorBody(SootClass sc, SootMethod constructor) {
+        Body body = Jimple.v().newBody(constructor);
+        LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
+        UnitPatchingChain units = body.getUnits();
+        Local thisLocal = lg.generateLocal(sc.getType());
+        Local original = lg.generateLocal(sc.getType());
+        Local marker = lg.generateLocal(RefType.v(VOID_CLASS));
+        units.add(Jimple.v().newIdentityStmt(thisLocal, Jimple.v().newThisRef(sc.getType())));
+        units.add(Jimple.v().newIdentityStmt(original, Jimple.v().newParameterRef(sc.getType(), 0)));
+        units.add(Jimple.v().newIdentityStmt(marker, Jimple.v().newParameterRef(RefType.v(VOID_CLASS), 1)));
+
+        SootClass superclass = sc.getSuperclass();
+        if (hasCopyMethods(superclass)) {
+            SootMethodRef superConstructor = Scene.v().makeConstructorRef(superclass,
+                    getCopyConstructorParameterTypes(superclass));
+            units.add(Jimple.v().newInvokeStmt(
+                    Jimple.v().newSpecialInvokeExpr(thisLocal, superConstructor, original, marker)));
+        } else {
+            units.add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(thisLocal,
+                    Scene.v().makeConstructorRef(superclass, Collections.emptyList()))));
+        }
+
+        for (SootField field : sc.getFields()) {
+            if (field.isStatic()) {
+                continue;
+            }
+            Local value = lg.generateLocal(field.getType());
+            units.add(Jimple.v().newAssignStmt(value, Jimple.v().newInstanceFieldRef(original, field.makeRef())));
+            units.add(Jimple.v().newAssignStmt(Jimple.v().newInstanceFieldRef(thisLocal, field.makeRef()), value));
+        }
+        units.add(Jimple.v().newReturnVoidStmt());
+        return body;
+    }
+
+    private Body buildCopyMethodBody(SootClass sc, SootMethod copyMethod, SootMethod constructor) {
+        Body body = Jimple.v().newBody(copyMethod);
+        LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
+        UnitPatchingChain units = body.getUnits();
+        RefType objectType = RefType.v("java.lang.Object");
+        Local thisLocal = lg.generateLocal(sc.getType());
+        units.add(Jimple.v().newIdentityStmt(thisLocal, Jimple.v().newThisRef(sc.getType())));
+
+        Stmt exactClass = Jimple.v().newNopStmt();
+        if (!sc.isAbstract()) {
+            Local runtimeClass = lg.generateLocal(RefType.v("java.lang.Class"));
+            units.add(Jimple.v().newAssignStmt(runtimeClass, newGetClassExpr(thisLocal)));
+            units.add(Jimple.v().newIfStmt(
+                    Jimple.v().newEqExpr(runtimeClass, ClassConstant.fromType(sc.getType())), exactClass));
+        }
+        // a subclass that has no copy methods of its own
+        Local copy = lg.generateLocal(objectType);
+        units.add(Jimple.v().newAssignStmt(copy, Jimple.v().newStaticInvokeExpr(getShallowCopyRef(),
+                thisLocal, NullConstant.v(), IntConstant.v(1))));
+        units.add(Jimple.v().newReturnStmt(copy));
+
+        if (!sc.isAbstract()) {
+            Local newObject = lg.generateLocal(sc.getType());
+            units.add(exactClass);
+            units.add(Jimple.v().newAssignStmt(newObject, Jimple.v().newNewExpr(sc.getType())));
+            units.add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(newObject, constructor.makeRef(),
+                    thisLocal, NullConstant.v())));
+            units.add(Jimple.v().newReturnStmt(newObject));
+        }
+        return body;
+    }
+
+    /**
+     * Generate the units that copy a non null value of a field of the type into result, for a type
+     * with {@link #hasSpecializedCopy}. The units jump to done once result is set, and fall through
+     * when the value needs State.shallowCopy.
+     * @return whether the units can fall through
+     */
+    public static boolean generateCopyUnits(Local original, Local result, Type type, LocalGeneratorUtil lg,
+                                            Stmt done, List<Unit> units) {
+        String className = ((RefType) type).getClassName();
+        RefType objectType = RefType.v("java.lang.Object");
+        if (copyableClasses.contains(className)) {
+            SootMethodRef copyRef = Scene.v().makeMethodRef(Scene.v().getSootClass(className), COPY_METHOD_NAME,
+                    Collections.emptyList(), objectType, false);
+            Local copy = lg.generateLocal(objectType);
+            units.add(Jimple.v().newAssignStmt(copy, Jimple.v().newVirtualInvokeExpr(original, copyRef)));
+            units.add(Jimple.v().newAssignStmt(result, Jimple.v().newCastExpr(copy, type)));
+            units.add(Jimple.v().newGotoStmt(done));
+            return false;
+        }
+
+        Local runtimeClass = lg.generateLocal(RefType.v("java.lang.Class"));
+        units.add(Jimple.v().newAssignStmt(runtimeClass, newGetClassExpr(original)));
+        for (Map.Entry<String, CollectionCopy> entry : getCollectionCopies(className)) {
+            RefType collectionType = RefType.v(entry.getKey());
+            RefType parameterType = RefType.v(entry.getValue().parameterType);
+            Stmt next = Jimple.v().newNopStmt();
+            Local argument = lg.generateLocal(parameterType);
+            Local copy = lg.generateLocal(collectionType);
+            SootMethodRef constructorRef = Scene.v().makeConstructorRef(Scene.v().getSootClass(entry.getKey()),
+                    Collections.singletonList(parameterType));
+            units.add(Jimple.v().newIfStmt(
+                    Jimple.v().newNeExpr(runtimeClass, ClassConstant.fromType(collectionType)), next));
+            units.add(Jimple.v().newAssignStmt(argument, Jimple.v().newCastExpr(original, parameterType)));
+            units.add(Jimple.v().newAssignStmt(copy, Jimple.v().newNewExpr(collectionType)));
+            units.add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(copy, constructorRef, argument)));
+            units.add(Jimple.v().newAssignStmt(result, copy));
+            units.add(Jimple.v().newGotoStmt(done));
+            units.add(next);
+        }
+        return true;
+    }
+
+    public static Set<String> getCollectionClasses() {
+        return Collections.unmodifiableSet(COLLECTION_COPIES.keySet());
+    }
+
+    public static SootMethodRef getShallowCopyRef() {
+        RefType objectType = RefType.v("java.lang.Object");
+        return Scene.v().makeMethodRef(
+                Scene.v().getSootClass(STATE_ISOLATION_CLASS),
+                "shallowCopy",
+                Arrays.asList(objectType, objectType, BooleanType.v()),
+                objectType,
+                true);
+    }
+
+    private static InvokeExpr newGetClassExpr(Local object) {
+        return Jimple.v().newVirtualInvokeExpr(object, Scene.v().makeMethodRef(
+                Scene.v().getSootClass("java.lang.Object"), "getClass", Collections.emptyList(),
+                RefType.v("java.lang.Class"), false));
+    }
+
+    private static List<Map.Entry<String, CollectionCopy>> getCollectionCopies(String className) {
+        List<Map.Entry<String, CollectionCopy>> copies = new ArrayList<>();
+        for (Map.Entry<String, CollectionCopy> entry : COLLECTION_COPIES.entrySet()) {
+            if (entry.getKey().equals(className) || entry.getValue().storedAs.contains(className)) {
+                copies.add(entry);
+            }
+        }
+        return copies;
+    }
+
+    private static void addCollectionCopy(String className, String parameterType, String... storedAs) {
+        COLLECTION_COPIES.put(className, new CollectionCopy(parameterType, Arrays.asList(storedAs)));
+    }
+
+    private static final class CollectionCopy {
+        private final String parameterType;
+        private final List<String> storedAs;
+
+        CollectionCopy(String parameterType, List<String> storedAs) {
+            this.parameterType = parameterType;
+            this.storedAs = storedAs;
+        }
+    }
+}
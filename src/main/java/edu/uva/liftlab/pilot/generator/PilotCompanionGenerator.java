@@ -0,0 +1,346 @@
+package edu.uva.liftlab.pilot.generator;
+
+import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
+import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
+import soot.*;
+import soot.jimple.*;
+import soot.tagkit.SourceFileTag;
+
+import java.util.*;
+
+import static edu.uva.liftlab.pilot.util.Constants.*;
+
+/**
+ * PilotCompanionGenerator - Moves the bodies of the pilot copies of a class, its $instrumentation and
+ * $original methods, to a companion class Foo$Pilot. The class loaded at startup keeps a stub per
+ * pilot copy, and the JVM loads and verifies the companion when a stub is first called, which is the
+ * first divergence of a pilot run into the class.
+ *
+ * foo$instrumentation(A) of Foo becomes a stub that calls the static Foo$Pilot.foo$instrumentation(Foo, A),
+ * whose body is the one of foo$instrumentation with the receiver as first parameter. The stub keeps
+ * the modifiers of the method, so overriding, virtual calls and synchronized are unchanged, and the
+ * callers of the method are not rewritten. Private and super calls between moved bodies call the
+ * companion methods.
+ *
+ * A body moves if every member it uses is accessible from another class of the package, once the
+ * private fields, constructors and static methods of Foo it uses are no longer private: it must not
+ * use protected members of other packages, private members of other classes, private or super calls
+ * to bodies that stay, final fields it writes, or invokedynamic other than the pilot guard and
+ * non-serializable lambdas. Interfaces keep their pilot copies.
+ */
+public class PilotCompanionGenerator {
+    private static final String LAMBDA_METAFACTORY_CLASS_NAME = "java.lang.invoke.LambdaMetafactory";
+
+    private final ClassFilterHelper filter;
+
+    // Moved pilot copy -> static method of the companion class that holds its body
+    private final Map<SootMethod, SootMethod> companionMethods = new LinkedHashMap<>();
+
+    public PilotCompanionGenerator(ClassFilterHelper filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Move the pilot copies of every application class that can move, once all other rewriting is done
+     */
+    public void moveAllClasses() {
+        Set<SootMethod> movable = new LinkedHashSet<>();
+        for (SootClass sc : new ArrayList<>(Scene.v().getApplicationClasses())) {
+            if (filter.shouldSkip(sc) || sc.isInterface()
+                    || Scene.v().containsClass(sc.getName() + PILOT_COMPANION_SUFFIX)) {
+                continue;
+            }
+            for (SootMethod method : sc.getMethods()) {
+                if (!isPilotCopy(method)) {
+                    continue;
+                }
+                if (isMovable(method.getActiveBody())) {
+                    movable.add(method);
+                } else {
+                    PilotTransformer.inPlacePilotCopyCount++;
+                }
+            }
+        }
+
+        // A private or super call made by a companion must reach a body that moves as well
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Iterator<SootMethod> it = movable.iterator(); it.hasNext(); ) {
+                if (!nonVirtualCallsMove(it.next().getActiveBody(), movable)) {
+                    it.remove();
+                    PilotTransformer.inPlacePilotCopyCount++;
+                    changed = true;
+                }
+            }
+        }
+
+        for (SootMethod method : movable) {
+            companionMethods.put(method, declareCompanionMethod(method));
+        }
+        for (Map.Entry<SootMethod, SootMethod> entry : companionMethods.entrySet()) {
+            moveBody(entry.getKey(), entry.getValue());
+            PilotTransformer.companionMethodCount++;
+        }
+    }
+
+    private static boolean isPilotCopy(SootMethod method) {
+        return method.isConcrete() && method.hasActiveBody()
+                && (method.getName().endsWith(INSTRUMENTATION_SUFFIX) || method.getName().endsWith(ORIGINAL_SUFFIX));
+    }
+
+    /**
+     * @return whether the body can run in the companion class, the private and super calls aside
+     */
+    private static boolean isMovable(Body body) {
+        SootClass sc = body.getMethod().getDeclaringClass();
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (stmt.containsFieldRef()) {
+                SootField field;
+                try {
+                    field = stmt.getFieldRef().getField();
+                } catch (RuntimeException e) {
+                    return false;
+                }
+                if (!isAccessible(field.getDeclaringClass(), field.getModifiers(), sc)) {
+                    return false;
+                }
+                // final fields can only be written by their own class
+                if (field.isFinal() && stmt instanceof AssignStmt && ((AssignStmt) stmt).getLeftOp() instanceof FieldRef) {
+                    return false;
+                }
+            }
+            if (!stmt.containsInvokeExpr()) {
+                continue;
+            }
+            InvokeExpr invoke = stmt.getInvokeExpr();
+            if (invoke instanceof DynamicInvokeExpr) {
+                if (!isMovableDynamicInvoke((DynamicInvokeExpr) invoke, sc)) {
+                    return false;
+                }
+                continue;
+            }
+            SootMethod target;
+            try {
+                target = invoke.getMethod();
+            } catch (RuntimeException e) {
+                return false;
+            }
+            if (invoke instanceof SpecialInvokeExpr && !target.isConstructor()) {
+                // see nonVirtualCallsMove
+                continue;
+            }
+            if (target.isPrivate() && !target.isStatic() && !target.isConstructor()) {
+                return false;
+            }
+            if (isArrayClone(invoke)) {
+                continue;
+            }
+            if (!isAccessible(target.getDeclaringClass(), target.getModifiers(), sc)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether a member is accessible from a class of the package of sc, after the private
+     * members of sc lose their private modifier
+     */
+    private static boolean isAccessible(SootClass owner, int modifiers, SootClass sc) {
+        if (Modifier.isPrivate(modifiers)) {
+            return owner.equals(sc);
+        }
+        if (Modifier.isProtected(modifiers)) {
+            return owner.getPackageName().equals(sc.getPackageName());
+        }
+        return true;
+    }
+
+    private static boolean isArrayClone(InvokeExpr invoke) {
+        return invoke instanceof InstanceInvokeExpr && ((InstanceInvokeExpr) invoke).getBase().getType() instanceof ArrayType
+                && invoke.getMethodRef().getName().equals("clone");
+    }
+
+    private static boolean isMovableDynamicInvoke(DynamicInvokeExpr invoke, SootClass sc) {
+        SootMethodRef bootstrap = invoke.getBootstrapMethodRef();
+        String bootstrapClass = bootstrap.getDeclaringClass().getName();
+        if (bootstrapClass.equals(PILOT_GUARD_CLASS_NAME)) {
+            return true;
+        }
+        // altMetafactory lambdas may be serializable, which needs the $deserializeLambda$ of the class
+        if (!bootstrapClass.equals(LAMBDA_METAFACTORY_CLASS_NAME) || !bootstrap.getName().equals("metafactory")) {
+            return false;
+        }
+        for (Value arg : invoke.getBootstrapArgs()) {
+            if (!(arg instanceof MethodHandle) || !((MethodHandle) arg).isMethodRef()) {
+                continue;
+            }
+            MethodHandle handle = (MethodHandle) arg;
+            if (handle.getKind() == MethodHandle.Kind.REF_INVOKE_SPECIAL.getValue()) {
+                return false;
+            }
+            SootMethod target;
+            try {
+                target = handle.getMethodRef().resolve();
+            } catch (RuntimeException e) {
+                return false;
+            }
+            if (target.isPrivate() && !target.isStatic() && !target.isConstructor()) {
+                return false;
+            }
+            if (!isAccessible(target.getDeclaringClass(), target.getModifiers(), sc)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean nonVirtualCallsMove(Body body, Set<SootMethod> movable) {
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (!stmt.containsInvokeExpr() || !(stmt.getInvokeExpr() instanceof SpecialInvokeExpr)) {
+                continue;
+            }
+            SootMethod target = stmt.getInvokeExpr().getMethod();
+            if (!target.isConstructor() && !movable.contains(target)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static SootClass getCompanionClass(SootClass sc) {
+        String name = sc.getName() + PILOT_COMPANION_SUFFIX;
+        if (Scene.v().containsClass(name)) {
+            return Scene.v().getSootClass(name);
+        }
+        SootClass companion = new SootClass(name, Modifier.PUBLIC | Modifier.FINAL);
+        Scene.v().addClass(companion);
+        companion.setApplicationClass();
+        companion.setSuperclass(Scene.v().getSootClass("java.lang.Object"));
+        SourceFileTag sourceFile = (SourceFileTag) sc.getTag(SourceFileTag.NAME);
+        if (sourceFile != null) {
+            companion.addTag(new SourceFileTag(sourceFile.getSourceFile()));
+        }
+        PilotTransformer.companionClassCount++;
+        return companion;
+    }
+
+    private static SootMethod declareCompanionMethod(SootMethod method) {
+        SootClass sc = method.getDeclaringClass();
+        List<Type> parameterTypes = new ArrayList<>();
+        if (!method.isStatic()) {
+            parameterTypes.add(sc.getType());
+        }
+        parameterTypes.addAll(method.getParameterTypes());
+        SootMethod companionMethod = new SootMethod(method.getName(), parameterTypes, method.getReturnType(),
+                Modifier.PUBLIC | Modifier.STATIC, method.getExceptions());
+        getCompanionClass(sc).addMethod(companionMethod);
+        return companionMethod;
+    }
+
+    private void moveBody(SootMethod method, SootMethod companionMethod) {
+        Body body = method.getActiveBody();
+        Body companionBody = Jimple.v().newBody(companionMethod);
+        companionBody.importBodyContentsFrom(body);
+        int shift = method.isStatic() ? 0 : 1;
+        for (Unit unit : companionBody.getUnits()) {
+            if (unit instanceof IdentityStmt) {
+                ValueBox rightOp = ((IdentityStmt) unit).getRightOpBox();
+                if (rightOp.getValue() instanceof ThisRef) {
+                    rightOp.setValue(Jimple.v().newParameterRef(method.getDeclaringClass().getType(), 0));
+                } else if (rightOp.getValue() instanceof ParameterRef) {
+                    ParameterRef parameter = (ParameterRef) rightOp.getValue();
+                    rightOp.setValue(Jimple.v().newParameterRef(parameter.getType(), parameter.getIndex() + shift));
+                }
+            }
+        }
+        redirectNonVirtualCalls(companionBody);
+        relaxPrivateMembers(companionBody, method.getDeclaringClass());
+        companionMethod.setActiveBody(companionBody);
+        method.setActiveBody(createStubBody(method, companionMethod));
+    }
+
+    /**
+     * Private and super calls cannot be made from another class, call the companion method of the callee
+     */
+    private void redirectNonVirtualCalls(Body body) {
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (!stmt.containsInvokeExpr() || !(stmt.getInvokeExpr() instanceof SpecialInvokeExpr)) {
+                continue;
+            }
+            SpecialInvokeExpr invoke = (SpecialInvokeExpr) stmt.getInvokeExpr();
+            SootMethod companionMethod = companionMethods.get(invoke.getMethod());
+            if (companionMethod == null) {
+                continue;
+            }
+            List<Value> args = new ArrayList<>();
+            args.add(invoke.getBase());
+            args.addAll(invoke.getArgs());
+            stmt.getInvokeExprBox().setValue(Jimple.v().newStaticInvokeExpr(companionMethod.makeRef(), args));
+        }
+    }
+
+    private static void relaxPrivateMembers(Body body, SootClass sc) {
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (stmt.containsFieldRef()) {
+                SootField field = stmt.getFieldRef().getField();
+                if (field.isPrivate() && field.getDeclaringClass().equals(sc)) {
+                    field.setModifiers(field.getModifiers() & ~Modifier.PRIVATE);
+                }
+            }
+            if (!stmt.containsInvokeExpr()) {
+                continue;
+            }
+            InvokeExpr invoke = stmt.getInvokeExpr();
+            List<SootMethod> targets = new ArrayList<>();
+            if (invoke instanceof DynamicInvokeExpr) {
+                for (Value arg : ((DynamicInvokeExpr) invoke).getBootstrapArgs()) {
+                    if (arg instanceof MethodHandle && ((MethodHandle) arg).isMethodRef()) {
+                        targets.add(((MethodHandle) arg).getMethodRef().resolve());
+                    }
+                }
+            } else {
+                targets.add(invoke.getMethod());
+            }
+            for (SootMethod target : targets) {
+                if (target.isPrivate() && target.getDeclaringClass().equals(sc)) {
+                    target.setModifiers(target.getModifiers() & ~Modifier.PRIVATE);
+                }
+            }
+        }
+    }
+
+    private static Body createStubBody(SootMethod method, SootMethod companionMethod) {
+        Body body = Jimple.v().newBody(method);
+        LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
+        UnitPatchingChain units = body.getUnits();
+        List<Value> args = new ArrayList<>();
+        if (!method.isStatic()) {
+            Local thisLocal = lg.generateLocal(method.getDeclaringClass().getType());
+            units.add(Jimple.v().newIdentityStmt(thisLocal, Jimple.v().newThisRef(method.getDeclaringClass().getType())));
+            args.add(thisLocal);
+        }
+        for (int i = 0; i < method.getParameterCount(); i++) {
+            Type type = method.getParameterType(i);
+            Local parameter = lg.generateLocal(type);
+            units.add(Jimple.v().newIdentityStmt(parameter, Jimple.v().newParameterRef(type, i)));
+            args.add(parameter);
+        }
+        InvokeExpr call = Jimple.v().newStaticInvokeExpr(companionMethod.makeRef(), args);
+        if (method.getReturnType() instanceof VoidType) {
+            units.add(Jimple.v().newInvokeStmt(call));
+            units.add(Jimple.v().newReturnVoidStmt());
+        } else {
+            Local result = lg.generateLocal(method.getReturnType());
+            units.add(Jimple.v().newAssignStmt(result, call));
+            units.add(Jimple.v().newReturnStmt(result));
+        }
+        return body;
+    }
+}
@@ -0,0 +1,111 @@
+package edu.uva.liftlab.pilot.generator;
+
+import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.*;
+import soot.jimple.InvokeExpr;
+import soot.jimple.Jimple;
+import soot.jimple.Stmt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static edu.uva.liftlab.pilot.util.Constants.PILOT_GUARD_CLASS_NAME;
+import static edu.uva.liftlab.pilot.util.Constants.PILOT_UTIL_CLASS_NAME;
+
+/**
+ * PilotGuardGenerator - Announces the pilot runs to org.pilot.PilotGuard when switchpoint_guard is set.
+ *
+ * The isDryRun() call sites emitted with switchpoint_guard answer false until PilotGuard is told
+ * that a pilot run started, see SootUtils.makeIsDryRunExpr. Every call to PilotUtil.start is
+ * preceded by PilotGuard.pilotRunStarted(), and every call to
+ * PilotUtil.waitUntilPilotExecutionFinished is followed by PilotGuard.pilotRunEnded(). A run that is
+ * never waited for, or whose wait throws, leaves the call sites on PilotUtil.isDryRun(), which is
+ * slower but still correct.
+ *
+ * If PilotGuard is not on the Soot class path, switchpoint_guard is turned off, so that the
+ * prologues call PilotUtil.isDryRun() instead of a bootstrap method that would not link.
+ */
+public class PilotGuardGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(PilotGuardGenerator.class);
+
+    private final ClassFilterHelper filter;
+
+    public PilotGuardGenerator(ClassFilterHelper filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Turn switchpoint_guard off if PilotGuard can't be found. Must be called before any isDryRun()
+     * call site is emitted.
+     */
+    public void checkPilotGuard() {
+        if (!filter.isSwitchPointGuard) {
+            return;
+        }
+        if (SourceLocator.v().getClassSource(PILOT_GUARD_CLASS_NAME) == null) {
+            LOG.warn("switchpoint_guard is set but {} is not on the class path, emitting PilotUtil.isDryRun() calls instead",
+                    PILOT_GUARD_CLASS_NAME);
+            filter.isSwitchPointGuard = false;
+        }
+    }
+
+    /**
+     * Insert the pilot run announcements around the PilotUtil calls of the application classes
+     */
+    public void announcePilotRuns() {
+        if (!filter.isSwitchPointGuard) {
+            return;
+        }
+        SootClass guardClass = Scene.v().loadClassAndSupport(PILOT_GUARD_CLASS_NAME);
+        SootMethodRef started = Scene.v().makeMethodRef(guardClass, "pilotRunStarted",
+                Collections.emptyList(), VoidType.v(), true);
+        SootMethodRef ended = Scene.v().makeMethodRef(guardClass, "pilotRunEnded",
+                Collections.emptyList(), VoidType.v(), true);
+        for (SootClass sc : new ArrayList<>(Scene.v().getApplicationClasses())) {
+            if (filter.shouldSkip(sc)) {
+                continue;
+            }
+            for (SootMethod method : sc.getMethods()) {
+                if (method.hasActiveBody()) {
+                    announcePilotRuns(method.getActiveBody(), started, ended);
+                }
+            }
+        }
+    }
+
+    private void announcePilotRuns(Body body, SootMethodRef started, SootMethodRef ended) {
+        List<Stmt> starts = new ArrayList<>();
+        List<Stmt> waits = new ArrayList<>();
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (!stmt.containsInvokeExpr()) {
+                continue;
+            }
+            InvokeExpr invoke = stmt.getInvokeExpr();
+            if (!invoke.getMethodRef().getDeclaringClass().getName().equals(PILOT_UTIL_CLASS_NAME)) {
+                continue;
+            }
+            String name = invoke.getMethodRef().getName();
+            if (name.equals("start")) {
+                starts.add(stmt);
+            } else if (name.equals("waitUntilPilotExecutionFinished")) {
+                waits.add(stmt);
+            }
+        }
+        for (Stmt stmt : starts) {
+            // jumps to the start call now reach the announcement first
+            body.getUnits().insertBefore(Jimple.v().newInvokeStmt(
+                    Jimple.v().newStaticInvokeExpr(started)), stmt);
+            PilotTransformer.pilotRunStartCount++;
+        }
+        for (Stmt stmt : waits) {
+            body.getUnits().insertAfter(Jimple.v().newInvokeStmt(
+                    Jimple.v().newStaticInvokeExpr(ended)), stmt);
+            PilotTransformer.pilotRunEndCount++;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package edu.uva.liftlab.pilot.generator;
+
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
+import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
+import soot.*;
+import soot.jimple.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static edu.uva.liftlab.pilot.util.Constants.*;
+import static edu.uva.liftlab.pilot.util.SootUtils.getLastIdentityUnit;
+
+/**
+ * PilotIdParameterGenerator - Passes the pilot id from a $instrumentation method to the
+ * $instrumentation methods it calls, instead of each of them looking it up with
+ * PilotUtil.getPilotID().
+ *
+ * The body of foo$instrumentation(A) moves to foo$pilotId$instrumentation(A, int), whose last
+ * parameter is the pilot id, and foo$instrumentation(A) becomes an entry that looks the id up and
+ * calls it. The calls of the moved bodies to methods that have a pilotId variant pass their own id.
+ * Pilot code entered from elsewhere (the diverge prologues, propagated tasks, lambdas and other
+ * generated callers) still calls foo$instrumentation, so the id is looked up once per entry.
+ *
+ * The pilot id of a thread is set by the runtime when a pilot run, or a task of it, starts, which
+ * enters pilot code through such an entry, so a direct call passes the id the callee would look up.
+ * Interfaces keep their $instrumentation methods as is.
+ */
+public class PilotIdParameterGenerator {
+    private final boolean enabled;
+
+    public PilotIdParameterGenerator(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return whether the last parameter of the method is the pilot id
+     */
+    public static boolean hasPilotIdParameter(SootMethod method) {
+        return method.getName().endsWith(PILOT_ID_SUFFIX + INSTRUMENTATION_SUFFIX);
+    }
+
+    /**
+     * @return the local of the pilot id parameter of a body of a method with hasPilotIdParameter
+     */
+    public static Local getPilotIdParameter(Body body) {
+        return body.getParameterLocal(body.getMethod().getParameterCount() - 1);
+    }
+
+    /**
+     * Move the bodies of the $instrumentation methods of the class to their pilotId variants
+     */
+    public void addPilotIdParameters(SootClass sc) {
+        if (!enabled) {
+            return;
+        }
+        for (SootMethod method : new ArrayList<>(sc.getMethods())) {
+            if (!takesPilotId(sc, method) || !method.hasActiveBody()) {
+                continue;
+            }
+            SootMethod variant = declareVariant(sc, method);
+            variant.setActiveBody(createVariantBody(variant, method.getActiveBody()));
+            method.setActiveBody(createEntryBody(method, variant));
+        }
+    }
+
+    /**
+     * Declare the pilotId variants of a class whose bodies are rewritten elsewhere, after its
+     * $instrumentation methods are declared
+     */
+    public void declarePilotIdParameters(SootClass sc) {
+        if (!enabled) {
+            return;
+        }
+        for (SootMethod method : new ArrayList<>(sc.getMethods())) {
+            if (takesPilotId(sc, method)) {
+                declareVariant(sc, method);
+            }
+        }
+    }
+
+    /**
+     * Make the calls of the pilotId variants of the class to other methods with a variant pass the
+     * pilot id. Must be called once every variant is declared.
+     */
+    public void redirectCalls(SootClass sc) {
+        if (!enabled) {
+            return;
+        }
+        for (SootMethod method : sc.getMethods()) {
+            if (!hasPilotIdParameter(method) || !method.hasActiveBody()) {
+                continue;
+            }
+            Body body = method.getActiveBody();
+            Local pilotId = getPilotIdParameter(body);
+            for (Unit unit : body.getUnits()) {
+                Stmt stmt = (Stmt) unit;
+                if (!stmt.containsInvokeExpr()) {
+                    continue;
+                }
+                InvokeExpr invoke = stmt.getInvokeExpr();
+                SootMethod variant = getVariant(invoke);
+                if (variant == null) {
+                    continue;
+                }
+                List<Value> args = new ArrayList<>(invoke.getArgs());
+                args.add(pilotId);
+                InvokeExpr newInvoke;
+                if (invoke instanceof StaticInvokeExpr) {
+                    newInvoke = Jimple.v().newStaticInvokeExpr(variant.makeRef(), args);
+                } else if (invoke instanceof SpecialInvokeExpr) {
+                    newInvoke = Jimple.v().newSpecialInvokeExpr((Local) ((SpecialInvokeExpr) invoke).getBase(),
+                            variant.makeRef(), args);
+                } else if (invoke instanceof VirtualInvokeExpr) {
+                    newInvoke = Jimple.v().newVirtualInvokeExpr((Local) ((VirtualInvokeExpr) invoke).getBase(),
+                            variant.makeRef(), args);
+                } else {
+                    continue;
+                }
+                stmt.getInvokeExprBox().setValue(newInvoke);
+                PilotTransformer.pilotIdCallCount++;
+            }
+        }
+    }
+
+    private static boolean takesPilotId(SootClass sc, SootMethod method) {
+        return !sc.isInterface() && method.getName().endsWith(INSTRUMENTATION_SUFFIX)
+                && !method.getName().endsWith(INSTRUMENTATION_SUFFIX_FOR_INIT_FUNC)
+                && !hasPilotIdParameter(method) && method.isConcrete();
+    }
+
+    private static String getVariantName(SootMethod method) {
+        String name = method.getName();
+        return name.substring(0, name.length() - INSTRUMENTATION_SUFFIX.length()) + PILOT_ID_SUFFIX
+                + INSTRUMENTATION_SUFFIX;
+    }
+
+    private static List<Type> getVariantParameterTypes(SootMethod method) {
+        List<Type> parameterTypes = new ArrayList<>(method.getParameterTypes());
+        parameterTypes.add(IntType.v());
+        return parameterTypes;
+    }
+
+    private static SootMethod declareVariant(SootClass sc, SootMethod method) {
+        String name = getVariantName(method);
+        List<Type> parameterTypes = getVariantParameterTypes(method);
+        if (sc.declaresMethod(name, parameterTypes, method.getReturnType())) {
+            return sc.getMethod(name, parameterTypes, method.getReturnType());
+        }
+        SootMethod variant = new SootMethod(name, parameterTypes, method.getReturnType(), method.getModifiers(),
+                method.getExceptions());
+        sc.addMethod(variant);
+        return variant;
+    }
+
+    /**
+     * @return the pilotId variant of the $instrumentation method, or null if it has none
+     */
+    public static SootMethod getPilotIdVariant(SootMethod method) {
+        SootClass sc = method.getDeclaringClass();
+        if (!takesPilotId(sc, method)) {
+            return null;
+        }
+        String name = getVariantName(method);
+        List<Type> parameterTypes = getVariantParameterTypes(method);
+        if (!sc.declaresMethod(name, parameterTypes, method.getReturnType())) {
+            return null;
+        }
+        return sc.getMethod(name, parameterTypes, method.getReturnType());
+    }
+
+    /**
+     * @return the pilotId variant of the $instrumentation method the call resolves to, or null
+     */
+    private static SootMethod getVariant(InvokeExpr invoke) {
+        try {
+            return getPilotIdVariant(invoke.getMethod());
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Body createVariantBody(SootMethod variant, Body body) {
+        Body variantBody = Jimple.v().newBody(variant);
+        variantBody.importBodyContentsFrom(body);
+        Local pilotId = new LocalGeneratorUtil(variantBody).generateLocalWithId(IntType.v(), "pilotId");
+        Unit identity = Jimple.v().newIdentityStmt(pilotId,
+                Jimple.v().newParameterRef(IntType.v(), variant.getParameterCount() - 1));
+        Unit lastIdentity = getLastIdentityUnit(variantBody);
+        if (lastIdentity != null) {
+            variantBody.getUnits().insertAfter(identity, lastIdentity);
+        } else {
+            variantBody.getUnits().addFirst(identity);
+        }
+        return variantBody;
+    }
+
+    private static Body createEntryBody(SootMethod method, SootMethod variant) {
+        Body body = Jimple.v().newBody(method);
+        LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
+        UnitPatchingChain units = body.getUnits();
+        Local thisLocal = null;
+        if (!method.isStatic()) {
+            thisLocal = lg.generateLocal(method.getDeclaringClass().getType());
+            units.add(Jimple.v().newIdentityStmt(thisLocal, Jimple.v().newThisRef(method.getDeclaringClass().getType())));
+        }
+        List<Value> args = new ArrayList<>();
+        for (int i = 0; i < method.getParameterCount(); i++) {
+            Type type = method.getParameterType(i);
+            Local parameter = lg.generateLocal(type);
+            units.add(Jimple.v().newIdentityStmt(parameter, Jimple.v().newParameterRef(type, i)));
+            args.add(parameter);
+        }
+        Local pilotId = lg.generateLocal(IntType.v());
+        units.add(Jimple.v().newAssignStmt(pilotId, Jimple.v().newStaticInvokeExpr(Scene.v().makeMethodRef(
+                Scene.v().getSootClass(UTIL_CLASS_NAME), "getPilotID", Collections.emptyList(), IntType.v(), true))));
+        args.add(pilotId);
+
+        InvokeExpr call = method.isStatic()
+                ? Jimple.v().newStaticInvokeExpr(variant.makeRef(), args)
+                : Jimple.v().newSpecialInvokeExpr(thisLocal, variant.makeRef(), args);
+        if (method.getReturnType() instanceof VoidType) {
+            units.add(Jimple.v().newInvokeStmt(call));
+            units.add(Jimple.v().newReturnVoidStmt());
+        } else {
+            Local result = lg.generateLocal(method.getReturnType());
+            units.add(Jimple.v().newAssignStmt(result, call));
+            units.add(Jimple.v().newReturnStmt(result));
+        }
+        return body;
+    }
+}
@@ -1,6 +1,8 @@
 package edu.uva.liftlab.pilot.generator;
 
 import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.isolation.stateredirection.ShadowRecordLayout;
+import edu.uva.liftlab.pilot.staticanalysis.ImmutabilityAnalyzer;
 import edu.uva.liftlab.pilot.transformer.PilotTransformer;
 import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
 import edu.uva.liftlab.pilot.util.SootUtils;
@@ -21,8 +23,68 @@ public class PilotMethodGenerator {
     private static final Logger LOG = LoggerFactory.getLogger(PilotMethodGenerator.class);
     public ClassFilterHelper filter;
 
+    // Methods reachable by a pilot run, null if every method gets pilot copies
+    private Set<SootMethod> reachableMethods = null;
+
+    // Signatures of the fields pilot runs can write, null if every field gets dry run state
+    private static Set<String> writtenFields = null;
+
+    // Names of the classes whose instances cannot change, null if no immutability inference is done
+    private static Set<String> immutableClasses = null;
+
+    // class name -> whether its values can change in place, see isMutableInPlace
+    private static final Map<String, Boolean> MUTABLE_IN_PLACE = new HashMap<>();
+
+    private final CopyMethodGenerator copyMethodGenerator;
+    private final PilotIdParameterGenerator pilotIdParameterGenerator;
+
     public PilotMethodGenerator(ClassFilterHelper filter) {
         this.filter = filter;
+        this.copyMethodGenerator = new CopyMethodGenerator(filter);
+        this.pilotIdParameterGenerator = new PilotIdParameterGenerator(filter.isPilotIdParameter);
+    }
+
+    /**
+     * Decide which classes get copy methods, see {@link CopyMethodGenerator}
+     * @param classes every class that is rewritten, here or elsewhere
+     */
+    public void computeCopyableClasses(Collection<SootClass> classes) {
+        copyMethodGenerator.computeCopyableClasses(classes);
+    }
+
+    public void setReachableMethods(Set<SootMethod> reachableMethods) {
+        this.reachableMethods = reachableMethods;
+    }
+
+    public boolean isPilotReachable(SootMethod method) {
+        return reachableMethods == null || reachableMethods.contains(method);
+    }
+
+    public static void setWrittenFields(Set<String> fields) {
+        writtenFields = fields;
+        MUTABLE_IN_PLACE.clear();
+    }
+
+    public static void setImmutableClasses(Set<String> classes) {
+        immutableClasses = classes;
+        MUTABLE_IN_PLACE.clear();
+    }
+
+    /**
+     * @return whether values of the type can be shared by pilot runs instead of copied
+     */
+    public static boolean isImmutableType(Type type) {
+        return immutableClasses != null && type instanceof RefType
+                && immutableClasses.contains(((RefType) type).getClassName());
+    }
+
+    /**
+     * @return whether processClasses generates the $instrumentation copy of the method
+     */
+    public boolean getsPilotCopy(SootMethod method) {
+        SootClass sc = method.getDeclaringClass();
+        return !filter.shouldSkip(sc) && isPilotFuncClass(sc) && !method.getName().contains(LAMBDA_BOOT_STRAP)
+                && isPilotReachable(method) && originalMethodShouldBeInstrumented(method, sc);
     }
 
     public void addDivergeMethod(SootClass sc){
@@ -31,6 +93,11 @@ public class PilotMethodGenerator {
             if(method.getName().contains(LAMBDA_BOOT_STRAP)){
                 continue;
             }
+            if(!isPilotReachable(method)){
+                PilotTransformer.prunedMethodCount++;
+                addPrunedMethodGuard(method, sc);
+                continue;
+            }
             PilotTransformer.transformationCount++;
             this.addInstrumentedFunction(method, sc);
             this.addOriginalFunction(method, sc);
@@ -38,32 +105,68 @@ public class PilotMethodGenerator {
         }
     }
 
+    /**
+     * A pruned method has no pilot copy, so a pilot run that enters it despite the reachability
+     * analysis (reflection, a call the call graph misses) would run its production body. Its
+     * prologue keeps the dry run check and fails the pilot run there instead.
+     */
+    private void addPrunedMethodGuard(SootMethod method, SootClass sc) {
+        if(!method.isConcrete() || !originalMethodShouldBeInstrumented(method, sc)){
+            return;
+        }
+        Body body = method.retrieveActiveBody();
+        PatchingChain<Unit> units = body.getUnits();
+        LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
+        Unit firstNonIdentityStmt = null;
+        for (Unit u : units) {
+            if (!(u instanceof IdentityStmt)) {
+                firstNonIdentityStmt = u;
+                break;
+            }
+        }
+        if (firstNonIdentityStmt == null) {
+            return;
+        }
 
-    public void processClasses() {
-        for (SootClass sc : Scene.v().getApplicationClasses()) {
-            boolean shouldSkip = filter.shouldSkip(sc);
-            boolean isPilotFuncBlackListClass = filter.isBlackListPilotFuncClass(sc) && !filter.isWhiteListPilotFuncClass(sc);
-            boolean stateBWEnabled = filter.isStateBWEnabled;
-            boolean isStateIsolationBlackListClass = filter.isStateBlackListClass(sc) && !filter.isStateWhiteListClass(sc);
+        Local isDryRunLocal = lg.generateLocal(BooleanType.v());
+        RefType exceptionType = RefType.v("java.lang.IllegalStateException");
+        Local exceptionLocal = lg.generateLocal(exceptionType);
+        List<Unit> guard = new ArrayList<>();
+        guard.add(Jimple.v().newAssignStmt(isDryRunLocal, makeIsDryRunExpr(filter.isSwitchPointGuard)));
+        IfStmt ifStmt = Jimple.v().newIfStmt(Jimple.v().newEqExpr(isDryRunLocal, IntConstant.v(0)), firstNonIdentityStmt);
+        guard.add(ifStmt);
+        guard.add(Jimple.v().newAssignStmt(exceptionLocal, Jimple.v().newNewExpr(exceptionType)));
+        guard.add(Jimple.v().newInvokeStmt(Jimple.v().newSpecialInvokeExpr(exceptionLocal,
+                Scene.v().makeMethodRef(exceptionType.getSootClass(), "<init>",
+                        Collections.singletonList(RefType.v("java.lang.String")), VoidType.v(), false),
+                StringConstant.v("Pilot run entered " + method.getSignature()
+                        + ", which reachability pruning left without a pilot copy"))));
+        guard.add(Jimple.v().newThrowStmt(exceptionLocal));
+        // loops and traps starting at the first statement stay out of the guard
+        for (Unit u : guard) {
+            units.insertBeforeNoRedirect(u, firstNonIdentityStmt);
+        }
+    }
 
-            if(shouldSkip){
+    public void processClasses() {
+        java.util.Set<SootClass> before = new java.util.HashSet<>(Scene.v().getApplicationClasses());
+        for (SootClass sc : new ArrayList<>(Scene.v().getApplicationClasses())) {
+            int n = Scene.v().getApplicationClasses().size();
+            if(filter.shouldSkip(sc)){
                 continue;
             }
 
-
-            if(!isPilotFuncBlackListClass){
+            if(isPilotFuncClass(sc)){
                 addDivergeMethod(sc);
             }
 
-            if(!stateBWEnabled){
-                if(!isPilotFuncBlackListClass){
-                    addDryRunFields(sc);
-                }
-            }else if(stateBWEnabled){
-                if(!isPilotFuncBlackListClass && !isStateIsolationBlackListClass){
-                    addDryRunFields(sc);
-                }
+            if(shouldAddDryRunFields(sc)){
+                addDryRunFields(sc);
             }
+
+            // after the dry run fields, which are copied as well
+            copyMethodGenerator.addCopyMethods(sc);
+            if (Scene.v().getApplicationClasses().size() != n) { for (SootClass c : Scene.v().getApplicationClasses()) if (!before.contains(c)) System.err.println("DEBUGNEW after " + sc + ": " + c); before.addAll(Scene.v().getApplicationClasses()); }
         }
 
         for (SootClass sc : Scene.v().getApplicationClasses()) {
@@ -73,6 +176,20 @@ public class PilotMethodGenerator {
             replaceFunctionCallIteratively(sc, filter, INSTRUMENTATION_SUFFIX);
         }
 
+        // once the calls between $instrumentation methods are redirected
+        for (SootClass sc : Scene.v().getApplicationClasses()) {
+            if(filter.shouldSkip(sc)){
+                continue;
+            }
+            pilotIdParameterGenerator.addPilotIdParameters(sc);
+        }
+        for (SootClass sc : Scene.v().getApplicationClasses()) {
+            if(filter.shouldSkip(sc)){
+                continue;
+            }
+            pilotIdParameterGenerator.redirectCalls(sc);
+        }
+
         // Note: the following is an optimization to minimize if(PilotUtil.isDryRun()) check overhead, but it seems to cause some issues in certain cases,
         // needs a better engineering solution later
 
@@ -91,6 +208,53 @@ public class PilotMethodGenerator {
 //        }
     }
 
+    private boolean isPilotFuncClass(SootClass sc) {
+        return !(filter.isBlackListPilotFuncClass(sc) && !filter.isWhiteListPilotFuncClass(sc));
+    }
+
+    private boolean shouldAddDryRunFields(SootClass sc) {
+        if(!filter.isStateBWEnabled){
+            return isPilotFuncClass(sc);
+        }
+        boolean isStateIsolationBlackListClass = filter.isStateBlackListClass(sc) && !filter.isStateWhiteListClass(sc);
+        return isPilotFuncClass(sc) && !isStateIsolationBlackListClass;
+    }
+
+    /**
+     * Declare the dry run fields and the signatures of the pilot methods of classes whose bodies
+     * are rewritten elsewhere (e.g. by another shard), so that call and field redirection in the
+     * classes processed here resolve against them exactly as in a single-process run.
+     */
+    public void declareClasses(Collection<SootClass> classes) {
+        for (SootClass sc : classes) {
+            if(filter.shouldSkip(sc)){
+                continue;
+            }
+            if(isPilotFuncClass(sc)){
+                declarePilotMethods(sc);
+                pilotIdParameterGenerator.declarePilotIdParameters(sc);
+            }
+            if(shouldAddDryRunFields(sc)){
+                addDryRunFields(sc);
+            }
+            copyMethodGenerator.declareCopyMethods(sc);
+        }
+    }
+
+    private void declarePilotMethods(SootClass sc) {
+        for (SootMethod method : new ArrayList<>(sc.getMethods())) {
+            if(method.getName().contains(LAMBDA_BOOT_STRAP) || !isPilotReachable(method)
+                    || !originalMethodShouldBeInstrumented(method, sc)){
+                continue;
+            }
+            for (String name : Arrays.asList(getInstrumnentationMethodName(method), getOriginalMethodName(method))) {
+                if (!sc.declaresMethod(name, method.getParameterTypes(), method.getReturnType())) {
+                    sc.addMethod(new SootMethod(name, method.getParameterTypes(), method.getReturnType(), method.getModifiers()));
+                }
+            }
+        }
+    }
+
     public boolean hasSuffix(SootMethod method){
         return method.getName().endsWith(INSTRUMENTATION_SUFFIX) || method.getName().endsWith(ORIGINAL_SUFFIX);
     }
@@ -355,27 +519,118 @@ public class PilotMethodGenerator {
     }
 
 
+    /**
+     * @return whether pilot runs get their own copy of the field
+     */
+    public static boolean hasDryRunState(SootField field){
+        return canHaveDryRunState(field) && !isImmutableField(field) && !isUnwrittenField(field);
+    }
+
+    /**
+     * @return whether the write set analysis left out a field that would otherwise get dry run state
+     */
+    public static boolean isUnwrittenField(SootField field){
+        return writtenFields != null && !writtenFields.contains(field.getSignature()) && canHaveDryRunState(field)
+                && !isImmutableField(field) && !isMutableInPlace(field.getType());
+    }
+
+    /**
+     * @return whether a pilot run can change a value of the type without assigning the field that holds
+     * it, which the write set does not see: array stores, and calls of library code on the value, as
+     * library classes have no pilot copies. Values of application classes change through their own
+     * fields, which have their own dry run state, unless a subclass inherits state from a library class.
+     */
+    public static boolean isMutableInPlace(Type type){
+        if (type instanceof ArrayType) {
+            return true;
+        }
+        if (!(type instanceof RefType) || isImmutableType(type) || ImmutabilityAnalyzer.isImmutableLibraryType(type)) {
+            return false;
+        }
+        return MUTABLE_IN_PLACE.computeIfAbsent(((RefType) type).getClassName(), className -> {
+            SootClass sc = Scene.v().getSootClassUnsafe(className, false);
+            if (sc == null || !sc.isApplicationClass()) {
+                return true;
+            }
+            FastHierarchy hierarchy = Scene.v().getOrMakeFastHierarchy();
+            Deque<SootClass> subtypes = new ArrayDeque<>(Collections.singletonList(sc));
+            Set<SootClass> visited = new HashSet<>();
+            while (!subtypes.isEmpty()) {
+                SootClass subtype = subtypes.pop();
+                if (!visited.add(subtype)) {
+                    continue;
+                }
+                if (extendsLibraryClass(subtype)) {
+                    return true;
+                }
+                subtypes.addAll(subtype.isInterface() ? hierarchy.getAllImplementersOfInterface(subtype)
+                        : hierarchy.getSubclassesOf(subtype));
+            }
+            return false;
+        });
+    }
+
+    private static boolean extendsLibraryClass(SootClass sc){
+        for (SootClass c = sc; c.hasSuperclass(); ) {
+            c = c.getSuperclass();
+            if (!c.isApplicationClass() && !c.getName().equals("java.lang.Object")) {
+                return true;
+            }
+        }
+        return sc.isPhantom();
+    }
+
+    /**
+     * @return whether the immutability inference left out a final field of a primitive or immutable type,
+     * whose value no pilot run can change
+     */
+    public static boolean isImmutableField(SootField field){
+        return immutableClasses != null && field.isFinal()
+                && (field.getType() instanceof PrimType || isImmutableType(field.getType()))
+                && canHaveDryRunState(field);
+    }
+
+    private static boolean canHaveDryRunState(SootField field){
+//        if (field.getName().endsWith(DRY_RUN_SUFFIX)) {
+//            return false;
+//        }
+        if(field.getName().contains("assertionsDisabled")){
+            return false;
+        }
+
+        //Workaround for Solr Cache
+        if(field.getName().contains("shadowDirPath")){
+            return false;
+        }
+
+        return !SootUtils.isLogType(field) && !SootUtils.isImmutableCollection(field);
+    }
+
     private void addDryRunFields(SootClass sootClass){
         if (sootClass.isEnum() || sootClass.isInterface()) {
             return;
         }
         LOG.info("Processing class field instrumentation: " + sootClass.getName());
 
-        ArrayList<SootField> originalFields = new ArrayList<>(sootClass.getFields());
-        for(SootField originalField : originalFields) {
-//            if (originalField.getName().endsWith(DRY_RUN_SUFFIX)) {
-//                continue;
-//            }
-            if(originalField.getName().contains("assertionsDisabled")){
-                continue;
+        // declared only classes are counted by the run that rewrites them
+        if(sootClass.isApplicationClass()){
+            for(SootField field : sootClass.getFields()){
+                if(isUnwrittenField(field)){
+                    PilotTransformer.unwrittenFieldCount++;
+                } else if(isImmutableField(field)){
+                    PilotTransformer.immutableFieldCount++;
+                }
             }
+        }
 
-            //Workaround for Solr Cache
-            if(originalField.getName().contains("shadowDirPath")){
-                continue;
-            }
+        if(filter.isShadowRecord){
+            ShadowRecordLayout.addRecordFields(sootClass);
+            return;
+        }
 
-            if(SootUtils.isLogType(originalField) || SootUtils.isImmutableCollection(originalField)){
+        ArrayList<SootField> originalFields = new ArrayList<>(sootClass.getFields());
+        for(SootField originalField : originalFields) {
+            if(!hasDryRunState(originalField)){
                 continue;
             }
 
@@ -604,15 +859,7 @@ public class PilotMethodGenerator {
         }
 
         Local isDryRunLocal = lg.generateLocal(BooleanType.v());
-        StaticInvokeExpr isDryRunExpr = Jimple.v().newStaticInvokeExpr(
-                Scene.v().makeMethodRef(
-                        Scene.v().loadClassAndSupport(PILOT_UTIL_CLASS_NAME),
-                        "isDryRun",
-                        Collections.emptyList(),
-                        BooleanType.v(),
-                        true
-                )
-        );
+        InvokeExpr isDryRunExpr = makeIsDryRunExpr(filter.isSwitchPointGuard);
         Unit assignDryRun = Jimple.v().newAssignStmt(isDryRunLocal, isDryRunExpr);
         units.insertAfter(assignDryRun, lastConstructorCall);
 
@@ -669,15 +916,7 @@ public class PilotMethodGenerator {
         PatchingChain<Unit> units = newBody.getUnits();
         LocalGeneratorUtil lg = new LocalGeneratorUtil(newBody);
         Local isDryRunLocal = lg.generateLocal(BooleanType.v());
-        StaticInvokeExpr isDryRunExpr = Jimple.v().newStaticInvokeExpr(
-                Scene.v().makeMethodRef(
-                        Scene.v().loadClassAndSupport(PILOT_UTIL_CLASS_NAME),
-                        "isDryRun",
-                        Collections.emptyList(),
-                        BooleanType.v(),
-                        true
-                )
-        );
+        InvokeExpr isDryRunExpr = makeIsDryRunExpr(filter.isSwitchPointGuard);
         Unit assignDryRun = Jimple.v().newAssignStmt(isDryRunLocal, isDryRunExpr);
         Unit lastIdentityStmt = null;
         Unit firstNonIdentityStmt = null;
@@ -734,7 +973,23 @@ public class PilotMethodGenerator {
         List<Unit> logInputPrintUnits = printLog4j(logInput,lg);
         String logFinish = "Successfully finish dry run method "+ originalMethod.getName()+" in class "+sc.getName();
         List<Unit> logFinishPrintUnits = printLog4j(logFinish,lg);
-
+        SootMethod divergeHelper = null;
+        if (filter.isOutlineHelpers && !sc.isInterface()
+                && (!logInputPrintUnits.isEmpty() || !logFinishPrintUnits.isEmpty())) {
+            divergeHelper = addDivergeHelper(originalMethod, sc, invokeInstrumentation.getMethodRef(),
+                    logInputPrintUnits, logFinishPrintUnits);
+        }
+        if (divergeHelper != null) {
+            // the prologue keeps one call, the logging moves to the helper
+            List<Value> helperArgs = new ArrayList<>();
+            if (!originalMethod.isStatic()) {
+                helperArgs.add(newBody.getThisLocal());
+            }
+            helperArgs.addAll(newBody.getParameterLocals());
+            invokeInstrumentation = Jimple.v().newStaticInvokeExpr(divergeHelper.makeRef(), helperArgs);
+            logInputPrintUnits = Collections.emptyList();
+            logFinishPrintUnits = Collections.emptyList();
+        }
 
         if (!(originalMethod.getReturnType() instanceof VoidType)) {
             Local resultLocal = lg.generateLocal(originalMethod.getReturnType());
@@ -769,4 +1024,56 @@ public class PilotMethodGenerator {
         newBody.validate();
     }
 
+    /**
+     * With the outline_helpers option, the pilot branch of the diverge prologue calls m$pilotDiverge,
+     * a static helper that logs, calls the pilot copy and logs again, so that the original method stays
+     * small enough to be inlined by the JIT. The helper takes the receiver first.
+     * @return the helper, or null if the class already declares a method of its signature
+     */
+    private SootMethod addDivergeHelper(SootMethod originalMethod, SootClass sc, SootMethodRef instrumentationRef,
+                                        List<Unit> logInputPrintUnits, List<Unit> logFinishPrintUnits) {
+        List<Type> parameterTypes = new ArrayList<>();
+        if (!originalMethod.isStatic()) {
+            parameterTypes.add(sc.getType());
+        }
+        parameterTypes.addAll(originalMethod.getParameterTypes());
+        String name = originalMethod.getName() + DIVERGE_HELPER_SUFFIX;
+        if (sc.declaresMethod(name, parameterTypes)) {
+            // a static overload taking the class first, keep its prologue inline
+            return null;
+        }
+        SootMethod helper = new SootMethod(name, parameterTypes,
+                originalMethod.getReturnType(), Modifier.PRIVATE | Modifier.STATIC);
+        sc.addMethod(helper);
+        JimpleBody body = Jimple.v().newBody(helper);
+        helper.setActiveBody(body);
+        PatchingChain<Unit> units = body.getUnits();
+        LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
+
+        List<Local> parameters = new ArrayList<>();
+        for (int i = 0; i < parameterTypes.size(); i++) {
+            Local parameter = lg.generateLocal(parameterTypes.get(i));
+            units.add(Jimple.v().newIdentityStmt(parameter, Jimple.v().newParameterRef(parameterTypes.get(i), i)));
+            parameters.add(parameter);
+        }
+        InvokeExpr invokeInstrumentation = originalMethod.isStatic()
+                ? Jimple.v().newStaticInvokeExpr(instrumentationRef, parameters)
+                : Jimple.v().newSpecialInvokeExpr(parameters.get(0), instrumentationRef,
+                        parameters.subList(1, parameters.size()));
+
+        units.addAll(logInputPrintUnits);
+        Local resultLocal = null;
+        if (originalMethod.getReturnType() instanceof VoidType) {
+            units.add(Jimple.v().newInvokeStmt(invokeInstrumentation));
+        } else {
+            resultLocal = lg.generateLocal(originalMethod.getReturnType());
+            units.add(Jimple.v().newAssignStmt(resultLocal, invokeInstrumentation));
+        }
+        units.addAll(logFinishPrintUnits);
+        units.add(resultLocal == null ? Jimple.v().newReturnVoidStmt() : Jimple.v().newReturnStmt(resultLocal));
+        body.validate();
+        PilotTransformer.divergeHelperCount++;
+        return helper;
+    }
+
 }
\ No newline at end of file
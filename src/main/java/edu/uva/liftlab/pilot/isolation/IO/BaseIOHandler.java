@@ -1,24 +1,64 @@
 package edu.uva.liftlab.pilot.isolation.IO;
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
+import edu.uva.liftlab.pilot.util.SootUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import soot.*;
 import soot.jimple.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public abstract class BaseIOHandler implements IOOperationHandler{
     protected static final Logger logger = LoggerFactory.getLogger(BaseIOHandler.class);
     protected void replaceStatement(IOContext context, Expr newExpr) {
-        Unit unit = context.getUnit();
-        UnitPatchingChain units = context.getUnits();
-        Value leftOp = context.getLeftOp();
+        redirectStatement(context, Collections.singletonList(newStatement(context, newExpr)));
+    }
 
-        Unit newUnit = leftOp != null
+    /**
+     * @return the statement that calls newExpr in place of the call of the unit, with the same left op
+     */
+    protected Unit newStatement(IOContext context, Expr newExpr) {
+        Value leftOp = context.getLeftOp();
+        return leftOp != null
                 ? Jimple.v().newAssignStmt(leftOp, newExpr)
                 : Jimple.v().newInvokeStmt(newExpr);
+    }
 
-        units.insertBefore(newUnit, unit);
-        context.toRemove.add(unit);
+    /**
+     * Run the shadow units, the last of which stands for the call of the unit, in place of the unit.
+     *
+     * With the guarded_io option the unit stays, behind a pilot check, so that production runs the
+     * JDK call as before and only a pilot run takes the shadow units:
+     *
+     *   g = isDryRun()
+     *   if g == 0 goto unit
+     *   shadow units
+     *   goto next
+     *   unit
+     *   next: ...
+     */
+    protected void redirectStatement(IOContext context, List<Unit> shadowUnits) {
+        Unit unit = context.getUnit();
+        UnitPatchingChain units = context.getUnits();
+        if (!IOIsolation.isGuarded()) {
+            units.insertBefore(shadowUnits, unit);
+            context.toRemove.add(unit);
+            return;
+        }
+        Unit next = units.getSuccOf(unit);
+        Local isDryRun = context.getLg().generateLocal(BooleanType.v());
+        // the target is set once the guard is in, as insertBefore redirects the jumps to the unit
+        IfStmt ifStmt = Jimple.v().newIfStmt(Jimple.v().newEqExpr(isDryRun, IntConstant.v(0)), next);
+        List<Unit> guard = new ArrayList<>();
+        guard.add(Jimple.v().newAssignStmt(isDryRun, SootUtils.makeIsDryRunExpr(IOIsolation.isSwitchPointGuard())));
+        guard.add(ifStmt);
+        guard.addAll(shadowUnits);
+        guard.add(Jimple.v().newGotoStmt(next));
+        units.insertBefore(guard, unit);
+        ifStmt.setTarget(unit);
+        PilotTransformer.guardedIOSiteCount++;
     }
 
     protected SootMethodRef makeMethodRef(String className, String methodName,
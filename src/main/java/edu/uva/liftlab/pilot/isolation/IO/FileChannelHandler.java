@@ -81,24 +81,7 @@ class FileChannelHandler extends BaseIOHandler {
             );
 
 
-            Unit currentUnit = context.getUnit();
-            UnitPatchingChain units = context.getUnits();
-
-            if (currentUnit instanceof AssignStmt) {
-
-                AssignStmt assignStmt = (AssignStmt) currentUnit;
-                AssignStmt newStmt = Jimple.v().newAssignStmt(
-                        assignStmt.getLeftOp(),
-                        newExpr
-                );
-                units.swapWith(currentUnit, newStmt);
-            } else if (currentUnit instanceof InvokeStmt) {
-                InvokeStmt newStmt = Jimple.v().newInvokeStmt(newExpr);
-                units.swapWith(currentUnit, newStmt);
-            } else {
-                logger.warn("Unexpected unit type: {}", currentUnit.getClass());
-                return false;
-            }
+            replaceStatement(context, newExpr);
 
             logger.info("Successfully redirected FileChannel.{} to ShadowFileChannel.{} with {} arguments",
                     methodName, methodName, expr.getArgCount());
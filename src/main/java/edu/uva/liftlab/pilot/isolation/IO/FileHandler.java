@@ -164,24 +164,7 @@ class FileHandler extends BaseIOHandler {
             );
 
 
-            Unit currentUnit = context.getUnit();
-            UnitPatchingChain units = context.getUnits();
-
-            if (currentUnit instanceof AssignStmt) {
-
-                AssignStmt assignStmt = (AssignStmt) currentUnit;
-                AssignStmt newStmt = Jimple.v().newAssignStmt(
-                        assignStmt.getLeftOp(),
-                        newExpr
-                );
-                units.swapWith(currentUnit, newStmt);
-            } else if (currentUnit instanceof InvokeStmt) {
-                InvokeStmt newStmt = Jimple.v().newInvokeStmt(newExpr);
-                units.swapWith(currentUnit, newStmt);
-            } else {
-                logger.warn("Unexpected unit type: {}", currentUnit.getClass());
-                return false;
-            }
+            replaceStatement(context, newExpr);
 
             logger.info("Successfully redirected Files.{} to ShadowFiles.{} with {} arguments",
                     methodName, methodName, expr.getArgCount());
@@ -1,24 +1,47 @@
 package edu.uva.liftlab.pilot.isolation.IO;
 
 import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.rewriter.BodyPass;
+import edu.uva.liftlab.pilot.rewriter.BodyRewriter;
+import edu.uva.liftlab.pilot.rewriter.RewriteContext;
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import soot.*;
-import soot.jimple.Jimple;
+import soot.jimple.Stmt;
 
-public class IOIsolation {
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class IOIsolation implements BodyPass {
     private static final Logger LOG = LoggerFactory.getLogger(IOIsolation.class);
 
+    // guarded_io: the handlers keep the JDK call behind a pilot check instead of replacing it
+    private static boolean guarded = false;
+    private static boolean switchPointGuard = false;
+
     private final SootClass sootClass;
     private final IOIsolationProcessor ioProcessor;
     private SootMethod currentMethod;
+    private final Set<Unit> toRemove = new HashSet<>();
 
     public IOIsolation(SootClass sootClass) {
         this.sootClass = sootClass;
         this.ioProcessor = new IOIsolationProcessor();
     }
 
+    public static boolean isGuarded() {
+        return guarded;
+    }
+
+    public static boolean isSwitchPointGuard() {
+        return switchPointGuard;
+    }
+
     public static void redirectAllClassesIO(ClassFilterHelper filter) {
+        guarded = filter.isGuardedIO;
+        switchPointGuard = filter.isSwitchPointGuard;
 
         for (SootClass sc : Scene.v().getApplicationClasses()) {
             if (filter.shouldSkip(sc)) {
@@ -35,30 +58,28 @@ public class IOIsolation {
             }
 
         }
+        if(guarded){
+            LOG.info("Guarded IO: {} IO call sites keep the JDK call when no pilot run is active",
+                    PilotTransformer.guardedIOSiteCount);
+        }
     }
 
     private void redirectIO() {
+        BodyRewriter rewriter = new BodyRewriter(Collections.singletonList(this));
         for (SootMethod method : sootClass.getMethods()) {
             currentMethod = method;
-            redirectMethodIO(method);
+            redirectMethodIO(rewriter, method);
         }
     }
 
 
-    private void redirectMethodIO(SootMethod method) {
+    private void redirectMethodIO(BodyRewriter rewriter, SootMethod method) {
         try {
             if (!method.hasActiveBody()) {
                 return;
             }
             LOG.info("Redirecting IO for method: {}", method.getName());
-            Body originalBody = method.retrieveActiveBody();
-            Body instrumentationBody = Jimple.v().newBody(method);
-            instrumentationBody.importBodyContentsFrom(originalBody);
-
-            ioProcessor.redirectIOOperations(instrumentationBody);
-
-            instrumentationBody.validate();
-            method.setActiveBody(instrumentationBody);
+            rewriter.rewrite(method);
 
             LOG.debug("Successfully redirected IO in method: {}", method.getName());
         } catch (Exception e) {
@@ -66,6 +87,29 @@ public class IOIsolation {
         }
     }
 
+    @Override
+    public String getName() {
+        return "IOIsolation";
+    }
+
+    @Override
+    public void beginBody(RewriteContext context) {
+        toRemove.clear();
+    }
+
+    @Override
+    public void visitInvoke(Stmt stmt, RewriteContext context) {
+        ioProcessor.redirectIOOperation(stmt, context.getUnits(), context.getLocalGenerator(),
+                context.getMethod(), toRemove);
+    }
+
+    @Override
+    public void endBody(RewriteContext context) {
+        for (Unit unit : toRemove) {
+            context.getUnits().remove(unit);
+        }
+    }
+
 
     private boolean shouldInstrumentMethod(SootMethod method) {
         return !(method.isAbstract() || method.isNative()) && method.hasActiveBody();
@@ -17,37 +17,30 @@ public class IOIsolationProcessor {
         this.handler = new CompositeIOHandler();
     }
 
-    public void redirectIOOperations(Body body) {
-        UnitPatchingChain units = body.getUnits();
-        List<Unit> originalUnits = new ArrayList<>(units);
-        LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
-        Set<Unit> toRemove = new HashSet<>();
-
-        for (Unit unit : originalUnits) {
-            if (unit instanceof AssignStmt) {
-                AssignStmt assign = (AssignStmt) unit;
-                Value rightOp = assign.getRightOp();
-
-                if (rightOp instanceof NewExpr) {
-                    //handleConstructor(unit, assign, units, lg, body.getMethod(), toRemove);
-                }
-                else if (rightOp instanceof InvokeExpr) {
-                    IOContext context = new IOContext(unit, null, units, lg, body.getMethod());
-                    handler.handle(context);
-                    toRemove.addAll(context.toRemove);
-                }
+    /**
+     * Redirect the IO operation of one unit, the units to remove once the walk over the body is
+     * done are added to toRemove
+     */
+    public void redirectIOOperation(Unit unit, UnitPatchingChain units, LocalGeneratorUtil lg,
+                                    SootMethod method, Set<Unit> toRemove) {
+        if (unit instanceof AssignStmt) {
+            AssignStmt assign = (AssignStmt) unit;
+            Value rightOp = assign.getRightOp();
+
+            if (rightOp instanceof NewExpr) {
+                //handleConstructor(unit, assign, units, lg, method, toRemove);
             }
-            else if (unit instanceof InvokeStmt) {
-                IOContext context = new IOContext(unit, null, units, lg, body.getMethod());
+            else if (rightOp instanceof InvokeExpr) {
+                IOContext context = new IOContext(unit, null, units, lg, method);
                 handler.handle(context);
                 toRemove.addAll(context.toRemove);
             }
         }
-
-        for (Unit unit : toRemove) {
-            units.remove(unit);
+        else if (unit instanceof InvokeStmt) {
+            IOContext context = new IOContext(unit, null, units, lg, method);
+            handler.handle(context);
+            toRemove.addAll(context.toRemove);
         }
-
     }
 
     private void handleConstructor(Unit currentUnit, AssignStmt newAssign,
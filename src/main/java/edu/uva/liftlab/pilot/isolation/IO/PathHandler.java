@@ -7,6 +7,7 @@ import soot.jimple.*;
 import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -40,8 +41,6 @@ class PathHandler extends BaseIOHandler {
         }
 
         LocalGeneratorUtil lg = context.getLg();
-        UnitPatchingChain units = context.getUnits();
-        Unit currentUnit = context.getUnit();
 
         try {
             SootClass shadowPathClass = Scene.v().getSootClass(SHADOW_PATH_CLASS);
@@ -61,7 +60,6 @@ class PathHandler extends BaseIOHandler {
 
             NewExpr newExpr = Jimple.v().newNewExpr(RefType.v(SHADOW_PATH_CLASS));
             AssignStmt newStmt = Jimple.v().newAssignStmt(shadowPathLocal, newExpr);
-            units.insertBefore(newStmt, currentUnit);
 
 
             List<Value> constructorArgs = new ArrayList<>();
@@ -73,7 +71,6 @@ class PathHandler extends BaseIOHandler {
                     constructorArgs
             );
             InvokeStmt initStmt = Jimple.v().newInvokeStmt(initExpr);
-            units.insertBefore(initStmt, currentUnit);
 
 
             List<Value> originalArgs = expr.getArgs();
@@ -100,22 +97,8 @@ class PathHandler extends BaseIOHandler {
                     originalArgs
             );
 
-            if (currentUnit instanceof AssignStmt) {
-
-                AssignStmt assignStmt = (AssignStmt) currentUnit;
-                AssignStmt newAssignStmt = Jimple.v().newAssignStmt(
-                        assignStmt.getLeftOp(),
-                        shadowToRealPathExpr
-                );
-                units.swapWith(currentUnit, newAssignStmt);
-            } else if (currentUnit instanceof InvokeStmt) {
-
-                InvokeStmt newInvokeStmt = Jimple.v().newInvokeStmt(shadowToRealPathExpr);
-                units.swapWith(currentUnit, newInvokeStmt);
-            } else {
-                logger.warn("Unexpected unit type: {}", currentUnit.getClass());
-                return false;
-            }
+            redirectStatement(context, Arrays.asList(newStmt, initStmt,
+                    newStatement(context, shadowToRealPathExpr)));
 
             logger.info("Successfully replaced Path.toRealPath() with new ShadowPath(path).toRealPath()");
             return true;
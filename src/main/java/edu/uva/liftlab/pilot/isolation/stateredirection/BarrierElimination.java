@@ -0,0 +1,283 @@
+package edu.uva.liftlab.pilot.isolation.stateredirection;
+
+import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
+import soot.*;
+import soot.jimple.AssignStmt;
+import soot.jimple.FieldRef;
+import soot.jimple.InstanceFieldRef;
+import soot.jimple.IntConstant;
+import soot.jimple.Jimple;
+import soot.jimple.Stmt;
+import soot.jimple.toolkits.annotation.logic.Loop;
+import soot.toolkits.graph.BriefUnitGraph;
+import soot.toolkits.graph.LoopNestTree;
+import soot.toolkits.graph.UnitGraph;
+import soot.toolkits.scalar.ForwardFlowAnalysis;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * BarrierElimination - Decides which read barriers of a $instrumentation body can be dropped.
+ *
+ * The read barrier of base.field copies the original field into the dry run field once per pilot
+ * run, so a second barrier of the same base.field is redundant when nothing in between can undo
+ * the first one. A must-analysis computes the fields that went through a barrier, or were written,
+ * on every path to a read. A field stops being available:
+ * 1. when its base local is redefined
+ * 2. at any call
+ * 3. at the method entry and at exception handlers
+ *
+ * A read inside a loop that is not available on every path, but whose field is never killed in the
+ * loop, gets a loop flag instead: the barrier runs once per entry into the loop, the following
+ * iterations only test the flag. The barrier itself is not hoisted out of the loop, as it would read
+ * the field, and throw for a null base, on paths that never read it.
+ *
+ * The barrier of a read-only read (see ReadOnlySiteAnalysis) does not set the dry run field, and an
+ * access to an object allocated by the body (see PilotAllocationAnalysis) has no barrier, so such
+ * an access does not make its field available, and gets no loop flag.
+ */
+public class BarrierElimination {
+
+    private final Body body;
+    private final Predicate<FieldRef> hasBarrier;
+    private final Predicate<Unit> leavesDryRunFieldUnset;
+    private final Set<Unit> redundantReads = new HashSet<>();
+    private final Map<Unit, Local> loopFlags = new HashMap<>();
+
+    public BarrierElimination(Body body, Predicate<FieldRef> hasBarrier) {
+        this(body, hasBarrier, unit -> false);
+    }
+
+    public BarrierElimination(Body body, Predicate<FieldRef> hasBarrier, Predicate<Unit> leavesDryRunFieldUnset) {
+        this.body = body;
+        this.hasBarrier = hasBarrier;
+        this.leavesDryRunFieldUnset = leavesDryRunFieldUnset;
+    }
+
+    /**
+     * Run the analysis and initialize the loop flags at the loop entries.
+     * Must be called before the barriers are inserted.
+     */
+    public void analyze(LocalGeneratorUtil lg) {
+        UnitPatchingChain units = body.getUnits();
+        if (units.isEmpty()) {
+            return;
+        }
+        Map<Unit, FieldKey> reads = new LinkedHashMap<>();
+        Map<Unit, FieldKey> accesses = new HashMap<>();
+        for (Unit unit : units) {
+            if (!(unit instanceof AssignStmt)) {
+                continue;
+            }
+            AssignStmt stmt = (AssignStmt) unit;
+            if (stmt.getRightOp() instanceof FieldRef && hasBarrier.test((FieldRef) stmt.getRightOp())) {
+                reads.put(unit, new FieldKey((FieldRef) stmt.getRightOp()));
+                if (!leavesDryRunFieldUnset.test(unit)) {
+                    accesses.put(unit, reads.get(unit));
+                }
+            } else if (stmt.getLeftOp() instanceof FieldRef && hasBarrier.test((FieldRef) stmt.getLeftOp())
+                    && !leavesDryRunFieldUnset.test(unit)) {
+                // a write sets the dry run field for this pilot run as well
+                accesses.put(unit, new FieldKey((FieldRef) stmt.getLeftOp()));
+            }
+        }
+        if (reads.isEmpty()) {
+            return;
+        }
+
+        Set<Unit> entries = new HashSet<>();
+        entries.add(units.getFirst());
+        for (Trap trap : body.getTraps()) {
+            entries.add(trap.getHandlerUnit());
+        }
+
+        AvailableFields available = new AvailableFields(new BriefUnitGraph(body), entries, accesses,
+                new HashSet<>(accesses.values()));
+        for (Map.Entry<Unit, FieldKey> read : reads.entrySet()) {
+            if (available.getFlowBefore(read.getKey()).contains(read.getValue())) {
+                redundantReads.add(read.getKey());
+            }
+        }
+        addLoopFlags(reads, entries, lg);
+    }
+
+    /**
+     * @return whether the read needs no barrier
+     */
+    public boolean isRedundant(Unit read) {
+        return redundantReads.contains(read);
+    }
+
+    /**
+     * @return the flag that tells whether the barrier of the read already ran in the current
+     * entry into its loop, or null
+     */
+    public Local getLoopFlag(Unit read) {
+        return loopFlags.get(read);
+    }
+
+    private void addLoopFlags(Map<Unit, FieldKey> reads, Set<Unit> entries, LocalGeneratorUtil lg) {
+        // outer loops first, so that a read gets the flag of the largest loop that does not kill its field
+        List<Loop> loops = new ArrayList<>(new LoopNestTree(body));
+        loops.sort(Comparator.comparingInt((Loop loop) -> loop.getLoopStatements().size()).reversed());
+
+        for (Loop loop : loops) {
+            Set<Stmt> statements = new HashSet<>(loop.getLoopStatements());
+            if (!canAddFlags(loop, statements, entries)) {
+                continue;
+            }
+            Map<FieldKey, Local> flags = new LinkedHashMap<>();
+            for (Map.Entry<Unit, FieldKey> read : reads.entrySet()) {
+                Unit unit = read.getKey();
+                if (!statements.contains(unit) || redundantReads.contains(unit) || loopFlags.containsKey(unit)
+                        || leavesDryRunFieldUnset.test(unit)) {
+                    continue;
+                }
+                FieldKey key = read.getValue();
+                if (key.base != null && definesLocal(statements, key.base)) {
+                    continue;
+                }
+                loopFlags.put(unit, flags.computeIfAbsent(key, k -> lg.generateLocal(BooleanType.v())));
+            }
+            if (!flags.isEmpty()) {
+                insertFlagInitializations(loop, statements, flags.values());
+            }
+        }
+    }
+
+    private boolean canAddFlags(Loop loop, Set<Stmt> statements, Set<Unit> entries) {
+        Stmt head = loop.getHead();
+        // the flags are initialized on the edges into the head, which a handler or the method entry do not have
+        if (entries.contains(head)) {
+            return false;
+        }
+        Unit previous = body.getUnits().getPredOf(head);
+        if (previous != null && statements.contains(previous) && previous.fallsThrough()) {
+            return false;
+        }
+        for (Stmt stmt : statements) {
+            if (stmt.containsInvokeExpr()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean definesLocal(Set<Stmt> statements, Value local) {
+        for (Stmt stmt : statements) {
+            for (ValueBox box : stmt.getDefBoxes()) {
+                if (box.getValue() == local) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void insertFlagInitializations(Loop loop, Set<Stmt> statements, Collection<Local> flags) {
+        UnitPatchingChain units = body.getUnits();
+        Stmt head = loop.getHead();
+        List<Unit> initializations = new ArrayList<>();
+        for (Local flag : flags) {
+            initializations.add(Jimple.v().newAssignStmt(flag, IntConstant.v(0)));
+        }
+        // the back edges keep jumping to the head, the jumps from outside the loop go through the initializations
+        units.insertBeforeNoRedirect(initializations, head);
+        for (Unit unit : units) {
+            if (statements.contains(unit)) {
+                continue;
+            }
+            for (UnitBox box : unit.getUnitBoxes()) {
+                if (box.getUnit() == head) {
+                    box.setUnit(initializations.get(0));
+                }
+            }
+        }
+    }
+
+    /**
+     * A field of a base local, or a static field
+     */
+    private static final class FieldKey {
+        private final Value base;
+        private final String field;
+
+        FieldKey(FieldRef fieldRef) {
+            this.base = fieldRef instanceof InstanceFieldRef ? ((InstanceFieldRef) fieldRef).getBase() : null;
+            this.field = fieldRef.getFieldRef().getSignature();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FieldKey)) {
+                return false;
+            }
+            FieldKey other = (FieldKey) o;
+            return base == other.base && field.equals(other.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(base) * 31 + field.hashCode();
+        }
+    }
+
+    /**
+     * Must-analysis of the fields whose dry run field is set for this pilot run
+     */
+    private static class AvailableFields extends ForwardFlowAnalysis<Unit, Set<FieldKey>> {
+        private final Set<Unit> entries;
+        private final Map<Unit, FieldKey> accesses;
+        private final Set<FieldKey> universe;
+
+        AvailableFields(UnitGraph graph, Set<Unit> entries, Map<Unit, FieldKey> accesses, Set<FieldKey> universe) {
+            super(graph);
+            this.entries = entries;
+            this.accesses = accesses;
+            this.universe = universe;
+            doAnalysis();
+        }
+
+        @Override
+        protected void flowThrough(Set<FieldKey> in, Unit unit, Set<FieldKey> out) {
+            out.clear();
+            if (!entries.contains(unit) && !((Stmt) unit).containsInvokeExpr()) {
+                out.addAll(in);
+            }
+            FieldKey accessed = accesses.get(unit);
+            if (accessed != null) {
+                out.add(accessed);
+            }
+            for (ValueBox box : unit.getDefBoxes()) {
+                if (box.getValue() instanceof Local) {
+                    out.removeIf(key -> key.base == box.getValue());
+                }
+            }
+        }
+
+        @Override
+        protected Set<FieldKey> newInitialFlow() {
+            return new HashSet<>(universe);
+        }
+
+        @Override
+        protected Set<FieldKey> entryInitialFlow() {
+            return new HashSet<>();
+        }
+
+        @Override
+        protected void merge(Set<FieldKey> in1, Set<FieldKey> in2, Set<FieldKey> out) {
+            Set<FieldKey> intersection = new HashSet<>(in1);
+            intersection.retainAll(in2);
+            out.clear();
+            out.addAll(intersection);
+        }
+
+        @Override
+        protected void copy(Set<FieldKey> source, Set<FieldKey> dest) {
+            dest.clear();
+            dest.addAll(source);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package edu.uva.liftlab.pilot.isolation.stateredirection;
+
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
+import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
+import soot.*;
+import soot.jimple.*;
+
+import java.util.*;
+
+import static edu.uva.liftlab.pilot.util.Constants.BARRIER_HELPER_SUFFIX;
+import static edu.uva.liftlab.pilot.util.Constants.READ_HELPER_SUFFIX;
+
+/**
+ * BarrierHelpers - Read barriers outlined to static helpers of the class whose body reads the field,
+ * with the outline_helpers option, so that a read site gets a call instead of the units of
+ * UnitGenerator and small pilot copies stay small enough to be inlined.
+ *
+ * f$pilotBarrier(Owner, int) runs the barrier of the field f of an object for a pilot id, after
+ * which the site reads the dry run field as before. f$pilotRead(Owner, int) returns the value a
+ * read-only read sees, see ReadOnlySiteAnalysis. Static fields leave out the object, and the fields
+ * of other classes get the name of their class in front. A helper is declared by the first site that
+ * calls it, so that the call resolves, and gets its body once all the bodies of its class are
+ * rewritten, see addHelpers. Interfaces keep the barriers inline.
+ */
+public class BarrierHelpers {
+
+    private static boolean enabled = false;
+
+    // helper -> field it reads, of the helpers that are declared but have no body yet
+    private static final Map<SootMethod, SootField> pendingBarriers = new LinkedHashMap<>();
+    private static final Map<SootMethod, SootField> pendingReads = new LinkedHashMap<>();
+
+    public static void setEnabled(boolean isEnabled) {
+        enabled = isEnabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return a call of the barrier helper of the field for the read site, or null if the barrier stays inline
+     */
+    public static InvokeExpr newBarrierCall(SootClass sc, FieldRef fieldRef, Local pilotIdLocal) {
+        if (!enabled || sc.isInterface()) {
+            return null;
+        }
+        SootMethodRef helper = getHelperRef(sc, fieldRef.getField(), BARRIER_HELPER_SUFFIX, VoidType.v());
+        if (!sc.declaresMethod(helper.getSubSignature())) {
+            pendingBarriers.put(declareHelper(sc, helper), fieldRef.getField());
+        }
+        return newCall(helper, fieldRef, pilotIdLocal);
+    }
+
+    /**
+     * @return a call of the read-only read helper of the field for the read site, or null if the read stays inline
+     */
+    public static InvokeExpr newReadCall(SootClass sc, FieldRef fieldRef, Local pilotIdLocal) {
+        if (!enabled || sc.isInterface()) {
+            return null;
+        }
+        SootField field = fieldRef.getField();
+        SootMethodRef helper = getHelperRef(sc, field, READ_HELPER_SUFFIX, field.getType());
+        if (!sc.declaresMethod(helper.getSubSignature())) {
+            pendingReads.put(declareHelper(sc, helper), field);
+        }
+        return newCall(helper, fieldRef, pilotIdLocal);
+    }
+
+    private static SootMethodRef getHelperRef(SootClass sc, SootField field, String suffix, Type returnType) {
+        SootClass owner = field.getDeclaringClass();
+        String name = field.getName() + suffix;
+        if (!owner.equals(sc)) {
+            name = owner.getName().replace('.', '_').replace('$', '_') + "$" + name;
+        }
+        List<Type> parameterTypes = new ArrayList<>();
+        if (!field.isStatic()) {
+            parameterTypes.add(owner.getType());
+        }
+        parameterTypes.add(IntType.v());
+        return Scene.v().makeMethodRef(sc, name, parameterTypes, returnType, true);
+    }
+
+    private static InvokeExpr newCall(SootMethodRef helper, FieldRef fieldRef, Local pilotIdLocal) {
+        List<Value> args = new ArrayList<>();
+        if (fieldRef instanceof InstanceFieldRef) {
+            args.add(((InstanceFieldRef) fieldRef).getBase());
+        }
+        args.add(pilotIdLocal);
+        return Jimple.v().newStaticInvokeExpr(helper, args);
+    }
+
+    /**
+     * Add the bodies of the helpers that the rewritten bodies of the class call
+     */
+    public static void addHelpers(SootClass sc) {
+        UnitGenerator unitGenerator = new UnitGenerator();
+        for (Iterator<Map.Entry<SootMethod, SootField>> it = pendingBarriers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<SootMethod, SootField> entry = it.next();
+            if (!entry.getKey().getDeclaringClass().equals(sc)) {
+                continue;
+            }
+            SootMethod helper = entry.getKey();
+            Body body = Jimple.v().newBody(helper);
+            helper.setActiveBody(body);
+            LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
+            FieldRef fieldRef = addParameters(body, lg, entry.getValue());
+            Local pilotId = body.getParameterLocal(helper.getParameterCount() - 1);
+            body.getUnits().addAll(unitGenerator.generateUnits(fieldRef, lg, new FieldInfo(fieldRef), helper, 0, pilotId));
+            body.getUnits().add(Jimple.v().newReturnVoidStmt());
+            it.remove();
+        }
+        for (Iterator<Map.Entry<SootMethod, SootField>> it = pendingReads.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<SootMethod, SootField> entry = it.next();
+            if (!entry.getKey().getDeclaringClass().equals(sc)) {
+                continue;
+            }
+            SootMethod helper = entry.getKey();
+            Body body = Jimple.v().newBody(helper);
+            helper.setActiveBody(body);
+            LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
+            FieldRef fieldRef = addParameters(body, lg, entry.getValue());
+            Local pilotId = body.getParameterLocal(helper.getParameterCount() - 1);
+            Local result = lg.generateLocal(helper.getReturnType());
+            body.getUnits().addAll(unitGenerator.generateReadOnlyUnits(fieldRef, new FieldInfo(fieldRef), result, pilotId, lg));
+            body.getUnits().add(Jimple.v().newReturnStmt(result));
+            it.remove();
+        }
+    }
+
+    private static SootMethod declareHelper(SootClass sc, SootMethodRef ref) {
+        SootMethod helper = new SootMethod(ref.getName(), ref.getParameterTypes(), ref.getReturnType(),
+                Modifier.PUBLIC | Modifier.STATIC);
+        sc.addMethod(helper);
+        PilotTransformer.barrierHelperCount++;
+        return helper;
+    }
+
+    /**
+     * Add the identity units of the parameters of a helper
+     * @return the reference to the field of the object parameter, or to the static field
+     */
+    private static FieldRef addParameters(Body body, LocalGeneratorUtil lg, SootField field) {
+        FieldRef fieldRef;
+        int index = 0;
+        if (field.isStatic()) {
+            fieldRef = Jimple.v().newStaticFieldRef(field.makeRef());
+        } else {
+            Local base = lg.generateLocal(field.getDeclaringClass().getType());
+            body.getUnits().add(Jimple.v().newIdentityStmt(base,
+                    Jimple.v().newParameterRef(field.getDeclaringClass().getType(), index++)));
+            fieldRef = Jimple.v().newInstanceFieldRef(base, field.makeRef());
+        }
+        Local pilotId = lg.generateLocal(IntType.v());
+        body.getUnits().add(Jimple.v().newIdentityStmt(pilotId, Jimple.v().newParameterRef(IntType.v(), index)));
+        return fieldRef;
+    }
+}
@@ -1,5 +1,6 @@
 package edu.uva.liftlab.pilot.isolation.stateredirection;
 
+import edu.uva.liftlab.pilot.util.BytecodeSize;
 import edu.uva.liftlab.pilot.util.PropertyType;
 import edu.uva.liftlab.pilot.util.SootUtils;
 import org.slf4j.Logger;
@@ -31,6 +32,43 @@ public class ClassFilterHelper {
     public final Set<String> trackInitClasses;
     public boolean isSimpleInstrumentation = false;
     public boolean isStateBWEnabled = false;
+    public boolean isSwitchPointGuard = false;
+    public boolean isReachabilityPruning = false;
+    public boolean isBarrierElimination = false;
+    public boolean isShadowRecord = false;
+    public boolean isWriteSetAnalysis = false;
+    public boolean isCopyMethods = false;
+    public boolean isImmutabilityInference = false;
+    public boolean isOverlayCollections = false;
+    public boolean isLazyCopy = false;
+    public boolean isAllocationAnalysis = false;
+    public boolean isPilotIdParameter = false;
+    public boolean isBinaryEventLog = false;
+    public boolean isSpanBudget = false;
+    public boolean isNumericTraceIds = false;
+    public boolean isPilotCompanionClasses = false;
+    public boolean isOutlineHelpers = false;
+    public boolean isInliningReport = false;
+    public boolean isJimpleCleanup = false;
+    public boolean isGuardedIO = false;
+    // bytecode size above which a $instrumentation method gets outlined barriers, 0 if not enabled
+    public int hugeMethodLimit = 0;
+
+    // Decision bits of a class, computed once per class by getDecisions
+    private static final int PILOTFUNC_BLACK = 1;
+    private static final int PILOTFUNC_WHITE = 1 << 1;
+    private static final int STATE_BLACK = 1 << 2;
+    private static final int STATE_WHITE = 1 << 3;
+    private static final int CTX_TREE_BLACK = 1 << 4;
+    private static final int ISOLATE = 1 << 5;
+    private static final int IO_EQUALS = 1 << 6;
+    private static final int IO_CONTAINS = 1 << 7;
+    private static final int MANUAL = 1 << 8;
+    private static final int TRACE = 1 << 9;
+    private static final int RPC = 1 << 10;
+
+    private final ClassNameMatcher matcher = new ClassNameMatcher();
+    private final Map<String, Integer> decisionCache = new HashMap<>();
 
     public ClassFilterHelper(String configPath) {
         this.configPath = configPath;
@@ -52,6 +90,41 @@ public class ClassFilterHelper {
         this.ctxTreeBlackList = new HashSet<>(SootUtils.getListFromProperty(configPath, PropertyType.CTX_TREE_BLACK_LIST));
         this.isSimpleInstrumentation = !new HashSet<>(SootUtils.getListFromProperty(configPath, PropertyType.SIMPLE_INSTRUMENTATION)).isEmpty();
         this.trackInitClasses = new HashSet<>(SootUtils.getListFromProperty(configPath, PropertyType.TRACK_INIT_CLASSES));
+        this.isSwitchPointGuard = SootUtils.getBooleanFromProperty(configPath, PropertyType.SWITCHPOINT_GUARD);
+        this.isReachabilityPruning = SootUtils.getBooleanFromProperty(configPath, PropertyType.REACHABILITY_PRUNING);
+        this.isBarrierElimination = SootUtils.getBooleanFromProperty(configPath, PropertyType.BARRIER_ELIMINATION);
+        this.isShadowRecord = SootUtils.getBooleanFromProperty(configPath, PropertyType.SHADOW_RECORD);
+        this.isWriteSetAnalysis = SootUtils.getBooleanFromProperty(configPath, PropertyType.WRITE_SET_ANALYSIS);
+        this.isCopyMethods = SootUtils.getBooleanFromProperty(configPath, PropertyType.COPY_METHODS);
+        this.isImmutabilityInference = SootUtils.getBooleanFromProperty(configPath, PropertyType.IMMUTABILITY_INFERENCE);
+        this.isOverlayCollections = SootUtils.getBooleanFromProperty(configPath, PropertyType.OVERLAY_COLLECTIONS);
+        this.isLazyCopy = SootUtils.getBooleanFromProperty(configPath, PropertyType.LAZY_COPY);
+        this.isAllocationAnalysis = SootUtils.getBooleanFromProperty(configPath, PropertyType.ALLOCATION_ANALYSIS);
+        this.isPilotIdParameter = SootUtils.getBooleanFromProperty(configPath, PropertyType.PILOT_ID_PARAMETER);
+        this.isBinaryEventLog = SootUtils.getBooleanFromProperty(configPath, PropertyType.BINARY_EVENT_LOG);
+        this.isSpanBudget = SootUtils.getBooleanFromProperty(configPath, PropertyType.SPAN_BUDGET);
+        this.isNumericTraceIds = SootUtils.getBooleanFromProperty(configPath, PropertyType.NUMERIC_TRACE_IDS);
+        this.isPilotCompanionClasses = SootUtils.getBooleanFromProperty(configPath, PropertyType.PILOT_COMPANION_CLASSES);
+        this.isOutlineHelpers = SootUtils.getBooleanFromProperty(configPath, PropertyType.OUTLINE_HELPERS);
+        this.isInliningReport = SootUtils.getBooleanFromProperty(configPath, PropertyType.INLINING_REPORT);
+        this.isJimpleCleanup = SootUtils.getBooleanFromProperty(configPath, PropertyType.JIMPLE_CLEANUP);
+        this.isGuardedIO = SootUtils.getBooleanFromProperty(configPath, PropertyType.GUARDED_IO);
+        Set<String> hugeMethodLimitList = SootUtils.getListFromProperty(configPath, PropertyType.HUGE_METHOD_LIMIT);
+        for (String limit : hugeMethodLimitList) {
+            // huge_method_limit=true takes the limit of HotSpot, false turns the guard off
+            if (limit.trim().equalsIgnoreCase("true")) {
+                this.hugeMethodLimit = BytecodeSize.HUGE_METHOD_LIMIT;
+            } else if (limit.trim().equalsIgnoreCase("false")) {
+                this.hugeMethodLimit = 0;
+            } else {
+                try {
+                    this.hugeMethodLimit = Math.max(0, Integer.parseInt(limit.trim()));
+                } catch (NumberFormatException e) {
+                    LOG.error("Invalid value {} of huge_method_limit, expected a size in bytes, true or false, the guard stays off", limit);
+                    this.hugeMethodLimit = 0;
+                }
+            }
+        }
 
         Set<String> sedaQueueList = SootUtils.getListFromProperty(configPath, PropertyType.SEDA_QUEUE);
         for( String queue : sedaQueueList) {
@@ -73,6 +146,39 @@ public class ClassFilterHelper {
             }
         }
 
+        compileMatchers();
+    }
+
+    private void compileMatchers() {
+        matcher.add(blackPilotFuncList, ClassNameMatcher.Mode.CONTAINS, PILOTFUNC_BLACK);
+        matcher.add(whitePilotFuncList, ClassNameMatcher.Mode.CONTAINS, PILOTFUNC_WHITE);
+        matcher.add(stateBlackList, ClassNameMatcher.Mode.CONTAINS, STATE_BLACK);
+        matcher.add(stateWhiteList, ClassNameMatcher.Mode.CONTAINS, STATE_WHITE);
+        matcher.add(ctxTreeBlackList, ClassNameMatcher.Mode.CONTAINS, CTX_TREE_BLACK);
+        matcher.add(isolateClasses, ClassNameMatcher.Mode.EQUALS, ISOLATE);
+        matcher.add(ioClasses, ClassNameMatcher.Mode.EQUALS, IO_EQUALS);
+        matcher.add(ioClasses, ClassNameMatcher.Mode.CONTAINS, IO_CONTAINS);
+        matcher.add(manualInstrumentation, ClassNameMatcher.Mode.EQUALS, MANUAL);
+        matcher.add(traceClasses, ClassNameMatcher.Mode.EQUALS, TRACE);
+        matcher.add(rpcClasses, ClassNameMatcher.Mode.EQUALS, RPC);
+    }
+
+    /**
+     * Compute all list memberships of a class in one scan of its name, and remember them
+     */
+    private int getDecisions(SootClass sc) {
+        String className = sc.getName();
+        Integer cached = decisionCache.get(className);
+        if (cached != null) {
+            return cached;
+        }
+        int decisions = matcher.match(className);
+        decisionCache.put(className, decisions);
+        return decisions;
+    }
+
+    private boolean hasDecision(SootClass sc, int decision) {
+        return (getDecisions(sc) & decision) != 0;
     }
 
     public static boolean shouldSkip(SootClass sc){
@@ -87,72 +193,46 @@ public class ClassFilterHelper {
     }
 
     public boolean isStateWhiteListClass(SootClass sc){
-        return isClassInList(sc, stateWhiteList);
+        return hasDecision(sc, STATE_WHITE);
     }
 
     public boolean isStateBlackListClass(SootClass sc){
-        return isClassInList(sc, stateBlackList);
+        return hasDecision(sc, STATE_BLACK);
     }
 
     public boolean isBlackListPilotFuncClass(SootClass sc){
-        return isClassInList(sc, blackPilotFuncList);
+        return hasDecision(sc, PILOTFUNC_BLACK);
     }
 
     public boolean isContextTrackingBlackListClass(SootClass sc){
-        return isClassInList(sc, ctxTreeBlackList);
+        return hasDecision(sc, CTX_TREE_BLACK);
     }
 
     public boolean isIsolateClass(SootClass sc){
-        return isClassEqualsList(sc, isolateClasses);
+        return hasDecision(sc, ISOLATE);
     }
     public boolean isIoClass(SootClass sc){
-        return isClassEqualsList(sc, ioClasses);
+        return hasDecision(sc, IO_EQUALS);
     }
 
     public boolean isContainsIoClass(SootClass sc){
-        return isClassInList(sc, ioClasses);
+        return hasDecision(sc, IO_CONTAINS);
     }
 
     public boolean isManuallyInstrumentedClass(SootClass sc){
-        return isClassEqualsList(sc, manualInstrumentation);
+        return hasDecision(sc, MANUAL);
     }
 
     public boolean isTraceClass(SootClass sc) {
-        return isClassEqualsList(sc, traceClasses);
+        return hasDecision(sc, TRACE);
     }
 
     public boolean isRpcClass(SootClass sc) {
-        return isClassEqualsList(sc, rpcClasses);
-    }
-
-    private boolean isClassEqualsList(SootClass sc, Set<String> list) {
-        String className = sc.getName();
-        for (String pattern : list) {
-            if (pattern.isEmpty()) {
-                continue;
-            }
-            if (className.equals(pattern)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean isClassInList(SootClass sc, Set<String> list) {
-        String className = sc.getName();
-        for (String pattern : list) {
-            if (pattern.isEmpty()) {
-                continue;
-            }
-            if (className.contains(pattern)) {
-                return true;
-            }
-        }
-        return false;
+        return hasDecision(sc, RPC);
     }
 
     public boolean isWhiteListPilotFuncClass(SootClass sc) {
-        return isClassInList(sc, whitePilotFuncList);
+        return hasDecision(sc, PILOTFUNC_WHITE);
     }
 
 
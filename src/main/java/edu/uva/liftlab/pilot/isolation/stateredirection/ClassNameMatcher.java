@@ -0,0 +1,144 @@
+package edu.uva.liftlab.pilot.isolation.stateredirection;
+
+import java.util.*;
+
+/**
+ * ClassNameMatcher - Matches a class name against all configured class lists at once.
+ *
+ * Each list is registered with a decision bit and a mode:
+ * 1. EQUALS patterns go to a hash map from class name to decision bits
+ * 2. CONTAINS patterns are compiled into one Aho-Corasick automaton (as a DFA over ASCII),
+ *    so a class name is scanned once for every list, with the same result as String.contains
+ *    on each pattern
+ *
+ * Empty patterns never match, as in the original list scans.
+ */
+public class ClassNameMatcher {
+
+    public enum Mode {
+        EQUALS,
+        CONTAINS
+    }
+
+    private static final int ALPHABET = 128;
+
+    private final Map<String, Integer> equalsPatterns = new HashMap<>();
+    // CONTAINS patterns with non-ASCII characters, matched with String.contains
+    private final Map<String, Integer> slowPatterns = new HashMap<>();
+    private final List<String> containsPatterns = new ArrayList<>();
+    private final List<Integer> containsBits = new ArrayList<>();
+
+    private int[][] dfa;
+    private int[] output;
+
+    public void add(Collection<String> patterns, Mode mode, int bit) {
+        for (String pattern : patterns) {
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            if (mode == Mode.EQUALS) {
+                equalsPatterns.merge(pattern, bit, (a, b) -> a | b);
+            } else if (isAscii(pattern)) {
+                containsPatterns.add(pattern);
+                containsBits.add(bit);
+            } else {
+                slowPatterns.merge(pattern, bit, (a, b) -> a | b);
+            }
+        }
+        dfa = null;
+    }
+
+    /**
+     * @return the bits of all lists that match the class name
+     */
+    public int match(String className) {
+        if (dfa == null) {
+            compile();
+        }
+        int bits = equalsPatterns.getOrDefault(className, 0);
+        int state = 0;
+        for (int i = 0; i < className.length(); i++) {
+            char c = className.charAt(i);
+            // no compiled pattern contains a non-ASCII character
+            state = c < ALPHABET ? dfa[state][c] : 0;
+            bits |= output[state];
+        }
+        for (Map.Entry<String, Integer> pattern : slowPatterns.entrySet()) {
+            if (className.contains(pattern.getKey())) {
+                bits |= pattern.getValue();
+            }
+        }
+        return bits;
+    }
+
+    private static boolean isAscii(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if (pattern.charAt(i) >= ALPHABET) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void compile() {
+        // trie
+        List<int[]> trie = new ArrayList<>();
+        List<Integer> outputs = new ArrayList<>();
+        trie.add(newRow());
+        outputs.add(0);
+        for (int p = 0; p < containsPatterns.size(); p++) {
+            String pattern = containsPatterns.get(p);
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (trie.get(state)[c] < 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(newRow());
+                    outputs.add(0);
+                }
+                state = trie.get(state)[c];
+            }
+            outputs.set(state, outputs.get(state) | containsBits.get(p));
+        }
+
+        // breadth first, so that the failure state of a parent is known before its children;
+        // missing transitions are filled with those of the failure state, which turns the trie into a DFA
+        int[][] table = trie.toArray(new int[0][]);
+        int[] out = new int[table.length];
+        int[] failure = new int[table.length];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = outputs.get(i);
+        }
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET; c++) {
+            if (table[0][c] < 0) {
+                table[0][c] = 0;
+            } else {
+                failure[table[0][c]] = 0;
+                queue.add(table[0][c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            // a pattern that ends inside this one also matches
+            out[state] |= out[failure[state]];
+            for (int c = 0; c < ALPHABET; c++) {
+                int child = table[state][c];
+                if (child < 0) {
+                    table[state][c] = table[failure[state]][c];
+                } else {
+                    failure[child] = table[failure[state]][c];
+                    queue.add(child);
+                }
+            }
+        }
+        this.dfa = table;
+        this.output = out;
+    }
+
+    private static int[] newRow() {
+        int[] row = new int[ALPHABET];
+        Arrays.fill(row, -1);
+        return row;
+    }
+}
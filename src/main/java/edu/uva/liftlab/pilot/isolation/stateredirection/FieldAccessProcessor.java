@@ -1,5 +1,6 @@
 package edu.uva.liftlab.pilot.isolation.stateredirection;
 
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
 import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,12 +16,44 @@ public class FieldAccessProcessor {
     private final FieldRedirector fieldRedirector;
     private final UnitGenerator unitGenerator;
     private int id = 0;
+    private BarrierElimination barrierElimination;
+    private ReadOnlySiteAnalysis readOnlySites;
 
     public FieldAccessProcessor() {
         this.fieldRedirector = new FieldRedirector();
         this.unitGenerator = new UnitGenerator();
     }
 
+    /**
+     * Set the barrier elimination of the body being redirected, or null to keep every barrier
+     */
+    public void setBarrierElimination(BarrierElimination barrierElimination) {
+        this.barrierElimination = barrierElimination;
+    }
+
+    /**
+     * Set the read-only reads of the body being redirected, or null to copy at every read
+     */
+    public void setReadOnlySites(ReadOnlySiteAnalysis readOnlySites) {
+        this.readOnlySites = readOnlySites;
+    }
+
+    /**
+     * @return whether accesses to the field get a barrier, under the same conditions as processAssignStmtOp
+     */
+    public boolean hasBarrier(FieldRef fieldRef) {
+        try {
+            SootField field = fieldRef.getField();
+            SootField dryRunField = fieldRedirector.getDryRunField(field);
+            SootField setByDryRunField = fieldRedirector.getSetByDryRunField(field);
+            return dryRunField != null && setByDryRunField != null
+                    && dryRunField.getType().equals(field.getType())
+                    && setByDryRunField.getType().equals(IntType.v());
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
     public List<Unit> processFieldWrite(FieldRef fieldRef, Local pilotIdLocal) {
         List<Unit> units = new ArrayList<>();
 
@@ -44,6 +77,12 @@ public class FieldAccessProcessor {
             return units;
         }
 
+        InvokeExpr helperCall = BarrierHelpers.newBarrierCall(method.getDeclaringClass(), fieldRef, pilotIdLocal);
+        if (helperCall != null) {
+            units.add(Jimple.v().newInvokeStmt(helperCall));
+            PilotTransformer.outlinedBarrierCount++;
+            return units;
+        }
         return unitGenerator.generateUnits(fieldRef, lg, fieldInfo, method, ++id, pilotIdLocal);
     }
 
@@ -85,6 +124,15 @@ public class FieldAccessProcessor {
         if (dryRunRef == null) {
             return;
         }
+        if (isRightOp && barrierElimination != null && barrierElimination.isRedundant(stmt)) {
+            stmt.setRightOp(dryRunRef);
+            PilotTransformer.eliminatedBarrierCount++;
+            return;
+        }
+        if (isRightOp && readOnlySites != null && readOnlySites.isReadOnly(stmt)) {
+            processReadOnlyFieldAccess(fieldRef, stmt, units, lg, method, pilotIdLocal);
+            return;
+        }
         List<Unit> newUnits;
         if(!isRightOp){
             newUnits = processFieldWrite(fieldRef, pilotIdLocal);
@@ -92,7 +140,12 @@ public class FieldAccessProcessor {
             newUnits = processFieldAccess(fieldRef, lg, method, pilotIdLocal);
         }
         if (!newUnits.isEmpty()) {
-            units.insertBefore(newUnits, insertPoint);
+            Local loopFlag = isRightOp && barrierElimination != null ? barrierElimination.getLoopFlag(stmt) : null;
+            if (loopFlag != null) {
+                insertWithLoopFlag(newUnits, loopFlag, units, insertPoint);
+            } else {
+                units.insertBefore(newUnits, insertPoint);
+            }
             if (isRightOp) {
                 stmt.setRightOp(dryRunRef);
             } else {
@@ -101,6 +154,39 @@ public class FieldAccessProcessor {
         }
     }
 
+    private void processReadOnlyFieldAccess(FieldRef fieldRef, AssignStmt stmt, UnitPatchingChain units,
+                                            LocalGeneratorUtil lg, SootMethod method, Local pilotIdLocal) {
+        FieldInfo fieldInfo = buildFieldInfo(fieldRef);
+        if (fieldInfo == null || !fieldInfo.isValid()) {
+            LOG.debug("Invalid field info for {}", fieldRef);
+            return;
+        }
+        Local resultLocal = lg.generateLocalWithId(fieldInfo.getType(), "tmp_" + fieldInfo.getDryRunFieldName());
+        InvokeExpr helperCall = BarrierHelpers.newReadCall(method.getDeclaringClass(), fieldRef, pilotIdLocal);
+        if (helperCall != null) {
+            units.insertBefore(Jimple.v().newAssignStmt(resultLocal, helperCall), stmt);
+            PilotTransformer.outlinedBarrierCount++;
+        } else {
+            units.insertBefore(unitGenerator.generateReadOnlyUnits(fieldRef, fieldInfo, resultLocal, pilotIdLocal, lg), stmt);
+        }
+        stmt.setRightOp(resultLocal);
+        PilotTransformer.lazyBarrierCount++;
+    }
+
+    /**
+     * Insert the barrier so that it is skipped once it ran in the current entry into its loop
+     */
+    private void insertWithLoopFlag(List<Unit> barrier, Local loopFlag,
+                                    UnitPatchingChain units, Unit insertPoint) {
+        List<Unit> guarded = new ArrayList<>(barrier);
+        guarded.add(Jimple.v().newAssignStmt(loopFlag, IntConstant.v(1)));
+        units.insertBefore(guarded, insertPoint);
+        // inserted before the barrier, so that the jumps to the barrier go through the test first
+        units.insertBefore(Jimple.v().newIfStmt(Jimple.v().newNeExpr(loopFlag, IntConstant.v(0)), insertPoint),
+                guarded.get(0));
+        PilotTransformer.loopGuardedBarrierCount++;
+    }
+
     private void processInvokeStmtField(FieldRef fieldRef, InstanceInvokeExpr invoke,
                                         UnitPatchingChain units, Unit insertPoint,
                                         LocalGeneratorUtil lg, SootMethod method,
@@ -0,0 +1,62 @@
+package edu.uva.liftlab.pilot.isolation.stateredirection;
+
+import soot.*;
+import soot.jimple.InvokeExpr;
+import soot.jimple.Jimple;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static edu.uva.liftlab.pilot.util.Constants.OVERLAY_COLLECTIONS_CLASS_NAME;
+
+/**
+ * OverlayCollections - Overlays of the runtime library that the read barrier of a field declared
+ * as a java.util.Map, List or Set installs instead of a copy of the collection.
+ *
+ * An overlay reads through to the original collection and keeps the writes and removals of the
+ * pilot run in a delta of its own, so that the first read of a large collection costs the same as
+ * for a small one. The overlay only implements the interface the field is declared with: pilot
+ * code that casts the value to its concrete class fails, and pilot runs see the writes production
+ * makes to the original after the first read, where a copy would not.
+ *
+ * Overlays.map, Overlays.list and Overlays.set return a new overlay of the given collection. They
+ * are in the runtime module of this repository (runtime/), whose jar must be on the class path of
+ * the instrumented system.
+ */
+public class OverlayCollections {
+
+    // declared type -> factory method of org.pilot.collections.Overlays
+    private static final Map<String, String> FACTORIES = new HashMap<>();
+
+    static {
+        FACTORIES.put("java.util.Map", "map");
+        FACTORIES.put("java.util.List", "list");
+        FACTORIES.put("java.util.Set", "set");
+    }
+
+    private static boolean enabled = false;
+
+    public static void setEnabled(boolean isEnabled) {
+        enabled = isEnabled;
+    }
+
+    /**
+     * @return whether the values of a field of the type get an overlay instead of a copy
+     */
+    public static boolean hasOverlay(Type type) {
+        return enabled && type instanceof RefType && FACTORIES.containsKey(((RefType) type).getClassName());
+    }
+
+    /**
+     * @return Overlays.map(original), Overlays.list(original) or Overlays.set(original)
+     */
+    public static InvokeExpr newOverlayExpr(Local original, Type type) {
+        return Jimple.v().newStaticInvokeExpr(Scene.v().makeMethodRef(
+                Scene.v().getSootClass(OVERLAY_COLLECTIONS_CLASS_NAME),
+                FACTORIES.get(((RefType) type).getClassName()),
+                Collections.singletonList(type),
+                type,
+                true), original);
+    }
+}
@@ -0,0 +1,267 @@
+package edu.uva.liftlab.pilot.isolation.stateredirection;
+
+import edu.uva.liftlab.pilot.generator.PilotMethodGenerator;
+import edu.uva.liftlab.pilot.staticanalysis.ImmutabilityAnalyzer;
+import soot.*;
+import soot.jimple.*;
+import soot.toolkits.graph.BriefUnitGraph;
+import soot.toolkits.graph.UnitGraph;
+import soot.toolkits.scalar.ForwardFlowAnalysis;
+
+import java.util.*;
+
+/**
+ * PilotAllocationAnalysis - Decides which field accesses of a $instrumentation body are on an
+ * object allocated by the body itself that did not escape yet, so that they can access the
+ * original field without a barrier.
+ *
+ * Production never sees an object allocated in a pilot run, so its original fields are as good as
+ * dry run fields. The original field and the dry run field of the object must not be mixed though:
+ * once other code may reach the object, it accesses the object through barriers, and the accesses
+ * of the body have to as well. A must-analysis computes the locals that point to an allocation of
+ * the body on every path. An allocation escapes, for all the locals pointing to it, when a local
+ * pointing to it is:
+ * 1. stored in a field or an array, returned or thrown
+ * 2. passed to a call, or the receiver of a call other than a constructor that does not let this
+ *    escape (constructors run unchanged in pilot runs, and write the original fields as well)
+ * 3. used in any other way than as the base of a field access, a comparison, an instanceof, or a
+ *    copy or cast to another local
+ *
+ * Only the accesses of primitive and immutable fields are left without a barrier. A reference field
+ * of a type that may be mutable can hold an object of production, stored by the constructor from its
+ * arguments, which the read barrier copies before the pilot run changes it. Its writes keep the
+ * barrier as well, as a write of the original field after a read barrier set the dry run field would
+ * be lost.
+ */
+public class PilotAllocationAnalysis {
+
+    private final Body body;
+    private final Set<Unit> pilotAllocatedAccesses = new HashSet<>();
+    private final Map<SootMethod, Boolean> leakingConstructors = new HashMap<>();
+
+    public PilotAllocationAnalysis(Body body) {
+        this.body = body;
+    }
+
+    /**
+     * Run the analysis. Must be called before the barriers are inserted.
+     */
+    public void analyze() {
+        UnitPatchingChain units = body.getUnits();
+        Set<Allocation> universe = new HashSet<>();
+        List<Unit> sites = new ArrayList<>();
+        for (Unit unit : units) {
+            if (unit instanceof AssignStmt && ((AssignStmt) unit).getRightOp() instanceof NewExpr) {
+                sites.add(unit);
+            }
+        }
+        if (sites.isEmpty()) {
+            return;
+        }
+        for (Local local : body.getLocals()) {
+            if (local.getType() instanceof RefType) {
+                for (Unit site : sites) {
+                    universe.add(new Allocation(local, site));
+                }
+            }
+        }
+
+        Set<Unit> entries = new HashSet<>();
+        entries.add(units.getFirst());
+        for (Trap trap : body.getTraps()) {
+            entries.add(trap.getHandlerUnit());
+        }
+
+        UnescapedAllocations unescaped = new UnescapedAllocations(new BriefUnitGraph(body), entries, universe);
+        for (Unit unit : units) {
+            if (!(unit instanceof AssignStmt)) {
+                continue;
+            }
+            AssignStmt stmt = (AssignStmt) unit;
+            Value fieldRef = stmt.getLeftOp() instanceof InstanceFieldRef ? stmt.getLeftOp() : stmt.getRightOp();
+            if (!(fieldRef instanceof InstanceFieldRef) || !isValueType(fieldRef.getType())) {
+                continue;
+            }
+            Value base = ((InstanceFieldRef) fieldRef).getBase();
+            for (Allocation allocation : unescaped.getFlowBefore(unit)) {
+                if (allocation.local == base) {
+                    pilotAllocatedAccesses.add(unit);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the field access is on an object allocated by the body that did not escape
+     */
+    public boolean isPilotAllocated(Unit access) {
+        return pilotAllocatedAccesses.contains(access);
+    }
+
+    /**
+     * @return whether a pilot run can only change a value of the type by assigning the field
+     */
+    private static boolean isValueType(Type type) {
+        return type instanceof PrimType || PilotMethodGenerator.isImmutableType(type)
+                || ImmutabilityAnalyzer.isImmutableLibraryType(type);
+    }
+
+    /**
+     * @return the local the statement copies or casts the value of local to, or null
+     */
+    private static Local getAlias(Stmt stmt, Local local) {
+        if (!(stmt instanceof AssignStmt) || !(((AssignStmt) stmt).getLeftOp() instanceof Local)) {
+            return null;
+        }
+        Value right = ((AssignStmt) stmt).getRightOp();
+        if (right == local || (right instanceof CastExpr && ((CastExpr) right).getOp() == local)) {
+            return (Local) ((AssignStmt) stmt).getLeftOp();
+        }
+        return null;
+    }
+
+    private boolean escapes(Stmt stmt, Local local) {
+        if (stmt instanceof IfStmt || getAlias(stmt, local) != null) {
+            return false;
+        }
+        if (stmt instanceof InvokeStmt) {
+            InvokeExpr invoke = stmt.getInvokeExpr();
+            return invoke.getArgs().contains(local) || !isConstructorCall(invoke, local);
+        }
+        if (!(stmt instanceof AssignStmt)) {
+            return true;
+        }
+        AssignStmt assign = (AssignStmt) stmt;
+        Value left = assign.getLeftOp();
+        Value right = assign.getRightOp();
+        if (left instanceof InstanceFieldRef) {
+            // a write to a field of the object, not a store of the object
+            return right == local;
+        }
+        if (!(left instanceof Local)) {
+            return true;
+        }
+        if (right instanceof InstanceFieldRef) {
+            return ((InstanceFieldRef) right).getBase() != local;
+        }
+        return !(right instanceof InstanceOfExpr || right instanceof EqExpr || right instanceof NeExpr);
+    }
+
+    private boolean isConstructorCall(InvokeExpr invoke, Local local) {
+        if (!(invoke instanceof SpecialInvokeExpr) || ((SpecialInvokeExpr) invoke).getBase() != local
+                || !invoke.getMethodRef().getName().equals(SootMethod.constructorName)) {
+            return false;
+        }
+        try {
+            SootMethod constructor = invoke.getMethod();
+            return !leakingConstructors.computeIfAbsent(constructor, ImmutabilityAnalyzer::constructorLeaksThis);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A local pointing to the object allocated at a site
+     */
+    private static final class Allocation {
+        private final Local local;
+        private final Unit site;
+
+        Allocation(Local local, Unit site) {
+            this.local = local;
+            this.site = site;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Allocation)) {
+                return false;
+            }
+            Allocation other = (Allocation) o;
+            return local == other.local && site == other.site;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(local) * 31 + System.identityHashCode(site);
+        }
+    }
+
+    /**
+     * Must-analysis of the locals that point to an allocation of the body that did not escape
+     */
+    private class UnescapedAllocations extends ForwardFlowAnalysis<Unit, Set<Allocation>> {
+        private final Set<Unit> entries;
+        private final Set<Allocation> universe;
+
+        UnescapedAllocations(UnitGraph graph, Set<Unit> entries, Set<Allocation> universe) {
+            super(graph);
+            this.entries = entries;
+            this.universe = universe;
+            doAnalysis();
+        }
+
+        @Override
+        protected void flowThrough(Set<Allocation> in, Unit unit, Set<Allocation> out) {
+            out.clear();
+            if (entries.contains(unit)) {
+                return;
+            }
+            out.addAll(in);
+            Stmt stmt = (Stmt) unit;
+            Set<Unit> escaped = new HashSet<>();
+            List<Allocation> aliases = new ArrayList<>();
+            for (Allocation allocation : in) {
+                boolean used = false;
+                for (ValueBox box : stmt.getUseBoxes()) {
+                    used |= box.getValue() == allocation.local;
+                }
+                if (!used) {
+                    continue;
+                }
+                if (escapes(stmt, allocation.local)) {
+                    escaped.add(allocation.site);
+                }
+                Local alias = getAlias(stmt, allocation.local);
+                if (alias != null) {
+                    aliases.add(new Allocation(alias, allocation.site));
+                }
+            }
+            out.removeIf(allocation -> escaped.contains(allocation.site));
+            for (ValueBox box : stmt.getDefBoxes()) {
+                if (box.getValue() instanceof Local) {
+                    out.removeIf(allocation -> allocation.local == box.getValue());
+                }
+            }
+            if (stmt instanceof AssignStmt && ((AssignStmt) stmt).getRightOp() instanceof NewExpr) {
+                out.add(new Allocation((Local) ((AssignStmt) stmt).getLeftOp(), unit));
+            }
+            out.addAll(aliases);
+        }
+
+        @Override
+        protected Set<Allocation> newInitialFlow() {
+            return new HashSet<>(universe);
+        }
+
+        @Override
+        protected Set<Allocation> entryInitialFlow() {
+            return new HashSet<>();
+        }
+
+        @Override
+        protected void merge(Set<Allocation> in1, Set<Allocation> in2, Set<Allocation> out) {
+            Set<Allocation> intersection = new HashSet<>(in1);
+            intersection.retainAll(in2);
+            out.clear();
+            out.addAll(intersection);
+        }
+
+        @Override
+        protected void copy(Set<Allocation> source, Set<Allocation> dest) {
+            dest.clear();
+            dest.addAll(source);
+        }
+    }
+}
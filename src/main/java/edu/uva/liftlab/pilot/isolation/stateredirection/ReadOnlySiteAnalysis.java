@@ -0,0 +1,359 @@
+package edu.uva.liftlab.pilot.isolation.stateredirection;
+
+import edu.uva.liftlab.pilot.generator.PilotMethodGenerator;
+import soot.*;
+import soot.jimple.*;
+import soot.toolkits.graph.ExceptionalUnitGraph;
+import soot.toolkits.graph.UnitGraph;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import static edu.uva.liftlab.pilot.util.Constants.DIVERGE_HELPER_SUFFIX;
+import static edu.uva.liftlab.pilot.util.Constants.INSTRUMENTATION_SUFFIX;
+import static edu.uva.liftlab.pilot.util.Constants.PILOT_EVENTS_CLASS_NAME;
+import static edu.uva.liftlab.pilot.util.Constants.PILOT_GUARD_CLASS_NAME;
+import static edu.uva.liftlab.pilot.util.Constants.UTIL_CLASS_NAME;
+
+/**
+ * ReadOnlySiteAnalysis - Decides which field reads of a $instrumentation body only read the value,
+ * so that their barrier can return the original value instead of copying it.
+ *
+ * A read of a reference field is read-only when the value, and the locals it is copied or cast
+ * to, is only:
+ * 1. compared, tested with instanceof, or the base of a field read, an array read or a length
+ * 2. the receiver or an argument of a read-only library method (size, get, contains...) of the
+ *    collections and of Object
+ * 3. the receiver of an application method whose dispatch targets only read: no field or array
+ *    store, no call and no monitor in the original method
+ * and when no statement that could mutate a copy of the field made at another site (a call other
+ * than the above, a store to an instance field or to an array) lies on a path from the read to a
+ * use of the value. Such a mutation would be invisible through the original value.
+ *
+ * A value that is returned, thrown, stored or passed to any other method is mutating: it keeps the
+ * copying barrier, which then runs at the first mutating site instead of the first read.
+ */
+public class ReadOnlySiteAnalysis {
+
+    private static final Set<String> READ_ONLY_LIBRARY_CLASSES = new HashSet<>(Arrays.asList(
+            "java.lang.Object",
+            "java.util.Collection",
+            "java.util.List",
+            "java.util.Set",
+            "java.util.SortedSet",
+            "java.util.NavigableSet",
+            "java.util.Queue",
+            "java.util.Deque",
+            "java.util.Map",
+            "java.util.SortedMap",
+            "java.util.NavigableMap",
+            "java.util.AbstractCollection",
+            "java.util.AbstractList",
+            "java.util.AbstractMap",
+            "java.util.ArrayList",
+            "java.util.LinkedList",
+            "java.util.ArrayDeque",
+            "java.util.HashMap",
+            "java.util.HashSet",
+            "java.util.LinkedHashSet",
+            "java.util.TreeMap",
+            "java.util.TreeSet",
+            "java.util.concurrent.ConcurrentMap",
+            "java.util.concurrent.ConcurrentHashMap",
+            "java.util.concurrent.CopyOnWriteArrayList"
+    ));
+
+    // LinkedHashMap is left out, get reorders an access ordered map
+    private static final Set<String> READ_ONLY_METHODS = new HashSet<>(Arrays.asList(
+            "size", "isEmpty", "get", "getOrDefault", "contains", "containsKey", "containsValue", "containsAll",
+            "indexOf", "lastIndexOf", "peek", "peekFirst", "peekLast", "element", "getFirst", "getLast",
+            "first", "last", "firstKey", "lastKey", "floorKey", "ceilingKey", "lowerKey", "higherKey",
+            "comparator", "equals", "hashCode", "toString", "getClass"
+    ));
+
+    private static final Set<String> READ_ONLY_STATIC_METHODS = new HashSet<>(Arrays.asList(
+            "<java.util.Objects: boolean equals(java.lang.Object,java.lang.Object)>",
+            "<java.util.Objects: int hashCode(java.lang.Object)>",
+            "<java.util.Objects: boolean isNull(java.lang.Object)>",
+            "<java.util.Objects: boolean nonNull(java.lang.Object)>",
+            "<java.lang.String: java.lang.String valueOf(java.lang.Object)>"
+    ));
+
+    private final Body body;
+    private final Predicate<FieldRef> hasBarrier;
+    private final Set<Unit> readOnlyReads = new HashSet<>();
+    private final Map<SootMethod, Boolean> readerMethods = new HashMap<>();
+
+    public ReadOnlySiteAnalysis(Body body, Predicate<FieldRef> hasBarrier) {
+        this.body = body;
+        this.hasBarrier = hasBarrier;
+    }
+
+    /**
+     * Classify the field reads of the body. Must be called before the barriers are inserted.
+     */
+    public void analyze() {
+        List<AssignStmt> reads = new ArrayList<>();
+        for (Unit unit : body.getUnits()) {
+            if (unit instanceof AssignStmt && isCopyingRead((AssignStmt) unit)) {
+                reads.add((AssignStmt) unit);
+            }
+        }
+        if (reads.isEmpty()) {
+            return;
+        }
+        Map<Local, List<Unit>> usesOfLocal = new HashMap<>();
+        for (Unit unit : body.getUnits()) {
+            for (ValueBox box : unit.getUseBoxes()) {
+                if (box.getValue() instanceof Local) {
+                    usesOfLocal.computeIfAbsent((Local) box.getValue(), k -> new ArrayList<>()).add(unit);
+                }
+            }
+        }
+        UnitGraph graph = new ExceptionalUnitGraph(body);
+        for (AssignStmt read : reads) {
+            Set<Unit> uses = getReadOnlyUses(read, usesOfLocal);
+            if (uses != null && !isMutatedBeforeUse(read, uses, graph)) {
+                readOnlyReads.add(read);
+            }
+        }
+    }
+
+    /**
+     * @return whether the barrier of the read can return the original value without copying it
+     */
+    public boolean isReadOnly(Unit read) {
+        return readOnlyReads.contains(read);
+    }
+
+    /**
+     * A read whose barrier copies the value, the barriers of primitive and immutable values share it
+     */
+    private boolean isCopyingRead(AssignStmt stmt) {
+        if (!(stmt.getRightOp() instanceof FieldRef) || !(stmt.getLeftOp() instanceof Local)) {
+            return false;
+        }
+        FieldRef fieldRef = (FieldRef) stmt.getRightOp();
+        Type type = fieldRef.getType();
+        return type instanceof RefLikeType && !PilotMethodGenerator.isImmutableType(type) && hasBarrier.test(fieldRef);
+    }
+
+    /**
+     * @return the units that use the value of the read or its copies, or null if one of them is mutating
+     */
+    private Set<Unit> getReadOnlyUses(AssignStmt read, Map<Local, List<Unit>> usesOfLocal) {
+        Set<Local> aliases = new HashSet<>();
+        Deque<Local> worklist = new ArrayDeque<>();
+        aliases.add((Local) read.getLeftOp());
+        worklist.add((Local) read.getLeftOp());
+        Set<Unit> uses = new HashSet<>();
+        while (!worklist.isEmpty()) {
+            Local local = worklist.poll();
+            for (Unit use : usesOfLocal.getOrDefault(local, Collections.emptyList())) {
+                Local alias = getAlias(use, local);
+                if (alias != null) {
+                    if (aliases.add(alias)) {
+                        worklist.add(alias);
+                    }
+                } else if (!isReadOnlyUse((Stmt) use, local)) {
+                    return null;
+                }
+                uses.add(use);
+            }
+        }
+        return uses;
+    }
+
+    /**
+     * @return the local the use copies or casts the value to, or null
+     */
+    private static Local getAlias(Unit use, Local local) {
+        if (!(use instanceof AssignStmt) || !(((AssignStmt) use).getLeftOp() instanceof Local)) {
+            return null;
+        }
+        Value right = ((AssignStmt) use).getRightOp();
+        if (right == local || (right instanceof CastExpr && ((CastExpr) right).getOp() == local)) {
+            return (Local) ((AssignStmt) use).getLeftOp();
+        }
+        return null;
+    }
+
+    private boolean isReadOnlyUse(Stmt use, Local local) {
+        if (use instanceof IfStmt) {
+            return true;
+        }
+        if (use instanceof InvokeStmt) {
+            return isReadOnlyInvoke(use.getInvokeExpr());
+        }
+        if (!(use instanceof AssignStmt)) {
+            return false;
+        }
+        AssignStmt assign = (AssignStmt) use;
+        if (!(assign.getLeftOp() instanceof Local)) {
+            // stored, or the base of a store
+            return false;
+        }
+        Value right = assign.getRightOp();
+        if (right instanceof InvokeExpr) {
+            return isReadOnlyInvoke((InvokeExpr) right);
+        }
+        if (right instanceof InstanceFieldRef) {
+            return ((InstanceFieldRef) right).getBase() == local;
+        }
+        if (right instanceof ArrayRef) {
+            return ((ArrayRef) right).getBase() == local;
+        }
+        return right instanceof LengthExpr || right instanceof InstanceOfExpr
+                || right instanceof EqExpr || right instanceof NeExpr;
+    }
+
+    private boolean isReadOnlyInvoke(InvokeExpr invoke) {
+        SootMethodRef ref = invoke.getMethodRef();
+        if (invoke instanceof StaticInvokeExpr) {
+            return READ_ONLY_STATIC_METHODS.contains(ref.getSignature());
+        }
+        if (READ_ONLY_LIBRARY_CLASSES.contains(ref.getDeclaringClass().getName())) {
+            return READ_ONLY_METHODS.contains(ref.getName());
+        }
+        if (!ref.getDeclaringClass().isApplicationClass() || !(invoke instanceof InstanceInvokeExpr)) {
+            return false;
+        }
+        // the value is only the receiver, an application method may store its arguments
+        for (Value arg : invoke.getArgs()) {
+            if (arg.getType() instanceof RefLikeType && !PilotMethodGenerator.isImmutableType(arg.getType())) {
+                return false;
+            }
+        }
+        return isReaderDispatch(invoke);
+    }
+
+    private boolean isReaderDispatch(InvokeExpr invoke) {
+        try {
+            SootMethod method = invoke.getMethod();
+            Collection<SootMethod> targets = invoke instanceof SpecialInvokeExpr
+                    ? Collections.singleton(method)
+                    : Scene.v().getOrMakeFastHierarchy().resolveAbstractDispatch(method.getDeclaringClass(), method);
+            if (targets.isEmpty()) {
+                return false;
+            }
+            for (SootMethod target : targets) {
+                if (!readerMethods.computeIfAbsent(target, ReadOnlySiteAnalysis::isReader)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A method that only reads, judged on the original method for a $instrumentation copy, as the
+     * copy may already have its barriers. The calls of the original to PilotUtil and PilotEvents, to
+     * the isDryRun call site of PilotGuard, to its copy and to its m$pilotDiverge helper are the
+     * dispatch to the copy in pilot runs.
+     */
+    private static boolean isReader(SootMethod method) {
+        SootMethod pilotCopy = null;
+        if (method.getName().endsWith(INSTRUMENTATION_SUFFIX)) {
+            pilotCopy = method;
+            String originalName = method.getName().substring(0,
+                    method.getName().length() - INSTRUMENTATION_SUFFIX.length());
+            method = method.getDeclaringClass().getMethodUnsafe(originalName, method.getParameterTypes(),
+                    method.getReturnType());
+        }
+        if (method == null || !method.isConcrete()) {
+            return false;
+        }
+        Body body;
+        try {
+            body = method.retrieveActiveBody();
+        } catch (RuntimeException e) {
+            return false;
+        }
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (stmt.containsInvokeExpr() && !isDispatchToPilotCopy(stmt.getInvokeExpr(), method, pilotCopy)) {
+                return false;
+            }
+            if (stmt instanceof MonitorStmt) {
+                return false;
+            }
+            if (stmt instanceof AssignStmt && !(((AssignStmt) stmt).getLeftOp() instanceof Local)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDispatchToPilotCopy(InvokeExpr invoke, SootMethod original, SootMethod pilotCopy) {
+        if (invoke instanceof DynamicInvokeExpr) {
+            // the isDryRun call site of switchpoint_guard
+            return ((DynamicInvokeExpr) invoke).getBootstrapMethodRef().getDeclaringClass().getName()
+                    .equals(PILOT_GUARD_CLASS_NAME);
+        }
+        SootMethodRef ref = invoke.getMethodRef();
+        String className = ref.getDeclaringClass().getName();
+        if (className.equals(UTIL_CLASS_NAME) || className.equals(PILOT_EVENTS_CLASS_NAME)) {
+            return true;
+        }
+        if (pilotCopy == null || ref.getDeclaringClass() != pilotCopy.getDeclaringClass()) {
+            return false;
+        }
+        if (ref.getSubSignature().equals(pilotCopy.makeRef().getSubSignature())) {
+            return true;
+        }
+        // the helper of outline_helpers, which logs and calls the copy, with the receiver first
+        List<Type> helperParameterTypes = new ArrayList<>();
+        if (!original.isStatic()) {
+            helperParameterTypes.add(original.getDeclaringClass().getType());
+        }
+        helperParameterTypes.addAll(original.getParameterTypes());
+        return ref.isStatic() && ref.getName().equals(original.getName() + DIVERGE_HELPER_SUFFIX)
+                && ref.getParameterTypes().equals(helperParameterTypes);
+    }
+
+    /**
+     * @return whether a statement that may mutate a copy of the field is on a path from the read to a use
+     */
+    private boolean isMutatedBeforeUse(AssignStmt read, Set<Unit> uses, UnitGraph graph) {
+        Set<Unit> clean = new HashSet<>();
+        Set<Unit> mutated = new HashSet<>();
+        Deque<Unit> cleanWorklist = new ArrayDeque<>(graph.getSuccsOf(read));
+        Deque<Unit> mutatedWorklist = new ArrayDeque<>();
+        while (!cleanWorklist.isEmpty()) {
+            Unit unit = cleanWorklist.poll();
+            // back at the read, the value is read again
+            if (unit == read || !clean.add(unit)) {
+                continue;
+            }
+            if (!uses.contains(unit) && mayMutate((Stmt) unit)) {
+                mutatedWorklist.addAll(graph.getSuccsOf(unit));
+            } else {
+                cleanWorklist.addAll(graph.getSuccsOf(unit));
+            }
+        }
+        while (!mutatedWorklist.isEmpty()) {
+            Unit unit = mutatedWorklist.poll();
+            if (unit == read || !mutated.add(unit)) {
+                continue;
+            }
+            if (uses.contains(unit)) {
+                return true;
+            }
+            mutatedWorklist.addAll(graph.getSuccsOf(unit));
+        }
+        return false;
+    }
+
+    private boolean mayMutate(Stmt stmt) {
+        if (stmt.containsInvokeExpr()) {
+            return !isReadOnlyInvoke(stmt.getInvokeExpr());
+        }
+        if (stmt instanceof AssignStmt) {
+            Value left = ((AssignStmt) stmt).getLeftOp();
+            return left instanceof InstanceFieldRef || left instanceof ArrayRef;
+        }
+        return false;
+    }
+}
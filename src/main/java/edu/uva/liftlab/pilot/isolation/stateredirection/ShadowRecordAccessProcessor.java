@@ -0,0 +1,158 @@
+package edu.uva.liftlab.pilot.isolation.stateredirection;
+
+import edu.uva.liftlab.pilot.rewriter.RewriteContext;
+import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.*;
+import soot.jimple.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static edu.uva.liftlab.pilot.util.Constants.SHADOW_RECORD_CLASS_NAME;
+
+/**
+ * ShadowRecordAccessProcessor - Redirects the field accesses of $instrumentation bodies to the
+ * shadow records of the shadow_record layout (see {@link ShadowRecordLayout}).
+ *
+ * A read x = base.f becomes
+ *     record = base.$pilotShadow
+ *     if record != null goto ready
+ *     record = ShadowRecord.allocate(slots)
+ *     base.$pilotShadow = record
+ *   ready:
+ *     original = base.f
+ *     x = record.readInt(slot, original, pilotId)
+ * and a write base.f = v becomes record.writeInt(slot, v, pilotId), after the same allocation.
+ *
+ * The runtime ShadowRecord keeps, per slot, the value and the pilot id that set it. The first time
+ * a pilot run reads a slot, readT stores the original value, or State.shallowCopy of it for
+ * references, the same as the read barrier of the field layout. There are readT and writeT
+ * methods for each primitive type and for Object.
+ */
+public class ShadowRecordAccessProcessor {
+    private static final Logger LOG = LoggerFactory.getLogger(ShadowRecordAccessProcessor.class);
+
+    public void handleAssignStmt(AssignStmt stmt, RewriteContext context, Local pilotIdLocal) {
+        if (stmt.getRightOp() instanceof FieldRef) {
+            redirectRead(stmt, context, pilotIdLocal);
+        } else if (stmt.getLeftOp() instanceof FieldRef) {
+            redirectWrite(stmt, context, pilotIdLocal);
+        }
+    }
+
+    private void redirectRead(AssignStmt stmt, RewriteContext context, Local pilotIdLocal) {
+        FieldRef fieldRef = (FieldRef) stmt.getRightOp();
+        SootField field = resolveField(fieldRef);
+        SootField recordField = field == null ? null : ShadowRecordLayout.getRecordField(field);
+        if (recordField == null) {
+            return;
+        }
+        LocalGeneratorUtil lg = context.getLocalGenerator();
+        Type type = field.getType();
+        String suffix = getTypeSuffix(type);
+        Type slotType = suffix.equals("Object") ? RefType.v("java.lang.Object") : type;
+
+        List<Unit> units = new ArrayList<>();
+        Local record = loadRecord(fieldRef, recordField, lg, units);
+        Local original = lg.generateLocal(type);
+        units.add(Jimple.v().newAssignStmt(original, newFieldRef(fieldRef, field)));
+        InvokeExpr read = Jimple.v().newVirtualInvokeExpr(record,
+                makeRecordMethodRef("read" + suffix, Arrays.asList(IntType.v(), slotType, IntType.v()), slotType),
+                IntConstant.v(ShadowRecordLayout.getSlot(field)), original, pilotIdLocal);
+
+        if (slotType == type) {
+            context.getUnits().insertBefore(units, stmt);
+            stmt.setRightOp(read);
+        } else {
+            Local value = lg.generateLocal(slotType);
+            units.add(Jimple.v().newAssignStmt(value, read));
+            context.getUnits().insertBefore(units, stmt);
+            stmt.setRightOp(Jimple.v().newCastExpr(value, type));
+        }
+    }
+
+    private void redirectWrite(AssignStmt stmt, RewriteContext context, Local pilotIdLocal) {
+        FieldRef fieldRef = (FieldRef) stmt.getLeftOp();
+        SootField field = resolveField(fieldRef);
+        SootField recordField = field == null ? null : ShadowRecordLayout.getRecordField(field);
+        if (recordField == null) {
+            return;
+        }
+        String suffix = getTypeSuffix(field.getType());
+        Type slotType = suffix.equals("Object") ? RefType.v("java.lang.Object") : field.getType();
+
+        List<Unit> units = new ArrayList<>();
+        Local record = loadRecord(fieldRef, recordField, context.getLocalGenerator(), units);
+        context.getUnits().insertBefore(units, stmt);
+        context.replace(Jimple.v().newInvokeStmt(Jimple.v().newVirtualInvokeExpr(record,
+                makeRecordMethodRef("write" + suffix, Arrays.asList(IntType.v(), slotType, IntType.v()), VoidType.v()),
+                IntConstant.v(ShadowRecordLayout.getSlot(field)), stmt.getRightOp(), pilotIdLocal)));
+    }
+
+    /**
+     * Load the record of the object (or class) of the field, allocating it on the first access
+     */
+    private Local loadRecord(FieldRef fieldRef, SootField recordField, LocalGeneratorUtil lg, List<Unit> units) {
+        Local record = lg.generateLocal(recordField.getType());
+        Stmt ready = Jimple.v().newNopStmt();
+        SootMethodRef allocateRef = Scene.v().makeMethodRef(
+                Scene.v().getSootClass(SHADOW_RECORD_CLASS_NAME),
+                "allocate",
+                Collections.singletonList(IntType.v()),
+                recordField.getType(),
+                true);
+        int slotCount = ShadowRecordLayout.getSlotCount(recordField.getDeclaringClass(), recordField.isStatic());
+
+        units.add(Jimple.v().newAssignStmt(record, newFieldRef(fieldRef, recordField)));
+        units.add(Jimple.v().newIfStmt(Jimple.v().newNeExpr(record, NullConstant.v()), ready));
+        units.add(Jimple.v().newAssignStmt(record,
+                Jimple.v().newStaticInvokeExpr(allocateRef, IntConstant.v(slotCount))));
+        units.add(Jimple.v().newAssignStmt(newFieldRef(fieldRef, recordField), record));
+        units.add(ready);
+        return record;
+    }
+
+    private SootMethodRef makeRecordMethodRef(String name, List<Type> parameterTypes, Type returnType) {
+        return Scene.v().makeMethodRef(
+                Scene.v().getSootClass(SHADOW_RECORD_CLASS_NAME),
+                name,
+                parameterTypes,
+                returnType,
+                false);
+    }
+
+    /**
+     * A fresh reference to a field of the same object as the accessed field, or a static field
+     */
+    private static FieldRef newFieldRef(FieldRef fieldRef, SootField field) {
+        if (fieldRef instanceof InstanceFieldRef) {
+            return Jimple.v().newInstanceFieldRef(((InstanceFieldRef) fieldRef).getBase(), field.makeRef());
+        }
+        return Jimple.v().newStaticFieldRef(field.makeRef());
+    }
+
+    private static String getTypeSuffix(Type type) {
+        if (type instanceof BooleanType) return "Boolean";
+        if (type instanceof ByteType) return "Byte";
+        if (type instanceof CharType) return "Char";
+        if (type instanceof ShortType) return "Short";
+        if (type instanceof IntType) return "Int";
+        if (type instanceof LongType) return "Long";
+        if (type instanceof FloatType) return "Float";
+        if (type instanceof DoubleType) return "Double";
+        return "Object";
+    }
+
+    private static SootField resolveField(FieldRef fieldRef) {
+        try {
+            return fieldRef.getField();
+        } catch (RuntimeException e) {
+            LOG.debug("Could not resolve field {}: {}", fieldRef, e.getMessage());
+            return null;
+        }
+    }
+}
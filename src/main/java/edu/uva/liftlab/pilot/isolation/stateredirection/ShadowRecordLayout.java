@@ -0,0 +1,83 @@
+package edu.uva.liftlab.pilot.isolation.stateredirection;
+
+import edu.uva.liftlab.pilot.generator.PilotMethodGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.Modifier;
+import soot.RefType;
+import soot.SootClass;
+import soot.SootField;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static edu.uva.liftlab.pilot.util.Constants.*;
+
+/**
+ * ShadowRecordLayout - The shadow_record layout of the dry run state of a class.
+ *
+ * Instead of a $dryRun copy and a $setByDryRun field next to every field, a class gets a single
+ * $pilotShadow reference to an org.pilot.ShadowRecord for its instance fields, and a static
+ * $pilotStaticShadow for its static fields. A record is allocated the first time a pilot run
+ * accesses a field of the object (or class), so objects that pilot runs never touch only carry
+ * one null reference.
+ *
+ * Each field with dry run state has a slot in the record of its declaring class, numbered in
+ * declaration order, separately for instance and static fields.
+ */
+public class ShadowRecordLayout {
+    private static final Logger LOG = LoggerFactory.getLogger(ShadowRecordLayout.class);
+
+    public static void addRecordFields(SootClass sootClass) {
+        if (sootClass.declaresFieldByName(SHADOW_RECORD_FIELD)
+                || sootClass.declaresFieldByName(STATIC_SHADOW_RECORD_FIELD)) {
+            return;
+        }
+        RefType recordType = RefType.v(SHADOW_RECORD_CLASS_NAME);
+        if (!getShadowedFields(sootClass, false).isEmpty()) {
+            sootClass.addField(new SootField(SHADOW_RECORD_FIELD, recordType,
+                    Modifier.PUBLIC | Modifier.TRANSIENT));
+        }
+        if (!getShadowedFields(sootClass, true).isEmpty()) {
+            sootClass.addField(new SootField(STATIC_SHADOW_RECORD_FIELD, recordType,
+                    Modifier.PUBLIC | Modifier.STATIC));
+        }
+        LOG.debug("Added shadow record fields to class {}", sootClass.getName());
+    }
+
+    /**
+     * @return the record field that holds the slot of the field, or null if the field has no dry run state
+     */
+    public static SootField getRecordField(SootField field) {
+        SootClass declaringClass = field.getDeclaringClass();
+        String recordFieldName = field.isStatic() ? STATIC_SHADOW_RECORD_FIELD : SHADOW_RECORD_FIELD;
+        if (!declaringClass.declaresFieldByName(recordFieldName) || !isShadowed(field)) {
+            return null;
+        }
+        return declaringClass.getFieldByName(recordFieldName);
+    }
+
+    public static int getSlot(SootField field) {
+        return getShadowedFields(field.getDeclaringClass(), field.isStatic()).indexOf(field);
+    }
+
+    public static int getSlotCount(SootClass sootClass, boolean isStatic) {
+        return getShadowedFields(sootClass, isStatic).size();
+    }
+
+    private static List<SootField> getShadowedFields(SootClass sootClass, boolean isStatic) {
+        List<SootField> fields = new ArrayList<>();
+        for (SootField field : sootClass.getFields()) {
+            if (field.isStatic() == isStatic && isShadowed(field)) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    private static boolean isShadowed(SootField field) {
+        return !field.getName().equals(SHADOW_RECORD_FIELD)
+                && !field.getName().equals(STATIC_SHADOW_RECORD_FIELD)
+                && PilotMethodGenerator.hasDryRunState(field);
+    }
+}
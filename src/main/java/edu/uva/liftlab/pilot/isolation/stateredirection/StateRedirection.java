@@ -1,92 +1,174 @@
 package edu.uva.liftlab.pilot.isolation.stateredirection;
 
+import edu.uva.liftlab.pilot.generator.PilotIdParameterGenerator;
+import edu.uva.liftlab.pilot.generator.PilotMethodGenerator;
+import edu.uva.liftlab.pilot.rewriter.BodyPass;
+import edu.uva.liftlab.pilot.rewriter.RewriteContext;
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
 import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import soot.*;
 import soot.jimple.*;
 
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
+import java.util.function.Predicate;
 
-import static edu.uva.liftlab.pilot.util.Constants.INSTRUMENTATION_SUFFIX;
 import static edu.uva.liftlab.pilot.util.SootUtils.*;
 
-public class StateRedirection {
+public class StateRedirection implements BodyPass {
     private static final Logger LOG = LoggerFactory.getLogger(StateRedirection.class);
 
     private final SootClass sootClass;
     private final FieldAccessProcessor fieldAccessProcessor;
+    private final ShadowRecordAccessProcessor shadowRecordAccessProcessor;
+    private final boolean isBarrierElimination;
+    private final boolean isLazyCopy;
+    private final boolean isAllocationAnalysis;
+    private PilotAllocationAnalysis pilotAllocations;
     private SootMethod currentMethod;
+    private Local pilotIdLocal;
+    // The lookup of the pilot id inserted in the current body, null if the id is a parameter
+    private Stmt getPilotIdStmt;
 
     public StateRedirection(SootClass sootClass) {
+        this(sootClass, false, false, false, false);
+    }
+
+    public StateRedirection(SootClass sootClass, ClassFilterHelper filter) {
+        this(sootClass, filter.isBarrierElimination, filter.isLazyCopy, filter.isAllocationAnalysis,
+                filter.isShadowRecord);
+    }
+
+    /**
+     * The barrier elimination and the lazy copy only apply to the field layout, the shadow record
+     * layout has no barrier of its own. The allocation analysis applies to both layouts.
+     */
+    private StateRedirection(SootClass sootClass, boolean isBarrierElimination, boolean isLazyCopy,
+                             boolean isAllocationAnalysis, boolean isShadowRecord) {
         this.sootClass = sootClass;
         this.fieldAccessProcessor = new FieldAccessProcessor();
+        this.shadowRecordAccessProcessor = isShadowRecord ? new ShadowRecordAccessProcessor() : null;
+        this.isBarrierElimination = isBarrierElimination && !isShadowRecord;
+        this.isLazyCopy = isLazyCopy && !isShadowRecord;
+        this.isAllocationAnalysis = isAllocationAnalysis;
     }
 
+    public static boolean shouldRedirect(ClassFilterHelper filter, SootClass sc) {
+        if (filter.shouldSkip(sc)) {
+            return false;
+        }
+        if(filter.isStateBlackWhiteListEnabled()){
+            boolean isStateIsolationBlackListClass = filter.isStateBlackListClass(sc) && !filter.isStateWhiteListClass(sc);
+            if (isStateIsolationBlackListClass) {
+                LOG.info("Skipping state redirection for blacklisted class: {}", sc.getName());
+                return false;
+            }
+        }
+        return true;
+    }
 
+    @Override
+    public String getName() {
+        return "StateRedirection";
+    }
 
+    @Override
+    public void beginBody(RewriteContext context) {
+        currentMethod = context.getMethod();
+        pilotAllocations = null;
+        if (isAllocationAnalysis) {
+            pilotAllocations = new PilotAllocationAnalysis(context.getBody());
+            pilotAllocations.analyze();
+        }
+        ReadOnlySiteAnalysis readOnlySites = null;
+        if (isLazyCopy) {
+            readOnlySites = new ReadOnlySiteAnalysis(context.getBody(), fieldAccessProcessor::hasBarrier);
+            readOnlySites.analyze();
+            fieldAccessProcessor.setReadOnlySites(readOnlySites);
+        }
+        if (isBarrierElimination) {
+            BarrierElimination barrierElimination = new BarrierElimination(context.getBody(),
+                    fieldAccessProcessor::hasBarrier, leavesDryRunFieldUnset(readOnlySites, pilotAllocations));
+            barrierElimination.analyze(context.getLocalGenerator());
+            fieldAccessProcessor.setBarrierElimination(barrierElimination);
+        }
+        getPilotIdStmt = null;
+        if (PilotIdParameterGenerator.hasPilotIdParameter(currentMethod)) {
+            pilotIdLocal = PilotIdParameterGenerator.getPilotIdParameter(context.getBody());
+        } else {
+            pilotIdLocal = insertGetPilotIdAtMethodStart(context.getBody());
+        }
+    }
 
-    public static void redirectAllClassesStates(ClassFilterHelper filter) {
-        boolean isStateBlackWhiteListEnabled = filter.isStateBlackWhiteListEnabled();
-        for (SootClass sc : Scene.v().getApplicationClasses()) {
-            if (filter.shouldSkip(sc)) {
+    /**
+     * Drop the lookup of the pilot id when no barrier uses it, e.g. in the entries of the pilotId variants
+     */
+    @Override
+    public void endBody(RewriteContext context) {
+        if (getPilotIdStmt == null) {
+            return;
+        }
+        for (Unit unit : context.getUnits()) {
+            if (unit == getPilotIdStmt) {
                 continue;
             }
-
-            if(isStateBlackWhiteListEnabled){
-                boolean isStateIsolationBlackListClass = filter.isStateBlackListClass(sc) && !filter.isStateWhiteListClass(sc);
-                if (isStateIsolationBlackListClass) {
-                    LOG.info("Skipping state redirection for blacklisted class: {}", sc.getName());
-                    continue;
+            for (ValueBox box : unit.getUseBoxes()) {
+                if (box.getValue() == pilotIdLocal) {
+                    return;
                 }
             }
-            LOG.info("StateRedirection Processing class: {}", sc.getName());
-            new StateRedirection(sc).redirectStatesInFunc$instrumentation();
         }
+        context.getUnits().remove(getPilotIdStmt);
+        context.getBody().getLocals().remove(pilotIdLocal);
     }
 
-    public void redirectStatesInFunc$instrumentation() {
+    /**
+     * The accesses whose barrier, if any, does not set the dry run field
+     */
+    private static Predicate<Unit> leavesDryRunFieldUnset(ReadOnlySiteAnalysis readOnlySites,
+                                                          PilotAllocationAnalysis pilotAllocations) {
+        return unit -> (readOnlySites != null && readOnlySites.isReadOnly(unit))
+                || (pilotAllocations != null && pilotAllocations.isPilotAllocated(unit));
+    }
 
-        for (SootMethod method : sootClass.getMethods()) {
-            LOG.debug("Method instrumentation: {}", method.getName());
-            if (!shouldInstrumentMethod(method)) {
-                continue;
-            }
-            currentMethod = method;
-            redirectMethod(method);
+    @Override
+    public void visitFieldRef(AssignStmt stmt, RewriteContext context) {
+        // no dry run state to redirect to, the access stays as is
+        SootField field = getAccessedField(stmt);
+        if (field != null && PilotMethodGenerator.isUnwrittenField(field)) {
+            PilotTransformer.unwrittenFieldAccessCount++;
+            return;
+        }
+        if (field != null && PilotMethodGenerator.isImmutableField(field)) {
+            PilotTransformer.immutableFieldAccessCount++;
+            return;
         }
+        // the object is only reachable from this body, its original field is its dry run state
+        if (pilotAllocations != null && pilotAllocations.isPilotAllocated(stmt)) {
+            PilotTransformer.pilotAllocatedAccessCount++;
+            return;
+        }
+        if (shadowRecordAccessProcessor != null) {
+            shadowRecordAccessProcessor.handleAssignStmt(stmt, context, pilotIdLocal);
+            return;
+        }
+        fieldAccessProcessor.handleAssignStmt(stmt, context.getUnits(), context.getLocalGenerator(),
+                currentMethod, pilotIdLocal);
     }
 
-    private void redirectMethod(SootMethod method) {
-        try {
-            if (!method.hasActiveBody()) {
-                LOG.info("Method {} has no active body, skipping", method.getName());
-                return;
-            }
-
-            Body originalBody = method.retrieveActiveBody();
-            Body instrumentationBody = Jimple.v().newBody(method);
-            instrumentationBody.importBodyContentsFrom(originalBody);
-
-
-            Local pilotIdLocal = insertGetPilotIdAtMethodStart(instrumentationBody);
-
-
-            redirectFieldAccesses(instrumentationBody, pilotIdLocal);
-
-            method.setActiveBody(instrumentationBody);
-
-
+    @Override
+    public void visitInvoke(Stmt stmt, RewriteContext context) {
+        fieldAccessProcessor.handleInvokeStmt(stmt, context.getUnits(), context.getLocalGenerator(),
+                currentMethod, pilotIdLocal);
+    }
 
-            LOG.info("Successfully redirected method: {}", method.getName());
-        } catch (Exception e) {
-            LOG.error("Failed to redirect method {}: {}", method.getName(), e.getMessage());
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Stack trace:", e);
-            }
-            throw e;
+    private static SootField getAccessedField(AssignStmt stmt) {
+        FieldRef fieldRef = (FieldRef) (stmt.getLeftOp() instanceof FieldRef ? stmt.getLeftOp() : stmt.getRightOp());
+        try {
+            return fieldRef.getField();
+        } catch (RuntimeException e) {
+            return null;
         }
     }
 
@@ -103,7 +185,7 @@ public class StateRedirection {
                 true
         );
 
-        Stmt getPilotIdStmt = Jimple.v().newAssignStmt(
+        getPilotIdStmt = Jimple.v().newAssignStmt(
                 pilotIdLocal,
                 Jimple.v().newStaticInvokeExpr(getPilotIdRef)
         );
@@ -123,48 +205,9 @@ public class StateRedirection {
             }
         }
 
-        body.validate();
-
         return pilotIdLocal;
     }
 
-    private void redirectFieldAccesses(Body body, Local pilotIdLocal) {
-        UnitPatchingChain units = body.getUnits();
-        List<Unit> originalUnits = new ArrayList<>(units);
-        LocalGeneratorUtil lg = new LocalGeneratorUtil(body);
-
-        for (Unit unit : originalUnits) {
-            if (unit instanceof AssignStmt) {
-                fieldAccessProcessor.handleAssignStmt((AssignStmt) unit, units, lg,
-                        currentMethod, pilotIdLocal);
-            }
-            if (unit instanceof InvokeStmt ||
-                    (unit instanceof AssignStmt && ((AssignStmt)unit).getRightOp() instanceof InvokeExpr)) {
-                fieldAccessProcessor.handleInvokeStmt(unit, units, lg,
-                        currentMethod, pilotIdLocal);
-            }
-        }
-    }
-
-    private boolean shouldInstrumentMethod(SootMethod method) {
-        if (method.isAbstract() || method.isNative()) {
-            LOG.debug("Skipping abstract or native method: {}", method.getName());
-            return false;
-        }
-
-        if (!method.getName().endsWith(INSTRUMENTATION_SUFFIX)) {
-            LOG.debug("Skipping already instrumented method: {}", method.getName());
-            return false;
-        }
-
-        if (!method.hasActiveBody()) {
-            LOG.debug("Skipping method without active body: {}", method.getName());
-            return false;
-        }
-
-        return true;
-    }
-
     public SootClass getSootClass() {
         return sootClass;
     }
@@ -1,5 +1,8 @@
 package edu.uva.liftlab.pilot.isolation.stateredirection;
 
+import edu.uva.liftlab.pilot.generator.CopyMethodGenerator;
+import edu.uva.liftlab.pilot.generator.PilotMethodGenerator;
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
 import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -7,10 +10,8 @@ import soot.*;
 import soot.jimple.*;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
-import static edu.uva.liftlab.pilot.util.Constants.STATE_ISOLATION_CLASS;
 import static edu.uva.liftlab.pilot.util.SootUtils.printLog4j;
 import static edu.uva.liftlab.pilot.util.SootUtils.printValue;
 
@@ -68,7 +69,11 @@ public class UnitGenerator {
 
         Stmt setByDryRunStmt = Jimple.v().newAssignStmt(setByDryRunRef, pilotIdLocal);
 
-        if (fieldInfo.isPrimitiveType()) {
+        if (fieldInfo.isPrimitiveType() || PilotMethodGenerator.isImmutableType(fieldInfo.getType())) {
+            // an immutable value is shared with the original instead of copied
+            if (!fieldInfo.isPrimitiveType()) {
+                PilotTransformer.aliasedBarrierCount++;
+            }
             generatePrimitiveTypeUnits(units, originalValueLocal, dryRunValueLocal,
                     isSetLocal, dryRunRef, logUnits, setByDryRunStmt, lg,
                     fieldInfo, id);
@@ -81,6 +86,32 @@ public class UnitGenerator {
         return units;
     }
 
+    /**
+     * The barrier of a read-only read (see ReadOnlySiteAnalysis): the dry run value if this pilot
+     * run set it, the original value otherwise. Nothing is copied and the dry run field is left
+     * unset, so that the first mutating read still copies.
+     */
+    public List<Unit> generateReadOnlyUnits(FieldRef fieldRef, FieldInfo fieldInfo,
+                                            Local resultLocal, Local pilotIdLocal, LocalGeneratorUtil lg) {
+        List<Unit> units = new ArrayList<>();
+
+        Local setByDryRunValueLocal = lg.generateLocalWithId(IntType.v(),
+                "setByDryRunValue_" + fieldInfo.getOriginalFieldName());
+
+        Value base = fieldRef instanceof InstanceFieldRef ?
+                ((InstanceFieldRef) fieldRef).getBase() : null;
+        Stmt continueLabel = Jimple.v().newNopStmt();
+
+        units.add(Jimple.v().newAssignStmt(resultLocal, fieldInfo.createDryRunFieldRef(base)));
+        units.add(Jimple.v().newAssignStmt(setByDryRunValueLocal, fieldInfo.createSetByDryRunFieldRef(base)));
+        units.add(Jimple.v().newIfStmt(
+                Jimple.v().newGeExpr(setByDryRunValueLocal, pilotIdLocal),
+                continueLabel));
+        units.add(Jimple.v().newAssignStmt(resultLocal, fieldInfo.createOriginalFieldRef(base)));
+        units.add(continueLabel);
+        return units;
+    }
+
     private List<Unit> generateLogUnits(FieldInfo fieldInfo, SootMethod method,
                                         LocalGeneratorUtil lg, int id) {
         String message = String.format("%s with id %d in function %s in class %s is set to be pilotID",
@@ -117,18 +148,19 @@ public class UnitGenerator {
                                             FieldRef dryRunRef, List<Unit> logUnits,
                                             Stmt setByDryRunStmt, LocalGeneratorUtil lg,
                                             FieldInfo fieldInfo) {
+        if (OverlayCollections.hasOverlay(fieldInfo.getType())
+                || CopyMethodGenerator.hasSpecializedCopy(fieldInfo.getType())) {
+            generateSpecializedCopyUnits(units, originalValueLocal, dryRunValueLocal, isSetLocal, dryRunRef,
+                    logUnits, setByDryRunStmt, lg, fieldInfo);
+            return;
+        }
         RefType objectType = RefType.v("java.lang.Object");
 
         Local booleanIsSetLocal = lg.generateLocal(BooleanType.v());
 
         units.add(Jimple.v().newAssignStmt(booleanIsSetLocal, isSetLocal));
 
-        SootMethodRef shallowCopyMethod = Scene.v().makeMethodRef(
-                Scene.v().getSootClass(STATE_ISOLATION_CLASS),
-                "shallowCopy",
-                Arrays.asList(objectType, objectType, BooleanType.v()),
-                objectType,
-                true);
+        SootMethodRef shallowCopyMethod = CopyMethodGenerator.getShallowCopyRef();
 
         Local resultLocal = lg.generateLocal(fieldInfo.getType());
         Local castOriginal = lg.generateLocal(objectType);
@@ -159,6 +191,47 @@ public class UnitGenerator {
         units.addAll(logUnits);
     }
 
+    /**
+     * The same as generateReferenceTypeUnits, with an overlay of the original collection (see
+     * OverlayCollections), or with the copy of the original value done by the generated copy
+     * methods (see CopyMethodGenerator) when the value has one. A value that was already set by
+     * this pilot run is kept, as State.shallowCopy does.
+     */
+    private void generateSpecializedCopyUnits(List<Unit> units, Local originalValueLocal,
+                                              Local dryRunValueLocal, Local isSetLocal,
+                                              FieldRef dryRunRef, List<Unit> logUnits,
+                                              Stmt setByDryRunStmt, LocalGeneratorUtil lg,
+                                              FieldInfo fieldInfo) {
+        Type type = fieldInfo.getType();
+        Local resultLocal = lg.generateLocal(type);
+        Stmt assignStmt = Jimple.v().newAssignStmt(dryRunRef, resultLocal);
+
+        units.add(Jimple.v().newAssignStmt(resultLocal, dryRunValueLocal));
+        units.add(Jimple.v().newIfStmt(Jimple.v().newEqExpr(isSetLocal, IntConstant.v(0)), assignStmt));
+        units.add(Jimple.v().newAssignStmt(resultLocal, originalValueLocal));
+        units.add(Jimple.v().newIfStmt(Jimple.v().newEqExpr(originalValueLocal, NullConstant.v()), assignStmt));
+
+        if (OverlayCollections.hasOverlay(type)) {
+            units.add(Jimple.v().newAssignStmt(resultLocal,
+                    OverlayCollections.newOverlayExpr(originalValueLocal, type)));
+            PilotTransformer.overlayBarrierCount++;
+        } else {
+            if (CopyMethodGenerator.generateCopyUnits(originalValueLocal, resultLocal, type, lg, assignStmt, units)) {
+                RefType objectType = RefType.v("java.lang.Object");
+                Local tmpResult = lg.generateLocal(objectType);
+                units.add(Jimple.v().newAssignStmt(tmpResult,
+                        Jimple.v().newStaticInvokeExpr(CopyMethodGenerator.getShallowCopyRef(),
+                                originalValueLocal, dryRunValueLocal, IntConstant.v(1))));
+                units.add(Jimple.v().newAssignStmt(resultLocal, Jimple.v().newCastExpr(tmpResult, type)));
+            }
+            PilotTransformer.specializedCopyBarrierCount++;
+        }
+
+        units.add(assignStmt);
+        units.add(setByDryRunStmt);
+        units.addAll(logUnits);
+    }
+
     private List<Unit> generateValueLogUnits(Local originalValueLocal, Local dryRunValueLocal,
                                              LocalGeneratorUtil lg, FieldInfo fieldInfo, int id) {
         List<Unit> units = new ArrayList<>();
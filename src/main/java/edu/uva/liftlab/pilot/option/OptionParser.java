@@ -103,6 +103,21 @@ public class OptionParser {
             .argName("key:value key:value ...")
             .desc("List of key value configs, which will override the settings in the config file").build();
 
+    private Option shards = Option.builder().longOpt("shards").hasArg().argName("count|auto")
+            .desc("Split the instrumentation over this many worker JVMs, auto uses all cores").build();
+
+    private Option shardHeap = Option.builder().longOpt("shard_heap").hasArg().argName("size")
+            .desc("Maximum heap of each shard worker JVM, e.g. 4g").build();
+
+    private Option shardPlan = Option.builder().longOpt("shard_plan").hasArg().argName("file")
+            .desc("Shard plan to write (planner) or to read (worker), set by the shard coordinator").build();
+
+    private Option shardIndex = Option.builder().longOpt("shard_index").hasArg().argName("index")
+            .desc("Index of the shard rewritten by this worker, set by the shard coordinator").build();
+
+    private Option cacheDirectory = Option.builder().longOpt("cache").hasArg().argName("directory")
+            .desc("Directory of the incremental instrumentation cache").build();
+
     private Option help = Option.builder("h").longOpt("help").desc("Print this help message")
             .build();
 
@@ -141,6 +156,11 @@ public class OptionParser {
         mOptions.addOption(help);
         mOptions.addOption(helpWithSootHelp);
         mOptions.addOption(configFile);
+        mOptions.addOption(shards);
+        mOptions.addOption(shardHeap);
+        mOptions.addOption(shardPlan);
+        mOptions.addOption(shardIndex);
+        mOptions.addOption(cacheDirectory);
     }
 
     public RCOptions parse(String[] args) throws OptionError {
@@ -324,6 +344,32 @@ public class OptionParser {
             LOG.info("configFile path is: " + cmd.getOptionValue(configFile.getLongOpt()));
             options.setConfigFilePath(cmd.getOptionValue(configFile.getLongOpt()));
 
+            /* Parse sharding options */
+            String shard_count = cmd.getOptionValue(shards.getLongOpt());
+            try {
+                if (shard_count != null) {
+                    options.setShardCount(shard_count.equals("auto") ?
+                            Runtime.getRuntime().availableProcessors() : Integer.parseInt(shard_count));
+                }
+                String shard_index = cmd.getOptionValue(shardIndex.getLongOpt());
+                if (shard_index != null) {
+                    options.setShardIndex(Integer.parseInt(shard_index));
+                }
+            } catch (NumberFormatException e) {
+                throw new OptionError("Invalid shard option: " + e.getMessage());
+            }
+            if (options.getShardCount() < 1) {
+                throw new OptionError("Shard count must be positive");
+            }
+            if (cmd.hasOption(shardHeap.getLongOpt())) {
+                options.setShardHeap(cmd.getOptionValue(shardHeap.getLongOpt()));
+            }
+            options.setShardPlan(cmd.getOptionValue(shardPlan.getLongOpt()));
+            options.setCacheDir(cmd.getOptionValue(cacheDirectory.getLongOpt()));
+            if (options.getShardIndex() >= 0 && options.getShardPlan() == null) {
+                throw new OptionError("A shard worker needs a shard plan");
+            }
+
 
             /* Extract the non-positional arguments */
             options.setArgs(cmd.getArgs());
@@ -45,6 +45,14 @@ public class RCOptions {
 
     private String config_file_path;
 
+    // sharded instrumentation
+    private int shard_count = 1;
+    private int shard_index = -1;
+    private String shard_heap = "4g";
+    private String shard_plan;
+
+    private String cache_dir;
+
     private static RCOptions instance = new RCOptions();
     public static RCOptions getInstance() {
         return instance;
@@ -303,6 +311,71 @@ public class RCOptions {
         this.config_file_path = config_file_path;
     }
 
+    public int getShardCount() {
+        return shard_count;
+    }
+
+    void setShardCount(int shard_count) {
+        this.shard_count = shard_count;
+    }
+
+    public int getShardIndex() {
+        return shard_index;
+    }
+
+    void setShardIndex(int shard_index) {
+        this.shard_index = shard_index;
+    }
+
+    public String getShardHeap() {
+        return shard_heap;
+    }
+
+    void setShardHeap(String shard_heap) {
+        this.shard_heap = shard_heap;
+    }
+
+    public String getShardPlan() {
+        return shard_plan;
+    }
+
+    void setShardPlan(String shard_plan) {
+        this.shard_plan = shard_plan;
+    }
+
+    /**
+     * Get the directory of the incremental instrumentation cache, null if disabled
+     * @return
+     */
+    public String getCacheDir() {
+        return cache_dir;
+    }
+
+    void setCacheDir(String cache_dir) {
+        this.cache_dir = cache_dir;
+    }
+
+    /**
+     * The coordinator plans, spawns the workers and merges their outputs
+     */
+    public boolean isShardCoordinator() {
+        return shard_count > 1 && shard_plan == null;
+    }
+
+    /**
+     * The planner runs the whole-program analysis and writes the shard plan
+     */
+    public boolean isShardPlanner() {
+        return shard_plan != null && shard_index < 0;
+    }
+
+    /**
+     * A worker rewrites the classes of one shard of the plan
+     */
+    public boolean isShardWorker() {
+        return shard_plan != null && shard_index >= 0;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -335,6 +408,10 @@ public class RCOptions {
 
         sb.append("- ARGS: ").append(StringUtils.join(" ", args)).append("\n");
         sb.append("- config_file_path: ").append(config_file_path).append("\n");
+        sb.append("- shard_count: ").append(shard_count).append("\n");
+        sb.append("- shard_index: ").append(shard_index).append("\n");
+        sb.append("- shard_plan: ").append(shard_plan).append("\n");
+        sb.append("- cache_dir: ").append(cache_dir).append("\n");
         return sb.toString();
     }
 }
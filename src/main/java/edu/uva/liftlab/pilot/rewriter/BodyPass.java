@@ -0,0 +1,44 @@
+package edu.uva.liftlab.pilot.rewriter;
+
+import soot.jimple.AssignStmt;
+import soot.jimple.MonitorStmt;
+import soot.jimple.Stmt;
+
+/**
+ * BodyPass - A body rewriting pass run by {@link BodyRewriter}.
+ *
+ * The rewriter walks a body once and calls every registered pass on each unit, in registration
+ * order, so a pass sees the unit as left by the passes before it. Units a pass inserts around
+ * the current unit are not visited by the other passes.
+ */
+public interface BodyPass {
+
+    String getName();
+
+    /**
+     * Called once per body, before the walk
+     */
+    default void beginBody(RewriteContext context) {
+    }
+
+    /**
+     * Called for assignments that read or write a field
+     */
+    default void visitFieldRef(AssignStmt stmt, RewriteContext context) {
+    }
+
+    /**
+     * Called for invoke statements and assignments from an invoke expression
+     */
+    default void visitInvoke(Stmt stmt, RewriteContext context) {
+    }
+
+    default void visitMonitor(MonitorStmt stmt, RewriteContext context) {
+    }
+
+    /**
+     * Called once per body, after the walk and before the validation
+     */
+    default void endBody(RewriteContext context) {
+    }
+}
@@ -0,0 +1,306 @@
+package edu.uva.liftlab.pilot.rewriter;
+
+import edu.uva.liftlab.pilot.distributedtracing.BaggagePropagation;
+import edu.uva.liftlab.pilot.isolation.stateredirection.BarrierHelpers;
+import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.isolation.stateredirection.StateRedirection;
+import edu.uva.liftlab.pilot.sanitization.Sanitization;
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
+import edu.uva.liftlab.pilot.util.BytecodeSize;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.*;
+import soot.jimple.AssignStmt;
+import soot.jimple.Jimple;
+import soot.jimple.MonitorStmt;
+import soot.jimple.Stmt;
+
+import java.io.IOException;
+import java.util.*;
+
+import static edu.uva.liftlab.pilot.util.Constants.INSTRUMENTATION_SUFFIX;
+
+/**
+ * BodyRewriter - Applies a list of passes to a body in a single walk over its units,
+ * followed by a single validation.
+ *
+ * The passes that rewrite the $instrumentation bodies (state redirection, baggage propagation
+ * and sanitization) run in one walk per body, instead of each pass copying, walking and
+ * validating the body on its own.
+ */
+public class BodyRewriter {
+    private static final Logger LOG = LoggerFactory.getLogger(BodyRewriter.class);
+
+    private final List<BodyPass> passes;
+
+    public BodyRewriter(List<BodyPass> passes) {
+        this.passes = passes;
+    }
+
+    /**
+     * Rewrite the $instrumentation methods of all application classes.
+     * See RewriteBaselineDiff to compare the rewritten bodies with the ones of a baseline engine.
+     */
+    public static void rewriteAllClasses(ClassFilterHelper filter) {
+        for (SootClass sc : Scene.v().getApplicationClasses()) {
+            BodyRewriter rewriter = new BodyRewriter(createPasses(filter, sc));
+            LOG.info("Rewriting class: {} with passes {}", sc.getName(), rewriter.getPassNames());
+            // with huge_method_limit, the bodies before the rewrite and what their rewrite counted
+            Map<SootMethod, Body> originals = filter.hugeMethodLimit > 0 ? new HashMap<>() : null;
+            Map<SootMethod, int[]> counterDeltas = new HashMap<>();
+
+            // a copy, as the barrier helpers the bodies call are declared while they are rewritten
+            for (SootMethod method : new ArrayList<>(sc.getMethods())) {
+                if (!method.getName().endsWith(INSTRUMENTATION_SUFFIX) || !method.hasActiveBody()) {
+                    continue;
+                }
+                if (originals != null) {
+                    Body original = Jimple.v().newBody(method);
+                    original.importBodyContentsFrom(method.getActiveBody());
+                    originals.put(method, original);
+                }
+                int[] counters = originals == null ? null : readCounters();
+                rewriter.rewrite(method);
+                if (counters != null) {
+                    counterDeltas.put(method, subtract(readCounters(), counters));
+                }
+            }
+            // after the loop, as the bodies of the class are rewritten and the helpers they call are known
+            BarrierHelpers.addHelpers(sc);
+            if (originals != null) {
+                guardHugeMethods(filter, sc, originals, counterDeltas);
+            }
+        }
+    }
+
+    /**
+     * Rewrite again, with outlined barriers, the $instrumentation methods of the class whose bytecode is
+     * larger than the huge method limit, so that the JIT still compiles them, and split the ones that are
+     * still larger, see RegionOutliner. The size is measured on the class as it would be written now;
+     * later passes still add a few units to the bodies.
+     */
+    private static void guardHugeMethods(ClassFilterHelper filter, SootClass sc, Map<SootMethod, Body> originals,
+                                         Map<SootMethod, int[]> counterDeltas) {
+        if (originals.isEmpty() || sc.isInterface() || filter.isShadowRecord) {
+            return;
+        }
+        List<SootMethod> hugeMethods = findHugeMethods(sc, originals.keySet(), filter.hugeMethodLimit);
+        if (hugeMethods.isEmpty()) {
+            return;
+        }
+        BodyRewriter rewriter = new BodyRewriter(createPasses(filter, sc));
+        boolean outlineHelpers = BarrierHelpers.isEnabled();
+        BarrierHelpers.setEnabled(true);
+        for (SootMethod method : hugeMethods) {
+            LOG.info("Huge method guard: rewriting {} with outlined barriers", method.getSignature());
+            method.setActiveBody(originals.get(method));
+            int[] delta = counterDeltas.get(method);
+            if (delta != null) {
+                writeCounters(subtract(readCounters(), delta));
+            }
+            rewriter.rewrite(method);
+            PilotTransformer.outlinedHugeMethodCount++;
+        }
+        BarrierHelpers.setEnabled(outlineHelpers);
+        BarrierHelpers.addHelpers(sc);
+        Map<SootMethod, Integer> sizes = measureHugeMethods(sc, hugeMethods, filter.hugeMethodLimit);
+        if (sizes.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<SootMethod, Integer> entry : sizes.entrySet()) {
+            int helperCount = RegionOutliner.split(entry.getKey(), entry.getValue(), filter.hugeMethodLimit);
+            if (helperCount > 0) {
+                LOG.info("Huge method guard: split {} of {} bytes into {} region helpers",
+                        entry.getKey().getSignature(), entry.getValue(), helperCount);
+                PilotTransformer.splitHugeMethodCount++;
+            }
+        }
+        for (SootMethod method : measureHugeMethods(sc, sizes.keySet(), filter.hugeMethodLimit).keySet()) {
+            LOG.warn("Huge method guard: {} is still larger than {} bytes with outlined barriers and split regions",
+                    method.getSignature(), filter.hugeMethodLimit);
+        }
+    }
+
+    private static List<SootMethod> findHugeMethods(SootClass sc, Collection<SootMethod> methods, int limit) {
+        return new ArrayList<>(measureHugeMethods(sc, methods, limit).keySet());
+    }
+
+    /**
+     * @return the methods larger than the limit and their sizes, none if the class can't be measured
+     */
+    private static Map<SootMethod, Integer> measureHugeMethods(SootClass sc, Collection<SootMethod> methods, int limit) {
+        Map<SootMethod, Integer> hugeMethods = new LinkedHashMap<>();
+        Map<String, Integer> sizes;
+        try {
+            sizes = BytecodeSize.measure(sc);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Huge method guard: failed to measure {}: {}", sc.getName(), e.toString());
+            return hugeMethods;
+        }
+        for (SootMethod method : methods) {
+            Integer size = sizes.get(BytecodeSize.getKey(method));
+            if (size != null && size > limit) {
+                hugeMethods.put(method, size);
+            }
+        }
+        return hugeMethods;
+    }
+
+    /**
+     * @return the counters the rewrite passes increment, in the order writeCounters takes them
+     */
+    private static int[] readCounters() {
+        return new int[]{
+                PilotTransformer.ctxCount,
+                PilotTransformer.eliminatedBarrierCount,
+                PilotTransformer.loopGuardedBarrierCount,
+                PilotTransformer.unwrittenFieldAccessCount,
+                PilotTransformer.specializedCopyBarrierCount,
+                PilotTransformer.immutableFieldAccessCount,
+                PilotTransformer.aliasedBarrierCount,
+                PilotTransformer.overlayBarrierCount,
+                PilotTransformer.lazyBarrierCount,
+                PilotTransformer.pilotAllocatedAccessCount,
+                PilotTransformer.outlinedBarrierCount
+        };
+    }
+
+    private static void writeCounters(int[] counters) {
+        PilotTransformer.ctxCount = counters[0];
+        PilotTransformer.eliminatedBarrierCount = counters[1];
+        PilotTransformer.loopGuardedBarrierCount = counters[2];
+        PilotTransformer.unwrittenFieldAccessCount = counters[3];
+        PilotTransformer.specializedCopyBarrierCount = counters[4];
+        PilotTransformer.immutableFieldAccessCount = counters[5];
+        PilotTransformer.aliasedBarrierCount = counters[6];
+        PilotTransformer.overlayBarrierCount = counters[7];
+        PilotTransformer.lazyBarrierCount = counters[8];
+        PilotTransformer.pilotAllocatedAccessCount = counters[9];
+        PilotTransformer.outlinedBarrierCount = counters[10];
+    }
+
+    private static int[] subtract(int[] counters, int[] delta) {
+        int[] result = new int[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            result[i] = counters[i] - delta[i];
+        }
+        return result;
+    }
+
+    private static List<BodyPass> createPasses(ClassFilterHelper filter, SootClass sc) {
+        List<BodyPass> passes = new ArrayList<>();
+        if (StateRedirection.shouldRedirect(filter, sc)) {
+            passes.add(new StateRedirection(sc, filter));
+        }
+        if (BaggagePropagation.shouldPropagate(filter, sc)) {
+            passes.addAll(new BaggagePropagation(sc, filter).getBodyPasses());
+        }
+        passes.add(new Sanitization(sc));
+        return passes;
+    }
+
+    /**
+     * Rewrite a copy of the active body of the method and validate it. If the fused walk fails,
+     * the original body and counters are restored and the passes are applied one by one, each on
+     * its own copy: a failing pass is logged and skipped for this body, as the passes did before
+     * they were fused, except state redirection, whose failure is still fatal.
+     */
+    public void rewrite(SootMethod method) {
+        if (!method.hasActiveBody()) {
+            return;
+        }
+        Body original = method.getActiveBody();
+        int[] counters = readCounters();
+        try {
+            Body body = setActiveCopy(method, original);
+            rewrite(body);
+            body.validate();
+            LOG.debug("Successfully rewrote method: {}", method.getName());
+            return;
+        } catch (Exception e) {
+            LOG.error("Failed to rewrite method {} with passes {}: {}, rewriting it pass by pass",
+                    method.getSignature(), getPassNames(), e.getMessage());
+            method.setActiveBody(original);
+            writeCounters(counters);
+        }
+        for (BodyPass pass : passes) {
+            Body before = method.getActiveBody();
+            counters = readCounters();
+            try {
+                Body body = setActiveCopy(method, before);
+                new BodyRewriter(Collections.singletonList(pass)).rewrite(body);
+                body.validate();
+            } catch (Exception e) {
+                method.setActiveBody(before);
+                writeCounters(counters);
+                if (pass instanceof StateRedirection) {
+                    LOG.error("Failed to redirect states of method {}: {}", method.getSignature(), e.getMessage());
+                    throw e;
+                }
+                LOG.error("Failed to rewrite method {} with pass {}, skipping it: {}",
+                        method.getSignature(), pass.getName(), e.getMessage());
+            }
+        }
+    }
+
+    private static Body setActiveCopy(SootMethod method, Body body) {
+        Body copy = Jimple.v().newBody(method);
+        copy.importBodyContentsFrom(body);
+        method.setActiveBody(copy);
+        return copy;
+    }
+
+    /**
+     * Walk the body once, calling every pass on each unit
+     */
+    public void rewrite(Body body) {
+        RewriteContext context = new RewriteContext(body);
+        for (BodyPass pass : passes) {
+            pass.beginBody(context);
+        }
+        for (Unit unit : new ArrayList<>(context.getUnits())) {
+            context.setCurrent((Stmt) unit);
+            for (BodyPass pass : passes) {
+                if (!visit(pass, context)) {
+                    break;
+                }
+            }
+        }
+        for (BodyPass pass : passes) {
+            pass.endBody(context);
+        }
+    }
+
+    /**
+     * @return whether the unit is still there for the next pass
+     */
+    private static boolean visit(BodyPass pass, RewriteContext context) {
+        Stmt stmt = context.getCurrent();
+        if (stmt instanceof AssignStmt && stmt.containsFieldRef()) {
+            pass.visitFieldRef((AssignStmt) stmt, context);
+            stmt = context.getCurrent();
+            if (stmt == null) {
+                return false;
+            }
+        }
+        if (stmt.containsInvokeExpr()) {
+            pass.visitInvoke(stmt, context);
+            stmt = context.getCurrent();
+            if (stmt == null) {
+                return false;
+            }
+        }
+        if (stmt instanceof MonitorStmt) {
+            pass.visitMonitor((MonitorStmt) stmt, context);
+        }
+        return context.getCurrent() != null;
+    }
+
+    private List<String> getPassNames() {
+        List<String> names = new ArrayList<>();
+        for (BodyPass pass : passes) {
+            names.add(pass.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,176 @@
+package edu.uva.liftlab.pilot.rewriter;
+
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.*;
+import soot.jimple.*;
+import soot.jimple.toolkits.scalar.*;
+import soot.toolkits.scalar.LocalPacker;
+import soot.toolkits.scalar.UnusedLocalEliminator;
+
+import java.util.*;
+
+/**
+ * JimpleCleanup - With the jimple_cleanup option, a cleanup of the bodies of the application classes
+ * once the instrumentation is complete, as the generators leave single use locals, nops, gotos to
+ * the next unit, casts to Object and repeated context lookups behind.
+ *
+ * 1. Repeated lookups: in a block, Span.current() and Context.current() are reused until a call that
+ *    may change the current context, and the getters of the immutable span context are reused while
+ *    the span local is not redefined. Casts of a reference to Object or to its own type become copies.
+ * 2. Copy propagation, dead assignment and unreachable code elimination, and folding of branches.
+ * 3. Removal of nops and unused locals, and packing of the locals left.
+ *
+ * A body that does not validate after the cleanup is kept as it is.
+ */
+public class JimpleCleanup {
+    private static final Logger LOG = LoggerFactory.getLogger(JimpleCleanup.class);
+
+    private static final String SPAN_CLASS = "io.opentelemetry.api.trace.Span";
+    private static final String SPAN_CONTEXT_CLASS = "io.opentelemetry.api.trace.SpanContext";
+    private static final String CONTEXT_CLASS = "io.opentelemetry.context.Context";
+
+    // class -> its methods without side effects, whose result only depends on the current context
+    private static final Map<String, Set<String>> CONTEXT_LOOKUPS = new HashMap<>();
+    // class -> its getters without side effects, whose result only depends on the receiver
+    private static final Map<String, Set<String>> IMMUTABLE_GETTERS = new HashMap<>();
+
+    static {
+        CONTEXT_LOOKUPS.put(SPAN_CLASS, Collections.singleton("current"));
+        CONTEXT_LOOKUPS.put(CONTEXT_CLASS, Collections.singleton("current"));
+        IMMUTABLE_GETTERS.put(SPAN_CLASS, Collections.singleton("getSpanContext"));
+        IMMUTABLE_GETTERS.put(SPAN_CONTEXT_CLASS, new HashSet<>(Arrays.asList("getTraceId", "getSpanId", "isValid")));
+    }
+
+    public static void cleanAllClasses() {
+        for (SootClass sc : new ArrayList<>(Scene.v().getApplicationClasses())) {
+            if (sc.isPhantom()) {
+                continue;
+            }
+            for (SootMethod method : sc.getMethods()) {
+                if (method.isConcrete() && method.hasActiveBody()) {
+                    clean(method);
+                }
+            }
+        }
+    }
+
+    private static void clean(SootMethod method) {
+        // on a copy, as the generators share expressions between units, which the local packer
+        // cannot rename, and so that a body that does not validate is left as it is
+        Body body = (Body) method.getActiveBody().clone();
+        int units = body.getUnits().size();
+        int locals = body.getLocalCount();
+        try {
+            reuseLookups(body);
+            CopyPropagator.v().transform(body);
+            ConditionalBranchFolder.v().transform(body);
+            UnconditionalBranchFolder.v().transform(body);
+            UnreachableCodeEliminator.v().transform(body);
+            DeadAssignmentEliminator.v().transform(body);
+            NopEliminator.v().transform(body);
+            UnusedLocalEliminator.v().transform(body);
+            LocalPacker.v().transform(body);
+            body.validate();
+        } catch (RuntimeException e) {
+            LOG.warn("Jimple cleanup: kept {} as it is after {}", method.getSignature(), e.toString());
+            PilotTransformer.keptCleanupBodyCount++;
+            return;
+        }
+        method.setActiveBody(body);
+        PilotTransformer.cleanedBodyCount++;
+        PilotTransformer.removedUnitCount += units - body.getUnits().size();
+        PilotTransformer.removedLocalCount += locals - body.getLocalCount();
+    }
+
+    /**
+     * Replace the lookups and casts of 1. by copies, for copy propagation to remove
+     */
+    private static void reuseLookups(Body body) {
+        // lookup -> local holding its result, for the block being walked
+        Map<String, Local> available = new HashMap<>();
+        Unit previous = null;
+        for (Unit unit : body.getUnits()) {
+            if (!unit.getBoxesPointingToThis().isEmpty() || (previous != null && !previous.fallsThrough())
+                    || (previous != null && previous.branches())) {
+                available.clear();
+            }
+            previous = unit;
+            if (!(unit instanceof AssignStmt)) {
+                if (((Stmt) unit).containsInvokeExpr()) {
+                    clearContextLookups(available);
+                }
+                removeRedefined(available, unit);
+                continue;
+            }
+            AssignStmt stmt = (AssignStmt) unit;
+            Value rightOp = stmt.getRightOp();
+            if (rightOp instanceof CastExpr && stmt.getLeftOp() instanceof Local) {
+                CastExpr cast = (CastExpr) rightOp;
+                Type castType = cast.getCastType();
+                if (cast.getOp().getType() instanceof RefLikeType && !(cast.getOp().getType() instanceof NullType)
+                        && (castType.equals(RefType.v("java.lang.Object")) || castType.equals(cast.getOp().getType()))) {
+                    stmt.setRightOp(cast.getOp());
+                    PilotTransformer.removedCastCount++;
+                }
+            }
+            String key = getLookupKey(stmt);
+            if (key != null && stmt.getLeftOp() instanceof Local) {
+                Local result = available.get(key);
+                removeRedefined(available, unit);
+                if (result != null && result != stmt.getLeftOp()) {
+                    stmt.setRightOp(result);
+                    PilotTransformer.reusedLookupCount++;
+                } else if (stmt.getInvokeExpr().getUseBoxes().stream().noneMatch(b -> b.getValue() == stmt.getLeftOp())) {
+                    available.put(key, (Local) stmt.getLeftOp());
+                }
+                continue;
+            }
+            if (stmt.containsInvokeExpr()) {
+                clearContextLookups(available);
+            }
+            removeRedefined(available, unit);
+        }
+    }
+
+    /**
+     * @return the key of a lookup whose result can be reused, or null
+     */
+    private static String getLookupKey(AssignStmt stmt) {
+        if (!stmt.containsInvokeExpr()) {
+            return null;
+        }
+        InvokeExpr invoke = stmt.getInvokeExpr();
+        SootMethodRef ref = invoke.getMethodRef();
+        String className = ref.getDeclaringClass().getName();
+        if (invoke instanceof StaticInvokeExpr && invoke.getArgCount() == 0
+                && CONTEXT_LOOKUPS.getOrDefault(className, Collections.emptySet()).contains(ref.getName())) {
+            return "static " + className + "." + ref.getName();
+        }
+        if (invoke instanceof InstanceInvokeExpr && invoke.getArgCount() == 0
+                && IMMUTABLE_GETTERS.getOrDefault(className, Collections.emptySet()).contains(ref.getName())) {
+            Value base = ((InstanceInvokeExpr) invoke).getBase();
+            return base.toString() + "." + className + "." + ref.getName();
+        }
+        return null;
+    }
+
+    private static void clearContextLookups(Map<String, Local> available) {
+        available.keySet().removeIf(key -> key.startsWith("static "));
+    }
+
+    /**
+     * Forget the lookups whose receiver or result the unit redefines
+     */
+    private static void removeRedefined(Map<String, Local> available, Unit unit) {
+        for (ValueBox box : unit.getDefBoxes()) {
+            Value def = box.getValue();
+            if (!(def instanceof Local)) {
+                continue;
+            }
+            String prefix = def.toString() + ".";
+            available.entrySet().removeIf(entry -> entry.getValue() == def || entry.getKey().startsWith(prefix));
+        }
+    }
+}
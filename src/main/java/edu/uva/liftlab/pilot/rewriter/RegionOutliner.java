@@ -0,0 +1,363 @@
+package edu.uva.liftlab.pilot.rewriter;
+
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.*;
+import soot.jimple.*;
+import soot.toolkits.graph.ExceptionalUnitGraph;
+import soot.toolkits.scalar.LiveLocals;
+import soot.toolkits.scalar.SimpleLiveLocals;
+
+import java.util.*;
+
+import static edu.uva.liftlab.pilot.util.Constants.INSTRUMENTATION_SUFFIX;
+import static edu.uva.liftlab.pilot.util.Constants.REGION_HELPER_SUFFIX;
+
+/**
+ * RegionOutliner - Splits a $instrumentation method that is still larger than the huge method limit
+ * with outlined barriers, by moving regions of its body to static helpers of its class.
+ *
+ * A region is a range of units that control enters only at its first unit, and leaves only to the
+ * unit after it, by a jump or by falling through, or by an exception. The region is replaced by a
+ * call to m$pilotRegionN$instrumentation, which takes the locals that are live into the region and
+ * returns the local the region assigns and the rest of the body reads, if any. The helpers keep the
+ * $instrumentation suffix, so that the later passes treat them as pilot code.
+ *
+ * A region is left in place if
+ * - it has an identity, return or monitor unit, or a super or private call, which need the frame of the method
+ * - a trap starts, ends or is handled inside it; a trap that covers it covers the call instead
+ * - it calls a constructor on an object it did not allocate, or allocates an object it does not construct
+ * - more than one of the locals it assigns are read after it, or one is read by a handler that covers it
+ */
+public class RegionOutliner {
+    private static final Logger LOG = LoggerFactory.getLogger(RegionOutliner.class);
+
+    // Smaller regions save less than the call costs
+    private static final int MIN_REGION_UNITS = 16;
+
+    private static final int MAX_PARAMETERS = 64;
+
+    private final SootMethod method;
+    private final Body body;
+    private final List<Unit> units;
+    private final Map<Unit, Integer> indices = new HashMap<>();
+    // indices of the units each unit jumps to, and of the units that jump to it
+    private final List<List<Integer>> targets = new ArrayList<>();
+    private final List<List<Integer>> sources = new ArrayList<>();
+    private final BitSet trapBoundaries = new BitSet();
+    private final LiveLocals liveLocals;
+
+    private RegionOutliner(SootMethod method, Body body) {
+        this.method = method;
+        this.body = body;
+        this.units = new ArrayList<>(body.getUnits());
+        for (int i = 0; i < units.size(); i++) {
+            indices.put(units.get(i), i);
+            targets.add(new ArrayList<>());
+            sources.add(new ArrayList<>());
+        }
+        for (int i = 0; i < units.size(); i++) {
+            for (UnitBox box : units.get(i).getUnitBoxes()) {
+                int target = indices.get(box.getUnit());
+                targets.get(i).add(target);
+                sources.get(target).add(i);
+            }
+        }
+        for (Trap trap : body.getTraps()) {
+            trapBoundaries.set(indices.get(trap.getBeginUnit()));
+            trapBoundaries.set(indices.get(trap.getEndUnit()));
+            trapBoundaries.set(indices.get(trap.getHandlerUnit()));
+        }
+        this.liveLocals = new SimpleLiveLocals(new ExceptionalUnitGraph(body));
+    }
+
+    /**
+     * Move regions of the body of the method to helpers until its estimated size is well below the limit
+     * @param size the current bytecode size of the method
+     * @return the number of helpers the method calls now, 0 if no region could move
+     */
+    public static int split(SootMethod method, int size, int limit) {
+        Body original = method.getActiveBody();
+        Body body = Jimple.v().newBody(method);
+        body.importBodyContentsFrom(original);
+        RegionOutliner outliner = new RegionOutliner(method, body);
+
+        List<Region> regions = outliner.findRegions(size, limit);
+        if (regions.isEmpty()) {
+            return 0;
+        }
+        List<SootMethod> helpers = new ArrayList<>();
+        try {
+            for (Region region : regions) {
+                helpers.add(outliner.outline(region, helpers.size() + 1));
+            }
+            body.validate();
+            for (SootMethod helper : helpers) {
+                helper.getActiveBody().validate();
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Huge method guard: failed to split {}, leaving it as is: {}", method.getSignature(), e.toString());
+            for (SootMethod helper : helpers) {
+                method.getDeclaringClass().removeMethod(helper);
+            }
+            return 0;
+        }
+        method.setActiveBody(body);
+        PilotTransformer.regionHelperCount += helpers.size();
+        return helpers.size();
+    }
+
+    /**
+     * Pick disjoint regions, first come first, the largest one at each start, until the estimated
+     * size of the method is three quarters of the limit. The size of a unit is estimated as the
+     * average of the method, and a region is kept to half the limit, so that the helpers compile.
+     */
+    private List<Region> findRegions(int size, int limit) {
+        int bytesPerUnit = Math.max(1, size / Math.max(1, units.size()));
+        int maxUnits = Math.max(MIN_REGION_UNITS, limit / 2 / bytesPerUnit);
+        int toSave = size - limit * 3 / 4;
+        List<Region> regions = new ArrayList<>();
+        int start = 0;
+        while (start < units.size() && toSave > 0) {
+            Region region = findRegion(start, maxUnits);
+            if (region == null) {
+                start++;
+                continue;
+            }
+            regions.add(region);
+            toSave -= (region.end - region.start - 1) * bytesPerUnit;
+            start = region.end;
+        }
+        return regions;
+    }
+
+    /**
+     * @return the largest region that starts at the unit and can move, or null
+     */
+    private Region findRegion(int start, int maxUnits) {
+        // edges with one end in the region: exits by target, entries into a unit other than the start by source
+        Map<Integer, Integer> exits = new HashMap<>();
+        Map<Integer, Integer> badEntries = new HashMap<>();
+        int exitCount = 0;
+        int badEntryCount = 0;
+        List<Integer> ends = new ArrayList<>();
+        for (int i = start; i < units.size() - 1 && i - start < maxUnits; i++) {
+            if (!canMove(units.get(i)) || (i > start && trapBoundaries.get(i))) {
+                break;
+            }
+            exitCount -= exits.getOrDefault(i, 0);
+            badEntryCount -= badEntries.getOrDefault(i, 0);
+            boolean enterable = true;
+            for (int target : targets.get(i)) {
+                if (target < start) {
+                    enterable = false;
+                } else if (target > i) {
+                    exits.merge(target, 1, Integer::sum);
+                    exitCount++;
+                }
+            }
+            for (int source : sources.get(i)) {
+                if (i == start) {
+                    continue;
+                }
+                if (source < start) {
+                    enterable = false;
+                } else if (source > i) {
+                    badEntries.merge(source, 1, Integer::sum);
+                    badEntryCount++;
+                }
+            }
+            if (!enterable) {
+                break;
+            }
+            int end = i + 1;
+            if (end - start >= MIN_REGION_UNITS && badEntryCount == 0 && exitCount == exits.getOrDefault(end, 0)) {
+                ends.add(end);
+            }
+        }
+        for (int k = ends.size() - 1; k >= 0; k--) {
+            Region region = createRegion(start, ends.get(k));
+            if (region != null) {
+                return region;
+            }
+        }
+        return null;
+    }
+
+    private static boolean canMove(Unit unit) {
+        if (unit instanceof IdentityStmt || unit instanceof ReturnStmt || unit instanceof ReturnVoidStmt
+                || unit instanceof MonitorStmt || unit instanceof RetStmt) {
+            return false;
+        }
+        Stmt stmt = (Stmt) unit;
+        return !stmt.containsInvokeExpr() || !(stmt.getInvokeExpr() instanceof SpecialInvokeExpr)
+                || stmt.getInvokeExpr().getMethodRef().getName().equals(SootMethod.constructorName);
+    }
+
+    /**
+     * @return the region if its locals can be passed in and out, or null
+     */
+    private Region createRegion(int start, int end) {
+        Set<Local> locals = new LinkedHashSet<>();
+        Set<Local> defined = new HashSet<>();
+        Set<Local> allocated = new HashSet<>();
+        Set<Local> constructed = new HashSet<>();
+        for (int i = start; i < end; i++) {
+            Stmt stmt = (Stmt) units.get(i);
+            for (ValueBox box : stmt.getUseAndDefBoxes()) {
+                if (box.getValue() instanceof Local) {
+                    locals.add((Local) box.getValue());
+                }
+            }
+            for (ValueBox box : stmt.getDefBoxes()) {
+                if (box.getValue() instanceof Local) {
+                    defined.add((Local) box.getValue());
+                }
+            }
+            if (stmt instanceof AssignStmt && ((AssignStmt) stmt).getRightOp() instanceof NewExpr) {
+                allocated.add((Local) ((AssignStmt) stmt).getLeftOp());
+            }
+            if (stmt.containsInvokeExpr() && stmt.getInvokeExpr() instanceof SpecialInvokeExpr) {
+                constructed.add((Local) ((SpecialInvokeExpr) stmt.getInvokeExpr()).getBase());
+            }
+        }
+        if (!allocated.equals(constructed)) {
+            return null;
+        }
+        // a handler that covers the region can't see what the helper assigned before it threw
+        for (Trap trap : body.getTraps()) {
+            if (indices.get(trap.getBeginUnit()) <= start && indices.get(trap.getEndUnit()) >= end) {
+                for (Local local : liveLocals.getLiveLocalsBefore(trap.getHandlerUnit())) {
+                    if (defined.contains(local)) {
+                        return null;
+                    }
+                }
+            }
+        }
+        List<Local> liveIn = new ArrayList<>();
+        List<Local> liveBefore = liveLocals.getLiveLocalsBefore(units.get(start));
+        for (Local local : locals) {
+            if (liveBefore.contains(local)) {
+                liveIn.add(local);
+            }
+        }
+        Local liveOut = null;
+        for (Local local : liveLocals.getLiveLocalsBefore(units.get(end))) {
+            if (!defined.contains(local)) {
+                continue;
+            }
+            if (liveOut != null) {
+                return null;
+            }
+            liveOut = local;
+        }
+        if (liveIn.size() > MAX_PARAMETERS) {
+            return null;
+        }
+        for (Local local : liveIn) {
+            if (!isPassable(local.getType())) {
+                return null;
+            }
+        }
+        if (liveOut != null && !isPassable(liveOut.getType())) {
+            return null;
+        }
+        return new Region(start, end, locals, liveIn, liveOut);
+    }
+
+    private static boolean isPassable(Type type) {
+        return type instanceof PrimType || type instanceof RefType || type instanceof ArrayType;
+    }
+
+    /**
+     * Move the units of the region to a new helper, and call it instead
+     */
+    private SootMethod outline(Region region, int number) {
+        SootClass sc = method.getDeclaringClass();
+        String baseName = method.getName().substring(0, method.getName().length() - INSTRUMENTATION_SUFFIX.length());
+        List<Type> parameterTypes = new ArrayList<>();
+        for (Local local : region.liveIn) {
+            parameterTypes.add(local.getType());
+        }
+        Type returnType = region.liveOut == null ? VoidType.v() : region.liveOut.getType();
+        // overloads share the base name
+        String name = baseName + REGION_HELPER_SUFFIX + number + INSTRUMENTATION_SUFFIX;
+        for (int n = number + 1; sc.declaresMethodByName(name); n++) {
+            name = baseName + REGION_HELPER_SUFFIX + n + INSTRUMENTATION_SUFFIX;
+        }
+        SootMethod helper = new SootMethod(name, parameterTypes, returnType, Modifier.PUBLIC | Modifier.STATIC);
+        sc.addMethod(helper);
+        Body helperBody = Jimple.v().newBody(helper);
+        helper.setActiveBody(helperBody);
+
+        Map<Local, Local> helperLocals = new HashMap<>();
+        for (Local local : region.locals) {
+            Local copy = (Local) local.clone();
+            helperBody.getLocals().add(copy);
+            helperLocals.put(local, copy);
+        }
+        for (int i = 0; i < region.liveIn.size(); i++) {
+            Local local = region.liveIn.get(i);
+            helperBody.getUnits().add(Jimple.v().newIdentityStmt(helperLocals.get(local),
+                    Jimple.v().newParameterRef(local.getType(), i)));
+        }
+        Unit ret = region.liveOut == null ? Jimple.v().newReturnVoidStmt()
+                : Jimple.v().newReturnStmt(helperLocals.get(region.liveOut));
+        Map<Unit, Unit> helperUnits = new HashMap<>();
+        List<Unit> copies = new ArrayList<>();
+        for (int i = region.start; i < region.end; i++) {
+            Unit copy = (Unit) units.get(i).clone();
+            helperUnits.put(units.get(i), copy);
+            copies.add(copy);
+        }
+        for (Unit copy : copies) {
+            for (UnitBox box : copy.getUnitBoxes()) {
+                // a jump out of the region goes to the unit after it
+                box.setUnit(helperUnits.getOrDefault(box.getUnit(), ret));
+            }
+            for (ValueBox box : copy.getUseAndDefBoxes()) {
+                if (box.getValue() instanceof Local) {
+                    box.setValue(helperLocals.get(box.getValue()));
+                }
+            }
+            helperBody.getUnits().add(copy);
+        }
+        helperBody.getUnits().add(ret);
+
+        InvokeExpr call = Jimple.v().newStaticInvokeExpr(helper.makeRef(), new ArrayList<Value>(region.liveIn));
+        Stmt callStmt = region.liveOut == null ? Jimple.v().newInvokeStmt(call)
+                : Jimple.v().newAssignStmt(region.liveOut, call);
+        Unit first = units.get(region.start);
+        body.getUnits().insertBeforeNoRedirect(callStmt, first);
+        // the jumps to the region, and the traps that begin or end at it, now begin or end at the call
+        for (UnitBox box : new ArrayList<>(first.getBoxesPointingToThis())) {
+            box.setUnit(callStmt);
+        }
+        for (int i = region.start; i < region.end; i++) {
+            units.get(i).clearUnitBoxes();
+        }
+        for (int i = region.start; i < region.end; i++) {
+            body.getUnits().remove(units.get(i));
+        }
+        LOG.debug("Huge method guard: moved units {} to {} of {} to {}", region.start, region.end,
+                method.getSignature(), helper.getSignature());
+        return helper;
+    }
+
+    private static class Region {
+        final int start;
+        final int end;
+        final Collection<Local> locals;
+        final List<Local> liveIn;
+        final Local liveOut;
+
+        Region(int start, int end, Collection<Local> locals, List<Local> liveIn, Local liveOut) {
+            this.start = start;
+            this.end = end;
+            this.locals = locals;
+            this.liveIn = liveIn;
+            this.liveOut = liveOut;
+        }
+    }
+}
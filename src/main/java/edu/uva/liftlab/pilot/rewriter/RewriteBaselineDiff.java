@@ -0,0 +1,191 @@
+package edu.uva.liftlab.pilot.rewriter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * RewriteBaselineDiff - Compares the Jimple output of the engine with the Jimple output of a
+ * baseline engine on the same classes, see scripts/instrument/rewriter_baseline_diff.sh.
+ *
+ * Usage: RewriteBaselineDiff baseline-dir actual-dir
+ * Locals are compared by order of first use, as the names picked by LocalGeneratorUtil depend on
+ * the order in which the passes create them, and fields by set, as their order depends on the
+ * order in which the passes add them. Prints the first differing line of every method that
+ * differs, and exits with 1 if any class, field or method differs.
+ */
+public class RewriteBaselineDiff {
+
+    private static final Pattern IDENTIFIER = Pattern.compile("(?<![\\w$.])[\\w$]+(?![\\w$])");
+    // "type local, local;", but not the statements of the same shape
+    private static final Pattern DECLARATION = Pattern.compile(
+            "(?!(return|throw|goto|entermonitor|exitmonitor) )[\\w$.\\[\\]]+ [\\w$]+(, [\\w$]+)*;");
+
+    private final PrintStream out;
+    private int comparedMethods = 0;
+    private int differences = 0;
+
+    public RewriteBaselineDiff(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: RewriteBaselineDiff <baseline jimple dir> <actual jimple dir>");
+            System.exit(2);
+        }
+        RewriteBaselineDiff diff = new RewriteBaselineDiff(System.out);
+        diff.compareDirectories(Paths.get(args[0]), Paths.get(args[1]));
+        System.exit(diff.differences == 0 ? 0 : 1);
+    }
+
+    public int compareDirectories(Path baselineDir, Path actualDir) throws IOException {
+        Set<String> baselineFiles = listJimpleFiles(baselineDir);
+        Set<String> actualFiles = listJimpleFiles(actualDir);
+        Set<String> files = new TreeSet<>(baselineFiles);
+        files.addAll(actualFiles);
+        int comparedClasses = 0;
+        for (String file : files) {
+            if (!actualFiles.contains(file)) {
+                report("class " + file + " is only in the baseline");
+            } else if (!baselineFiles.contains(file)) {
+                report("class " + file + " is only in the actual output");
+            } else {
+                comparedClasses++;
+                compareClasses(file, parse(baselineDir.resolve(file)), parse(actualDir.resolve(file)));
+            }
+        }
+        out.println("Rewriter baseline diff: " + comparedClasses + " classes and " + comparedMethods
+                + " methods compared, " + differences + " differences");
+        return differences;
+    }
+
+    private void compareClasses(String file, Map<String, List<String>> baseline, Map<String, List<String>> actual) {
+        Set<String> members = new TreeSet<>(baseline.keySet());
+        members.addAll(actual.keySet());
+        for (String member : members) {
+            List<String> expectedLines = baseline.get(member);
+            List<String> actualLines = actual.get(member);
+            if (actualLines == null) {
+                report(file + ": " + member + " is only in the baseline");
+                continue;
+            }
+            if (expectedLines == null) {
+                report(file + ": " + member + " is only in the actual output");
+                continue;
+            }
+            comparedMethods++;
+            if (expectedLines.equals(actualLines)) {
+                continue;
+            }
+            int i = 0;
+            while (i < expectedLines.size() && i < actualLines.size()
+                    && expectedLines.get(i).equals(actualLines.get(i))) {
+                i++;
+            }
+            report(file + ": " + member + " differs at line " + i + ": expected '"
+                    + (i < expectedLines.size() ? expectedLines.get(i) : "<end>") + "', got '"
+                    + (i < actualLines.size() ? actualLines.get(i) : "<end>") + "'");
+        }
+    }
+
+    private void report(String difference) {
+        differences++;
+        out.println(difference);
+    }
+
+    private static Set<String> listJimpleFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString()).filter(name -> name.endsWith(".jimple"))
+                    .collect(Collectors.toCollection(TreeSet::new));
+        }
+    }
+
+    /**
+     * @return the canonical lines of every member of the class, keyed by the member declaration;
+     * the fields are kept together under "fields", the header of the class under "class"
+     */
+    static Map<String, List<String>> parse(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        Map<String, List<String>> members = new LinkedHashMap<>();
+        List<String> header = new ArrayList<>();
+        List<String> fields = new ArrayList<>();
+        int i = 0;
+        while (i < lines.size() && !lines.get(i).equals("{")) {
+            header.add(lines.get(i).trim());
+            i++;
+        }
+        for (i++; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.trim().isEmpty() || line.equals("}")) {
+                continue;
+            }
+            if (line.endsWith(";")) {
+                fields.add(line.trim());
+                continue;
+            }
+            // a method: its declaration, "    {", the body, "    }"
+            String declaration = line.trim();
+            List<String> body = new ArrayList<>();
+            for (i += 2; i < lines.size() && !lines.get(i).equals("    }"); i++) {
+                body.add(lines.get(i));
+            }
+            members.put(declaration, canonicalize(body));
+        }
+        Collections.sort(fields);
+        members.put("class", header);
+        members.put("fields", fields);
+        return members;
+    }
+
+    /**
+     * Rename the locals of a method body to l1, l2, ... by order of first use
+     */
+    private static List<String> canonicalize(List<String> body) {
+        Map<String, String> types = new HashMap<>();
+        int i = 0;
+        // the local declarations come first
+        for (; i < body.size() && DECLARATION.matcher(body.get(i).trim()).matches(); i++) {
+            String declaration = body.get(i).trim();
+            int space = declaration.indexOf(' ');
+            String type = declaration.substring(0, space);
+            for (String local : declaration.substring(space + 1, declaration.length() - 1).split(",")) {
+                types.put(local.trim(), type);
+            }
+        }
+        Map<String, String> names = new HashMap<>();
+        List<String> statements = new ArrayList<>();
+        for (; i < body.size(); i++) {
+            String statement = body.get(i).trim();
+            if (statement.isEmpty()) {
+                continue;
+            }
+            Matcher matcher = IDENTIFIER.matcher(statement);
+            StringBuffer renamed = new StringBuffer();
+            while (matcher.find()) {
+                String token = matcher.group();
+                if (types.containsKey(token)) {
+                    String name = names.computeIfAbsent(token, local -> "l" + (names.size() + 1));
+                    matcher.appendReplacement(renamed, Matcher.quoteReplacement(name));
+                }
+            }
+            matcher.appendTail(renamed);
+            statements.add(renamed.toString());
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, String> entry : names.entrySet()) {
+            lines.add("local " + types.get(entry.getKey()) + " " + entry.getValue());
+        }
+        Collections.sort(lines);
+        lines.addAll(statements);
+        return lines;
+    }
+}
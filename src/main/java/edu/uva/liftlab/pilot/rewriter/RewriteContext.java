@@ -0,0 +1,68 @@
+package edu.uva.liftlab.pilot.rewriter;
+
+import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
+import soot.Body;
+import soot.SootMethod;
+import soot.UnitPatchingChain;
+import soot.jimple.Stmt;
+
+/**
+ * The body being rewritten by {@link BodyRewriter} and the unit the passes are visiting.
+ * Passes that replace or remove the current unit go through {@link #replace} and {@link #remove},
+ * so that the following passes see the replacement, or skip the unit.
+ */
+public class RewriteContext {
+    private final Body body;
+    private final UnitPatchingChain units;
+    private final LocalGeneratorUtil localGenerator;
+    private Stmt current;
+
+    RewriteContext(Body body) {
+        this.body = body;
+        this.units = body.getUnits();
+        this.localGenerator = new LocalGeneratorUtil(body);
+    }
+
+    public Body getBody() {
+        return body;
+    }
+
+    public SootMethod getMethod() {
+        return body.getMethod();
+    }
+
+    public UnitPatchingChain getUnits() {
+        return units;
+    }
+
+    public LocalGeneratorUtil getLocalGenerator() {
+        return localGenerator;
+    }
+
+    /**
+     * @return the unit being visited, or null if a pass removed it
+     */
+    public Stmt getCurrent() {
+        return current;
+    }
+
+    void setCurrent(Stmt current) {
+        this.current = current;
+    }
+
+    /**
+     * Replace the current unit, jumps to it are redirected to the replacement
+     */
+    public void replace(Stmt replacement) {
+        units.swapWith(current, replacement);
+        current = replacement;
+    }
+
+    /**
+     * Remove the current unit, the remaining passes are not called on it
+     */
+    public void remove() {
+        units.remove(current);
+        current = null;
+    }
+}
@@ -0,0 +1,338 @@
+package edu.uva.liftlab.pilot.shard;
+
+import edu.uva.liftlab.pilot.RCMain;
+import edu.uva.liftlab.pilot.option.RCOptions;
+import edu.uva.liftlab.pilot.util.SiteTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Drives a sharded instrumentation run:
+ * 1. A planner JVM runs the whole-program work once (class hierarchy, call graph, filter
+ *    decisions) and saves a {@link ShardPlan}.
+ * 2. N worker JVMs, each with a bounded heap, load the plan and rewrite the bodies of the
+ *    classes of their shard only, without building a call graph.
+ * 3. The outputs of the workers are merged into the output directory.
+ */
+public class ShardCoordinator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    public static final String SHARD_DIR = "shards";
+    public static final String PLAN_FILE = "plan.json";
+    // Hidden so that it survives the cleanup of the output directory between runs
+    public static final String TIMING_FILE = ".pilot-timing.properties";
+    private static final String SINGLE_PROCESS_TIME = "single_process_ms";
+    private static final String SINGLE_PROCESS_RUN = "single_process_run";
+    private static final String DEFAULT_OUTPUT_DIR = "sootOutput";
+
+    // Options that only make sense for the coordinator and are not passed to the sub JVMs
+    private static final Set<String> COORDINATOR_OPTIONS = new HashSet<>(Arrays.asList(
+            "-o", "--outdir", "--shards", "--shard_heap"));
+    // JVM options that are not passed to the sub JVMs: a debugger or profiler agent in every
+    // sub JVM would compete for the same port or output file
+    private static final List<String> AGENT_OPTION_PREFIXES = Arrays.asList(
+            "-agentlib:", "-agentpath:", "-javaagent:", "-Xrunjdwp", "-Xdebug");
+
+    private final RCOptions options;
+    private final String[] args;
+    private final Path outputDir;
+    private final Path shardDir;
+
+    public ShardCoordinator(RCOptions options, String[] args) {
+        this.options = options;
+        this.args = args;
+        this.outputDir = Paths.get(getOutputDir(options));
+        this.shardDir = outputDir.resolve(SHARD_DIR);
+    }
+
+    public boolean run() {
+        int shardCount = options.getShardCount();
+        Path planPath = shardDir.resolve(PLAN_FILE);
+        try {
+            deleteRecursively(shardDir);
+            Files.createDirectories(shardDir);
+
+            long start = System.currentTimeMillis();
+            LOG.info("Planning {} shards into {}", shardCount, planPath);
+            List<String> planCommand = buildCommand(getJvmArguments(null), planPath, -1, shardDir.resolve("plan"));
+            if (waitFor(start(planCommand, shardDir.resolve("plan.log"))) != 0) {
+                LOG.error("Shard planning failed, see {}", shardDir.resolve("plan.log"));
+                return false;
+            }
+            long planTime = System.currentTimeMillis() - start;
+
+            long workerStart = System.currentTimeMillis();
+            List<Process> workers = new ArrayList<>();
+            for (int i = 0; i < shardCount; i++) {
+                List<String> command = buildCommand(getJvmArguments(options.getShardHeap()), planPath, i,
+                        shardDir.resolve(String.valueOf(i)));
+                workers.add(start(command, shardDir.resolve("shard-" + i + ".log")));
+            }
+            boolean success = true;
+            for (int i = 0; i < shardCount; i++) {
+                if (waitFor(workers.get(i)) != 0) {
+                    LOG.error("Shard {} failed, see {}", i, shardDir.resolve("shard-" + i + ".log"));
+                    success = false;
+                }
+            }
+            if (!success) {
+                return false;
+            }
+            long workerTime = System.currentTimeMillis() - workerStart;
+
+            long mergeStart = System.currentTimeMillis();
+            for (int i = 0; i < shardCount; i++) {
+                mergeInto(shardDir.resolve(String.valueOf(i)), outputDir);
+                deleteRecursively(shardDir.resolve(String.valueOf(i)));
+            }
+            long mergeTime = System.currentTimeMillis() - mergeStart;
+
+            report(shardCount, planTime, workerTime, mergeTime, System.currentTimeMillis() - start);
+            return true;
+        } catch (IOException | InterruptedException e) {
+            LOG.error("Sharded instrumentation failed: " + e);
+            return false;
+        }
+    }
+
+    private void report(int shardCount, long planTime, long workerTime, long mergeTime, long totalTime) {
+        LOG.info("Sharded instrumentation with {} shards finished in {} ms (planning {} ms, workers {} ms, merge {} ms)",
+                shardCount, totalTime, planTime, workerTime, mergeTime);
+        Properties timing = loadTiming(outputDir);
+        String singleProcessTime = timing.getProperty(SINGLE_PROCESS_TIME);
+        if (singleProcessTime == null) {
+            LOG.info("No single-process timing recorded in {}, run once without --shards to get a baseline",
+                    outputDir.resolve(TIMING_FILE));
+            return;
+        }
+        if (!describeRun(options).equals(timing.getProperty(SINGLE_PROCESS_RUN))) {
+            LOG.info("The single-process run recorded in {} instrumented other classes or used another configuration, "
+                    + "run once without --shards with the same options to get a baseline", outputDir.resolve(TIMING_FILE));
+            return;
+        }
+        long baseline = Long.parseLong(singleProcessTime);
+        LOG.info("Speedup against the single-process run ({} ms): {}x",
+                baseline, String.format("%.2f", (double) baseline / Math.max(totalTime, 1)));
+    }
+
+    /**
+     * Record the run time of a single-process run, used as the baseline of the sharded runs with
+     * the same options
+     */
+    public static void recordSingleProcessTime(RCOptions options, long runtime) {
+        Path outputDir = Paths.get(getOutputDir(options));
+        Properties timing = loadTiming(outputDir);
+        timing.setProperty(SINGLE_PROCESS_TIME, String.valueOf(runtime));
+        timing.setProperty(SINGLE_PROCESS_RUN, describeRun(options));
+        try (OutputStream out = Files.newOutputStream(outputDir.resolve(TIMING_FILE))) {
+            timing.store(out, "PILOT instrumentation timing");
+        } catch (IOException e) {
+            LOG.warn("Failed to record instrumentation time: " + e);
+        }
+    }
+
+    private static Properties loadTiming(Path outputDir) {
+        Properties timing = new Properties();
+        Path timingFile = outputDir.resolve(TIMING_FILE);
+        if (Files.isRegularFile(timingFile)) {
+            try (InputStream in = Files.newInputStream(timingFile)) {
+                timing.load(in);
+            } catch (IOException e) {
+                LOG.warn("Failed to read " + timingFile + ": " + e);
+            }
+        }
+        return timing;
+    }
+
+    /**
+     * @return the options that decide what a run instruments and how, all but the output
+     * directory and the shard options, with a checksum of the config file
+     */
+    private static String describeRun(RCOptions options) {
+        Properties overrides = options.getOverrideProperties();
+        return String.join(";", Arrays.asList(
+                "classpath=" + options.getClassPath(),
+                "inputs=" + options.getInputList(),
+                "classes=" + Arrays.toString(options.getClasses()),
+                "main=" + options.getMainClass(),
+                "analyses=" + Arrays.toString(options.getAnalyses()),
+                "phase_options=" + new TreeMap<>(options.getPhaseOptions()),
+                "overrides=" + (overrides == null ? "{}" : new TreeMap<>(overrides)),
+                "executable=" + options.genExecutable(),
+                "jar=" + options.isOutputJar(),
+                "cache=" + options.getCacheDir(),
+                "config=" + checksum(options.getConfigFilePath())));
+    }
+
+    private static String checksum(String file) {
+        if (file == null) {
+            return "none";
+        }
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(Files.readAllBytes(Paths.get(file)));
+            return Long.toHexString(crc.getValue());
+        } catch (IOException e) {
+            return "unreadable";
+        }
+    }
+
+    private static String getOutputDir(RCOptions options) {
+        return options.getOutputDir() != null ? options.getOutputDir() : DEFAULT_OUTPUT_DIR;
+    }
+
+    private List<String> getJvmArguments(String heap) {
+        List<String> jvmArgs = new ArrayList<>();
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (heap != null && arg.startsWith("-Xmx")) {
+                continue;
+            }
+            if (isAgentOption(arg)) {
+                LOG.debug("Not passing {} to the sub JVMs", arg);
+                continue;
+            }
+            jvmArgs.add(arg);
+        }
+        if (heap != null) {
+            jvmArgs.add("-Xmx" + heap);
+        }
+        return jvmArgs;
+    }
+
+    private static boolean isAgentOption(String arg) {
+        for (String prefix : AGENT_OPTION_PREFIXES) {
+            if (arg.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<String> buildCommand(List<String> jvmArgs, Path planPath, int shardIndex, Path shardOutputDir) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(RCMain.class.getName());
+        command.add("-o");
+        command.add(shardOutputDir.toString());
+        command.add("--shard_plan");
+        command.add(planPath.toString());
+        if (shardIndex >= 0) {
+            command.add("--shard_index");
+            command.add(String.valueOf(shardIndex));
+        } else {
+            command.add("--shards");
+            command.add(String.valueOf(options.getShardCount()));
+        }
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (COORDINATOR_OPTIONS.contains(arg)) {
+                i++; // skip the value as well
+                continue;
+            }
+            if (arg.startsWith("--shards=") || arg.startsWith("--shard_heap=") || arg.startsWith("--outdir=")) {
+                continue;
+            }
+            command.add(arg);
+        }
+        return command;
+    }
+
+    private Process start(List<String> command, Path log) throws IOException {
+        LOG.debug("Starting {}", String.join(" ", command));
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+    }
+
+    private int waitFor(Process process) throws InterruptedException {
+        return process.waitFor();
+    }
+
+    /**
+     * Copy the output of a worker into the output directory. Jars with the same name are
+     * merged entry by entry, site tables site by site, every other file is copied.
+     */
+    private void mergeInto(Path source, Path target) throws IOException {
+        if (!Files.isDirectory(source)) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(source)) {
+            stream.filter(Files::isRegularFile).forEach(files::add);
+        }
+        for (Path file : files) {
+            Path dest = target.resolve(source.relativize(file).toString());
+            Files.createDirectories(dest.toAbsolutePath().getParent());
+            if (file.toString().endsWith(".jar") && Files.exists(dest)) {
+                mergeJar(file, dest);
+            } else if (SiteTable.FILES.contains(file.getFileName().toString())) {
+                SiteTable.merge(file, dest);
+            } else {
+                Files.copy(file, dest, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private void mergeJar(Path source, Path dest) throws IOException {
+        Path merged = dest.resolveSibling(dest.getFileName() + ".merge");
+        Set<String> names = new HashSet<>();
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(merged))) {
+            copyEntries(dest, out, names);
+            copyEntries(source, out, names);
+        }
+        Files.move(merged, dest, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Copy the entries of the jar that are not in names yet. Read with JarFile, as JarInputStream
+     * consumes META-INF/MANIFEST.MF instead of returning it as an entry.
+     */
+    private void copyEntries(Path jar, JarOutputStream out, Set<String> names) throws IOException {
+        try (JarFile in = new JarFile(jar.toFile())) {
+            byte[] buffer = new byte[8192];
+            for (Enumeration<JarEntry> entries = in.entries(); entries.hasMoreElements(); ) {
+                JarEntry entry = entries.nextElement();
+                if (!names.add(entry.getName())) {
+                    continue;
+                }
+                out.putNextEntry(new JarEntry(entry.getName()));
+                try (InputStream entryIn = in.getInputStream(entry)) {
+                    int read;
+                    while ((read = entryIn.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(dir)) {
+            stream.forEach(paths::add);
+        }
+        Collections.reverse(paths);
+        for (Path path : paths) {
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package edu.uva.liftlab.pilot.shard;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * The result of the whole-program phase of a sharded run, saved to disk so that every worker
+ * JVM can redo only the per-class body rewriting without building a call graph.
+ *
+ * It records which shard rewrites each application class and, when reachability pruning is
+ * enabled, the signatures of the methods that get pilot copies. When the write set analysis is
+ * enabled, it also records the fields pilot runs can write, as the analysis needs the bodies of
+ * every class while a worker only builds those of its shard. The same goes for the immutable
+ * classes of the immutability inference.
+ */
+public class ShardPlan {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardPlan.class);
+
+    private int shardCount;
+    private Map<String, Integer> classShards = new LinkedHashMap<>();
+    // null when every method gets pilot copies
+    private List<String> reachableMethods;
+    // null when every field gets dry run state
+    private List<String> writtenFields;
+    // null when no immutability inference is done
+    private List<String> immutableClasses;
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public Map<String, Integer> getClassShards() {
+        return classShards;
+    }
+
+    public boolean isInShard(SootClass sc, int shardIndex) {
+        Integer shard = classShards.get(sc.getName());
+        return shard == null || shard == shardIndex;
+    }
+
+    /**
+     * Resolve the reachable methods of the plan in the current Scene
+     * @return the reachable methods, or null if no pruning should be done
+     */
+    public Set<SootMethod> resolveReachableMethods() {
+        if (reachableMethods == null) {
+            return null;
+        }
+        Set<SootMethod> methods = new HashSet<>();
+        for (String signature : reachableMethods) {
+            SootMethod method = Scene.v().grabMethod(signature);
+            if (method != null) {
+                methods.add(method);
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * @return the signatures of the fields pilot runs can write, or null if every field gets dry run state
+     */
+    public Set<String> getWrittenFields() {
+        return writtenFields == null ? null : new HashSet<>(writtenFields);
+    }
+
+    /**
+     * @return the classes whose instances cannot change, or null if no immutability inference is done
+     */
+    public Set<String> getImmutableClasses() {
+        return immutableClasses == null ? null : new HashSet<>(immutableClasses);
+    }
+
+    /**
+     * Assign application classes to shards, balancing the number of Jimple units per shard
+     * (longest processing time first).
+     */
+    public static ShardPlan build(ClassFilterHelper filter, Set<SootMethod> reachable, Set<String> writtenFields,
+                                  Set<String> immutableClasses, int shardCount) {
+        ShardPlan plan = new ShardPlan();
+        plan.shardCount = shardCount;
+
+        List<SootClass> classes = new ArrayList<>();
+        Map<SootClass, Long> weights = new HashMap<>();
+        for (SootClass sc : Scene.v().getApplicationClasses()) {
+            if (filter.shouldSkip(sc)) {
+                continue;
+            }
+            classes.add(sc);
+            weights.put(sc, getWeight(sc));
+        }
+        classes.sort((a, b) -> Long.compare(weights.get(b), weights.get(a)));
+
+        long[] load = new long[shardCount];
+        for (SootClass sc : classes) {
+            int lightest = 0;
+            for (int i = 1; i < shardCount; i++) {
+                if (load[i] < load[lightest]) {
+                    lightest = i;
+                }
+            }
+            load[lightest] += weights.get(sc);
+            plan.classShards.put(sc.getName(), lightest);
+        }
+
+        if (reachable != null) {
+            plan.reachableMethods = new ArrayList<>();
+            for (SootMethod method : reachable) {
+                plan.reachableMethods.add(method.getSignature());
+            }
+        }
+        if (writtenFields != null) {
+            plan.writtenFields = new ArrayList<>(new TreeSet<>(writtenFields));
+        }
+        if (immutableClasses != null) {
+            plan.immutableClasses = new ArrayList<>(new TreeSet<>(immutableClasses));
+        }
+        LOG.info("Shard plan: {} classes over {} shards, units per shard {}",
+                classes.size(), shardCount, Arrays.toString(load));
+        return plan;
+    }
+
+    private static long getWeight(SootClass sc) {
+        long weight = 1;
+        for (SootMethod method : sc.getMethods()) {
+            weight += method.hasActiveBody() ? method.getActiveBody().getUnits().size() : 1;
+        }
+        return weight;
+    }
+
+    public void save(Path path) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            new GsonBuilder().create().toJson(this, writer);
+        }
+    }
+
+    public static ShardPlan load(Path path) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return new Gson().fromJson(reader, ShardPlan.class);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package edu.uva.liftlab.pilot.staticanalysis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.*;
+import soot.jimple.*;
+
+import java.util.*;
+
+/**
+ * ImmutabilityAnalyzer - Computes the application classes whose instances cannot change after
+ * construction, so that pilot runs can alias them instead of copying them.
+ *
+ * A class is immutable when:
+ * 1. Its instance fields, and those of its superclasses, are final, and of a primitive or an
+ *    immutable type (transitively). Without a non final field, no method can mutate an instance.
+ * 2. Its constructors do not let this escape: this is not stored, passed to a call, or the base of
+ *    a call other than a constructor of the superclass or of the class itself.
+ * 3. It is final, or all of its subclasses are immutable.
+ *
+ * The classes are assumed immutable until shown otherwise, so that recursive types (a final next
+ * field of the class itself) can be immutable. Besides the application classes, the JDK value
+ * classes below and the library enums are immutable.
+ */
+public class ImmutabilityAnalyzer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImmutabilityAnalyzer.class);
+
+    private static final Set<String> IMMUTABLE_LIBRARY_CLASSES = new HashSet<>(Arrays.asList(
+            "java.lang.String",
+            "java.lang.Boolean",
+            "java.lang.Byte",
+            "java.lang.Character",
+            "java.lang.Short",
+            "java.lang.Integer",
+            "java.lang.Long",
+            "java.lang.Float",
+            "java.lang.Double",
+            "java.lang.Class",
+            "java.math.BigInteger",
+            "java.math.BigDecimal",
+            "java.util.UUID",
+            "java.util.Locale",
+            "java.util.regex.Pattern",
+            "java.io.File",
+            "java.net.URI",
+            "java.time.Instant",
+            "java.time.Duration",
+            "java.time.LocalDate",
+            "java.time.LocalTime",
+            "java.time.LocalDateTime",
+            "java.time.ZonedDateTime"
+    ));
+
+    /**
+     * @return the names of the immutable application classes and of the immutable library classes
+     * used as field types by application classes
+     */
+    public Set<String> computeImmutableClasses() {
+        Set<SootClass> candidates = new LinkedHashSet<>();
+        for (SootClass sc : Scene.v().getApplicationClasses()) {
+            if (!sc.isInterface() && !sc.isPhantom()) {
+                candidates.add(sc);
+            }
+        }
+        Set<String> immutable = new HashSet<>();
+        for (SootClass sc : candidates) {
+            immutable.add(sc.getName());
+            for (SootField field : sc.getFields()) {
+                if (isImmutableLibraryType(field.getType())) {
+                    immutable.add(((RefType) field.getType()).getClassName());
+                }
+            }
+        }
+
+        Map<SootClass, Boolean> escapes = new HashMap<>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (SootClass sc : candidates) {
+                if (immutable.contains(sc.getName()) && !isImmutable(sc, immutable, escapes)) {
+                    immutable.remove(sc.getName());
+                    changed = true;
+                }
+            }
+        }
+
+        int applicationClasses = 0;
+        for (SootClass sc : candidates) {
+            if (immutable.contains(sc.getName())) {
+                applicationClasses++;
+            }
+        }
+        LOG.info("Immutability inference: {} immutable application classes out of {}",
+                applicationClasses, candidates.size());
+        return immutable;
+    }
+
+    private boolean isImmutable(SootClass sc, Set<String> immutable, Map<SootClass, Boolean> escapes) {
+        if (sc.hasSuperclass()) {
+            String superclass = sc.getSuperclass().getName();
+            if (!superclass.equals("java.lang.Object") && !superclass.equals("java.lang.Enum")
+                    && !immutable.contains(superclass)) {
+                return false;
+            }
+        }
+        for (SootField field : sc.getFields()) {
+            if (field.isStatic()) {
+                continue;
+            }
+            Type type = field.getType();
+            boolean immutableType = type instanceof PrimType
+                    || (type instanceof RefType && immutable.contains(((RefType) type).getClassName()));
+            if (!field.isFinal() || !immutableType) {
+                return false;
+            }
+        }
+        if (!sc.isFinal()) {
+            for (SootClass subclass : Scene.v().getOrMakeFastHierarchy().getSubclassesOf(sc)) {
+                if (!immutable.contains(subclass.getName())) {
+                    return false;
+                }
+            }
+        }
+        return !escapes.computeIfAbsent(sc, this::thisEscapesConstructor);
+    }
+
+    private boolean thisEscapesConstructor(SootClass sc) {
+        for (SootMethod method : sc.getMethods()) {
+            if (!method.isConstructor()) {
+                continue;
+            }
+            if (!method.isConcrete()) {
+                return true;
+            }
+            Body body;
+            try {
+                body = method.retrieveActiveBody();
+            } catch (RuntimeException e) {
+                LOG.debug("Could not retrieve body of {}: {}", method.getSignature(), e.getMessage());
+                return true;
+            }
+            if (thisEscapes(body)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the constructor, or a constructor it calls through this(...) or super(...),
+     * may let this escape. The constructor of Object is the only library constructor known not to.
+     */
+    public static boolean constructorLeaksThis(SootMethod constructor) {
+        SootClass sc = constructor.getDeclaringClass();
+        if (sc.getName().equals("java.lang.Object")) {
+            return false;
+        }
+        if (!sc.isApplicationClass() || !constructor.isConcrete()) {
+            return true;
+        }
+        Body body;
+        try {
+            body = constructor.retrieveActiveBody();
+        } catch (RuntimeException e) {
+            LOG.debug("Could not retrieve body of {}: {}", constructor.getSignature(), e.getMessage());
+            return true;
+        }
+        if (thisEscapes(body)) {
+            return true;
+        }
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (stmt.containsInvokeExpr() && stmt.getInvokeExpr() instanceof SpecialInvokeExpr
+                    && ((SpecialInvokeExpr) stmt.getInvokeExpr()).getBase() == body.getThisLocal()
+                    && constructorLeaksThis(stmt.getInvokeExpr().getMethod())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean thisEscapes(Body body) {
+        Set<Value> thisLocals = new HashSet<>();
+        thisLocals.add(body.getThisLocal());
+        for (Unit unit : body.getUnits()) {
+            Stmt stmt = (Stmt) unit;
+            if (stmt instanceof AssignStmt) {
+                AssignStmt assign = (AssignStmt) stmt;
+                if (thisLocals.contains(assign.getRightOp())) {
+                    if (!(assign.getLeftOp() instanceof Local)) {
+                        return true;
+                    }
+                    thisLocals.add(assign.getLeftOp());
+                }
+            }
+            if (stmt instanceof ReturnStmt && thisLocals.contains(((ReturnStmt) stmt).getOp())) {
+                return true;
+            }
+            if (stmt instanceof ThrowStmt || stmt instanceof MonitorStmt) {
+                if (thisLocals.contains(stmt.getUseBoxes().get(0).getValue())) {
+                    return true;
+                }
+            }
+            if (stmt.containsInvokeExpr()) {
+                InvokeExpr invoke = stmt.getInvokeExpr();
+                for (Value arg : invoke.getArgs()) {
+                    if (thisLocals.contains(arg)) {
+                        return true;
+                    }
+                }
+                if (invoke instanceof InstanceInvokeExpr && thisLocals.contains(((InstanceInvokeExpr) invoke).getBase())
+                        && !isOwnConstructorCall(invoke, body.getMethod().getDeclaringClass())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * this(...) or super(...)
+     */
+    private static boolean isOwnConstructorCall(InvokeExpr invoke, SootClass sc) {
+        if (!(invoke instanceof SpecialInvokeExpr) || !invoke.getMethodRef().getName().equals(SootMethod.constructorName)) {
+            return false;
+        }
+        SootClass target = invoke.getMethodRef().getDeclaringClass();
+        return target == sc || (sc.hasSuperclass() && target == sc.getSuperclass());
+    }
+
+    /**
+     * @return whether the type is one of the JDK value classes above or a library enum
+     */
+    public static boolean isImmutableLibraryType(Type type) {
+        if (!(type instanceof RefType)) {
+            return false;
+        }
+        RefType refType = (RefType) type;
+        if (IMMUTABLE_LIBRARY_CLASSES.contains(refType.getClassName())) {
+            return true;
+        }
+        SootClass sc = Scene.v().getSootClassUnsafe(refType.getClassName(), false);
+        return sc != null && !sc.isApplicationClass() && !sc.isPhantom() && sc.isEnum();
+    }
+}
@@ -0,0 +1,253 @@
+package edu.uva.liftlab.pilot.staticanalysis;
+
+import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.*;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.ReachableMethods;
+
+import java.util.*;
+
+/**
+ * PilotReachabilityAnalyzer - Computes the set of methods that a pilot run can reach, so that
+ * pilot copies ($instrumentation / $original) are only generated for those methods.
+ *
+ * A pilot run can only enter the application through:
+ * 1. The methods configured in startpoint_methods
+ * 2. Thread and executor entry points (run() of Runnable/Thread, call() of Callable),
+ *    since pilot context is propagated to asynchronous tasks
+ *
+ * Entries in startpoint_methods can be a Soot method signature
+ * (e.g. &lt;org.apache.solr.cloud.RecoveryStrategy: void run()&gt;), a method name qualified by
+ * its class (org.apache.solr.cloud.RecoveryStrategy.doRecovery, covering all overloads), or a
+ * plain class name (all of its concrete methods).
+ *
+ * The call graph is built over the application classes only, so it misses the calls made from
+ * library code and can resolve a virtual call to fewer targets than the JVM does. The reachable set
+ * is therefore closed over overriders: an application method is reachable if it overrides a
+ * reachable method, since a pilot call of A.foo$instrumentation on a B instance would otherwise run
+ * A's copy when B.foo has none, and if it overrides a library method (compare, hashCode, iterator,
+ * run, ...), since library code called by a pilot run can call it back.
+ */
+public class PilotReachabilityAnalyzer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PilotReachabilityAnalyzer.class);
+
+    private static final String RUNNABLE_CLASS = "java.lang.Runnable";
+    private static final String CALLABLE_CLASS = "java.util.concurrent.Callable";
+    private static final String THREAD_CLASS = "java.lang.Thread";
+
+    private final ClassFilterHelper filter;
+
+    public PilotReachabilityAnalyzer(ClassFilterHelper filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Add the pilot entry points to the entry points of the Scene, so that Spark builds call
+     * graph edges for them even when they are not reachable from a main method.
+     * Must be called after the necessary classes are loaded and before the cg pack runs.
+     */
+    public void registerEntryPoints() {
+        Set<SootMethod> entryPoints = new LinkedHashSet<>(Scene.v().getEntryPoints());
+        entryPoints.addAll(getEntryPoints());
+        Scene.v().setEntryPoints(new ArrayList<>(entryPoints));
+    }
+
+    /**
+     * Compute the methods reachable from the pilot entry points.
+     * @return the reachable methods, or null if no pruning should be done
+     */
+    public Set<SootMethod> computeReachableMethods() {
+        if (!Scene.v().hasCallGraph()) {
+            LOG.warn("No call graph available, reachability pruning is disabled");
+            return null;
+        }
+        Set<SootMethod> entryPoints = getEntryPoints();
+        if (entryPoints.isEmpty()) {
+            LOG.warn("No pilot entry point resolved from startpoint_methods, reachability pruning is disabled");
+            return null;
+        }
+
+        CallGraph cg = Scene.v().getCallGraph();
+        Map<SootMethod, List<SootMethod>> overridden = computeOverriddenMethods();
+        Set<MethodOrMethodContext> roots = new LinkedHashSet<>(entryPoints);
+        // library callbacks, reachable whatever the call graph says
+        for (Map.Entry<SootMethod, List<SootMethod>> entry : overridden.entrySet()) {
+            for (SootMethod method : entry.getValue()) {
+                if (!method.getDeclaringClass().isApplicationClass()) {
+                    roots.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+
+        Set<SootMethod> result = new HashSet<>();
+        while (true) {
+            ReachableMethods reachableMethods = new ReachableMethods(cg, new ArrayList<>(roots));
+            reachableMethods.update();
+            Iterator<MethodOrMethodContext> it = reachableMethods.listener();
+            while (it.hasNext()) {
+                SootMethod method = it.next().method();
+                if (method.getDeclaringClass().isApplicationClass()) {
+                    result.add(method);
+                }
+            }
+            // the overriders of the reachable methods, and what they reach in the next round
+            int rootCount = roots.size();
+            for (Map.Entry<SootMethod, List<SootMethod>> entry : overridden.entrySet()) {
+                if (result.contains(entry.getKey()) || roots.contains(entry.getKey())) {
+                    continue;
+                }
+                for (SootMethod method : entry.getValue()) {
+                    if (result.contains(method)) {
+                        roots.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+            if (roots.size() == rootCount) {
+                break;
+            }
+        }
+        LOG.info("Reachability pruning: {} entry points, {} library callbacks and overriders, {} reachable application methods",
+                entryPoints.size(), roots.size() - entryPoints.size(), result.size());
+        return result;
+    }
+
+    /**
+     * @return every concrete instance method of an application class that overrides a method of a
+     * superclass or of an implemented interface, with the methods it overrides
+     */
+    private Map<SootMethod, List<SootMethod>> computeOverriddenMethods() {
+        Map<SootMethod, List<SootMethod>> overridden = new HashMap<>();
+        for (SootClass sc : Scene.v().getApplicationClasses()) {
+            if (ClassFilterHelper.shouldSkip(sc) || sc.isPhantom()) {
+                continue;
+            }
+            List<SootClass> ancestors = getAncestors(sc);
+            for (SootMethod method : sc.getMethods()) {
+                if (!method.isConcrete() || method.isStatic() || method.isPrivate() || method.isConstructor()) {
+                    continue;
+                }
+                List<SootMethod> methods = new ArrayList<>();
+                for (SootClass ancestor : ancestors) {
+                    SootMethod candidate = ancestor.getMethodUnsafe(method.getNumberedSubSignature());
+                    if (candidate != null && !candidate.isStatic() && !candidate.isPrivate()) {
+                        methods.add(candidate);
+                    }
+                }
+                if (!methods.isEmpty()) {
+                    overridden.put(method, methods);
+                }
+            }
+        }
+        return overridden;
+    }
+
+    /**
+     * @return the superclasses and the interfaces implemented by the class, directly or not
+     */
+    private static List<SootClass> getAncestors(SootClass sc) {
+        Set<SootClass> ancestors = new LinkedHashSet<>();
+        Deque<SootClass> worklist = new ArrayDeque<>();
+        worklist.add(sc);
+        while (!worklist.isEmpty()) {
+            SootClass current = worklist.poll();
+            List<SootClass> parents = new ArrayList<>(current.getInterfaces());
+            if (current.hasSuperclass()) {
+                parents.add(current.getSuperclass());
+            }
+            for (SootClass parent : parents) {
+                if (ancestors.add(parent)) {
+                    worklist.add(parent);
+                }
+            }
+        }
+        return new ArrayList<>(ancestors);
+    }
+
+    private Set<SootMethod> getEntryPoints() {
+        Set<SootMethod> entryPoints = new LinkedHashSet<>();
+        for (String startPoint : filter.getStartingPoints()) {
+            List<SootMethod> resolved = resolveStartPoint(startPoint.trim());
+            if (resolved.isEmpty()) {
+                LOG.warn("Cannot resolve start point {}", startPoint);
+            }
+            entryPoints.addAll(resolved);
+        }
+        entryPoints.addAll(getAsyncEntryPoints());
+        return entryPoints;
+    }
+
+    private List<SootMethod> resolveStartPoint(String startPoint) {
+        List<SootMethod> methods = new ArrayList<>();
+        if (startPoint.isEmpty()) {
+            return methods;
+        }
+        if (startPoint.startsWith("<")) {
+            SootMethod method = Scene.v().grabMethod(startPoint);
+            if (method != null && method.isConcrete()) {
+                methods.add(method);
+            }
+            return methods;
+        }
+
+        SootClass sc = Scene.v().getSootClassUnsafe(startPoint, false);
+        if (sc != null && !sc.isPhantom()) {
+            for (SootMethod method : sc.getMethods()) {
+                if (method.isConcrete()) {
+                    methods.add(method);
+                }
+            }
+            return methods;
+        }
+
+        int dot = startPoint.lastIndexOf('.');
+        if (dot <= 0) {
+            return methods;
+        }
+        sc = Scene.v().getSootClassUnsafe(startPoint.substring(0, dot), false);
+        if (sc == null || sc.isPhantom()) {
+            return methods;
+        }
+        String methodName = startPoint.substring(dot + 1);
+        for (SootMethod method : sc.getMethods()) {
+            if (method.isConcrete() && method.getName().equals(methodName)) {
+                methods.add(method);
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Collect run() and call() of application classes that are Runnable, Callable or Thread
+     */
+    private Set<SootMethod> getAsyncEntryPoints() {
+        Set<SootMethod> entryPoints = new LinkedHashSet<>();
+        FastHierarchy hierarchy = Scene.v().getOrMakeFastHierarchy();
+        SootClass runnable = Scene.v().getSootClassUnsafe(RUNNABLE_CLASS, false);
+        SootClass callable = Scene.v().getSootClassUnsafe(CALLABLE_CLASS, false);
+        SootClass thread = Scene.v().getSootClassUnsafe(THREAD_CLASS, false);
+
+        for (SootClass sc : Scene.v().getApplicationClasses()) {
+            if (ClassFilterHelper.shouldSkip(sc)) {
+                continue;
+            }
+            boolean isRunnable = (runnable != null && hierarchy.canStoreClass(sc, runnable))
+                    || (thread != null && hierarchy.canStoreClass(sc, thread));
+            boolean isCallable = callable != null && hierarchy.canStoreClass(sc, callable);
+            for (SootMethod method : sc.getMethods()) {
+                if (!method.isConcrete() || !method.getParameterTypes().isEmpty()) {
+                    continue;
+                }
+                if ((isRunnable && method.getName().equals("run"))
+                        || (isCallable && method.getName().equals("call"))) {
+                    entryPoints.add(method);
+                }
+            }
+        }
+        return entryPoints;
+    }
+}
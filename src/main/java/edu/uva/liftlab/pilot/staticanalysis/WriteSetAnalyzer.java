@@ -0,0 +1,80 @@
+package edu.uva.liftlab.pilot.staticanalysis;
+
+import edu.uva.liftlab.pilot.generator.PilotMethodGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import soot.*;
+import soot.jimple.AssignStmt;
+import soot.jimple.FieldRef;
+
+import java.util.*;
+
+/**
+ * WriteSetAnalyzer - Computes the fields that a pilot run can write, so that only those get dry
+ * run state ($dryRun fields, or a shadow record slot) and a barrier.
+ *
+ * A pilot run only executes the $instrumentation copies, so the fields it can write are the fields
+ * assigned in the methods that get pilot copies. Constructors and static initializers get no
+ * copies: a pilot run builds its objects with the original constructors, which write the original
+ * fields of an object nobody else sees yet, so their writes are not part of the write set.
+ *
+ * A field outside of the write set is read as is by pilot runs, unless its value can change without
+ * an assignment of the field, see PilotMethodGenerator.isMutableInPlace: an array, or a value of a
+ * library class such as a HashMap that a pilot run changes with put, keeps its dry run state. Writes
+ * the analysis cannot see, through reflection or Unsafe, are not isolated for the other fields.
+ */
+public class WriteSetAnalyzer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteSetAnalyzer.class);
+
+    private final PilotMethodGenerator generator;
+
+    /**
+     * @param generator decides which methods get pilot copies, its reachable methods must be set
+     */
+    public WriteSetAnalyzer(PilotMethodGenerator generator) {
+        this.generator = generator;
+    }
+
+    /**
+     * @return the signatures of the fields written by the methods that get pilot copies
+     */
+    public Set<String> computeWrittenFields() {
+        Set<String> writtenFields = new HashSet<>();
+        int methodCount = 0;
+        for (SootClass sc : Scene.v().getApplicationClasses()) {
+            for (SootMethod method : new ArrayList<>(sc.getMethods())) {
+                if (!generator.getsPilotCopy(method) || !method.isConcrete()) {
+                    continue;
+                }
+                Body body;
+                try {
+                    body = method.retrieveActiveBody();
+                } catch (RuntimeException e) {
+                    LOG.warn("Could not retrieve body of {} for the write set analysis: {}",
+                            method.getSignature(), e.getMessage());
+                    continue;
+                }
+                methodCount++;
+                for (Unit unit : body.getUnits()) {
+                    if (unit instanceof AssignStmt && ((AssignStmt) unit).getLeftOp() instanceof FieldRef) {
+                        addField((FieldRef) ((AssignStmt) unit).getLeftOp(), writtenFields);
+                    }
+                }
+            }
+        }
+        LOG.info("Write set analysis: {} fields written by {} methods with pilot copies",
+                writtenFields.size(), methodCount);
+        return writtenFields;
+    }
+
+    private static void addField(FieldRef fieldRef, Set<String> writtenFields) {
+        try {
+            // the field as declared, the reference may name a subclass of its declaring class
+            writtenFields.add(fieldRef.getField().getSignature());
+        } catch (RuntimeException e) {
+            LOG.debug("Could not resolve field {}: {}", fieldRef, e.getMessage());
+            writtenFields.add(fieldRef.getFieldRef().getSignature());
+        }
+    }
+}
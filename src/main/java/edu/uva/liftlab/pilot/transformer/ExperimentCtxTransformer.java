@@ -1,5 +1,7 @@
 package edu.uva.liftlab.pilot.transformer;
 
+import edu.uva.liftlab.pilot.distributedtracing.utils.TraceRecording;
+import edu.uva.liftlab.pilot.generator.PilotIdParameterGenerator;
 import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
 import edu.uva.liftlab.pilot.util.LocalGeneratorUtil;
 import edu.uva.liftlab.pilot.util.SootUtils;
@@ -14,9 +16,17 @@ import static edu.uva.liftlab.pilot.util.Constants.INSTRUMENTATION_SUFFIX;
 
 public class ExperimentCtxTransformer {
     private static final Logger LOG = LoggerFactory.getLogger(ExperimentCtxTransformer.class);
-    private static final String TRACE_RECORDER_CLASS = "org.pilot.trace.TraceRecorder";
+    private static final String TRACE_RECORDER_CLASS = TraceRecording.TRACE_RECORDER_CLASS;
     public static final String ENTRY_RECOVERY_POINT = "repairAsync";
     public static final String PILOT_CONTEXT_TRACKING_CLASS = "org.pilot.trace.PilotContextTracking";
+    /*
+     * Span budget of a pilot run, configured at run time (max span depth per thread, max spans,
+     * sampling rate). tryAcquire() decides whether a method entry gets a span and release() gives
+     * it back when the span ends. exhausted is set once no span can be acquired anymore, so that
+     * the generated code stops calling tryAcquire().
+     */
+    private static final String SPAN_BUDGET_CLASS = "org.pilot.trace.SpanBudget";
+    private static final String TRACER_FIELD = "$pilotTracer";
     public Set<SootClass> sootClass = new HashSet<>();
 
     private final ClassFilterHelper classFilterHelper;
@@ -96,6 +106,12 @@ public class ExperimentCtxTransformer {
 
                 
                 SootMethod instrumentedMethod = declaringClass.getMethodUnsafe(subSignature);
+                // the body of the method moved to its pilotId variant, the method only looks the pilot id up
+                SootMethod pilotIdVariant = instrumentedMethod == null ? null
+                        : PilotIdParameterGenerator.getPilotIdVariant(instrumentedMethod);
+                if (pilotIdVariant != null) {
+                    instrumentedMethod = pilotIdVariant;
+                }
 
                 if (instrumentedMethod != null) {
                     LOG.info("Found instrumented method: {} for original: {}",
@@ -183,49 +199,76 @@ public class ExperimentCtxTransformer {
         return tracer;
     }
 
+    /**
+     * Get the Tracer from a static field of the class, looking it up the first time only. Interfaces
+     * cannot hold the field and look it up every time.
+     */
+    private Local getCachedTracer(SootClass sc, LocalGeneratorUtil lg, List<Unit> units) {
+        if (sc.isInterface()) {
+            return getTracer(lg, units);
+        }
+        RefType tracerType = RefType.v("io.opentelemetry.api.trace.Tracer");
+        SootField tracerField;
+        if (sc.declaresField(TRACER_FIELD, tracerType)) {
+            tracerField = sc.getField(TRACER_FIELD, tracerType);
+        } else {
+            tracerField = new SootField(TRACER_FIELD, tracerType, Modifier.PRIVATE | Modifier.STATIC);
+            sc.addField(tracerField);
+        }
+
+        Local tracer = lg.generateLocal(tracerType);
+        Unit cached = Jimple.v().newNopStmt();
+        units.add(Jimple.v().newAssignStmt(tracer, Jimple.v().newStaticFieldRef(tracerField.makeRef())));
+        units.add(Jimple.v().newIfStmt(Jimple.v().newNeExpr(tracer, NullConstant.v()), cached));
+        // racing threads look up the same tracer
+        units.add(Jimple.v().newAssignStmt(tracer, getTracer(lg, units)));
+        units.add(Jimple.v().newAssignStmt(Jimple.v().newStaticFieldRef(tracerField.makeRef()), tracer));
+        units.add(cached);
+        return tracer;
+    }
+
+    /**
+     * Skip the span creation units when the span budget is exhausted or denies the span
+     */
+    private List<Unit> guardWithSpanBudget(List<Unit> spanCreateUnits, LocalGeneratorUtil lg) {
+        SootClass budgetClass = Scene.v().getSootClass(SPAN_BUDGET_CLASS);
+        Local exhausted = lg.generateLocal(BooleanType.v());
+        Local acquired = lg.generateLocal(BooleanType.v());
+        Unit skip = Jimple.v().newNopStmt();
+
+        List<Unit> units = new ArrayList<>();
+        units.add(Jimple.v().newAssignStmt(exhausted, Jimple.v().newStaticFieldRef(
+                Scene.v().makeFieldRef(budgetClass, "exhausted", BooleanType.v(), true))));
+        units.add(Jimple.v().newIfStmt(Jimple.v().newNeExpr(exhausted, IntConstant.v(0)), skip));
+        units.add(Jimple.v().newAssignStmt(acquired, Jimple.v().newStaticInvokeExpr(
+                Scene.v().makeMethodRef(budgetClass, "tryAcquire", Collections.emptyList(), BooleanType.v(), true))));
+        units.add(Jimple.v().newIfStmt(Jimple.v().newEqExpr(acquired, IntConstant.v(0)), skip));
+        units.addAll(spanCreateUnits);
+        units.add(skip);
+        return units;
+    }
+
     /**
      * Record method entry
      */
-    private void recordMethodEntry(Local traceId, Local spanId, Local methodName,
+    private void recordMethodEntry(Local traceId, Local spanId, String methodName,
                                    LocalGeneratorUtil lg, List<Unit> units) {
-        SootClass recorderClass = Scene.v().getSootClass(TRACE_RECORDER_CLASS);
-
-        units.add(Jimple.v().newInvokeStmt(
-                Jimple.v().newStaticInvokeExpr(
-                        recorderClass.getMethod("recordMethodEntry",
-                                Arrays.asList(
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String")
-                                ),
-                                VoidType.v()
-                        ).makeRef(),
-                        Arrays.asList(traceId, spanId, methodName)
-                )
-        ));
+        units.add(TraceRecording.newRecordStmt("recordMethodEntry",
+                Arrays.asList(TraceRecording.toRecordedId(traceId, lg, units),
+                        TraceRecording.toRecordedId(spanId, lg, units)),
+                Collections.singletonList(TraceRecording.newName(methodName, lg, units))));
     }
 
     /**
      * Record parent-child span relationship
      */
     private void recordSpanRelation(Local traceId, Local parentSpanId, Local childSpanId,
-                                    Local methodName, LocalGeneratorUtil lg, List<Unit> units) {
-        SootClass recorderClass = Scene.v().getSootClass(TRACE_RECORDER_CLASS);
-
-        units.add(Jimple.v().newInvokeStmt(
-                Jimple.v().newStaticInvokeExpr(
-                        recorderClass.getMethod("recordSpanRelationForPilotExecution",
-                                Arrays.asList(
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String")
-                                ),
-                                VoidType.v()
-                        ).makeRef(),
-                        Arrays.asList(traceId, parentSpanId, childSpanId, methodName)
-                )
-        ));
+                                    String methodName, LocalGeneratorUtil lg, List<Unit> units) {
+        units.add(TraceRecording.newRecordStmt("recordSpanRelationForPilotExecution",
+                Arrays.asList(TraceRecording.toRecordedId(traceId, lg, units),
+                        TraceRecording.toRecordedId(parentSpanId, lg, units),
+                        TraceRecording.toRecordedId(childSpanId, lg, units)),
+                Collections.singletonList(TraceRecording.newName(methodName, lg, units))));
     }
 
     private void instrumentMethodCalls(SootMethod method) {
@@ -257,11 +300,7 @@ public class ExperimentCtxTransformer {
                     Local parentSpan = getSpanCurrent(lg, beforeUnits);
                     Local parentContext = getSpanContext(parentSpan, lg, beforeUnits);
 
-                    Local parentMethod = lg.generateLocal(RefType.v("java.lang.String"));
-                    beforeUnits.add(Jimple.v().newAssignStmt(
-                            parentMethod,
-                            StringConstant.v(method.getDeclaringClass().getName() + "." + method.getName())
-                    ));
+                    String parentMethod = method.getDeclaringClass().getName() + "." + method.getName();
 
                     Local parentSpanId = getSpanId(parentContext, lg, beforeUnits);
 
@@ -283,42 +322,19 @@ public class ExperimentCtxTransformer {
     }
 
     private void recordRelation(Local parentContext, Local parentSpanId, Local childSpanId,
-                                Local parentMethod, InvokeExpr childInvoke, String edgeType,
+                                String parentMethod, InvokeExpr childInvoke, String edgeType,
                                 LocalGeneratorUtil lg, List<Unit> units) {
-        SootClass recorderClass = Scene.v().getSootClass(TRACE_RECORDER_CLASS);
-
         Local traceId = getTraceId(parentContext, lg, units);
-        Local childMethod = lg.generateLocal(RefType.v("java.lang.String"));
-        Local edge = lg.generateLocal(RefType.v("java.lang.String"));
-
-        units.add(Jimple.v().newAssignStmt(
-                childMethod,
-                StringConstant.v(childInvoke.getMethod().getDeclaringClass().getName() +
-                        "." + childInvoke.getMethod().getName())
-        ));
-
-        units.add(Jimple.v().newAssignStmt(
-                edge,
-                StringConstant.v(edgeType)
-        ));
-
-        units.add(Jimple.v().newInvokeStmt(
-                Jimple.v().newStaticInvokeExpr(
-                        recorderClass.getMethod("recordRelation",
-                                Arrays.asList(
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String"),
-                                        RefType.v("java.lang.String")
-                                ),
-                                VoidType.v()
-                        ).makeRef(),
-                        Arrays.asList(traceId, parentSpanId, childSpanId,
-                                parentMethod, childMethod, edge)
-                )
-        ));
+        String childMethod = childInvoke.getMethod().getDeclaringClass().getName() +
+                "." + childInvoke.getMethod().getName();
+
+        units.add(TraceRecording.newRecordStmt("recordRelation",
+                Arrays.asList(TraceRecording.toRecordedId(traceId, lg, units),
+                        TraceRecording.toRecordedId(parentSpanId, lg, units),
+                        TraceRecording.toRecordedId(childSpanId, lg, units)),
+                Arrays.asList(TraceRecording.newName(parentMethod, lg, units),
+                        TraceRecording.newName(childMethod, lg, units),
+                        TraceRecording.newName(edgeType, lg, units))));
     }
 
     // Helper methods
@@ -441,7 +457,9 @@ public class ExperimentCtxTransformer {
         Local parentSpanId = getSpanId(parentContext, lg, spanCreateUnits);
 
         // Get Tracer
-        Local tracer = getTracer(lg, spanCreateUnits);
+        Local tracer = classFilterHelper.isSpanBudget
+                ? getCachedTracer(method.getDeclaringClass(), lg, spanCreateUnits)
+                : getTracer(lg, spanCreateUnits);
 
         // Create SpanBuilder
         Local spanBuilder = lg.generateLocal(RefType.v("io.opentelemetry.api.trace.SpanBuilder"));
@@ -526,9 +544,14 @@ public class ExperimentCtxTransformer {
         Local spanContext = getSpanContext(span, lg, spanCreateUnits);
         Local spanId = getSpanId(spanContext, lg, spanCreateUnits);
         Local traceId = getTraceId(spanContext, lg, spanCreateUnits);
-        recordSpanRelation(traceId, parentSpanId, spanId, methodName, lg, spanCreateUnits);
+        recordSpanRelation(traceId, parentSpanId, spanId,
+                method.getDeclaringClass().getName() + "." + method.getName(), lg, spanCreateUnits);
 
         
+        if (classFilterHelper.isSpanBudget) {
+            spanCreateUnits = guardWithSpanBudget(spanCreateUnits, lg);
+            PilotTransformer.budgetedSpanCount++;
+        }
         initUnits.addAll(spanCreateUnits);
         Unit lastIdentity = SootUtils.getLastIdentityUnit(body);
         if(lastIdentity == null) {
@@ -644,6 +667,13 @@ public class ExperimentCtxTransformer {
                 )
         ));
 
+        // give the span back to the budget, a method denied a span has none
+        if (classFilterHelper.isSpanBudget) {
+            cleanupUnits.add(Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(
+                    Scene.v().makeMethodRef(Scene.v().getSootClass(SPAN_BUDGET_CLASS), "release",
+                            Collections.emptyList(), VoidType.v(), true))));
+        }
+
         // Add the null label for span
         cleanupUnits.add(spanNullLabel);
 
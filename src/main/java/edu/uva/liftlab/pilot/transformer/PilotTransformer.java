@@ -1,20 +1,30 @@
 package edu.uva.liftlab.pilot.transformer;
 
 import edu.uva.liftlab.pilot.analysis.PhaseInfo;
+import edu.uva.liftlab.pilot.cache.InstrumentationCache;
 import edu.uva.liftlab.pilot.distributedtracing.BaggagePropagation;
 import edu.uva.liftlab.pilot.distributedtracing.HTTPPropagator;
+import edu.uva.liftlab.pilot.distributedtracing.utils.TraceRecording;
+import edu.uva.liftlab.pilot.generator.PilotCompanionGenerator;
+import edu.uva.liftlab.pilot.generator.PilotGuardGenerator;
 import edu.uva.liftlab.pilot.generator.PilotMethodGenerator;
 import edu.uva.liftlab.pilot.generator.LockGenerator;
 import edu.uva.liftlab.pilot.isolation.IO.IOIsolation;
+import edu.uva.liftlab.pilot.isolation.stateredirection.BarrierHelpers;
 import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
-import edu.uva.liftlab.pilot.isolation.stateredirection.StateRedirection;
-import edu.uva.liftlab.pilot.sanitization.Sanitization;
+import edu.uva.liftlab.pilot.isolation.stateredirection.OverlayCollections;
+import edu.uva.liftlab.pilot.rewriter.BodyRewriter;
+import edu.uva.liftlab.pilot.rewriter.JimpleCleanup;
+import edu.uva.liftlab.pilot.shard.ShardPlan;
 import edu.uva.liftlab.pilot.staticanalysis.*;
+import edu.uva.liftlab.pilot.util.PilotEventLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import soot.*;
 import soot.jimple.*;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 
 public class PilotTransformer extends SceneTransformer {
@@ -53,6 +63,82 @@ public class PilotTransformer extends SceneTransformer {
 
     public static int transformationCount=0;
 
+    public static int prunedMethodCount=0;
+
+    public static int eliminatedBarrierCount=0;
+
+    public static int loopGuardedBarrierCount=0;
+
+    public static int unwrittenFieldCount=0;
+
+    public static int unwrittenFieldAccessCount=0;
+
+    public static int copyMethodClassCount=0;
+
+    public static int specializedCopyBarrierCount=0;
+
+    public static int immutableFieldCount=0;
+
+    public static int immutableFieldAccessCount=0;
+
+    public static int aliasedBarrierCount=0;
+
+    public static int overlayBarrierCount=0;
+
+    public static int lazyBarrierCount=0;
+
+    public static int pilotAllocatedAccessCount=0;
+
+    public static int pilotIdCallCount=0;
+
+    public static int pilotRunStartCount=0;
+
+    public static int pilotRunEndCount=0;
+
+    public static int budgetedSpanCount=0;
+
+    public static int simpleCtxMethodCount=0;
+
+    public static int companionClassCount=0;
+
+    public static int companionMethodCount=0;
+
+    public static int inPlacePilotCopyCount=0;
+
+    public static int divergeHelperCount=0;
+
+    public static int barrierHelperCount=0;
+
+    public static int outlinedBarrierCount=0;
+
+    public static int outlinedHugeMethodCount=0;
+
+    public static int splitHugeMethodCount=0;
+
+    public static int regionHelperCount=0;
+
+    public static int cleanedBodyCount=0;
+
+    public static int keptCleanupBodyCount=0;
+
+    public static int removedUnitCount=0;
+
+    public static int removedLocalCount=0;
+
+    public static int removedCastCount=0;
+
+    public static int reusedLookupCount=0;
+
+    public static int guardedIOSiteCount=0;
+
+    // Sharded instrumentation: where the planner saves its plan, and the plan a worker runs
+    private Path shardPlanOutput;
+    private int shardCount;
+    private ShardPlan shardPlan;
+    // Classes that are neither rewritten nor written out (other shards, cache hits)
+    private List<SootClass> declarationOnlyClasses = new ArrayList<>();
+    private InstrumentationCache instrumentationCache;
+
     public PilotTransformer(String config_file_path) {
         this.config_file_path = config_file_path;
         this.filter = new ClassFilterHelper(this.config_file_path);
@@ -64,24 +150,203 @@ public class PilotTransformer extends SceneTransformer {
 
 
 
+    /**
+     * Called before the call graph is built, so that pilot entry points become call graph roots
+     */
+    public void registerPilotEntryPoints(){
+        if(filter.isReachabilityPruning){
+            new PilotReachabilityAnalyzer(filter).registerEntryPoints();
+        }
+    }
+
+    /**
+     * Make this run a shard planner: instead of instrumenting, save the shard plan to the given path
+     */
+    public void setShardPlanOutput(Path shardPlanOutput, int shardCount){
+        this.shardPlanOutput = shardPlanOutput;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Make this run a shard worker. Classes of other shards are turned into library classes
+     * before the bodies are built, so that they are neither rewritten nor written out.
+     */
+    public void prepareShard(ShardPlan plan, int shardIndex){
+        this.shardPlan = plan;
+        for(SootClass sc: new ArrayList<>(Scene.v().getApplicationClasses())){
+            if(!plan.isInShard(sc, shardIndex)){
+                declarationOnlyClasses.add(sc);
+                sc.setLibraryClass();
+            }
+        }
+        LOG.info("Shard {}: rewriting {} classes, {} classes belong to other shards",
+                shardIndex, Scene.v().getApplicationClasses().size(), declarationOnlyClasses.size());
+    }
+
+    /**
+     * Take the classes that did not change since the previous run from the instrumentation cache.
+     * Without reachability pruning and write set analysis the hits are known before the bodies
+     * are built; otherwise they are looked up once the reachable methods and written fields are known.
+     */
+    public void useInstrumentationCache(InstrumentationCache cache){
+        this.instrumentationCache = cache;
+        if(!needsWholeProgramFacts()){
+            applyInstrumentationCache(null, null, null);
+        }
+    }
+
+    /**
+     * @return whether the instrumentation of a class depends on facts computed over every class
+     */
+    private boolean needsWholeProgramFacts(){
+        return filter.isReachabilityPruning || filter.isWriteSetAnalysis || filter.isImmutabilityInference;
+    }
+
+    private void applyInstrumentationCache(Set<SootMethod> reachable, Set<String> writtenFields,
+                                           Set<String> immutableClasses){
+        for(SootClass sc: instrumentationCache.findHits(filter, reachable, writtenFields, immutableClasses)){
+            declarationOnlyClasses.add(sc);
+            sc.setLibraryClass();
+        }
+        instrumentationCache.report();
+    }
+
+    private void planShards(){
+        Set<SootMethod> reachable = null;
+        if(filter.isReachabilityPruning){
+            reachable = new PilotReachabilityAnalyzer(filter).computeReachableMethods();
+            this.pilotMethodGenerator.setReachableMethods(reachable);
+        }
+        Set<String> writtenFields = computeWrittenFields();
+        Set<String> immutableClasses = computeImmutableClasses();
+        try {
+            ShardPlan.build(filter, reachable, writtenFields, immutableClasses, shardCount).save(shardPlanOutput);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save shard plan to " + shardPlanOutput, e);
+        }
+    }
+
+    /**
+     * The written fields are computed over every application class, cache hits included, as their
+     * cached $instrumentation copies write the dry run state of the fields as well
+     * @return the fields pilot runs can write, or null if every field gets dry run state
+     */
+    private Set<String> computeWrittenFields(){
+        if(!filter.isWriteSetAnalysis){
+            return null;
+        }
+        return new WriteSetAnalyzer(pilotMethodGenerator).computeWrittenFields();
+    }
+
+    /**
+     * @return the classes whose instances cannot change, or null if no immutability inference is done
+     */
+    private Set<String> computeImmutableClasses(){
+        if(!filter.isImmutabilityInference){
+            return null;
+        }
+        return new ImmutabilityAnalyzer().computeImmutableClasses();
+    }
+
     public void instrument(){
 
+        if(shardPlan != null){
+            this.pilotMethodGenerator.setReachableMethods(shardPlan.resolveReachableMethods());
+            PilotMethodGenerator.setWrittenFields(shardPlan.getWrittenFields());
+            PilotMethodGenerator.setImmutableClasses(shardPlan.getImmutableClasses());
+        }else{
+            Set<SootMethod> reachable = null;
+            if(filter.isReachabilityPruning){
+                reachable = new PilotReachabilityAnalyzer(filter).computeReachableMethods();
+                this.pilotMethodGenerator.setReachableMethods(reachable);
+            }
+            Set<String> writtenFields = computeWrittenFields();
+            PilotMethodGenerator.setWrittenFields(writtenFields);
+            Set<String> immutableClasses = computeImmutableClasses();
+            PilotMethodGenerator.setImmutableClasses(immutableClasses);
+            if(instrumentationCache != null && needsWholeProgramFacts()){
+                applyInstrumentationCache(reachable, writtenFields, immutableClasses);
+            }
+        }
+        if(filter.isCopyMethods && !filter.isShadowRecord){
+            List<SootClass> classes = new ArrayList<>(Scene.v().getApplicationClasses());
+            classes.addAll(declarationOnlyClasses);
+            this.pilotMethodGenerator.computeCopyableClasses(classes);
+        }
+        OverlayCollections.setEnabled(filter.isOverlayCollections && !filter.isShadowRecord);
+        PilotEventLog.setEnabled(filter.isBinaryEventLog);
+        BarrierHelpers.setEnabled(filter.isOutlineHelpers && !filter.isShadowRecord);
+        TraceRecording.setNumericIds(filter.isNumericTraceIds);
+        PilotGuardGenerator pilotGuardGenerator = new PilotGuardGenerator(filter);
+        pilotGuardGenerator.checkPilotGuard();
+        this.pilotMethodGenerator.declareClasses(declarationOnlyClasses);
+
         IOIsolation.redirectAllClassesIO(filter);
         this.httpPropagator.injectCtxHooks();
         this.pilotMethodGenerator.processClasses();
-        StateRedirection.redirectAllClassesStates(filter);
+        LOG.info("Generated pilot copies for {} methods, pruned {} unreachable methods", transformationCount, prunedMethodCount);
+        if(filter.isPilotIdParameter){
+            LOG.info("Pilot id parameter: {} calls between pilot copies pass the pilot id", pilotIdCallCount);
+        }
+        // State redirection, the baggage propagation of call sites and sanitization, in one walk per $instrumentation body
+        BodyRewriter.rewriteAllClasses(filter);
+        pilotGuardGenerator.announcePilotRuns();
+        if(filter.isSwitchPointGuard){
+            LOG.info("Switchpoint guard: {} pilot run starts and {} pilot run ends announced to PilotGuard",
+                    pilotRunStartCount, pilotRunEndCount);
+        }
+        if(filter.isBarrierElimination){
+            LOG.info("Eliminated {} redundant read barriers, guarded {} read barriers in loops with a flag",
+                    eliminatedBarrierCount, loopGuardedBarrierCount);
+        }
+        if(filter.isCopyMethods){
+            LOG.info("Generated copy methods for {} classes, {} read barriers copy without reflection",
+                    copyMethodClassCount, specializedCopyBarrierCount);
+        }
+        if(filter.isOverlayCollections){
+            LOG.info("Installed overlays instead of copies in {} read barriers of Map, List and Set fields", overlayBarrierCount);
+        }
+        if(filter.isLazyCopy){
+            LOG.info("Lazy copy: {} read barriers at read-only sites read the original without copying it", lazyBarrierCount);
+        }
+        if(filter.isAllocationAnalysis){
+            LOG.info("Allocation analysis: {} field accesses on objects allocated by the pilot run left without a barrier", pilotAllocatedAccessCount);
+        }
+        if(filter.isImmutabilityInference){
+            LOG.info("Immutability inference: {} final fields left without dry run state, {} field accesses left without a barrier, {} read barriers share the value instead of copying it",
+                    immutableFieldCount, immutableFieldAccessCount, aliasedBarrierCount);
+        }
+        if(filter.isWriteSetAnalysis){
+            LOG.info("Write set analysis: {} fields left without dry run state, {} field accesses left without a barrier",
+                    unwrittenFieldCount, unwrittenFieldAccessCount);
+        }
+        if(filter.hugeMethodLimit > 0){
+            LOG.info("Huge method guard: {} $instrumentation methods larger than {} bytes rewritten with outlined barriers, {} split into {} region helpers",
+                    outlinedHugeMethodCount, filter.hugeMethodLimit, splitHugeMethodCount, regionHelperCount);
+        }
+        if(filter.isOutlineHelpers){
+            LOG.info("Outlined helpers: {} diverge helpers, {} read barriers call one of {} barrier helpers",
+                    divergeHelperCount, outlinedBarrierCount, barrierHelperCount);
+        }
         for(SootClass sc: Scene.v().getApplicationClasses()){
-            // Skip interfaces and phantom classes
-            boolean isPilotFuncBlackListClass = filter.isBlackListPilotFuncClass(sc) && !filter.isWhiteListPilotFuncClass(sc);
-            if(isPilotFuncBlackListClass && !filter.isTraceClass(sc)){
+            if(!BaggagePropagation.shouldPropagate(filter, sc)){
                 continue;
             }
             BaggagePropagation baggagePropagation = new BaggagePropagation(sc,filter);
             baggagePropagation.propagateBaggage();
         }
         this.pilotTrackTransformer.transform();
+        if(filter.isSpanBudget){
+            LOG.info("Span budget: {} methods create spans behind the budget check, {} simple methods left without a span",
+                    budgetedSpanCount, simpleCtxMethodCount);
+        }
+        // Last, so that the bodies that move are the final ones
+        if(filter.isPilotCompanionClasses){
+            new PilotCompanionGenerator(filter).moveAllClasses();
+            LOG.info("Companion classes: moved {} pilot copies to {} companion classes, {} pilot copies stay in their class",
+                    companionMethodCount, companionClassCount, inPlacePilotCopyCount);
+        }
         //sedaQueueInstrumenter.instrumentSedaQueues();
-        Sanitization.sanitizeAllClasses();
         //Large-scale micro fork with lockwrapper replacement sometimes makes the pilot execution unstable and buggy, temporarily excluded for AE experiments
     }
 
@@ -98,8 +363,19 @@ public class PilotTransformer extends SceneTransformer {
             return;
         }
 
+        if(shardPlanOutput != null){
+            LOG.info("Planning shards");
+            planShards();
+            return;
+        }
+
         LOG.info("Complete instrumentation");
         instrument();
+        if(filter.isJimpleCleanup){
+            JimpleCleanup.cleanAllClasses();
+            LOG.info("Jimple cleanup: {} bodies cleaned, {} kept as they were, removed {} units and {} locals, {} casts and {} context lookups replaced by copies",
+                    cleanedBodyCount, keptCleanupBodyCount, removedUnitCount, removedLocalCount, removedCastCount, reusedLookupCount);
+        }
     }
 
 }
@@ -0,0 +1,135 @@
+package edu.uva.liftlab.pilot.util;
+
+import soot.AbstractJasminClass;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.baf.BafASMBackend;
+import soot.options.Options;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * BytecodeSize - Bytecode sizes of the methods of a class file, the code_length of their Code
+ * attribute, which is what the JIT compares with its inlining limits.
+ *
+ * HotSpot inlines a callee up to MaxInlineSize bytes, and a hot one up to FreqInlineSize bytes. It
+ * does not compile a method above HugeMethodLimit bytes, which then always runs in the interpreter.
+ */
+public class BytecodeSize {
+
+    public static final int MAX_INLINE_SIZE = 35;
+
+    public static final int FREQ_INLINE_SIZE = 325;
+
+    public static final int HUGE_METHOD_LIMIT = 8000;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+
+    /**
+     * Emit the class the way writeOutput does, to measure its methods before the output is written
+     * @return name + descriptor -> code length, see codeLengths
+     */
+    public static Map<String, Integer> measure(SootClass sc) throws IOException {
+        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        new BafASMBackend(sc, Options.v().java_version()).generateClassFile(classFile);
+        return codeLengths(classFile.toByteArray());
+    }
+
+    /**
+     * @return the key of the method in the maps of measure and codeLengths
+     */
+    public static String getKey(SootMethod method) {
+        return method.getName() + AbstractJasminClass.jasminDescriptorOf(method.makeRef());
+    }
+
+    /**
+     * @return name + descriptor -> code length of every method with code, abstract and native methods left out
+     */
+    public static Map<String, Integer> codeLengths(byte[] classFile) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        int constantPoolCount = in.readUnsignedShort();
+        String[] utf8 = new String[constantPoolCount];
+        for (int i = 1; i < constantPoolCount; i++) {
+            int tag = in.readUnsignedByte();
+            if (tag == CONSTANT_UTF8) {
+                utf8[i] = in.readUTF();
+            } else if (tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE) {
+                skip(in, 8);
+                i++; // takes two entries
+            } else if (tag == CONSTANT_METHOD_HANDLE) {
+                skip(in, 3);
+            } else if (tag == 7 || tag == 8 || tag == 16 || tag == 19 || tag == 20) {
+                // Class, String, MethodType, Module, Package
+                skip(in, 2);
+            } else if (tag == 3 || tag == 4 || (tag >= 9 && tag <= 12) || tag == 17 || tag == 18) {
+                // Integer, Float, Fieldref, Methodref, InterfaceMethodref, NameAndType, Dynamic, InvokeDynamic
+                skip(in, 4);
+            } else {
+                throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        skip(in, 6); // access flags, this class, super class
+        skip(in, 2 * in.readUnsignedShort()); // interfaces
+
+        int fieldCount = in.readUnsignedShort();
+        for (int i = 0; i < fieldCount; i++) {
+            skip(in, 6);
+            skipAttributes(in);
+        }
+
+        Map<String, Integer> lengths = new LinkedHashMap<>();
+        int methodCount = in.readUnsignedShort();
+        for (int i = 0; i < methodCount; i++) {
+            in.readUnsignedShort(); // access flags
+            String name = utf8[in.readUnsignedShort()];
+            String descriptor = utf8[in.readUnsignedShort()];
+            int attributeCount = in.readUnsignedShort();
+            for (int j = 0; j < attributeCount; j++) {
+                String attributeName = utf8[in.readUnsignedShort()];
+                int length = in.readInt();
+                if ("Code".equals(attributeName)) {
+                    skip(in, 4); // max stack, max locals
+                    int codeLength = in.readInt();
+                    lengths.put(name + descriptor, codeLength);
+                    skip(in, length - 8);
+                } else {
+                    skip(in, length);
+                }
+            }
+        }
+        return lengths;
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int attributeCount = in.readUnsignedShort();
+        for (int i = 0; i < attributeCount; i++) {
+            skip(in, 2);
+            skip(in, in.readInt());
+        }
+    }
+
+    private static void skip(DataInputStream in, int count) throws IOException {
+        int skipped = 0;
+        while (skipped < count) {
+            int n = in.skipBytes(count - skipped);
+            if (n <= 0) {
+                throw new IOException("Truncated class file");
+            }
+            skipped += n;
+        }
+    }
+}
@@ -75,4 +75,70 @@ public class Constants {
 
     public static final String TRACK_INIT_CLASSES = "pilottrack_init_class";
 
+    public static final String SWITCHPOINT_GUARD = "switchpoint_guard";
+
+    public static final String REACHABILITY_PRUNING = "reachability_pruning";
+
+    public static final String BARRIER_ELIMINATION = "barrier_elimination";
+
+    public static final String SHADOW_RECORD = "shadow_record";
+
+    public static final String WRITE_SET_ANALYSIS = "write_set_analysis";
+
+    public static final String COPY_METHODS = "copy_methods";
+
+    public static final String IMMUTABILITY_INFERENCE = "immutability_inference";
+
+    public static final String OVERLAY_COLLECTIONS = "overlay_collections";
+
+    public static final String LAZY_COPY = "lazy_copy";
+
+    public static final String ALLOCATION_ANALYSIS = "allocation_analysis";
+
+    public static final String PILOT_ID_PARAMETER = "pilot_id_parameter";
+
+    public static final String PILOT_ID_SUFFIX = "$pilotId";
+
+    public static final String BINARY_EVENT_LOG = "binary_event_log";
+
+    public static final String SPAN_BUDGET = "span_budget";
+
+    public static final String NUMERIC_TRACE_IDS = "numeric_trace_ids";
+
+    public static final String PILOT_COMPANION_CLASSES = "pilot_companion_classes";
+
+    public static final String PILOT_COMPANION_SUFFIX = "$Pilot";
+
+    public static final String OUTLINE_HELPERS = "outline_helpers";
+
+    public static final String INLINING_REPORT = "inlining_report";
+
+    public static final String HUGE_METHOD_LIMIT = "huge_method_limit";
+
+    public static final String JIMPLE_CLEANUP = "jimple_cleanup";
+
+    public static final String GUARDED_IO = "guarded_io";
+
+    public static final String DIVERGE_HELPER_SUFFIX = "$pilotDiverge";
+
+    public static final String BARRIER_HELPER_SUFFIX = "$pilotBarrier";
+
+    public static final String READ_HELPER_SUFFIX = "$pilotRead";
+
+    public static final String REGION_HELPER_SUFFIX = "$pilotRegion";
+
+    public static final String OVERLAY_COLLECTIONS_CLASS_NAME = "org.pilot.collections.Overlays";
+
+    public static final String COPY_METHOD_NAME = "$pilotCopy";
+
+    public static final String SHADOW_RECORD_CLASS_NAME = "org.pilot.ShadowRecord";
+
+    public static final String SHADOW_RECORD_FIELD = "$pilotShadow";
+
+    public static final String STATIC_SHADOW_RECORD_FIELD = "$pilotStaticShadow";
+
+    public static final String PILOT_GUARD_CLASS_NAME = "org.pilot.PilotGuard";
+
+    public static final String PILOT_EVENTS_CLASS_NAME = "org.pilot.PilotEvents";
+
 }
@@ -0,0 +1,57 @@
+package edu.uva.liftlab.pilot.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * HugeMethodReport - With the huge_method_limit option, the methods of the output that are still
+ * larger than the limit, which the JIT does not compile when the limit is HugeMethodLimit.
+ *
+ * Report format, pilot-huge-methods.tsv in the output directory: one method per line, class, method
+ * with descriptor and size. Only class file output is supported.
+ */
+public class HugeMethodReport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HugeMethodReport.class);
+
+    public static final String REPORT_FILE = "pilot-huge-methods.tsv";
+
+    public static void write(Path outputDir, int limit) {
+        List<Path> classFiles = new ArrayList<>();
+        int hugeMethodCount = 0;
+        try (Stream<Path> stream = Files.walk(outputDir)) {
+            stream.filter(p -> p.toString().endsWith(".class")).sorted().forEach(classFiles::add);
+            try (BufferedWriter writer = Files.newBufferedWriter(outputDir.resolve(REPORT_FILE), StandardCharsets.UTF_8)) {
+                writer.write("class\tmethod\tsize");
+                writer.newLine();
+                for (Path classFile : classFiles) {
+                    String relative = outputDir.relativize(classFile).toString().replace('\\', '/');
+                    String className = relative.substring(0, relative.length() - ".class".length()).replace('/', '.');
+                    for (Map.Entry<String, Integer> method : BytecodeSize.codeLengths(Files.readAllBytes(classFile)).entrySet()) {
+                        if (method.getValue() <= limit) {
+                            continue;
+                        }
+                        LOG.warn("Huge method: {}.{} has {} bytes of bytecode", className, method.getKey(), method.getValue());
+                        writer.write(className + "\t" + method.getKey() + "\t" + method.getValue());
+                        writer.newLine();
+                        hugeMethodCount++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to write the huge method report: " + e);
+            return;
+        }
+        LOG.info("Huge method report: {} methods larger than {} bytes, see {}", hugeMethodCount, limit, REPORT_FILE);
+    }
+}
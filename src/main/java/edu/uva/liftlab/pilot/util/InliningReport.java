@@ -0,0 +1,121 @@
+package edu.uva.liftlab.pilot.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static edu.uva.liftlab.pilot.util.BytecodeSize.FREQ_INLINE_SIZE;
+import static edu.uva.liftlab.pilot.util.BytecodeSize.MAX_INLINE_SIZE;
+
+/**
+ * InliningReport - With the inlining_report option, the bytecode size of every method of the output
+ * before and after instrumentation, and the JIT inlining limits that instrumentation made it cross.
+ *
+ * Report format, pilot-inlining-report.tsv in the output directory: one method per line, class,
+ * method with descriptor, size before (- for generated methods), size after and the limit crossed,
+ * MaxInlineSize, FreqInlineSize or -. Only class file output is supported.
+ */
+public class InliningReport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InliningReport.class);
+
+    public static final String REPORT_FILE = "pilot-inlining-report.tsv";
+
+    // class file path in the input -> its bytes
+    private final Map<String, byte[]> inputClasses = new HashMap<>();
+
+    public static void write(List<String> inputs, Path outputDir) {
+        try {
+            InliningReport report = new InliningReport();
+            for (String input : inputs) {
+                report.indexInput(Paths.get(input));
+            }
+            report.write(outputDir);
+        } catch (IOException e) {
+            LOG.error("Failed to write the inlining report: " + e);
+        }
+    }
+
+    private void indexInput(Path input) throws IOException {
+        if (Files.isDirectory(input)) {
+            List<Path> classFiles = new ArrayList<>();
+            try (Stream<Path> stream = Files.walk(input)) {
+                stream.filter(p -> p.toString().endsWith(".class")).forEach(classFiles::add);
+            }
+            for (Path classFile : classFiles) {
+                inputClasses.put(input.relativize(classFile).toString().replace('\\', '/'), Files.readAllBytes(classFile));
+            }
+        } else if (input.toString().endsWith(".jar")) {
+            try (ZipFile jar = new ZipFile(input.toFile())) {
+                for (ZipEntry entry : Collections.list(jar.entries())) {
+                    if (!entry.isDirectory() && entry.getName().endsWith(".class")) {
+                        inputClasses.put(entry.getName(), readAll(jar, entry));
+                    }
+                }
+            }
+        }
+    }
+
+    private static byte[] readAll(ZipFile jar, ZipEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = jar.getInputStream(entry)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private void write(Path outputDir) throws IOException {
+        List<Path> classFiles = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(outputDir)) {
+            stream.filter(p -> p.toString().endsWith(".class")).sorted().forEach(classFiles::add);
+        }
+        int methodCount = 0;
+        int maxInlineCount = 0;
+        int freqInlineCount = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(outputDir.resolve(REPORT_FILE), StandardCharsets.UTF_8)) {
+            writer.write("class\tmethod\tbefore\tafter\tcrossed");
+            writer.newLine();
+            for (Path classFile : classFiles) {
+                String relative = outputDir.relativize(classFile).toString().replace('\\', '/');
+                String className = relative.substring(0, relative.length() - ".class".length()).replace('/', '.');
+                byte[] input = inputClasses.get(relative);
+                Map<String, Integer> before = input == null
+                        ? Collections.<String, Integer>emptyMap() : BytecodeSize.codeLengths(input);
+                Map<String, Integer> after = BytecodeSize.codeLengths(Files.readAllBytes(classFile));
+                for (Map.Entry<String, Integer> method : after.entrySet()) {
+                    Integer size = before.get(method.getKey());
+                    String crossed = "-";
+                    if (size != null && size <= MAX_INLINE_SIZE && method.getValue() > MAX_INLINE_SIZE) {
+                        crossed = "MaxInlineSize";
+                        maxInlineCount++;
+                    } else if (size != null && size <= FREQ_INLINE_SIZE && method.getValue() > FREQ_INLINE_SIZE) {
+                        crossed = "FreqInlineSize";
+                        freqInlineCount++;
+                    }
+                    writer.write(className + "\t" + method.getKey() + "\t" + (size == null ? "-" : size) + "\t"
+                            + method.getValue() + "\t" + crossed);
+                    writer.newLine();
+                    methodCount++;
+                }
+            }
+        }
+        LOG.info("Inlining report: {} methods, instrumentation made {} methods cross MaxInlineSize ({} bytes) and {} cross FreqInlineSize ({} bytes), see {}",
+                methodCount, maxInlineCount, MAX_INLINE_SIZE, freqInlineCount, FREQ_INLINE_SIZE, REPORT_FILE);
+    }
+}
@@ -0,0 +1,59 @@
+package edu.uva.liftlab.pilot.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * PilotEventLog - The log sites of the binary event log.
+ *
+ * With binary_event_log enabled, a log site of the generated code (pilot method entry and exit,
+ * barriers setting the shadow flag) calls PilotEvents.dryRunEvent(int) with the id of the site
+ * instead of PilotUtil.dryRunLog(String) with its message. PilotEvents, in the runtime module, writes
+ * (siteId, threadId, nanoTime) into per-thread off-heap ring buffers without allocating, and dumps
+ * them as records of a big endian int and two longs, to the file of -Dpilot.eventLog at exit.
+ * {@link PilotEventLogDecoder} turns the dumps back into messages with the site table the engine
+ * writes next to its output, see {@link SiteTable}.
+ */
+public class PilotEventLog {
+    private static final Logger LOG = LoggerFactory.getLogger(PilotEventLog.class);
+
+    public static final String SITE_TABLE_FILE = "pilot-event-sites.tsv";
+
+    private static boolean enabled = false;
+
+    private static final SiteTable SITES = new SiteTable(SITE_TABLE_FILE);
+
+    public static void setEnabled(boolean isEnabled) {
+        enabled = isEnabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the id of the log site with the message
+     */
+    public static int register(String message) {
+        return SITES.register(message);
+    }
+
+    /**
+     * Write the sites registered by this run to the site table of the output directory, keeping the
+     * sites already in it
+     */
+    public static void writeSiteTable(Path outputDir) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Path table = SITES.write(outputDir);
+            LOG.info("Binary event log: {} log sites, site table written to {}", SITES.size(), table);
+        } catch (IOException e) {
+            LOG.error("Failed to write event log site table to {}: {}", outputDir, e.toString());
+        }
+    }
+}
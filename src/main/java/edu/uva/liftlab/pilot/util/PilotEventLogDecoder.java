@@ -0,0 +1,91 @@
+package edu.uva.liftlab.pilot.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * PilotEventLogDecoder - Rebuilds readable pilot logs from the ring buffer dumps of the binary
+ * event log, see {@link PilotEventLog}.
+ *
+ * Usage: PilotEventLogDecoder site-table dump...
+ * The events of every dump are printed in nanoTime order, one per line:
+ * nanoTime [thread threadId] message
+ */
+public class PilotEventLogDecoder {
+
+    private final Map<Integer, Set<String>> sites;
+
+    public PilotEventLogDecoder(Map<Integer, Set<String>> sites) {
+        this.sites = sites;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: PilotEventLogDecoder <site table> <dump>...");
+            System.exit(1);
+        }
+        PilotEventLogDecoder decoder = new PilotEventLogDecoder(SiteTable.read(Paths.get(args[0])));
+        List<Event> events = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            events.addAll(readDump(Paths.get(args[i])));
+        }
+        decoder.print(events, System.out);
+    }
+
+    /**
+     * @return the events of a dump, a truncated last record is dropped
+     */
+    public static List<Event> readDump(Path dump) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dump)))) {
+            while (true) {
+                try {
+                    int siteId = in.readInt();
+                    long threadId = in.readLong();
+                    long nanoTime = in.readLong();
+                    events.add(new Event(siteId, threadId, nanoTime));
+                } catch (EOFException e) {
+                    return events;
+                }
+            }
+        }
+    }
+
+    public void print(List<Event> events, PrintStream out) {
+        events.sort(Comparator.comparingLong(event -> event.nanoTime));
+        for (Event event : events) {
+            out.println(event.nanoTime + " [thread " + event.threadId + "] " + getMessage(event.siteId));
+        }
+    }
+
+    private String getMessage(int siteId) {
+        Set<String> messages = sites.get(siteId);
+        if (messages == null) {
+            return "unknown log site " + siteId;
+        }
+        return String.join(" | ", messages);
+    }
+
+    public static final class Event {
+        private final int siteId;
+        private final long threadId;
+        private final long nanoTime;
+
+        public Event(int siteId, long threadId, long nanoTime) {
+            this.siteId = siteId;
+            this.threadId = threadId;
+            this.nanoTime = nanoTime;
+        }
+    }
+}
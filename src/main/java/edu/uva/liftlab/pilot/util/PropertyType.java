@@ -19,5 +19,25 @@ public enum PropertyType {
     STATE_WHITELIST_CLASS,
     CTX_TREE_BLACK_LIST,
     SIMPLE_INSTRUMENTATION,
-    TRACK_INIT_CLASSES
+    TRACK_INIT_CLASSES,
+    SWITCHPOINT_GUARD,
+    REACHABILITY_PRUNING,
+    BARRIER_ELIMINATION,
+    SHADOW_RECORD,
+    WRITE_SET_ANALYSIS,
+    COPY_METHODS,
+    IMMUTABILITY_INFERENCE,
+    OVERLAY_COLLECTIONS,
+    LAZY_COPY,
+    ALLOCATION_ANALYSIS,
+    PILOT_ID_PARAMETER,
+    BINARY_EVENT_LOG,
+    SPAN_BUDGET,
+    NUMERIC_TRACE_IDS,
+    PILOT_COMPANION_CLASSES,
+    OUTLINE_HELPERS,
+    INLINING_REPORT,
+    HUGE_METHOD_LIMIT,
+    JIMPLE_CLEANUP,
+    GUARDED_IO
 }
@@ -0,0 +1,139 @@
+package edu.uva.liftlab.pilot.util;
+
+import edu.uva.liftlab.pilot.distributedtracing.utils.TraceRecording;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * SiteTable - Strings of the generated code replaced by int ids, and the table the engine writes
+ * next to its output to map the ids back.
+ *
+ * The id of a string only depends on the string, so that shard workers and cached classes agree
+ * on it without coordination. Two strings can share an id: the table keeps both.
+ *
+ * Table format: one string per line, the id and the string separated by a tab, tabs, newlines and
+ * backslashes of strings escaped.
+ */
+public class SiteTable {
+
+    // Every table, merged instead of overwritten when outputs are combined
+    public static final List<String> FILES = Arrays.asList(PilotEventLog.SITE_TABLE_FILE,
+            TraceRecording.NAME_TABLE_FILE);
+
+    private final String fileName;
+
+    // id -> strings registered by this run
+    private final Map<Integer, Set<String>> sites = new TreeMap<>();
+
+    public SiteTable(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public static int getId(String site) {
+        return site.hashCode() & Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the id of the string
+     */
+    public synchronized int register(String site) {
+        int id = getId(site);
+        sites.computeIfAbsent(id, k -> new TreeSet<>()).add(site);
+        return id;
+    }
+
+    public synchronized int size() {
+        return sites.size();
+    }
+
+    /**
+     * Write the strings registered by this run to the table of the output directory, keeping the
+     * strings already in it
+     * @return the table
+     */
+    public synchronized Path write(Path outputDir) throws IOException {
+        Path table = outputDir.resolve(fileName);
+        Map<Integer, Set<String>> merged = read(table);
+        addAll(sites, merged);
+        Files.createDirectories(outputDir);
+        write(table, merged);
+        return table;
+    }
+
+    /**
+     * Add the strings of the source table to the target table
+     */
+    public static void merge(Path source, Path target) throws IOException {
+        Map<Integer, Set<String>> merged = read(target);
+        addAll(read(source), merged);
+        write(target, merged);
+    }
+
+    /**
+     * @return id -> strings of the table, empty if there is no table
+     */
+    public static Map<Integer, Set<String>> read(Path table) throws IOException {
+        Map<Integer, Set<String>> sites = new TreeMap<>();
+        if (!Files.isRegularFile(table)) {
+            return sites;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(table, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                sites.computeIfAbsent(Integer.parseInt(line.substring(0, tab)), k -> new TreeSet<>())
+                        .add(unescape(line.substring(tab + 1)));
+            }
+        }
+        return sites;
+    }
+
+    private static void addAll(Map<Integer, Set<String>> source, Map<Integer, Set<String>> target) {
+        for (Map.Entry<Integer, Set<String>> entry : source.entrySet()) {
+            target.computeIfAbsent(entry.getKey(), k -> new TreeSet<>()).addAll(entry.getValue());
+        }
+    }
+
+    private static void write(Path table, Map<Integer, Set<String>> sites) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(table, StandardCharsets.UTF_8)) {
+            for (Map.Entry<Integer, Set<String>> entry : sites.entrySet()) {
+                for (String site : entry.getValue()) {
+                    writer.write(entry.getKey() + "\t" + escape(site));
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    private static String escape(String site) {
+        return site.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String site) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < site.length(); i++) {
+            char c = site.charAt(i);
+            if (c != '\\' || i + 1 == site.length()) {
+                result.append(c);
+                continue;
+            }
+            char next = site.charAt(++i);
+            result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+        }
+        return result.toString();
+    }
+}
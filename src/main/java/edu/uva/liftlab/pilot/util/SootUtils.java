@@ -5,6 +5,7 @@ import java.nio.file.Files;
 import java.util.*;
 
 import edu.uva.liftlab.pilot.isolation.stateredirection.ClassFilterHelper;
+import edu.uva.liftlab.pilot.transformer.PilotTransformer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import soot.*;
@@ -91,6 +92,26 @@ public class SootUtils {
         put(PropertyType.CTX_TREE_BLACK_LIST, CTX_TREE_BLACK_LIST);
         put(PropertyType.SIMPLE_INSTRUMENTATION, SIMPLE_INSTRUMENTATION);
         put(PropertyType.TRACK_INIT_CLASSES, TRACK_INIT_CLASSES);
+        put(PropertyType.SWITCHPOINT_GUARD, SWITCHPOINT_GUARD);
+        put(PropertyType.REACHABILITY_PRUNING, REACHABILITY_PRUNING);
+        put(PropertyType.BARRIER_ELIMINATION, BARRIER_ELIMINATION);
+        put(PropertyType.SHADOW_RECORD, SHADOW_RECORD);
+        put(PropertyType.WRITE_SET_ANALYSIS, WRITE_SET_ANALYSIS);
+        put(PropertyType.COPY_METHODS, COPY_METHODS);
+        put(PropertyType.IMMUTABILITY_INFERENCE, IMMUTABILITY_INFERENCE);
+        put(PropertyType.OVERLAY_COLLECTIONS, OVERLAY_COLLECTIONS);
+        put(PropertyType.LAZY_COPY, LAZY_COPY);
+        put(PropertyType.ALLOCATION_ANALYSIS, ALLOCATION_ANALYSIS);
+        put(PropertyType.PILOT_ID_PARAMETER, PILOT_ID_PARAMETER);
+        put(PropertyType.BINARY_EVENT_LOG, BINARY_EVENT_LOG);
+        put(PropertyType.SPAN_BUDGET, SPAN_BUDGET);
+        put(PropertyType.NUMERIC_TRACE_IDS, NUMERIC_TRACE_IDS);
+        put(PropertyType.PILOT_COMPANION_CLASSES, PILOT_COMPANION_CLASSES);
+        put(PropertyType.OUTLINE_HELPERS, OUTLINE_HELPERS);
+        put(PropertyType.INLINING_REPORT, INLINING_REPORT);
+        put(PropertyType.HUGE_METHOD_LIMIT, HUGE_METHOD_LIMIT);
+        put(PropertyType.JIMPLE_CLEANUP, JIMPLE_CLEANUP);
+        put(PropertyType.GUARDED_IO, GUARDED_IO);
     }};
 
 
@@ -151,6 +172,51 @@ public class SootUtils {
         return sootClass.getName().contains(DRY_RUN);
     }
 
+    /**
+     * Build the expression used by the diverge prologue, and by the guarded IO
+     * redirection, to decide whether the current execution is a pilot run.
+     *
+     * By default this is a static call to PilotUtil.isDryRun(). When the
+     * switchpoint_guard option is set, an invokedynamic call site bootstrapped by
+     * PilotGuard.bootstrap is emitted instead. PilotGuard, in the runtime module,
+     * hands out a shared MutableCallSite whose target is a constant false while no
+     * pilot run is active, so the JIT folds the prologue branch away, and
+     * PilotUtil.isDryRun() from PilotGuard.pilotRunStarted() to the matching
+     * pilotRunEnded(), see PilotGuardGenerator.
+     */
+    public static InvokeExpr makeIsDryRunExpr(boolean switchPointGuard) {
+        if (!switchPointGuard) {
+            return Jimple.v().newStaticInvokeExpr(
+                    Scene.v().makeMethodRef(
+                            Scene.v().loadClassAndSupport(PILOT_UTIL_CLASS_NAME),
+                            "isDryRun",
+                            Collections.emptyList(),
+                            BooleanType.v(),
+                            true
+                    )
+            );
+        }
+        List<Type> bootstrapParams = Arrays.asList(
+                RefType.v("java.lang.invoke.MethodHandles$Lookup"),
+                RefType.v("java.lang.String"),
+                RefType.v("java.lang.invoke.MethodType"));
+        SootMethodRef bootstrapRef = Scene.v().makeMethodRef(
+                Scene.v().loadClassAndSupport(PILOT_GUARD_CLASS_NAME),
+                "bootstrap",
+                bootstrapParams,
+                RefType.v("java.lang.invoke.CallSite"),
+                true
+        );
+        SootMethodRef callSiteRef = Scene.v().makeMethodRef(
+                Scene.v().getSootClass(SootClass.INVOKEDYNAMIC_DUMMY_CLASS_NAME),
+                "isDryRun",
+                Collections.emptyList(),
+                BooleanType.v(),
+                true
+        );
+        return Jimple.v().newDynamicInvokeExpr(bootstrapRef, Collections.emptyList(), callSiteRef, Collections.emptyList());
+    }
+
     public static boolean dryRunMethodshouldBeInstrumented(SootMethod method, SootClass sootClass) {
         if (method.isStaticInitializer() ||
                 method.isConstructor() ||
@@ -273,6 +339,12 @@ public class SootUtils {
                 if(isMethodComplexEnoughForInstrumentation(method) && !skipInstrumentationForCtxTree(method)) {
                     LOG.info("Method {} selected for context tracking instrumentation", method.getSignature());
                     SootUtils.shouldInstrumentedMethods.add(method);
+                    continue;
+                }
+                // with a span budget, simple methods are not worth a span
+                if(classFilterHelper.isSpanBudget){
+                    PilotTransformer.simpleCtxMethodCount++;
+                    continue;
                 }
                 SootUtils.shouldInstrumentedMethods.add(method);
             }
@@ -861,6 +933,9 @@ public class SootUtils {
 
 
     public static List<Unit> printLog4j(String message, LocalGeneratorUtil lg) {
+        if (PilotEventLog.isEnabled()) {
+            return logEvent(message);
+        }
         if (!shouldPrint(lg.getClassName())) {
             return new ArrayList<>();
         }
@@ -881,6 +956,26 @@ public class SootUtils {
         return units;
     }
 
+    /**
+     * Log the site with the message as an event of the binary event log, see {@link PilotEventLog}
+     */
+    private static List<Unit> logEvent(String message) {
+        StaticInvokeExpr dryRunEventExpr = Jimple.v().newStaticInvokeExpr(
+                Scene.v().makeMethodRef(
+                        Scene.v().loadClassAndSupport(PILOT_EVENTS_CLASS_NAME),
+                        "dryRunEvent",
+                        Collections.singletonList(IntType.v()),
+                        VoidType.v(),
+                        true
+                ),
+                Collections.singletonList(IntConstant.v(PilotEventLog.register(message)))
+        );
+
+        List<Unit> units = new ArrayList<>();
+        units.add(Jimple.v().newInvokeStmt(dryRunEventExpr));
+        return units;
+    }
+
     public static List<Unit> printValue(Local localVariable, LocalGeneratorUtil lg, String additionalMessage) {
         if (!shouldPrint(lg.getClassName())) {
             return new ArrayList<>();
@@ -978,29 +1073,59 @@ public class SootUtils {
         return units;
     }
 
-    public static Set<String> getListFromProperty(String configFile, Enum<PropertyType> type){
+    // config path -> parsed config, so that each config file is read once
+    private static final Map<String, Properties> LOADED_CONFIGS = new HashMap<>();
+    private static final Set<String> MISSING_PROPERTIES = new HashSet<>();
+
+    public static synchronized Properties loadConfig(String configFile) {
+        Properties props = LOADED_CONFIGS.get(configFile);
+        if (props != null) {
+            return props;
+        }
         LOG.info("Loading config file: " + configFile);
-        Properties props = new Properties();
-        try (FileInputStream fis = new FileInputStream(configFile)) {
-            props.load(fis);
-        } catch (IOException e) {
-            LOG.info("Cannot load config file");
-        }
-        String strList;
-        Set<String> res = new HashSet<>();
-
-        try{
-            String name=PROPERTY_TYPE_TO_STRING.get(type);
-            strList= props.getProperty(name);
-            res = new HashSet<>(
-                    Arrays.asList(strList.split(","))
-            );
-        }catch (RuntimeException e){
-            LOG.warn("No pre-defined property: " + type.toString());
-            e.printStackTrace();
+        props = new Properties();
+        if (configFile != null) {
+            try (FileInputStream fis = new FileInputStream(configFile)) {
+                props.load(fis);
+            } catch (IOException e) {
+                LOG.info("Cannot load config file");
+            }
+        }
+        LOADED_CONFIGS.put(configFile, props);
+        return props;
+    }
+
+    public static Set<String> getListFromProperty(String configFile, Enum<PropertyType> type){
+        Properties props = loadConfig(configFile);
+        String name = PROPERTY_TYPE_TO_STRING.get(type);
+        String strList = name == null ? null : props.getProperty(name);
+        if (strList == null) {
+            if (MISSING_PROPERTIES.add(configFile + "#" + type)) {
+                LOG.warn("No pre-defined property: " + type.toString());
+            }
             return new HashSet<>();
         }
-        return res;
+        return new HashSet<>(Arrays.asList(strList.split(",")));
+    }
+
+    /**
+     * @return the value of an on/off option, true or false, false if the option is not set. Any other
+     * value is an error, and leaves the option off
+     */
+    public static boolean getBooleanFromProperty(String configFile, Enum<PropertyType> type){
+        Set<String> values = getListFromProperty(configFile, type);
+        if (values.isEmpty()) {
+            return false;
+        }
+        String value = String.join(",", values).trim();
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (!value.equalsIgnoreCase("false")) {
+            LOG.error("Invalid value {} of {}, expected true or false, the option stays off",
+                    value, PROPERTY_TYPE_TO_STRING.get(type));
+        }
+        return false;
     }
 
     public static boolean isClassInList(String className, Set<String> classList){